@@ -0,0 +1,705 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.netty;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import majordodo.client.BrokerStatus;
+import majordodo.client.ClientConnection;
+import majordodo.client.ClientException;
+import majordodo.client.CodePoolStatus;
+import majordodo.client.CreateCodePoolRequest;
+import majordodo.client.CreateCodePoolResult;
+import majordodo.client.SubmitTaskRequest;
+import majordodo.client.SubmitTaskResponse;
+import majordodo.client.TaskStatus;
+import majordodo.client.TaskSubmitter;
+import majordodo.network.BrokerLocator;
+import majordodo.network.BrokerNotAvailableException;
+import majordodo.network.BrokerRejectedConnectionException;
+import majordodo.network.Channel;
+import majordodo.network.ChannelEventListener;
+import majordodo.network.ConnectionRequestInfo;
+import majordodo.network.Message;
+
+/**
+ * Connection to the broker which uses the binary protocol of the workers, on
+ * the same network endpoint, instead of JSON over HTTP. The client logs in as
+ * a user of the broker, with the same credentials and the same permissions
+ * as on the HTTP API: the credentials are sent with the connection request,
+ * so SSL should be enabled on untrusted networks.
+ * <p>
+ * Requests are pipelined over a single TCP connection, which is established
+ * at the first request and established again after a failure. The broker
+ * pushes the completion of the tasks, so waiting for a task does not keep any
+ * thread busy on the broker. Each operation has an asynchronous variant which
+ * returns a future, the blocking methods of {@link ClientConnection} simply
+ * wait for it.
+ * <p>
+ * This connection is thread safe, but the transaction is bound to the
+ * connection: a transacted connection should not be shared among threads
+ *
+ * @author enrico.olivelli
+ */
+public class NettyClientConnection implements ClientConnection {
+
+    private static final Logger LOGGER = Logger.getLogger(NettyClientConnection.class.getName());
+
+    private final BrokerLocator brokerLocator;
+    private final String username;
+    private final String password;
+    private final String processId = UUID.randomUUID().toString();
+    private String clientId = "client";
+    private long requestTimeout = 120000;
+    private Channel channel;
+    private ChannelEventListener channelListener;
+    private volatile boolean closed;
+    private boolean transacted;
+    private String transactionId;
+    private TaskSubmitter submitter;
+    /**
+     * Tasks whose completion has been requested to the broker and not yet
+     * notified
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<TaskStatus>> completions = new ConcurrentHashMap<>();
+
+    public NettyClientConnection(BrokerLocator brokerLocator, String username, String password) {
+        this.brokerLocator = brokerLocator;
+        this.username = username;
+        this.password = password;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Name of this client, it is only used by the broker in order to identify
+     * the connection
+     *
+     * @param clientId
+     */
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Max time to wait for the reply to a request, in milliseconds
+     *
+     * @param requestTimeout
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    private final ConnectionRequestInfo connectionRequestInfo = new ConnectionRequestInfo() {
+
+        @Override
+        public Set<Long> getRunningTaskIds() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public String getWorkerId() {
+            return clientId;
+        }
+
+        @Override
+        public String getProcessId() {
+            return processId;
+        }
+
+        @Override
+        public String getLocation() {
+            try {
+                return InetAddress.getLocalHost().getCanonicalHostName();
+            } catch (UnknownHostException err) {
+                return "unknown";
+            }
+        }
+
+        @Override
+        public String getSharedSecret() {
+            return null;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public String getPassword() {
+            return password;
+        }
+
+        @Override
+        public int getMaxThreads() {
+            return 0;
+        }
+
+        @Override
+        public Map<String, Integer> getMaxThreadsByTaskType() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public List<Integer> getGroups() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Set<Integer> getExcludedGroups() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Map<String, Integer> getResourceLimits() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String getClientType() {
+            return CLIENT_TYPE_CLIENT;
+        }
+
+        @Override
+        public int getMaxThreadPerUserPerTaskTypePercent() {
+            return 0;
+        }
+    };
+
+    private final class BrokerListener implements ChannelEventListener {
+
+        @Override
+        public void messageReceived(Message message) {
+            if (message.type == Message.TYPE_CLIENT_TASKS_COMPLETED) {
+                tasksCompleted(message);
+            } else {
+                LOGGER.log(Level.SEVERE, "unexpected message from broker {0}", message);
+            }
+        }
+
+        @Override
+        public void channelClosed() {
+            connectionClosed(this);
+        }
+    }
+
+    private synchronized Channel getChannel() throws ClientException {
+        if (closed) {
+            throw new ClientException("connection is closed");
+        }
+        if (channel != null) {
+            if (channel.isValid()) {
+                return channel;
+            }
+            discardChannel();
+        }
+        BrokerListener listener = new BrokerListener();
+        try {
+            channel = brokerLocator.connect(listener, connectionRequestInfo);
+            channelListener = listener;
+            return channel;
+        } catch (BrokerNotAvailableException | BrokerRejectedConnectionException err) {
+            brokerLocator.brokerDisconnected();
+            throw new ClientException(err);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(err);
+        }
+    }
+
+    private void connectionClosed(BrokerListener listener) {
+        synchronized (this) {
+            if (channelListener != listener) {
+                // an old channel
+                return;
+            }
+            LOGGER.log(Level.SEVERE, "connection to broker {0} closed", channel);
+            channel = null;
+            channelListener = null;
+        }
+        brokerLocator.brokerDisconnected();
+        failPendingCompletions(new ClientException("connection to broker lost"));
+    }
+
+    private void discardChannel() {
+        Channel _channel = channel;
+        channel = null;
+        channelListener = null;
+        _channel.close();
+        brokerLocator.brokerDisconnected();
+        failPendingCompletions(new ClientException("connection to broker lost"));
+    }
+
+    private void failPendingCompletions(ClientException error) {
+        for (String taskId : new ArrayList<>(completions.keySet())) {
+            CompletableFuture<TaskStatus> completion = completions.remove(taskId);
+            if (completion != null) {
+                completion.completeExceptionally(error);
+            }
+        }
+    }
+
+    private CompletableFuture<Message> request(Message message) {
+        CompletableFuture<Message> res = new CompletableFuture<>();
+        Channel _channel;
+        try {
+            _channel = getChannel();
+        } catch (ClientException err) {
+            res.completeExceptionally(err);
+            return res;
+        }
+        _channel.sendMessageWithAsyncReply(message, requestTimeout, (Message originalMessage, Message reply, Throwable error) -> {
+            if (error != null) {
+                res.completeExceptionally(new ClientException(error));
+            } else if (reply.type == Message.TYPE_ERROR) {
+                res.completeExceptionally(new ClientException(reply.parameters.get("error") + ""));
+            } else {
+                res.complete(reply);
+            }
+        });
+        return res;
+    }
+
+    private interface Decoder<T> {
+
+        T decode(Map<String, Object> reply) throws ClientException;
+    }
+
+    private static <T> CompletableFuture<T> decode(CompletableFuture<Message> reply, Decoder<T> decoder) {
+        return reply.thenApply(r -> {
+            try {
+                return decoder.decode(r.parameters);
+            } catch (ClientException | RuntimeException err) {
+                throw new CompletionException(err);
+            }
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        res.completeExceptionally(error);
+        return res;
+    }
+
+    private static <T> T get(CompletableFuture<T> future) throws ClientException {
+        try {
+            return future.get();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(err);
+        } catch (ExecutionException err) {
+            throw unwrap(err.getCause());
+        }
+    }
+
+    private static ClientException unwrap(Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof ClientException) {
+            return (ClientException) cause;
+        }
+        return new ClientException(cause);
+    }
+
+    private static Map<String, Object> encodeSubmitTask(SubmitTaskRequest request, String transactionId) throws ClientException {
+        request.validate();
+        Map<String, Object> task = new HashMap<>();
+        task.put("tasktype", request.getTasktype());
+        task.put("userid", request.getUserid());
+        task.put("parameter", request.getData());
+        task.put("maxattempts", request.getMaxattempts());
+        task.put("attempt", request.getAttempt());
+        task.put("requestedStartTime", request.getRequestedStartTime());
+        if (request.getTimeToLive() > 0) {
+            task.put("deadline", System.currentTimeMillis() + request.getTimeToLive());
+        }
+        if (request.getSlot() != null && !request.getSlot().isEmpty()) {
+            task.put("slot", request.getSlot());
+        }
+        if (request.getCodePoolId() != null) {
+            task.put("codepool", request.getCodePoolId());
+        }
+        if (request.getMode() != null && !SubmitTaskRequest.MODE_FACTORY.equals(request.getMode())) {
+            task.put("mode", request.getMode());
+        }
+        if (transactionId != null) {
+            task.put("transaction", Long.parseLong(transactionId));
+        }
+        return task;
+    }
+
+    private static List<SubmitTaskResponse> decodeSubmitTasksResult(Map<String, Object> reply) {
+        List<Map<String, Object>> results = (List<Map<String, Object>>) reply.get("results");
+        List<SubmitTaskResponse> responses = new ArrayList<>(results.size());
+        for (Map<String, Object> result : results) {
+            SubmitTaskResponse response = new SubmitTaskResponse();
+            long taskId = (Long) result.get("taskid");
+            if (taskId > 0) {
+                response.setTaskId(taskId + "");
+            }
+            String outcome = (String) result.get("outcome");
+            response.setOutcome(outcome != null ? outcome : "");
+            Long retryAfter = (Long) result.get("retryAfter");
+            response.setRetryAfter(retryAfter != null ? retryAfter : 0);
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    private static TaskStatus decodeTaskStatus(Map<String, Object> task) {
+        if (task == null) {
+            return null;
+        }
+        TaskStatus t = new TaskStatus();
+        t.setTaskId(task.get("taskId") + "");
+        t.setStatus((String) task.get("status"));
+        t.setUserId((String) task.get("userId"));
+        t.setTasktype((String) task.get("tasktype"));
+        t.setData((String) task.get("data"));
+        t.setResult((String) task.get("result"));
+        t.setWorkerId((String) task.get("workerId"));
+        t.setSlot((String) task.get("slot"));
+        t.setCodePoolId((String) task.get("codePoolId"));
+        String mode = (String) task.get("mode");
+        t.setMode(mode != null ? mode : SubmitTaskRequest.MODE_FACTORY);
+        t.setCreatedTimestamp((Long) task.getOrDefault("createdTimestamp", 0L));
+        t.setRequestedStartTime((Long) task.getOrDefault("requestedStartTime", 0L));
+        t.setDeadline((Long) task.getOrDefault("deadline", 0L));
+        t.setAttempts((Integer) task.getOrDefault("attempts", 0));
+        t.setMaxattempts((Integer) task.getOrDefault("maxattempts", 0));
+        return t;
+    }
+
+    private void tasksCompleted(Message message) {
+        List<Map<String, Object>> tasks = (List<Map<String, Object>>) message.parameters.get("tasks");
+        if (tasks != null) {
+            for (Map<String, Object> task : tasks) {
+                TaskStatus status = decodeTaskStatus(task);
+                CompletableFuture<TaskStatus> completion = completions.remove(status.getTaskId());
+                if (completion != null) {
+                    completion.complete(status);
+                }
+            }
+        }
+        List<Long> notFound = (List<Long>) message.parameters.get("notFound");
+        if (notFound != null) {
+            for (Long taskId : notFound) {
+                CompletableFuture<TaskStatus> completion = completions.remove(taskId + "");
+                if (completion != null) {
+                    completion.complete(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Subscribes to the completion of the given tasks, tasks already
+     * subscribed are not requested again to the broker
+     *
+     * @param taskIds
+     * @param futures receives the completion of each task
+     * @return a future which is completed when the broker acknowledged the
+     * subscription, at that time the futures of the tasks which were already
+     * completed are done
+     */
+    private CompletableFuture<Message> subscribeTasksCompletion(Collection<String> taskIds, Map<String, CompletableFuture<TaskStatus>> futures) {
+        List<Long> toSubscribe = new ArrayList<>();
+        for (String taskId : taskIds) {
+            long id;
+            try {
+                id = Long.parseLong(taskId);
+            } catch (NumberFormatException err) {
+                return failed(new ClientException("invalid taskId " + taskId));
+            }
+            CompletableFuture<TaskStatus> completion = new CompletableFuture<>();
+            CompletableFuture<TaskStatus> actual = completions.putIfAbsent(taskId, completion);
+            if (actual == null) {
+                toSubscribe.add(id);
+                actual = completion;
+            }
+            futures.put(taskId, actual);
+        }
+        if (toSubscribe.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Message> res = request(Message.CLIENT_SUBSCRIBE_TASKS_COMPLETION(toSubscribe));
+        return res.whenComplete((reply, error) -> {
+            if (error != null) {
+                for (Long taskId : toSubscribe) {
+                    CompletableFuture<TaskStatus> completion = completions.remove(taskId + "");
+                    if (completion != null) {
+                        completion.completeExceptionally(error);
+                    }
+                }
+            } else {
+                tasksCompleted(reply);
+            }
+        });
+    }
+
+    public CompletableFuture<SubmitTaskResponse> submitTaskAsync(SubmitTaskRequest request) {
+        return submitTasksAsync(Collections.singletonList(request)).thenApply(results -> results.get(0));
+    }
+
+    public CompletableFuture<List<SubmitTaskResponse>> submitTasksAsync(List<SubmitTaskRequest> requests) {
+        List<Map<String, Object>> tasks = new ArrayList<>(requests.size());
+        try {
+            ensureTransaction();
+            for (SubmitTaskRequest request : requests) {
+                tasks.add(encodeSubmitTask(request, transactionId));
+            }
+        } catch (ClientException err) {
+            return failed(err);
+        }
+        return decode(request(Message.CLIENT_SUBMIT_TASKS(tasks)), NettyClientConnection::decodeSubmitTasksResult);
+    }
+
+    public CompletableFuture<TaskStatus> getTaskStatusAsync(String id) {
+        long taskId;
+        try {
+            taskId = Long.parseLong(id);
+        } catch (NumberFormatException err) {
+            return failed(new ClientException("invalid taskId " + id));
+        }
+        return decode(request(Message.CLIENT_TASK_STATUS_REQUEST(taskId)),
+            reply -> decodeTaskStatus((Map<String, Object>) reply.get("task")));
+    }
+
+    /**
+     * Returns a future which is completed as soon as the task reaches a final
+     * status (finished or error). The future is completed with null if the
+     * task is unknown to the broker
+     *
+     * @param taskId
+     * @return
+     */
+    public CompletableFuture<TaskStatus> waitForTaskAsync(String taskId) {
+        Map<String, CompletableFuture<TaskStatus>> futures = new HashMap<>();
+        CompletableFuture<Message> subscription = subscribeTasksCompletion(Collections.singletonList(taskId), futures);
+        if (subscription.isCompletedExceptionally()) {
+            return subscription.thenApply(reply -> null);
+        }
+        return futures.get(taskId);
+    }
+
+    public CompletableFuture<BrokerStatus> getBrokerStatusAsync() {
+        return decode(request(Message.CLIENT_BROKER_STATUS_REQUEST()), data -> {
+            BrokerStatus res = new BrokerStatus();
+            res.setVersion((String) data.get("version"));
+            res.setStatus((String) data.get("status"));
+            res.setCurrentLedgerId(data.get("currentLedgerId") + "");
+            res.setCurrentSequenceNumber(data.get("currentSequenceNumber") + "");
+            res.setTasks((Long) data.get("tasks"));
+            res.setPendingtasks((Long) data.get("pendingtasks"));
+            res.setRunningtasks((Long) data.get("runningtasks"));
+            res.setErrortasks((Long) data.get("errortasks"));
+            res.setWaitingtasks((Long) data.get("waitingtasks"));
+            res.setFinishedtasks((Long) data.get("finishedtasks"));
+            return res;
+        });
+    }
+
+    public CompletableFuture<CodePoolStatus> getCodePoolStatusAsync(String codePoolId) {
+        return decode(request(Message.CLIENT_CODEPOOL_STATUS_REQUEST(codePoolId)), reply -> {
+            Map<String, Object> data = (Map<String, Object>) reply.get("codePool");
+            if (data == null) {
+                return null;
+            }
+            CodePoolStatus res = new CodePoolStatus();
+            res.setId((String) data.get("codePoolId"));
+            res.setCreationTimestamp((Long) data.get("creationTimestamp"));
+            return res;
+        });
+    }
+
+    public CompletableFuture<CreateCodePoolResult> createCodePoolAsync(CreateCodePoolRequest request) {
+        byte[] data;
+        try {
+            data = Base64.getDecoder().decode(request.getCodePoolData());
+        } catch (IllegalArgumentException err) {
+            return failed(new ClientException("invalid CodePool data, it must be encoded in base64", err));
+        }
+        return decode(request(Message.CLIENT_CREATE_CODEPOOL(request.getCodePoolID(), request.getTtl(), data)), reply -> {
+            if ((Integer) reply.getOrDefault("ok", 0) == 0) {
+                throw new ClientException("cannot create CodePool " + request.getCodePoolID() + ": " + reply.get("outcome"));
+            }
+            CreateCodePoolResult result = new CreateCodePoolResult();
+            result.setOk(true);
+            return result;
+        });
+    }
+
+    public CompletableFuture<Void> deleteCodePoolAsync(String codePoolId) {
+        return decode(request(Message.CLIENT_DELETE_CODEPOOL(codePoolId)), reply -> null);
+    }
+
+    @Override
+    public SubmitTaskResponse submitTask(SubmitTaskRequest request) throws ClientException {
+        return get(submitTaskAsync(request));
+    }
+
+    @Override
+    public List<SubmitTaskResponse> submitTasks(List<SubmitTaskRequest> requests) throws ClientException {
+        return get(submitTasksAsync(requests));
+    }
+
+    @Override
+    public TaskStatus getTaskStatus(String id) throws ClientException {
+        return get(getTaskStatusAsync(id));
+    }
+
+    @Override
+    public Map<String, TaskStatus> waitForTasks(Collection<String> taskIds, long timeout) throws ClientException {
+        Map<String, CompletableFuture<TaskStatus>> futures = new LinkedHashMap<>();
+        // the reply to the subscription already contains the tasks in final status
+        get(subscribeTasksCompletion(taskIds, futures));
+        if (timeout > 0 && !futures.isEmpty()) {
+            try {
+                CompletableFuture.anyOf(futures.values().toArray(new CompletableFuture[futures.size()]))
+                    .get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException err) {
+                return Collections.emptyMap();
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                throw new ClientException(err);
+            } catch (ExecutionException err) {
+                throw unwrap(err.getCause());
+            }
+        }
+        Map<String, TaskStatus> res = new HashMap<>();
+        for (Map.Entry<String, CompletableFuture<TaskStatus>> entry : futures.entrySet()) {
+            CompletableFuture<TaskStatus> completion = entry.getValue();
+            if (completion.isDone() && !completion.isCompletedExceptionally()) {
+                res.put(entry.getKey(), completion.join());
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public BrokerStatus getBrokerStatus() throws ClientException {
+        return get(getBrokerStatusAsync());
+    }
+
+    @Override
+    public CodePoolStatus getCodePoolStatus(String codePoolId) throws ClientException {
+        return get(getCodePoolStatusAsync(codePoolId));
+    }
+
+    @Override
+    public CreateCodePoolResult createCodePool(CreateCodePoolRequest request) throws ClientException {
+        return get(createCodePoolAsync(request));
+    }
+
+    @Override
+    public void deleteCodePool(String codePoolId) throws ClientException {
+        get(deleteCodePoolAsync(codePoolId));
+    }
+
+    private void ensureTransaction() throws ClientException {
+        if (transacted && transactionId == null) {
+            Message reply = get(request(Message.CLIENT_BEGIN_TRANSACTION()));
+            transactionId = reply.parameters.get("transaction") + "";
+        }
+    }
+
+    @Override
+    public boolean isTransacted() {
+        return transacted;
+    }
+
+    @Override
+    public void setTransacted(boolean transacted) {
+        if (transactionId != null) {
+            throw new IllegalStateException("cannot change transaction mode during transaction");
+        }
+        this.transacted = transacted;
+    }
+
+    @Override
+    public void commit() throws ClientException {
+        if (transactionId == null) {
+            return;
+        }
+        get(request(Message.CLIENT_COMMIT_TRANSACTION(Long.parseLong(transactionId))));
+        transactionId = null;
+    }
+
+    @Override
+    public void rollback() throws ClientException {
+        if (transactionId == null) {
+            return;
+        }
+        get(request(Message.CLIENT_ROLLBACK_TRANSACTION(Long.parseLong(transactionId))));
+        transactionId = null;
+    }
+
+    @Override
+    public synchronized TaskSubmitter submitter() {
+        if (submitter == null) {
+            submitter = new TaskSubmitter(this);
+        }
+        return submitter;
+    }
+
+    @Override
+    public void close() throws ClientException {
+        try {
+            if (transactionId != null) {
+                rollback();
+            }
+        } finally {
+            closed = true;
+            synchronized (this) {
+                if (channel != null) {
+                    discardChannel();
+                }
+            }
+            failPendingCompletions(new ClientException("connection is closed"));
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous task submission. Tasks submitted from any number of threads
+ * are queued and sent to the broker in batches, using a single
+ * {@link ClientConnection#submitTasks(java.util.List)} call for up to
+ * maxBatchSize tasks. A batch is sent as soon as it is full or when the
+ * oldest queued task has waited for lingerTime milliseconds.
+ * <p>
+ * The connection is used only by the internal sender thread, callers MUST NOT
+ * use it while the submitter is open
+ *
+ * @author enrico.olivelli
+ */
+public class BatchingTaskSubmitter implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(BatchingTaskSubmitter.class.getName());
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    public static final long DEFAULT_LINGER_TIME = 5;
+
+    private static final class PendingTask {
+
+        private final SubmitTaskRequest request;
+        private final CompletableFuture<SubmitTaskResponse> result = new CompletableFuture<>();
+        private final long enqueueTime = System.nanoTime();
+
+        private PendingTask(SubmitTaskRequest request) {
+            this.request = request;
+        }
+    }
+
+    private final ClientConnection connection;
+    private final int maxBatchSize;
+    private final long lingerTimeNanos;
+    private final LinkedBlockingQueue<PendingTask> queue;
+    private final Thread sender;
+    private volatile boolean closed;
+
+    public BatchingTaskSubmitter(ClientConnection connection) {
+        this(connection, DEFAULT_MAX_BATCH_SIZE, DEFAULT_LINGER_TIME);
+    }
+
+    /**
+     * Creates a new submitter and starts its sender thread
+     *
+     * @param connection a non transacted connection
+     * @param maxBatchSize max number of tasks sent with a single request
+     * @param lingerTime max time (in milliseconds) a task waits in the queue
+     * for other tasks to fill up the batch
+     */
+    public BatchingTaskSubmitter(ClientConnection connection, int maxBatchSize, long lingerTime) {
+        if (connection.isTransacted()) {
+            throw new IllegalArgumentException("batching is not supported on transacted connections");
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("invalid maxBatchSize " + maxBatchSize);
+        }
+        if (lingerTime < 0) {
+            throw new IllegalArgumentException("invalid lingerTime " + lingerTime);
+        }
+        this.connection = connection;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerTimeNanos = TimeUnit.MILLISECONDS.toNanos(lingerTime);
+        // bounded, in order to apply back pressure to the submitters
+        this.queue = new LinkedBlockingQueue<>(maxBatchSize * 16);
+        this.sender = new Thread(this::senderLoop, "majordodo-client-batch-submitter");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * Enqueues a task for submission. This method blocks only if too many
+     * tasks are waiting to be sent to the broker.
+     * <p>
+     * Each task is accepted or rejected individually: if a slot is busy the
+     * future is completed with a response without taskId and with the outcome
+     * given by the broker, exactly as in
+     * {@link ClientConnection#submitTask(majordodo.client.SubmitTaskRequest)}.
+     * The future is completed exceptionally if the request is invalid or if
+     * the whole batch could not be submitted
+     *
+     * @param request
+     * @return
+     */
+    public CompletableFuture<SubmitTaskResponse> submitTask(SubmitTaskRequest request) {
+        PendingTask task = new PendingTask(request);
+        // do not let an invalid request make the whole batch fail
+        try {
+            request.validate();
+        } catch (ClientException err) {
+            task.result.completeExceptionally(err);
+            return task.result;
+        }
+        if (closed) {
+            task.result.completeExceptionally(new ClientException("submitter is closed"));
+            return task.result;
+        }
+        try {
+            while (!queue.offer(task, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    // the sender thread may be gone, the queue would stay full
+                    task.result.completeExceptionally(new ClientException("submitter is closed"));
+                    return task.result;
+                }
+            }
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            task.result.completeExceptionally(new ClientException(err));
+            return task.result;
+        }
+        // close() may have already drained the queue, if the task is still
+        // there nobody else will ever complete it
+        if (closed && queue.remove(task)) {
+            task.result.completeExceptionally(new ClientException("submitter is closed"));
+        }
+        return task.result;
+    }
+
+    private void senderLoop() {
+        List<PendingTask> batch = new ArrayList<>(maxBatchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                PendingTask first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = first.enqueueTime + lingerTimeNanos;
+                while (batch.size() < maxBatchSize) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || wait <= 0 || closed) {
+                        break;
+                    }
+                    PendingTask next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                sendBatch(batch);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                ClientException error = new ClientException("submitter is closed");
+                batch.forEach(task -> task.result.completeExceptionally(error));
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void sendBatch(List<PendingTask> batch) {
+        List<SubmitTaskRequest> requests = new ArrayList<>(batch.size());
+        for (PendingTask task : batch) {
+            requests.add(task.request);
+        }
+        List<SubmitTaskResponse> responses;
+        try {
+            responses = connection.submitTasks(requests);
+            if (responses.size() != batch.size()) {
+                throw new ClientException("got " + responses.size() + " results for " + batch.size() + " tasks");
+            }
+        } catch (ClientException | RuntimeException err) {
+            LOGGER.log(Level.SEVERE, "submission of a batch of " + batch.size() + " tasks failed", err);
+            for (PendingTask task : batch) {
+                task.result.completeExceptionally(err);
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(responses.get(i));
+        }
+    }
+
+    /**
+     * Sends all the queued tasks and stops the sender thread. The connection is
+     * not closed
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            sender.join();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            sender.interrupt();
+        }
+        // tasks enqueued concurrently with close()
+        ClientException error = new ClientException("submitter is closed");
+        PendingTask task;
+        while ((task = queue.poll()) != null) {
+            task.result.completeExceptionally(error);
+        }
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getLingerTime() {
+        return TimeUnit.NANOSECONDS.toMillis(lingerTimeNanos);
+    }
+
+}
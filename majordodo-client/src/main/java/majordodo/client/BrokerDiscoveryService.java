@@ -20,6 +20,7 @@
 package majordodo.client;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Utilty di discover available brokers on the network
@@ -35,4 +36,21 @@ public interface BrokerDiscoveryService {
     public default void brokerFailed(BrokerAddress address) {
     }
 
+    /**
+     * Notifies the announcement of a new leader broker. Clients use it in
+     * order to retry as soon as the new leader is available instead of
+     * sleeping through the whole retry interval.
+     * <p>
+     * The default implementation is not notified of leader changes and
+     * returns a future which is never completed, so callers simply wait for
+     * their timeout. Callers should cancel the future when they give up.
+     *
+     * @param previousLeader the broker which failed, as returned by
+     * {@link #getLeaderBroker()}, can be null
+     * @return a future completed with the new leader
+     */
+    public default CompletableFuture<BrokerAddress> awaitLeaderChange(BrokerAddress previousLeader) {
+        return new CompletableFuture<>();
+    }
+
 }
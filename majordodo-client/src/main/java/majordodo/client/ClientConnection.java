@@ -20,7 +20,9 @@
 package majordodo.client;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Generic Connection to the broker
@@ -56,6 +58,18 @@ public interface ClientConnection extends AutoCloseable {
      */
     TaskStatus getTaskStatus(String id) throws ClientException;
 
+    /**
+     * Waits for at least one of the given tasks to reach a final status
+     * (finished or error)
+     *
+     * @param taskIds
+     * @param timeout max time to wait, in milliseconds
+     * @return the tasks which are in final status. Tasks unknown to the broker
+     * are mapped to null. The map is empty in case of timeout
+     * @throws ClientException
+     */
+    Map<String, TaskStatus> waitForTasks(Collection<String> taskIds, long timeout) throws ClientException;
+
     /**
      * Tells whether this connection is transacted, that it that it creates
      * transaction
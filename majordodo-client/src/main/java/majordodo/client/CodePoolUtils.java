@@ -33,6 +33,8 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
@@ -95,6 +97,20 @@ public class CodePoolUtils {
         }
     }
 
+    /**
+     * Encodes a task for execution with TaskModeAwareExecutorFactory without
+     * Java serialization. On the worker a shared instance of the factory
+     * (which must implement majordodo.executors.TaskExecutorPayloadFactory)
+     * will create the executor from the payload
+     *
+     * @param factoryClassName
+     * @param payload any string, for instance JSON
+     * @return
+     */
+    public static String serializeExecutorFactory(String factoryClassName, String payload) {
+        return "factory:" + factoryClassName + ":" + payload;
+    }
+
     public static byte[] createZipWithOneEntry(String entryfilename, byte[] filedata) throws IOException {
         ByteArrayOutputStream oo = new ByteArrayOutputStream();
         try (ZipOutputStream zipper = new ZipOutputStream(oo, StandardCharsets.UTF_8);) {
@@ -201,6 +217,33 @@ public class CodePoolUtils {
         return count;
     }
 
+    /**
+     * Computes the hash of the content of a CodePool (SHA-256, hex encoded),
+     * which identifies the data on the caches of the workers
+     *
+     * @param data
+     * @return
+     */
+    public static String computeCodePoolHash(byte[] data) {
+        return computeCodePoolHash(data, 0, data.length);
+    }
+
+    public static String computeCodePoolHash(byte[] data, int offset, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(data, offset, length);
+            byte[] digest = md.digest();
+            StringBuilder res = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                res.append(Character.forDigit((b >> 4) & 0xF, 16));
+                res.append(Character.forDigit(b & 0xF, 16));
+            }
+            return res.toString();
+        } catch (NoSuchAlgorithmException err) {
+            throw new RuntimeException(err);
+        }
+    }
+
     public static List<URL> unzipCodePoolData(Path directory, byte[] data) throws IOException {
         LOGGER.log(Level.SEVERE, "unzipCodePoolData to {0}", directory);
         Files.createDirectories(directory);
@@ -131,4 +131,24 @@ public class SubmitTaskRequest {
         this.requestedStartTime = requestedStartTime;
     }
 
+    /**
+     * Checks the request before sending it to the broker
+     *
+     * @throws ClientException if the request is not valid
+     */
+    public void validate() throws ClientException {
+        if (userid == null || userid.isEmpty()) {
+            throw new ClientException("invalid userid " + userid);
+        }
+        if (tasktype == null || tasktype.isEmpty()) {
+            throw new ClientException("invalid tasktype " + tasktype);
+        }
+        if (maxattempts < 0) {
+            throw new ClientException("invalid Maxattempts " + maxattempts);
+        }
+        if (attempt > 0 && maxattempts > 0 && attempt >= maxattempts) {
+            throw new ClientException("invalid Maxattempts " + maxattempts + " with attempt " + attempt);
+        }
+    }
+
 }
@@ -52,9 +52,26 @@ public class SubmitTaskResponse {
         this.taskId = taskId;
     }
 
+    private long retryAfter;
+
+    /**
+     * Milliseconds after which a task rejected by the rate limits of the
+     * broker can be submitted again, 0 if the task has not been rejected by the
+     * rate limits
+     *
+     * @return
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(long retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
     @Override
     public String toString() {
-        return "SubmitTaskResponse{" + "outcome=" + outcome + ", taskId=" + taskId + '}';
+        return "SubmitTaskResponse{" + "outcome=" + outcome + ", taskId=" + taskId + ", retryAfter=" + retryAfter + '}';
     }
 
     
@@ -96,15 +96,47 @@ public class TaskSubmitter {
                 throw new ClientException(err);
             }
         }
-        SubmitTaskRequest request = new SubmitTaskRequest();
-        request.setMode(SubmitTaskRequest.MODE_OBJECT);
-        request.setUserid(userId);
-        request.setCodePoolId(codePoolId);
+        String data;
         try {
-            request.setData(CodePoolUtils.serializeExecutor(executor));
+            data = CodePoolUtils.serializeExecutor(executor);
         } catch (Exception err) {
             throw new ClientException(err);
         }
+        return submitObjectModeTask(slot, data);
+    }
+
+    /**
+     * Submits a task which will be created on the worker by a shared instance
+     * of the given factory, which must implement
+     * majordodo.executors.TaskExecutorPayloadFactory. This is faster than Java
+     * serialization for small tasks
+     *
+     * @param factoryClass
+     * @param payload
+     * @return
+     * @throws ClientException
+     */
+    public SubmitTaskResponse submitTaskWithFactory(Class<?> factoryClass, String payload) throws ClientException {
+        return submitTaskWithFactory(null, factoryClass, payload);
+    }
+
+    public SubmitTaskResponse submitTaskWithFactory(String slot, Class<?> factoryClass, String payload) throws ClientException {
+        if (codePoolId == null) {
+            try {
+                ensureCodePoolFromExecutorClass(factoryClass);
+            } catch (Exception err) {
+                throw new ClientException(err);
+            }
+        }
+        return submitObjectModeTask(slot, CodePoolUtils.serializeExecutorFactory(factoryClass.getName(), payload));
+    }
+
+    private SubmitTaskResponse submitObjectModeTask(String slot, String data) throws ClientException {
+        SubmitTaskRequest request = new SubmitTaskRequest();
+        request.setMode(SubmitTaskRequest.MODE_OBJECT);
+        request.setUserid(userId);
+        request.setCodePoolId(codePoolId);
+        request.setData(data);
         request.setMaxattempts(maxAttempts);
         request.setSlot(slot);
         request.setTasktype(tasktype);
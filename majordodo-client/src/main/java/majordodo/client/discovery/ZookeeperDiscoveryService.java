@@ -25,19 +25,33 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import majordodo.client.BrokerAddress;
 import majordodo.client.BrokerDiscoveryService;
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 
 /**
- * Discevery service over zookeeper
+ * Discevery service over zookeeper.
+ * <p>
+ * The leader broker and the list of brokers are cached and kept up to date by
+ * watches on the corresponding znodes, so ZooKeeper is read only when
+ * something changes. Concurrent lookups which find an invalid cache share a
+ * single read.
  *
  * @author enrico.olivelli
  */
@@ -48,7 +62,22 @@ public class ZookeeperDiscoveryService implements BrokerDiscoveryService {
 
     private final Supplier<ZooKeeper> client;
     private String zkPath = "/majordodo";
+
     private volatile BrokerAddress leaderBrokerCache;
+    /**
+     * Client on which the watch on the leader znode is set, the cached leader
+     * is valid only while this is the current client. It is null when the
+     * leader must be read again
+     */
+    private volatile ZooKeeper leaderWatchedClient;
+    private long leaderZxid;
+    private CompletableFuture<BrokerAddress> pendingLeaderRead;
+    private List<CompletableFuture<BrokerAddress>> leaderWaiters = new ArrayList<>();
+
+    private final Object brokersLock = new Object();
+    private volatile List<BrokerAddress> brokersCache;
+    private volatile ZooKeeper brokersWatchedClient;
+    private final AtomicLong brokersVersion = new AtomicLong();
 
     public ZookeeperDiscoveryService(Supplier<ZooKeeper> client) {
         this.client = client;
@@ -67,40 +96,211 @@ public class ZookeeperDiscoveryService implements BrokerDiscoveryService {
         return this;
     }
 
+    private String getLeaderPath() {
+        return zkPath + "/leader";
+    }
+
+    private String getDiscoveryPath() {
+        return zkPath + "/discoverypath";
+    }
+
     @Override
     public BrokerAddress getLeaderBroker() {
-        BrokerAddress _address = leaderBrokerCache;
-        if (_address != null) {
-            return _address;
-        }
-
-        String leaderPath = zkPath + "/leader";
         ZooKeeper currentClient = client.get();
         if (currentClient == null) {
             LOGGER.log(Level.SEVERE, "zookeeper client is not available");
             return null;
         }
-        LOGGER.log(Level.INFO, "lookingForLeader broker zkclient={0}", currentClient);
+        if (leaderWatchedClient == currentClient) {
+            // the watch keeps the cache up to date, null means that there is no leader
+            return leaderBrokerCache;
+        }
         try {
-            Stat stat = new Stat();
-            byte[] data = currentClient.getData(leaderPath, false, stat);
-            _address = parseBrokerAddress(data, stat);
-            leaderBrokerCache = _address;
-            return _address;
-        } catch (KeeperException.NoNodeException nobroker) {
+            return readLeader(currentClient).get();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
             return null;
-        } catch (KeeperException | InterruptedException | IOException err) {
-            LOGGER.log(Level.SEVERE, "zookeeper client error", err);
+        } catch (ExecutionException err) {
+            LOGGER.log(Level.SEVERE, "zookeeper client error", err.getCause());
             return null;
         }
     }
 
     @Override
     public void brokerFailed(BrokerAddress address) {
-        LOGGER.log(Level.SEVERE, "brokerFailed {0}, discarding cached value {1}", new Object[]{address, leaderBrokerCache});
-        leaderBrokerCache = null;
+        BrokerAddress cached = leaderBrokerCache;
+        if (address != cached) {
+            // the cache already contains a newer leader
+            return;
+        }
+        LOGGER.log(Level.SEVERE, "brokerFailed {0}, reloading cached value", address);
+        refreshLeader();
     }
 
+    @Override
+    public CompletableFuture<BrokerAddress> awaitLeaderChange(BrokerAddress previousLeader) {
+        CompletableFuture<BrokerAddress> res = new CompletableFuture<>();
+        BrokerAddress current;
+        synchronized (this) {
+            current = leaderBrokerCache;
+            if (current == null || current == previousLeader) {
+                // drop the waiters which gave up
+                leaderWaiters.removeIf(CompletableFuture::isDone);
+                leaderWaiters.add(res);
+                current = null;
+            }
+        }
+        if (current != null) {
+            res.complete(current);
+            return res;
+        }
+        ZooKeeper currentClient = client.get();
+        if (currentClient != null && leaderWatchedClient != currentClient) {
+            // no watch is set on the current client
+            readLeader(currentClient);
+        }
+        return res;
+    }
+
+    private void refreshLeader() {
+        leaderWatchedClient = null;
+        ZooKeeper currentClient = client.get();
+        if (currentClient != null) {
+            readLeader(currentClient);
+        }
+    }
+
+    private CompletableFuture<BrokerAddress> readLeader(ZooKeeper zk) {
+        CompletableFuture<BrokerAddress> read;
+        synchronized (this) {
+            if (pendingLeaderRead != null) {
+                return pendingLeaderRead;
+            }
+            read = new CompletableFuture<>();
+            pendingLeaderRead = read;
+        }
+        LOGGER.log(Level.INFO, "lookingForLeader broker zkclient={0}", zk);
+        zk.getData(getLeaderPath(), watcher, leaderDataCallback, zk);
+        return read;
+    }
+
+    private void leaderRead(ZooKeeper zk, BrokerAddress address, long zxid) {
+        List<CompletableFuture<BrokerAddress>> waiters = Collections.emptyList();
+        CompletableFuture<BrokerAddress> read;
+        BrokerAddress current;
+        synchronized (this) {
+            if (address == null || leaderBrokerCache == null || zxid != leaderZxid) {
+                leaderBrokerCache = address;
+                leaderZxid = zxid;
+                if (address != null && !leaderWaiters.isEmpty()) {
+                    waiters = leaderWaiters;
+                    leaderWaiters = new ArrayList<>();
+                }
+            }
+            // if the znode did not change the same instance is kept, it is still the 'previous' leader for awaitLeaderChange
+            current = leaderBrokerCache;
+            leaderWatchedClient = zk;
+            read = pendingLeaderRead;
+            pendingLeaderRead = null;
+        }
+        for (CompletableFuture<BrokerAddress> waiter : waiters) {
+            waiter.complete(current);
+        }
+        if (read != null) {
+            read.complete(current);
+        }
+    }
+
+    private void leaderReadFailed(KeeperException error) {
+        LOGGER.log(Level.SEVERE, "zookeeper client error", error);
+        CompletableFuture<BrokerAddress> read;
+        synchronized (this) {
+            leaderWatchedClient = null;
+            read = pendingLeaderRead;
+            pendingLeaderRead = null;
+        }
+        if (read != null) {
+            read.complete(null);
+        }
+    }
+
+    private final AsyncCallback.DataCallback leaderDataCallback = new AsyncCallback.DataCallback() {
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            ZooKeeper zk = (ZooKeeper) ctx;
+            switch (Code.get(rc)) {
+                case OK:
+                    BrokerAddress address;
+                    try {
+                        address = parseBrokerAddress(data, stat);
+                    } catch (IOException err) {
+                        LOGGER.log(Level.SEVERE, "bad leader broker data at " + path, err);
+                        address = null;
+                    }
+                    leaderRead(zk, address, stat.getMzxid());
+                    break;
+                case NONODE:
+                    // no leader, watch for the creation of the znode
+                    zk.exists(path, watcher, leaderExistsCallback, zk);
+                    break;
+                default:
+                    leaderReadFailed(KeeperException.create(Code.get(rc), path));
+                    break;
+            }
+        }
+    };
+
+    private final AsyncCallback.StatCallback leaderExistsCallback = new AsyncCallback.StatCallback() {
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            ZooKeeper zk = (ZooKeeper) ctx;
+            switch (Code.get(rc)) {
+                case OK:
+                    // a new leader has just been created
+                    zk.getData(path, watcher, leaderDataCallback, zk);
+                    break;
+                case NONODE:
+                    leaderRead(zk, null, 0);
+                    break;
+                default:
+                    leaderReadFailed(KeeperException.create(Code.get(rc), path));
+                    break;
+            }
+        }
+    };
+
+    private final Watcher watcher = new Watcher() {
+
+        @Override
+        public void process(WatchedEvent event) {
+            LOGGER.log(Level.INFO, "event {0} {1} {2}", new Object[]{event.getPath(), event.getState(), event.getType()});
+            switch (event.getType()) {
+                case None:
+                    if (event.getState() == KeeperState.Expired) {
+                        // watches are lost together with the session
+                        leaderWatchedClient = null;
+                        brokersWatchedClient = null;
+                    }
+                    break;
+                case NodeCreated:
+                case NodeDataChanged:
+                case NodeDeleted:
+                    if (getLeaderPath().equals(event.getPath())) {
+                        refreshLeader();
+                    }
+                    break;
+                case NodeChildrenChanged:
+                    brokersVersion.incrementAndGet();
+                    brokersWatchedClient = null;
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
     private BrokerAddress parseBrokerAddress(byte[] data, Stat stat) throws IOException {
         Map<String, String> res = MAPPER.readValue(new ByteArrayInputStream(data), Map.class);
         LOGGER.log(Level.INFO, "zookeeper client result {0} stat {1}", new Object[] {res, stat});
@@ -120,32 +320,48 @@ public class ZookeeperDiscoveryService implements BrokerDiscoveryService {
 
     @Override
     public List<BrokerAddress> discoverBrokers() {
-        String discoveryPath = zkPath + "/discovery";
         ZooKeeper zk = client.get();
         if (zk == null) {
             LOGGER.log(Level.SEVERE, "zookeeper client is not available");
             return null;
         }
-        try {
-            List<BrokerAddress> aa = new ArrayList<>();
-            List<String> all = zk.getChildren(discoveryPath, false);
-            for (String s : all) {
-//                LOGGER.log(Level.SEVERE, "getting " + s);
-                try {
-                    Stat stat = new Stat();
-                    byte[] data = zk.getData(s, false, stat);
-                    BrokerAddress address = parseBrokerAddress(data, stat);
-                    if (address != null) {
-                        aa.add(address);
+        if (brokersWatchedClient == zk) {
+            return brokersCache;
+        }
+        synchronized (brokersLock) {
+            // concurrent lookups wait for a single read
+            if (brokersWatchedClient == zk) {
+                return brokersCache;
+            }
+            String discoveryPath = getDiscoveryPath();
+            long version = brokersVersion.get();
+            try {
+                List<BrokerAddress> aa = new ArrayList<>();
+                List<String> all = zk.getChildren(discoveryPath, watcher);
+                for (String s : all) {
+                    try {
+                        Stat stat = new Stat();
+                        byte[] data = zk.getData(discoveryPath + "/" + s, false, stat);
+                        BrokerAddress address = parseBrokerAddress(data, stat);
+                        if (address != null) {
+                            aa.add(address);
+                        }
+                    } catch (KeeperException.NoNodeException brokerDied) {
+                        // the broker left in the meantime
                     }
-                } catch (KeeperException.NoNodeException nobroker) {
-                    return null;
                 }
+                List<BrokerAddress> result = Collections.unmodifiableList(aa);
+                brokersCache = result;
+                if (brokersVersion.get() == version) {
+                    brokersWatchedClient = zk;
+                }
+                return result;
+            } catch (KeeperException.NoNodeException nobroker) {
+                return null;
+            } catch (KeeperException | InterruptedException | IOException err) {
+                LOGGER.log(Level.SEVERE, "zookeeper client error", err);
+                return null;
             }
-            return aa;
-        } catch (KeeperException | InterruptedException | IOException err) {
-            LOGGER.log(Level.SEVERE, "zookeeper client error", err);
-            return null;
         }
     }
 
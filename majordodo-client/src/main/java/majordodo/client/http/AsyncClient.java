@@ -0,0 +1,372 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.timeout.IdleStateHandler;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLException;
+import majordodo.client.BrokerAddress;
+import majordodo.client.BrokerDiscoveryService;
+import majordodo.client.ClientException;
+
+/**
+ * Non blocking HTTP Client of Majordodo. Requests are pipelined over a few
+ * persistent connections to the leader broker and retries (when the broker is
+ * not the leader) are scheduled without blocking any thread, so the number of
+ * concurrent requests is not bounded by the number of connections or threads.
+ * <p>
+ * Futures are completed by the network threads, callbacks MUST NOT block
+ *
+ * @author enrico.olivelli
+ */
+public class AsyncClient implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncClient.class.getName());
+
+    private final ClientConfiguration configuration;
+    private final BrokerDiscoveryService discoveryService;
+    private final EventLoopGroup group;
+    private final ScheduledExecutorService scheduler;
+    private final SslContext sslContext;
+    private final String authorization;
+    private final AtomicReference<BrokerAddress> leader = new AtomicReference<>();
+    private final ConcurrentHashMap<String, PipelinedHttpChannel[]> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    /**
+     * Brokers which answered using a binary format, the format is used for the
+     * body of the requests too
+     */
+    private final ConcurrentHashMap<String, String> requestContentTypes = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    public AsyncClient(ClientConfiguration configuration) throws IOException {
+        this.configuration = configuration;
+        this.discoveryService = configuration.getBrokerDiscoveryService();
+        this.group = new NioEventLoopGroup(Math.max(1, configuration.getAsyncClientIoThreads()), (Runnable r) -> {
+            Thread t = new Thread(r, "majordodo-async-client-io");
+            t.setDaemon(true);
+            return t;
+        });
+        // broker discovery may block, it is never called by the network threads
+        this.scheduler = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "majordodo-async-client-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            SslContextBuilder ssl = SslContextBuilder.forClient();
+            if (configuration.isDisableHttpsVerification()) {
+                ssl.trustManager(InsecureTrustManagerFactory.INSTANCE);
+            }
+            this.sslContext = ssl.build();
+        } catch (SSLException err) {
+            close();
+            throw err;
+        }
+        if (configuration.getUsername() != null && !configuration.getUsername().isEmpty()) {
+            String credentials = configuration.getUsername() + ":" + configuration.getPassword();
+            this.authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        } else {
+            this.authorization = null;
+        }
+    }
+
+    public AsyncHTTPClientConnection openConnection() throws IOException {
+        if (closed) {
+            throw new IOException("client is closed");
+        }
+        return new AsyncHTTPClientConnection(this);
+    }
+
+    /**
+     * Issues a request to the leader broker
+     *
+     * @param method GET or POST
+     * @param data
+     * @param dedicatedConnection use a new connection, which is closed after
+     * the response. This is needed for long running requests, which would
+     * otherwise delay all the requests pipelined on the same connection
+     * @return the response, in case of error the future is completed with a
+     * ClientException
+     */
+    CompletableFuture<Map<String, Object>> request(String method, Map<String, Object> data, boolean dedicatedConnection) {
+        CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        if (!method.equals("POST") && !method.equals("GET")) {
+            result.completeExceptionally(new ClientException(new IllegalStateException(method)));
+            return result;
+        }
+        attempt(method, data, dedicatedConnection, 0, result);
+        return result;
+    }
+
+    private void attempt(String method, Map<String, Object> data, boolean dedicatedConnection, int trial, CompletableFuture<Map<String, Object>> result) {
+        if (closed) {
+            result.completeExceptionally(new ClientException("client is closed"));
+            return;
+        }
+        BrokerAddress broker = leader.get();
+        if (broker == null) {
+            schedule(result, () -> {
+                BrokerAddress discovered;
+                try {
+                    discovered = discoveryService.getLeaderBroker();
+                } catch (RuntimeException err) {
+                    result.completeExceptionally(new ClientException(err));
+                    return;
+                }
+                if (discovered == null) {
+                    result.completeExceptionally(new ClientException(new IOException("not leader broker is available")));
+                    return;
+                }
+                leader.compareAndSet(null, discovered);
+                attempt(method, data, dedicatedConnection, trial, result);
+            }, 0);
+            return;
+        }
+        // the body is encoded at each attempt, the format depends on the broker
+        String contentType = requestContentTypes.getOrDefault(brokerKey(broker), ContentTypes.JSON);
+        ByteBuf request;
+        try {
+            if (method.equals("POST")) {
+                request = encodeRequest(broker, method, "", contentType, HTTPProtocol.encodeBody(data, contentType));
+            } else {
+                request = encodeRequest(broker, method, "?" + HTTPProtocol.encodeQueryString(data), null, null);
+            }
+        } catch (IOException | RuntimeException err) {
+            result.completeExceptionally(new ClientException(err));
+            return;
+        }
+        PipelinedHttpChannel connection;
+        try {
+            connection = dedicatedConnection ? connect(broker) : getConnection(broker);
+        } catch (IOException | RuntimeException err) {
+            brokerFailed(broker);
+            result.completeExceptionally(new ClientException(err));
+            return;
+        }
+        long timeout = configuration.getSotimeout();
+        connection.send(request, timeout).whenComplete((response, error) -> {
+            if (dedicatedConnection) {
+                connection.close();
+            }
+            if (error != null) {
+                if (error instanceof PipelinedHttpChannel.RequestNotSentException
+                    && trial + 1 < configuration.getBrokerNotAvailableRetries()) {
+                    // the connection has been closed just before sending, it is safe to try again
+                    attempt(method, data, dedicatedConnection, trial + 1, result);
+                    return;
+                }
+                brokerFailed(broker);
+                result.completeExceptionally(new ClientException(error));
+                return;
+            }
+            if (response.status != 200) {
+                brokerFailed(broker);
+                result.completeExceptionally(new ClientException(new IOException("HTTP request failed: " + response.status)));
+                return;
+            }
+            if (configuration.isBinaryFormat() && ContentTypes.isBinary(response.contentType)) {
+                // the broker supports the binary format, use it for the next requests too
+                requestContentTypes.put(brokerKey(broker), response.contentType);
+            }
+            Map<String, Object> rr;
+            try {
+                rr = HTTPProtocol.decodeBody(new ByteArrayInputStream(response.body), response.contentType);
+            } catch (IOException err) {
+                brokerFailed(broker);
+                result.completeExceptionally(new ClientException(err));
+                return;
+            }
+            if ("true".equals(rr.get("ok") + "")) {
+                result.complete(rr);
+                return;
+            }
+            LOGGER.log(Level.SEVERE, "error from {0}: {1}", new Object[]{broker, rr});
+            brokerFailed(broker);
+            if (!HTTPProtocol.isRetryableError(rr.get("error") + "")) {
+                result.completeExceptionally(new ClientException(new IOException("error from broker: " + rr)));
+            } else if (trial + 1 >= configuration.getBrokerNotAvailableRetries()) {
+                result.completeExceptionally(new ClientException(new IOException("could not issue request after " + (trial + 1) + " trials")));
+            } else {
+                int interval = configuration.getBrokerNotAvailableRetryInterval() * (trial + 1);
+                LOGGER.log(Level.SEVERE, "retry on #{0}error from {1}: {2}: scheduled in {3} ms or as soon as a new leader is known", new Object[]{trial + 1, broker, rr, interval});
+                retryOnLeaderChange(broker, result, () -> attempt(method, data, dedicatedConnection, trial + 1, result), interval);
+            }
+        });
+    }
+
+    private void schedule(CompletableFuture<?> result, Runnable task, long delay) {
+        try {
+            scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException err) {
+            result.completeExceptionally(new ClientException("client is closed"));
+        }
+    }
+
+    /**
+     * Retries after the given delay, or earlier if the discovery service
+     * notifies a new leader
+     */
+    private void retryOnLeaderChange(BrokerAddress failedBroker, CompletableFuture<?> result, Runnable retry, long delay) {
+        AtomicBoolean done = new AtomicBoolean();
+        CompletableFuture<BrokerAddress> newLeader = discoveryService.awaitLeaderChange(failedBroker);
+        Runnable once = () -> {
+            if (done.compareAndSet(false, true)) {
+                newLeader.cancel(false);
+                retry.run();
+            }
+        };
+        // the notification comes from a thread of the discovery service, the retry runs on the scheduler
+        newLeader.thenRun(() -> schedule(result, once, 0));
+        schedule(result, once, delay);
+    }
+
+    private void brokerFailed(BrokerAddress broker) {
+        requestContentTypes.remove(brokerKey(broker));
+        if (leader.compareAndSet(broker, null)) {
+            discoveryService.brokerFailed(broker);
+        }
+    }
+
+    private static String brokerKey(BrokerAddress broker) {
+        return broker.getProtocol() + "://" + broker.getAddress() + ":" + broker.getPort();
+    }
+
+    private ByteBuf encodeRequest(BrokerAddress broker, String method, String query, String contentType, byte[] body) {
+        StringBuilder head = new StringBuilder(256);
+        head.append(method).append(' ').append(broker.getPath()).append(query).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(broker.getAddress()).append(':').append(broker.getPort()).append("\r\n");
+        if (authorization != null) {
+            head.append("Authorization: ").append(authorization).append("\r\n");
+        }
+        if (configuration.isBinaryFormat()) {
+            head.append("Accept: ").append(ContentTypes.getAcceptHeader()).append("\r\n");
+        }
+        if (body != null) {
+            head.append("Content-Type: ").append(contentType);
+            if (!ContentTypes.isBinary(contentType)) {
+                head.append(";charset=utf-8");
+            }
+            head.append("\r\n");
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+        if (body == null) {
+            return Unpooled.wrappedBuffer(headBytes);
+        }
+        return Unpooled.wrappedBuffer(headBytes, body);
+    }
+
+    private PipelinedHttpChannel getConnection(BrokerAddress broker) throws IOException {
+        String key = brokerKey(broker);
+        PipelinedHttpChannel[] slots = connections.computeIfAbsent(key,
+            k -> new PipelinedHttpChannel[Math.max(1, configuration.getAsyncClientConnectionsPerBroker())]);
+        int index = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % slots.length;
+        synchronized (slots) {
+            PipelinedHttpChannel connection = slots[index];
+            if (connection == null || connection.isClosed()) {
+                connection = connect(broker);
+                slots[index] = connection;
+            }
+            return connection;
+        }
+    }
+
+    private PipelinedHttpChannel connect(BrokerAddress broker) throws IOException {
+        boolean ssl;
+        switch (broker.getProtocol()) {
+            case "http":
+                ssl = false;
+                break;
+            case "https":
+                ssl = true;
+                break;
+            default:
+                throw new IOException("unsupported protocol " + broker.getProtocol());
+        }
+        PipelinedHttpChannel handler = new PipelinedHttpChannel();
+        Bootstrap b = new Bootstrap();
+        b.group(group)
+            .channel(NioSocketChannel.class)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, configuration.getConnectionTimeout())
+            .option(ChannelOption.SO_KEEPALIVE, true)
+            .handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                public void initChannel(SocketChannel ch) throws Exception {
+                    if (ssl) {
+                        ch.pipeline().addLast(sslContext.newHandler(ch.alloc(), broker.getAddress(), broker.getPort()));
+                    }
+                    if (configuration.getKeepAlive() > 0) {
+                        ch.pipeline().addLast(new IdleStateHandler(0, 0, configuration.getKeepAlive(), TimeUnit.MILLISECONDS));
+                    }
+                    ch.pipeline().addLast(new HttpResponseDecoder());
+                    ch.pipeline().addLast(handler);
+                }
+            });
+        handler.setConnectFuture(b.connect(broker.getAddress(), broker.getPort()));
+        return handler;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        connections.values().forEach(slots -> {
+            synchronized (slots) {
+                for (PipelinedHttpChannel connection : slots) {
+                    if (connection != null) {
+                        connection.close();
+                    }
+                }
+            }
+        });
+        connections.clear();
+        scheduler.shutdownNow();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+}
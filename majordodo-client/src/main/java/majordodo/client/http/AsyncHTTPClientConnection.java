@@ -0,0 +1,352 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import majordodo.client.BrokerStatus;
+import majordodo.client.ClientConnection;
+import majordodo.client.ClientException;
+import majordodo.client.CodePoolStatus;
+import majordodo.client.CreateCodePoolRequest;
+import majordodo.client.CreateCodePoolResult;
+import majordodo.client.SubmitTaskRequest;
+import majordodo.client.SubmitTaskResponse;
+import majordodo.client.TaskStatus;
+import majordodo.client.TaskSubmitter;
+import static majordodo.client.http.HTTPClientConnection.map;
+
+/**
+ * Connection to the broker which uses the non blocking {@link AsyncClient}.
+ * Each operation has an asynchronous variant which returns a future, the
+ * blocking methods of {@link ClientConnection} simply wait for it. This
+ * connection is thread safe. In transacted mode all the submissions share the
+ * current transaction, which is started by the first one, and commit/rollback
+ * are sent only after the submissions of the transaction have been completed
+ *
+ * @author enrico.olivelli
+ */
+public class AsyncHTTPClientConnection implements ClientConnection {
+
+    private final AsyncClient client;
+    private TaskSubmitter submitter;
+    private volatile boolean transacted;
+    /**
+     * Current transaction, guarded by this
+     */
+    private Transaction transaction;
+
+    private static final class Transaction {
+
+        private final CompletableFuture<String> id;
+        /**
+         * Operations which use the transaction, guarded by the connection
+         */
+        private final List<CompletableFuture<?>> operations = new ArrayList<>();
+
+        private Transaction(CompletableFuture<String> id) {
+            this.id = id;
+        }
+
+        /**
+         * Completes when all the operations have been completed, with or
+         * without errors
+         */
+        private CompletableFuture<Void> operationsCompleted() {
+            CompletableFuture<?>[] all = new CompletableFuture<?>[operations.size()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = operations.get(i).handle((r, err) -> null);
+            }
+            return CompletableFuture.allOf(all);
+        }
+    }
+
+    AsyncHTTPClientConnection(AsyncClient client) {
+        this.client = client;
+    }
+
+    private interface Decoder<T> {
+
+        T decode(Map<String, Object> response) throws ClientException;
+    }
+
+    private static <T> CompletableFuture<T> decode(CompletableFuture<Map<String, Object>> response, Decoder<T> decoder) {
+        return response.thenApply(r -> {
+            try {
+                return decoder.decode(r);
+            } catch (ClientException | RuntimeException err) {
+                throw new CompletionException(err);
+            }
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        res.completeExceptionally(error);
+        return res;
+    }
+
+    private static <T> T get(CompletableFuture<T> future) throws ClientException {
+        try {
+            return future.get();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(err);
+        } catch (ExecutionException err) {
+            Throwable cause = err.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof ClientException) {
+                throw (ClientException) cause;
+            }
+            throw new ClientException(cause);
+        }
+    }
+
+    /**
+     * Runs an operation within the current transaction, starting a new one if
+     * needed
+     *
+     * @param operation receives the id of the transaction, null if the
+     * connection is not transacted
+     */
+    private <T> CompletableFuture<T> withTransaction(Function<String, CompletableFuture<T>> operation) {
+        if (!transacted) {
+            return operation.apply(null);
+        }
+        return withCurrentTransaction(operation);
+    }
+
+    private synchronized <T> CompletableFuture<T> withCurrentTransaction(Function<String, CompletableFuture<T>> operation) {
+        if (transaction == null) {
+            Transaction started = new Transaction(decode(client.request("POST", map("action", "beginTransaction"), false),
+                data -> data.get("transaction") + ""));
+            transaction = started;
+            started.id.whenComplete((id, err) -> {
+                if (err != null) {
+                    // the next operation will start a new transaction
+                    synchronized (AsyncHTTPClientConnection.this) {
+                        if (transaction == started) {
+                            transaction = null;
+                        }
+                    }
+                }
+            });
+        }
+        CompletableFuture<T> res = transaction.id.thenCompose(operation);
+        transaction.operations.add(res);
+        return res;
+    }
+
+    /**
+     * Ends the current transaction, once the operations in the transaction
+     * have been completed
+     */
+    private synchronized CompletableFuture<Void> endTransaction(String action) {
+        Transaction current = transaction;
+        if (current == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        transaction = null;
+        return current.operationsCompleted()
+            .thenCompose(v -> current.id)
+            .thenCompose(id -> decode(client.request("POST", map("action", action, "transaction", id), false), data -> null));
+    }
+
+    public CompletableFuture<SubmitTaskResponse> submitTaskAsync(SubmitTaskRequest request) {
+        Map<String, Object> reqdata;
+        try {
+            reqdata = HTTPProtocol.encodeSubmitTask(request, null);
+        } catch (ClientException err) {
+            return failed(err);
+        }
+        reqdata.put("action", "submitTask");
+        return withTransaction(transactionId -> {
+            if (transactionId != null) {
+                reqdata.put("transaction", transactionId);
+            }
+            return decode(client.request("POST", reqdata, false), HTTPProtocol::decodeSubmitTaskResponse);
+        });
+    }
+
+    public CompletableFuture<List<SubmitTaskResponse>> submitTasksAsync(List<SubmitTaskRequest> requests) {
+        Map<String, Object> reqdata;
+        try {
+            reqdata = HTTPProtocol.encodeSubmitTasks(requests, null);
+        } catch (ClientException err) {
+            return failed(err);
+        }
+        return withTransaction(transactionId -> {
+            if (transactionId != null) {
+                for (Map<String, Object> task : (List<Map<String, Object>>) reqdata.get("tasks")) {
+                    task.put("transaction", transactionId);
+                }
+            }
+            return decode(client.request("POST", reqdata, false), HTTPProtocol::decodeSubmitTasksResponse);
+        });
+    }
+
+    /**
+     * Commits the current transaction. The commit is sent after the
+     * submissions of the transaction have been completed
+     *
+     * @return
+     * @see ClientConnection#commit()
+     */
+    public CompletableFuture<Void> commitAsync() {
+        return endTransaction("commitTransaction");
+    }
+
+    /**
+     * Rollbacks the current transaction. The rollback is sent after the
+     * submissions of the transaction have been completed
+     *
+     * @return
+     * @see ClientConnection#rollback()
+     */
+    public CompletableFuture<Void> rollbackAsync() {
+        return endTransaction("rollbackTransaction");
+    }
+
+    public CompletableFuture<TaskStatus> getTaskStatusAsync(String id) {
+        return decode(client.request("GET", map("view", "task", "taskId", id), false),
+            data -> HTTPProtocol.deserializeTaskStatus((Map<String, Object>) data.get("task")));
+    }
+
+    /**
+     * Waits for at least one of the given tasks to reach a final status. The
+     * long poll uses a dedicated connection
+     *
+     * @param taskIds
+     * @param timeout
+     * @return
+     * @see ClientConnection#waitForTasks(java.util.Collection, long)
+     */
+    public CompletableFuture<Map<String, TaskStatus>> waitForTasksAsync(Collection<String> taskIds, long timeout) {
+        return decode(client.request("POST", map("action", "waitTasks", "taskIds", new ArrayList<>(taskIds), "timeout", timeout), true),
+            HTTPProtocol::decodeWaitForTasksResponse);
+    }
+
+    public CompletableFuture<BrokerStatus> getBrokerStatusAsync() {
+        return decode(client.request("GET", map("view", "status"), false), HTTPProtocol::decodeBrokerStatus);
+    }
+
+    public CompletableFuture<CodePoolStatus> getCodePoolStatusAsync(String codePoolId) {
+        return decode(client.request("GET", map("view", "codePool", "codePoolId", codePoolId), false),
+            data -> HTTPProtocol.deserializeCodePoolStatus((Map<String, Object>) data.get("codePool")));
+    }
+
+    public CompletableFuture<CreateCodePoolResult> createCodePoolAsync(CreateCodePoolRequest request) {
+        return decode(client.request("POST", map("action", "createCodePool", "id", request.getCodePoolID(), "ttl", request.getTtl() + "",
+            "data", request.getCodePoolData()), false), data -> {
+            CreateCodePoolResult result = new CreateCodePoolResult();
+            result.setOk(true);
+            return result;
+        });
+    }
+
+    public CompletableFuture<Void> deleteCodePoolAsync(String codePoolId) {
+        return decode(client.request("POST", map("action", "deleteCodePool", "id", codePoolId), false), data -> null);
+    }
+
+    @Override
+    public SubmitTaskResponse submitTask(SubmitTaskRequest request) throws ClientException {
+        return get(submitTaskAsync(request));
+    }
+
+    @Override
+    public List<SubmitTaskResponse> submitTasks(List<SubmitTaskRequest> requests) throws ClientException {
+        return get(submitTasksAsync(requests));
+    }
+
+    @Override
+    public TaskStatus getTaskStatus(String id) throws ClientException {
+        return get(getTaskStatusAsync(id));
+    }
+
+    @Override
+    public Map<String, TaskStatus> waitForTasks(Collection<String> taskIds, long timeout) throws ClientException {
+        return get(waitForTasksAsync(taskIds, timeout));
+    }
+
+    @Override
+    public BrokerStatus getBrokerStatus() throws ClientException {
+        return get(getBrokerStatusAsync());
+    }
+
+    @Override
+    public CodePoolStatus getCodePoolStatus(String codePoolId) throws ClientException {
+        return get(getCodePoolStatusAsync(codePoolId));
+    }
+
+    @Override
+    public CreateCodePoolResult createCodePool(CreateCodePoolRequest request) throws ClientException {
+        return get(createCodePoolAsync(request));
+    }
+
+    @Override
+    public void deleteCodePool(String codePoolId) throws ClientException {
+        get(deleteCodePoolAsync(codePoolId));
+    }
+
+    @Override
+    public boolean isTransacted() {
+        return transacted;
+    }
+
+    @Override
+    public synchronized void setTransacted(boolean transacted) {
+        if (transaction != null) {
+            throw new IllegalStateException("cannot change transaction mode during transaction");
+        }
+        this.transacted = transacted;
+    }
+
+    @Override
+    public void commit() throws ClientException {
+        get(commitAsync());
+    }
+
+    @Override
+    public void rollback() throws ClientException {
+        get(rollbackAsync());
+    }
+
+    @Override
+    public synchronized TaskSubmitter submitter() {
+        if (submitter == null) {
+            submitter = new TaskSubmitter(this);
+        }
+        return submitter;
+    }
+
+    @Override
+    public void close() throws ClientException {
+        rollback();
+    }
+
+}
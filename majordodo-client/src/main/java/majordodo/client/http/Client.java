@@ -24,10 +24,12 @@ import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.CompletableFuture;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import majordodo.client.BrokerAddress;
+import majordodo.client.TaskStatus;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.config.Registry;
@@ -78,6 +80,7 @@ public class Client implements AutoCloseable {
     private CloseableHttpClient httpclient;
     private PoolingHttpClientConnectionManager poolManager;
     private final ClientConfiguration configuration;
+    private TaskCompletionWaiter completionWaiter;
 
     public Client(ClientConfiguration configuration) {
         this.configuration = configuration;
@@ -93,7 +96,33 @@ public class Client implements AutoCloseable {
         return new HTTPClientConnection(_client, configuration, configuration.getBrokerDiscoveryService());
     }
 
+    /**
+     * Waits for the completion of a task, without keeping a thread busy. All
+     * the awaited tasks share a few long-poll requests to the broker
+     *
+     * @param taskId
+     * @return a future completed with the final status of the task, or with
+     * null if the task is not known by the broker
+     */
+    public synchronized CompletableFuture<TaskStatus> awaitTask(String taskId) {
+        if (httpclient == null) {
+            CompletableFuture<TaskStatus> res = new CompletableFuture<>();
+            res.completeExceptionally(new IOException("shared connection pool is closed"));
+            return res;
+        }
+        if (completionWaiter == null) {
+            completionWaiter = new TaskCompletionWaiter(this, configuration);
+        }
+        return completionWaiter.awaitTask(taskId);
+    }
+
     public void close() {
+        synchronized (this) {
+            if (completionWaiter != null) {
+                completionWaiter.close();
+                completionWaiter = null;
+            }
+        }
         if (httpclient != null) {
             try {
                 httpclient.close();
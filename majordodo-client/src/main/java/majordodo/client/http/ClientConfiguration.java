@@ -42,6 +42,13 @@ public class ClientConfiguration {
     private String username;
     private String password;
     private int connectionTimeout = 30000;
+    private int awaitTasksMaxConcurrentPolls = 2;
+    private int awaitTasksPollTimeout = 30000;
+    private int asyncClientConnectionsPerBroker = 2;
+    private int asyncClientIoThreads = 1;
+    private boolean binaryFormat = true;
+    private int rateLimitedRetries = 5;
+    private long rateLimitedMaxRetryAfter = 10000;
 
     public static ClientConfiguration defaultConfiguration() {
         return new ClientConfiguration();
@@ -149,4 +156,120 @@ public class ClientConfiguration {
         return this;
     }
 
+    public int getAwaitTasksMaxConcurrentPolls() {
+        return awaitTasksMaxConcurrentPolls;
+    }
+
+    /**
+     * Max number of concurrent long-poll requests issued in order to serve
+     * {@link Client#awaitTask(java.lang.String)}. One of them is reserved to
+     * the tasks which have just been awaited, so at least 2 requests are used
+     *
+     * @param awaitTasksMaxConcurrentPolls
+     * @return
+     */
+    public ClientConfiguration setAwaitTasksMaxConcurrentPolls(int awaitTasksMaxConcurrentPolls) {
+        this.awaitTasksMaxConcurrentPolls = awaitTasksMaxConcurrentPolls;
+        return this;
+    }
+
+    public int getAwaitTasksPollTimeout() {
+        return awaitTasksPollTimeout;
+    }
+
+    /**
+     * Max time a single long-poll request waits on the broker, it must be
+     * lower than the socket timeout
+     *
+     * @param awaitTasksPollTimeout
+     * @return
+     */
+    public ClientConfiguration setAwaitTasksPollTimeout(int awaitTasksPollTimeout) {
+        this.awaitTasksPollTimeout = awaitTasksPollTimeout;
+        return this;
+    }
+
+    public int getAsyncClientConnectionsPerBroker() {
+        return asyncClientConnectionsPerBroker;
+    }
+
+    /**
+     * Number of connections used by {@link AsyncClient} to pipeline requests to
+     * the broker
+     *
+     * @param asyncClientConnectionsPerBroker
+     * @return
+     */
+    public ClientConfiguration setAsyncClientConnectionsPerBroker(int asyncClientConnectionsPerBroker) {
+        this.asyncClientConnectionsPerBroker = asyncClientConnectionsPerBroker;
+        return this;
+    }
+
+    public int getAsyncClientIoThreads() {
+        return asyncClientIoThreads;
+    }
+
+    /**
+     * Number of network threads of {@link AsyncClient}
+     *
+     * @param asyncClientIoThreads
+     * @return
+     */
+    public ClientConfiguration setAsyncClientIoThreads(int asyncClientIoThreads) {
+        this.asyncClientIoThreads = asyncClientIoThreads;
+        return this;
+    }
+
+    public boolean isBinaryFormat() {
+        return binaryFormat;
+    }
+
+    /**
+     * Use a binary format (Smile or CBOR) instead of JSON when both the client
+     * and the broker support it, see {@link ContentTypes}
+     *
+     * @param binaryFormat
+     * @return
+     */
+    public ClientConfiguration setBinaryFormat(boolean binaryFormat) {
+        this.binaryFormat = binaryFormat;
+        return this;
+    }
+
+    public int getRateLimitedRetries() {
+        return rateLimitedRetries;
+    }
+
+    /**
+     * Number of times a submission rejected by the rate limits of the broker
+     * is retried by {@link HTTPClientConnection}, waiting for the time
+     * suggested by the broker. Use 0 in order to return the rejection to the
+     * caller immediately
+     *
+     * @param rateLimitedRetries
+     * @return
+     */
+    public ClientConfiguration setRateLimitedRetries(int rateLimitedRetries) {
+        this.rateLimitedRetries = rateLimitedRetries;
+        return this;
+    }
+
+    public long getRateLimitedMaxRetryAfter() {
+        return rateLimitedMaxRetryAfter;
+    }
+
+    /**
+     * Max time to wait before retrying a submission rejected by the rate
+     * limits, in milliseconds. If the broker suggests a longer wait the
+     * rejection is returned to the caller
+     *
+     * @param rateLimitedMaxRetryAfter
+     * @return
+     * @see #setRateLimitedRetries(int)
+     */
+    public ClientConfiguration setRateLimitedMaxRetryAfter(long rateLimitedMaxRetryAfter) {
+        this.rateLimitedMaxRetryAfter = rateLimitedMaxRetryAfter;
+        return this;
+    }
+
 }
@@ -0,0 +1,181 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Formats of the bodies of the HTTP API. JSON is always supported, the binary
+ * formats (Smile, CBOR) are supported when the corresponding Jackson
+ * dataformat is on the classpath: Smile is a dependency of the broker and of
+ * the client, CBOR has to be added by the application. The format of a
+ * request is declared by its Content-Type header, the format of the response
+ * is negotiated with the Accept header, so both the broker and the client
+ * need the dataformat in order to use it.
+ * <p>
+ * Binary formats carry byte arrays as they are: serialized objects
+ * ("base64:..." parameters of {@link majordodo.client.SubmitTaskRequest#MODE_OBJECT})
+ * and CodePool data are sent as raw bytes
+ *
+ * @author enrico.olivelli
+ */
+public final class ContentTypes {
+
+    public static final String JSON = "application/json";
+    public static final String SMILE = "application/x-jackson-smile";
+    public static final String CBOR = "application/cbor";
+
+    /**
+     * Prefix of task parameters which contain a base64 encoded value
+     */
+    public static final String BASE64_PREFIX = "base64:";
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    /**
+     * Available binary formats, in order of preference
+     */
+    private static final Map<String, ObjectMapper> BINARY_MAPPERS;
+
+    static {
+        Map<String, ObjectMapper> mappers = new LinkedHashMap<>();
+        addBinaryFormat(mappers, SMILE, "com.fasterxml.jackson.dataformat.smile.SmileFactory");
+        addBinaryFormat(mappers, CBOR, "com.fasterxml.jackson.dataformat.cbor.CBORFactory");
+        BINARY_MAPPERS = Collections.unmodifiableMap(mappers);
+    }
+
+    private static void addBinaryFormat(Map<String, ObjectMapper> mappers, String contentType, String factoryClass) {
+        try {
+            JsonFactory factory = (JsonFactory) Class.forName(factoryClass).getConstructor().newInstance();
+            mappers.put(contentType, new ObjectMapper(factory));
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException notAvailable) {
+            // dataformat not on the classpath
+        }
+    }
+
+    private ContentTypes() {
+    }
+
+    private static String mimeType(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        if (semicolon >= 0) {
+            contentType = contentType.substring(0, semicolon);
+        }
+        return contentType.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Tells whether the given content type is a binary format available in
+     * this JVM
+     *
+     * @param contentType
+     * @return
+     */
+    public static boolean isBinary(String contentType) {
+        return contentType != null && BINARY_MAPPERS.containsKey(mimeType(contentType));
+    }
+
+    /**
+     * Returns the mapper for the given content type, the JSON one for unknown
+     * or missing content types
+     *
+     * @param contentType
+     * @return
+     */
+    public static ObjectMapper getMapper(String contentType) {
+        if (contentType == null) {
+            return JSON_MAPPER;
+        }
+        return BINARY_MAPPERS.getOrDefault(mimeType(contentType), JSON_MAPPER);
+    }
+
+    /**
+     * Value of the Accept header of the requests
+     *
+     * @return
+     */
+    public static String getAcceptHeader() {
+        StringBuilder res = new StringBuilder();
+        for (String contentType : BINARY_MAPPERS.keySet()) {
+            res.append(contentType).append(", ");
+        }
+        return res.append(JSON).append(";q=0.9").toString();
+    }
+
+    /**
+     * Chooses the format of the response. A binary format is used only if the
+     * client declared it in the Accept header
+     *
+     * @param accept the Accept header of the request, can be null
+     * @return
+     */
+    public static String selectResponseContentType(String accept) {
+        if (accept != null && !BINARY_MAPPERS.isEmpty()) {
+            for (String accepted : accept.split(",")) {
+                String contentType = mimeType(accepted);
+                if (BINARY_MAPPERS.containsKey(contentType)) {
+                    return contentType;
+                }
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * Value of a task parameter in a request or in a response: a base64
+     * encoded parameter is sent as raw bytes if the format supports them
+     *
+     * @param data
+     * @param binary whether the body is encoded with a binary format
+     * @return
+     * @see #decodeTaskData(java.lang.Object)
+     */
+    public static Object encodeTaskData(String data, boolean binary) {
+        if (binary && data != null && data.startsWith(BASE64_PREFIX)) {
+            try {
+                return Base64.getDecoder().decode(data.substring(BASE64_PREFIX.length()));
+            } catch (IllegalArgumentException notBase64) {
+                return data;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Decodes a task parameter received in raw bytes to the usual base64
+     * representation
+     *
+     * @param value
+     * @return
+     * @see #encodeTaskData(java.lang.String, boolean)
+     */
+    public static String decodeTaskData(Object value) {
+        if (value instanceof byte[]) {
+            return BASE64_PREFIX + Base64.getEncoder().encodeToString((byte[]) value);
+        }
+        return (String) value;
+    }
+
+}
@@ -19,20 +19,20 @@
  */
 package majordodo.client.http;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import majordodo.client.BrokerAddress;
 import majordodo.client.BrokerDiscoveryService;
 import majordodo.client.BrokerStatus;
@@ -45,6 +45,7 @@ import majordodo.client.SubmitTaskRequest;
 import majordodo.client.SubmitTaskResponse;
 import majordodo.client.TaskStatus;
 import majordodo.client.TaskSubmitter;
+import org.apache.http.Header;
 import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
@@ -65,7 +66,6 @@ import org.apache.http.impl.client.CloseableHttpClient;
 public class HTTPClientConnection implements ClientConnection {
 
     private static final Logger LOGGER = Logger.getLogger(HTTPClientConnection.class.getName());
-    private static final ObjectMapper MAPPER = new ObjectMapper();
     private String transactionId;
     private boolean transacted;
 
@@ -77,6 +77,11 @@ public class HTTPClientConnection implements ClientConnection {
     private BrokerAddress _broker;
     private final BrokerDiscoveryService discoveryService;
     private TaskSubmitter submitter;
+    /**
+     * Format of the body of the requests, a binary format is used only after
+     * the broker answered using it
+     */
+    private String requestContentType = ContentTypes.JSON;
 
     public HTTPClientConnection(CloseableHttpClient client, ClientConfiguration configuration, BrokerDiscoveryService discoveryService) {
         this.httpclient = client;
@@ -100,6 +105,7 @@ public class HTTPClientConnection implements ClientConnection {
             _broker = null;
         }
         context = null;
+        requestContentType = ContentTypes.JSON;
     }
 
     private HttpClientContext getContext() throws IOException {
@@ -175,32 +181,22 @@ public class HTTPClientConnection implements ClientConnection {
         try {
             final int MAX_RETRIES = this.configuration.getBrokerNotAvailableRetries();
             for (int i = 0; i < MAX_RETRIES; i++) {
+                BrokerAddress failedBroker = null;
                 try {
-                    String s = MAPPER.writeValueAsString(data);
-                    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
                     Map<String, Object> rr;
                     if (method.equals("POST")) {
-                        rr = post("application/json;charset=utf-8", bytes);
+                        rr = post(requestContentType, HTTPProtocol.encodeBody(data, requestContentType));
                     } else if (method.equals("GET")) {
-                        String path = data.entrySet().stream().map((entry) -> {
-                            try {
-                                return entry.getKey() + "=" + URLEncoder.encode(entry.getValue().toString(), "utf-8");
-                            } catch (UnsupportedEncodingException err) {
-                                return "";
-                            }
-                        }).collect(Collectors.joining("&"));
-                        rr = get("?" + path);
+                        rr = get("?" + HTTPProtocol.encodeQueryString(data));
                     } else {
                         throw new IllegalStateException(method);
                     }
                     if (!"true".equals(rr.get("ok") + "")) {
                         LOGGER.log(Level.SEVERE, "error from {0}: {1}", new Object[]{_broker, rr});
+                        failedBroker = _broker;
                         brokerFailed();
                         String error = rr.get("error") + "";
-                        if (error.contains("broker_not_started") // broker does not exist on JVM
-                            || error.contains("recovery_in_progress") // broker is in recovery mode, maybe it would become leader
-                            || error.contains("broker_not_leader")) // broker is not leader
-                        {
+                        if (HTTPProtocol.isRetryableError(error)) {
                             throw new RetryableError(rr + "");
                         } else {
                             throw new IOException("error from broker: " + rr);
@@ -210,8 +206,8 @@ public class HTTPClientConnection implements ClientConnection {
                     return rr;
                 } catch (RetryableError retry) {
                     int interval = this.configuration.getBrokerNotAvailableRetryInterval() * (i + 1);
-                    LOGGER.log(Level.SEVERE, "retry on #{0}error from {1}: {2}: sleep {3} ms", new Object[]{i + 1, _broker, retry, interval});
-                    Thread.sleep(interval);
+                    LOGGER.log(Level.SEVERE, "retry on #{0}error from {1}: {2}: wait up to {3} ms for a new leader", new Object[]{i + 1, failedBroker, retry, interval});
+                    awaitLeaderChange(failedBroker, interval);
                 }
             }
             throw new IOException("could not issue request after " + MAX_RETRIES + " trials");
@@ -225,6 +221,36 @@ public class HTTPClientConnection implements ClientConnection {
         }
     }
 
+    /**
+     * Tells whether a submission has been rejected by the rate limits and the
+     * suggested wait is short enough to retry it
+     */
+    private boolean isRetryAllowed(SubmitTaskResponse response) {
+        return response.getRetryAfter() > 0
+            && response.getRetryAfter() <= configuration.getRateLimitedMaxRetryAfter();
+    }
+
+    private static void waitRetryAfter(long retryAfter) throws ClientException {
+        LOGGER.log(Level.FINE, "submission rejected by the rate limits, retry after {0} ms", retryAfter);
+        try {
+            Thread.sleep(retryAfter);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(err);
+        }
+    }
+
+    private void awaitLeaderChange(BrokerAddress failedBroker, int timeout) throws InterruptedException {
+        CompletableFuture<BrokerAddress> newLeader = discoveryService.awaitLeaderChange(failedBroker);
+        try {
+            newLeader.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException err) {
+            // retry anyway
+        } finally {
+            newLeader.cancel(false);
+        }
+    }
+
     protected void beginTransaction() throws ClientException {
         Map<String, Object> res = request("POST", map("action", "beginTransaction"));
         this.transactionId = res.get("transaction") + "";
@@ -240,55 +266,16 @@ public class HTTPClientConnection implements ClientConnection {
 
     @Override
     public SubmitTaskResponse submitTask(SubmitTaskRequest request) throws ClientException {
-        if (request.getUserid() == null || request.getUserid().isEmpty()) {
-            throw new ClientException("invalid userid " + request.getUserid());
-        }
-        if (request.getTasktype() == null || request.getTasktype().isEmpty()) {
-            throw new ClientException("invalid tasktype " + request.getTasktype());
-        }
-        if (request.getMaxattempts() < 0) {
-            throw new ClientException("invalid Maxattempts " + request.getMaxattempts());
-        }
+        Map<String, Object> reqdata = HTTPProtocol.encodeSubmitTask(request, null);
         ensureTransaction();
-        Map<String, Object> reqdata = new HashMap<>();
-        reqdata.put("action", "submitTask");
-        reqdata.put("userid", request.getUserid());
-        reqdata.put("tasktype", request.getTasktype());
-        reqdata.put("data", request.getData());
-        if (request.getMode() != null && !SubmitTaskRequest.MODE_FACTORY.equals(request.getMode())) {
-            reqdata.put("mode", request.getMode());
-        }
-        if (request.getCodePoolId() != null) {
-            reqdata.put("codePoolId", request.getCodePoolId());
-        }
-        reqdata.put("maxattempts", request.getMaxattempts() + "");
-        if (request.getAttempt() > 0) {
-            reqdata.put("attempt", request.getAttempt() + "");
-        }
-        if (request.getSlot() != null && !request.getSlot().isEmpty()) {
-            reqdata.put("slot", request.getSlot());
-        }
-        if (request.getTimeToLive() > 0) {
-            reqdata.put("deadline", (System.currentTimeMillis() + request.getTimeToLive()) + "");
-        }
-        if (request.getRequestedStartTime() > 0) {
-            reqdata.put("requestedStartTime", request.getRequestedStartTime());
-        }
         if (transactionId != null) {
             reqdata.put("transaction", transactionId);
         }
-        Map<String, Object> result = request("POST", reqdata);
-        SubmitTaskResponse response = new SubmitTaskResponse();
-        if (result.get("taskId") != null) {
-            String taskId = result.get("taskId") + "";
-            if (!taskId.equals("0")) {
-                response.setTaskId(taskId);
-            }
-        }
-        if (result.get("outcome") != null) {
-            response.setOutcome(result.get("outcome") + "");
-        } else {
-            response.setOutcome("");
+        reqdata.put("action", "submitTask");
+        SubmitTaskResponse response = HTTPProtocol.decodeSubmitTaskResponse(request("POST", reqdata));
+        for (int i = 0; i < configuration.getRateLimitedRetries() && isRetryAllowed(response); i++) {
+            waitRetryAfter(response.getRetryAfter());
+            response = HTTPProtocol.decodeSubmitTaskResponse(request("POST", reqdata));
         }
         return response;
 
@@ -298,73 +285,32 @@ public class HTTPClientConnection implements ClientConnection {
     public List<SubmitTaskResponse> submitTasks(List<SubmitTaskRequest> requests) throws ClientException {
 
         ensureTransaction();
-        Map<String, Object> fullreqdata = new HashMap<>();
-        fullreqdata.put("action", "submitTasks");
-        List<Map<String, Object>> tasks = new ArrayList<>();
-        fullreqdata.put("tasks", tasks);
-        for (SubmitTaskRequest request : requests) {
-            Map<String, Object> reqdata = new HashMap<>();
-            tasks.add(reqdata);
-
-            if (request.getUserid() == null || request.getUserid().isEmpty()) {
-                throw new ClientException("invalid userid " + request.getUserid());
-            }
-            if (request.getTasktype() == null || request.getTasktype().isEmpty()) {
-                throw new ClientException("invalid tasktype " + request.getTasktype());
-            }
-            if (request.getMaxattempts() < 0) {
-                throw new ClientException("invalid Maxattempts " + request.getMaxattempts());
-            }
-            if (request.getAttempt() > 0 && request.getMaxattempts() > 0 && request.getAttempt() >= request.getMaxattempts()) {
-                throw new ClientException("invalid Maxattempts " + request.getMaxattempts() + " with attempt " + request.getAttempt());
-            }
-            if (request.getMode() != null && !SubmitTaskRequest.MODE_FACTORY.equals(request.getMode())) {
-                reqdata.put("mode", request.getMode());
-            }
-            if (request.getCodePoolId() != null) {
-                reqdata.put("codePoolId", request.getCodePoolId());
-            }
-            reqdata.put("userid", request.getUserid());
-            reqdata.put("tasktype", request.getTasktype());
-            reqdata.put("data", request.getData());
-            reqdata.put("maxattempts", request.getMaxattempts() + "");
-            if (request.getAttempt() > 0) {
-                reqdata.put("attempt", request.getAttempt() + "");
-            }
-            if (request.getSlot() != null && !request.getSlot().isEmpty()) {
-                reqdata.put("slot", request.getSlot());
-            }
-            if (request.getTimeToLive() > 0) {
-                reqdata.put("deadline", (System.currentTimeMillis() + request.getTimeToLive()) + "");
-            }
-            if (request.getRequestedStartTime() > 0) {
-                reqdata.put("requestedStartTime", request.getRequestedStartTime());
-            }
-            if (transactionId != null) {
-                reqdata.put("transaction", transactionId);
-            }
-        }
-
+        Map<String, Object> fullreqdata = HTTPProtocol.encodeSubmitTasks(requests, transactionId);
         Map<String, Object> results = request("POST", fullreqdata);
-        List<Map<String, Object>> resultlist = (List<Map<String, Object>>) results.get("results");
-        if (resultlist == null) {
-            throw new ClientException("no results (" + results + ")");
-        }
-        List<SubmitTaskResponse> responses = new ArrayList<>(resultlist.size());
-        for (Map<String, Object> result : resultlist) {
-            SubmitTaskResponse response = new SubmitTaskResponse();
-            if (result.get("taskId") != null) {
-                String taskId = result.get("taskId") + "";
-                if (!taskId.equals("0")) {
-                    response.setTaskId(taskId);
+        List<SubmitTaskResponse> responses = HTTPProtocol.decodeSubmitTasksResponse(results);
+        for (int i = 0; i < configuration.getRateLimitedRetries(); i++) {
+            // submit again only the tasks rejected by the rate limits
+            List<Integer> rejected = new ArrayList<>();
+            long retryAfter = 0;
+            for (int j = 0; j < responses.size(); j++) {
+                if (isRetryAllowed(responses.get(j))) {
+                    rejected.add(j);
+                    retryAfter = Math.max(retryAfter, responses.get(j).getRetryAfter());
                 }
             }
-            if (result.get("outcome") != null) {
-                response.setOutcome(result.get("outcome") + "");
-            } else {
-                response.setOutcome("");
+            if (rejected.isEmpty()) {
+                break;
+            }
+            waitRetryAfter(retryAfter);
+            List<SubmitTaskRequest> again = new ArrayList<>(rejected.size());
+            for (int j : rejected) {
+                again.add(requests.get(j));
+            }
+            List<SubmitTaskResponse> newResponses = HTTPProtocol.decodeSubmitTasksResponse(
+                request("POST", HTTPProtocol.encodeSubmitTasks(again, transactionId)));
+            for (int j = 0; j < rejected.size(); j++) {
+                responses.set(rejected.get(j), newResponses.get(j));
             }
-            responses.add(response);
         }
         return responses;
 
@@ -374,47 +320,26 @@ public class HTTPClientConnection implements ClientConnection {
     public TaskStatus getTaskStatus(String id) throws ClientException {
         Map<String, Object> data = request("GET", map("view", "task", "taskId", id));
         Map<String, Object> task = (Map<String, Object>) data.get("task");
-        return deserializeTaskStatus(task);
+        return HTTPProtocol.deserializeTaskStatus(task);
+    }
+
+    @Override
+    public Map<String, TaskStatus> waitForTasks(Collection<String> taskIds, long timeout) throws ClientException {
+        Map<String, Object> data = request("POST", map("action", "waitTasks", "taskIds", new ArrayList<>(taskIds), "timeout", timeout));
+        return HTTPProtocol.decodeWaitForTasksResponse(data);
     }
 
     @Override
     public CodePoolStatus getCodePoolStatus(String codePoolId) throws ClientException {
         Map<String, Object> data = request("GET", map("view", "codePool", "codePoolId", codePoolId));
         Map<String, Object> codePool = (Map<String, Object>) data.get("codePool");
-        return deserializeCodePoolStatus(codePool);
+        return HTTPProtocol.deserializeCodePoolStatus(codePool);
     }
 
     @Override
     public BrokerStatus getBrokerStatus() throws ClientException {
         Map<String, Object> data = request("GET", map("view", "status"));
-        BrokerStatus res = new BrokerStatus();
-        res.setVersion(data.get("version") + "");
-        res.setStatus(data.get("status") + "");
-        if (data.get("tasks") != null) {
-            res.setTasks(Long.parseLong(data.get("tasks") + ""));
-        }
-        if (data.get("pendingtasks") != null) {
-            res.setPendingtasks(Long.parseLong(data.get("pendingtasks") + ""));
-        }
-        if (data.get("runningtasks") != null) {
-            res.setRunningtasks(Long.parseLong(data.get("runningtasks") + ""));
-        }
-        if (data.get("waitingtasks") != null) {
-            res.setWaitingtasks(Long.parseLong(data.get("waitingtasks") + ""));
-        }
-        if (data.get("errortasks") != null) {
-            res.setErrortasks(Long.parseLong(data.get("errortasks") + ""));
-        }
-        if (data.get("finishedtasks") != null) {
-            res.setFinishedtasks(Long.parseLong(data.get("finishedtasks") + ""));
-        }
-        if (data.get("currentLedgerId") != null) {
-            res.setCurrentLedgerId(data.get("currentLedgerId") + "");
-        }
-        if (data.get("currentSequenceNumber") != null) {
-            res.setCurrentSequenceNumber(data.get("currentSequenceNumber") + "");
-        }
-        return res;
+        return HTTPProtocol.decodeBrokerStatus(data);
     }
 
     protected final void ensureTransaction() throws ClientException {
@@ -453,17 +378,30 @@ public class HTTPClientConnection implements ClientConnection {
         httpget.setConfig(requestConfig);
         ByteArrayEntity body = new ByteArrayEntity(content);
         body.setChunked(true);
-        body.setContentType(contentType);
+        body.setContentType(ContentTypes.isBinary(contentType) ? contentType : contentType + ";charset=utf-8");
         httpget.setEntity(body);
+        if (configuration.isBinaryFormat()) {
+            httpget.setHeader("Accept", ContentTypes.getAcceptHeader());
+        }
         try (CloseableHttpResponse response1 = httpclient.execute(httpget, getContext());) {
             if (response1.getStatusLine().getStatusCode() != 200) {
                 brokerFailed();
                 throw new IOException("HTTP request failed: " + response1.getStatusLine());
             }
-            return MAPPER.readValue(response1.getEntity().getContent(), Map.class);
+            return decodeResponse(response1);
         }
     }
 
+    private Map<String, Object> decodeResponse(CloseableHttpResponse response) throws IOException {
+        Header header = response.getEntity().getContentType();
+        String contentType = header != null ? header.getValue() : null;
+        if (configuration.isBinaryFormat() && ContentTypes.isBinary(contentType)) {
+            // the broker supports the binary format, use it for the next requests too
+            requestContentType = contentType;
+        }
+        return HTTPProtocol.decodeBody(response.getEntity().getContent(), contentType);
+    }
+
     private Map<String, Object> get(String url) throws IOException {
         String base = getBaseUrl();
         HttpGet httpget = new HttpGet(base + url);
@@ -472,6 +410,9 @@ public class HTTPClientConnection implements ClientConnection {
             .setConnectTimeout(configuration.getConnectionTimeout())
             .build();
         httpget.setConfig(requestConfig);
+        if (configuration.isBinaryFormat()) {
+            httpget.setHeader("Accept", ContentTypes.getAcceptHeader());
+        }
 
         try (CloseableHttpResponse response1 = httpclient.execute(httpget, getContext());) {
 
@@ -479,49 +420,8 @@ public class HTTPClientConnection implements ClientConnection {
                 brokerFailed();
                 throw new IOException("HTTP request failed: " + response1.getStatusLine());
             }
-            return MAPPER.readValue(response1.getEntity().getContent(), Map.class);
-        }
-    }
-
-    private CodePoolStatus deserializeCodePoolStatus(Map<String, Object> data) {
-        if (data == null || !data.containsKey("codePoolId")) {
-            return null;
-        }
-        CodePoolStatus res = new CodePoolStatus();
-        res.setId((String) data.get("codePoolId"));
-        res.setCreationTimestamp(Long.parseLong(data.get("creationTimestamp") + ""));
-        return res;
-
-    }
-
-    private TaskStatus deserializeTaskStatus(Map<String, Object> task) {
-
-        if (task.get("taskId") == null) {
-            return null;
-        }
-        TaskStatus t = new TaskStatus();
-        t.setAttempts(Integer.parseInt(task.get("attempts") + ""));
-        t.setCreatedTimestamp(Long.parseLong(task.get("createdTimestamp") + ""));
-        t.setData(task.get("data") + "");
-        t.setDeadline(Long.parseLong(task.get("deadline") + ""));
-        t.setRequestedStartTime(Long.parseLong(task.get("requestedStartTime") + ""));
-        t.setMaxattempts(Integer.parseInt(task.get("maxattempts") + ""));
-        t.setResult(task.get("result") + "");
-        t.setSlot(task.get("slot") + "");
-        t.setStatus(task.get("status") + "");
-        String mode = (String) task.get("mode");
-        if (mode == null) {
-            mode = SubmitTaskRequest.MODE_FACTORY;
-        }
-        t.setMode(mode);
-        t.setCodePoolId((String) task.get("codePoolId"));
-        t.setTaskId(task.get("taskId") + "");
-        t.setTasktype(task.get("tasktype") + "");
-        t.setUserId(task.get("userId") + "");
-        if (task.get("workerId") != null) {
-            t.setWorkerId(task.get("workerId") + "");
+            return decodeResponse(response1);
         }
-        return t;
     }
 
     @Override
@@ -0,0 +1,298 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import majordodo.client.BrokerStatus;
+import majordodo.client.ClientException;
+import majordodo.client.CodePoolStatus;
+import majordodo.client.SubmitTaskRequest;
+import majordodo.client.SubmitTaskResponse;
+import majordodo.client.TaskStatus;
+
+/**
+ * Encoding of requests and decoding of responses of the broker HTTP API,
+ * shared by the blocking and by the asynchronous client
+ *
+ * @author enrico.olivelli
+ */
+final class HTTPProtocol {
+
+    private HTTPProtocol() {
+    }
+
+    static String encodeQueryString(Map<String, Object> data) {
+        return data.entrySet().stream().map((entry) -> {
+            try {
+                return entry.getKey() + "=" + URLEncoder.encode(entry.getValue().toString(), "utf-8");
+            } catch (UnsupportedEncodingException err) {
+                return "";
+            }
+        }).collect(Collectors.joining("&"));
+    }
+
+    /**
+     * Tells whether an error returned by the broker is temporary, that is the
+     * request should be sent again, possibly to another broker
+     *
+     * @param error
+     * @return
+     */
+    static boolean isRetryableError(String error) {
+        return error.contains("broker_not_started") // broker does not exist on JVM
+            || error.contains("recovery_in_progress") // broker is in recovery mode, maybe it would become leader
+            || error.contains("broker_not_leader"); // broker is not leader
+    }
+
+    /**
+     * Encodes the body of a POST request
+     *
+     * @param data
+     * @param contentType the format, see {@link ContentTypes}
+     * @return
+     * @throws IOException
+     */
+    static byte[] encodeBody(Map<String, Object> data, String contentType) throws IOException {
+        if (ContentTypes.isBinary(contentType)) {
+            data = toBinary(data);
+        }
+        return ContentTypes.getMapper(contentType).writeValueAsBytes(data);
+    }
+
+    /**
+     * Replaces base64 values with raw bytes. The request is copied, because it
+     * may be sent again using JSON to another broker
+     */
+    private static Map<String, Object> toBinary(Map<String, Object> data) {
+        Map<String, Object> res = new HashMap<>(data);
+        Object value = data.get("data");
+        if ("createCodePool".equals(data.get("action"))) {
+            if (value instanceof String) {
+                try {
+                    res.put("data", Base64.getDecoder().decode((String) value));
+                } catch (IllegalArgumentException notBase64) {
+                    // let the broker report the error
+                }
+            }
+        } else if (value instanceof String) {
+            res.put("data", ContentTypes.encodeTaskData((String) value, true));
+        }
+        List<Map<String, Object>> tasks = (List<Map<String, Object>>) data.get("tasks");
+        if (tasks != null) {
+            List<Map<String, Object>> binaryTasks = new ArrayList<>(tasks.size());
+            for (Map<String, Object> task : tasks) {
+                Map<String, Object> binaryTask = new HashMap<>(task);
+                binaryTask.put("data", ContentTypes.encodeTaskData((String) task.get("data"), true));
+                binaryTasks.add(binaryTask);
+            }
+            res.put("tasks", binaryTasks);
+        }
+        return res;
+    }
+
+    /**
+     * Decodes the body of a response
+     *
+     * @param body
+     * @param contentType the Content-Type of the response, null means JSON
+     * @return
+     * @throws IOException
+     */
+    static Map<String, Object> decodeBody(InputStream body, String contentType) throws IOException {
+        return ContentTypes.getMapper(contentType).readValue(body, Map.class);
+    }
+
+    static Map<String, Object> encodeSubmitTask(SubmitTaskRequest request, String transactionId) throws ClientException {
+        request.validate();
+        Map<String, Object> reqdata = new HashMap<>();
+        if (request.getMode() != null && !SubmitTaskRequest.MODE_FACTORY.equals(request.getMode())) {
+            reqdata.put("mode", request.getMode());
+        }
+        if (request.getCodePoolId() != null) {
+            reqdata.put("codePoolId", request.getCodePoolId());
+        }
+        reqdata.put("userid", request.getUserid());
+        reqdata.put("tasktype", request.getTasktype());
+        reqdata.put("data", request.getData());
+        reqdata.put("maxattempts", request.getMaxattempts() + "");
+        if (request.getAttempt() > 0) {
+            reqdata.put("attempt", request.getAttempt() + "");
+        }
+        if (request.getSlot() != null && !request.getSlot().isEmpty()) {
+            reqdata.put("slot", request.getSlot());
+        }
+        if (request.getTimeToLive() > 0) {
+            reqdata.put("deadline", (System.currentTimeMillis() + request.getTimeToLive()) + "");
+        }
+        if (request.getRequestedStartTime() > 0) {
+            reqdata.put("requestedStartTime", request.getRequestedStartTime());
+        }
+        if (transactionId != null) {
+            reqdata.put("transaction", transactionId);
+        }
+        return reqdata;
+    }
+
+    static Map<String, Object> encodeSubmitTasks(List<SubmitTaskRequest> requests, String transactionId) throws ClientException {
+        Map<String, Object> fullreqdata = new HashMap<>();
+        fullreqdata.put("action", "submitTasks");
+        List<Map<String, Object>> tasks = new ArrayList<>(requests.size());
+        fullreqdata.put("tasks", tasks);
+        for (SubmitTaskRequest request : requests) {
+            tasks.add(encodeSubmitTask(request, transactionId));
+        }
+        return fullreqdata;
+    }
+
+    static SubmitTaskResponse decodeSubmitTaskResponse(Map<String, Object> result) {
+        SubmitTaskResponse response = new SubmitTaskResponse();
+        if (result.get("taskId") != null) {
+            String taskId = result.get("taskId") + "";
+            if (!taskId.equals("0")) {
+                response.setTaskId(taskId);
+            }
+        }
+        // the broker sends the outcome as "result"
+        Object outcome = result.get("outcome") != null ? result.get("outcome") : result.get("result");
+        if (outcome != null) {
+            response.setOutcome(outcome + "");
+        } else {
+            response.setOutcome("");
+        }
+        if (result.get("retryAfter") != null) {
+            response.setRetryAfter(Long.parseLong(result.get("retryAfter") + ""));
+        }
+        return response;
+    }
+
+    static List<SubmitTaskResponse> decodeSubmitTasksResponse(Map<String, Object> results) throws ClientException {
+        List<Map<String, Object>> resultlist = (List<Map<String, Object>>) results.get("results");
+        if (resultlist == null) {
+            throw new ClientException("no results (" + results + ")");
+        }
+        List<SubmitTaskResponse> responses = new ArrayList<>(resultlist.size());
+        for (Map<String, Object> result : resultlist) {
+            responses.add(decodeSubmitTaskResponse(result));
+        }
+        return responses;
+    }
+
+    static Map<String, TaskStatus> decodeWaitForTasksResponse(Map<String, Object> data) {
+        Map<String, TaskStatus> res = new HashMap<>();
+        List<Map<String, Object>> tasks = (List<Map<String, Object>>) data.get("tasks");
+        if (tasks != null) {
+            for (Map<String, Object> task : tasks) {
+                TaskStatus status = deserializeTaskStatus(task);
+                if (status != null) {
+                    res.put(status.getTaskId(), status);
+                }
+            }
+        }
+        List<Object> notFound = (List<Object>) data.get("notFound");
+        if (notFound != null) {
+            for (Object taskId : notFound) {
+                res.put(taskId + "", null);
+            }
+        }
+        return res;
+    }
+
+    static BrokerStatus decodeBrokerStatus(Map<String, Object> data) {
+        BrokerStatus res = new BrokerStatus();
+        res.setVersion(data.get("version") + "");
+        res.setStatus(data.get("status") + "");
+        if (data.get("tasks") != null) {
+            res.setTasks(Long.parseLong(data.get("tasks") + ""));
+        }
+        if (data.get("pendingtasks") != null) {
+            res.setPendingtasks(Long.parseLong(data.get("pendingtasks") + ""));
+        }
+        if (data.get("runningtasks") != null) {
+            res.setRunningtasks(Long.parseLong(data.get("runningtasks") + ""));
+        }
+        if (data.get("waitingtasks") != null) {
+            res.setWaitingtasks(Long.parseLong(data.get("waitingtasks") + ""));
+        }
+        if (data.get("errortasks") != null) {
+            res.setErrortasks(Long.parseLong(data.get("errortasks") + ""));
+        }
+        if (data.get("finishedtasks") != null) {
+            res.setFinishedtasks(Long.parseLong(data.get("finishedtasks") + ""));
+        }
+        if (data.get("currentLedgerId") != null) {
+            res.setCurrentLedgerId(data.get("currentLedgerId") + "");
+        }
+        if (data.get("currentSequenceNumber") != null) {
+            res.setCurrentSequenceNumber(data.get("currentSequenceNumber") + "");
+        }
+        return res;
+    }
+
+    static CodePoolStatus deserializeCodePoolStatus(Map<String, Object> data) {
+        if (data == null || !data.containsKey("codePoolId")) {
+            return null;
+        }
+        CodePoolStatus res = new CodePoolStatus();
+        res.setId((String) data.get("codePoolId"));
+        res.setCreationTimestamp(Long.parseLong(data.get("creationTimestamp") + ""));
+        return res;
+
+    }
+
+    static TaskStatus deserializeTaskStatus(Map<String, Object> task) {
+
+        if (task.get("taskId") == null) {
+            return null;
+        }
+        TaskStatus t = new TaskStatus();
+        t.setAttempts(Integer.parseInt(task.get("attempts") + ""));
+        t.setCreatedTimestamp(Long.parseLong(task.get("createdTimestamp") + ""));
+        t.setData(ContentTypes.decodeTaskData(task.get("data")) + "");
+        t.setDeadline(Long.parseLong(task.get("deadline") + ""));
+        t.setRequestedStartTime(Long.parseLong(task.get("requestedStartTime") + ""));
+        t.setMaxattempts(Integer.parseInt(task.get("maxattempts") + ""));
+        t.setResult(task.get("result") + "");
+        t.setSlot(task.get("slot") + "");
+        t.setStatus(task.get("status") + "");
+        String mode = (String) task.get("mode");
+        if (mode == null) {
+            mode = SubmitTaskRequest.MODE_FACTORY;
+        }
+        t.setMode(mode);
+        t.setCodePoolId((String) task.get("codePoolId"));
+        t.setTaskId(task.get("taskId") + "");
+        t.setTasktype(task.get("tasktype") + "");
+        t.setUserId(task.get("userId") + "");
+        if (task.get("workerId") != null) {
+            t.setWorkerId(task.get("workerId") + "");
+        }
+        return t;
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.ByteProcessor;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal HTTP/1.1 response decoder, it supports only what is needed to talk
+ * to the broker API: fixed length, chunked and read-until-close bodies.
+ * Responses are emitted in the same order of the requests, this is what makes
+ * pipelining possible. The client depends only on netty-handler, this decoder
+ * avoids adding netty-codec-http (and its HttpObjectAggregator) to the
+ * optional dependencies of the client
+ *
+ * @author enrico.olivelli
+ */
+final class HttpResponseDecoder extends ByteToMessageDecoder {
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    static final class Response {
+
+        final int status;
+        final byte[] body;
+        final String contentType;
+        final boolean closeConnection;
+
+        Response(int status, byte[] body, String contentType, boolean closeConnection) {
+            this.status = status;
+            this.body = body;
+            this.contentType = contentType;
+            this.closeConnection = closeConnection;
+        }
+    }
+
+    private enum State {
+        STATUS_LINE,
+        HEADERS,
+        BODY,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        CHUNK_END,
+        TRAILERS,
+        BODY_UNTIL_CLOSE
+    }
+
+    private State state = State.STATUS_LINE;
+    private int status;
+    private long contentLength;
+    private String contentType;
+    private long remaining;
+    private boolean chunked;
+    private boolean closeConnection;
+    private ByteBuf body;
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        while (true) {
+            switch (state) {
+                case STATUS_LINE: {
+                    String line = readLine(in);
+                    if (line == null) {
+                        return;
+                    }
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    // HTTP/1.1 200 OK
+                    String[] split = line.split(" ", 3);
+                    if (split.length < 2 || !split[0].startsWith("HTTP/")) {
+                        throw new CorruptedFrameException("bad status line " + line);
+                    }
+                    status = Integer.parseInt(split[1]);
+                    contentLength = -1;
+                    contentType = null;
+                    chunked = false;
+                    closeConnection = split[0].equals("HTTP/1.0");
+                    state = State.HEADERS;
+                    break;
+                }
+                case HEADERS: {
+                    String line = readLine(in);
+                    if (line == null) {
+                        return;
+                    }
+                    if (!line.isEmpty()) {
+                        parseHeader(line);
+                        break;
+                    }
+                    if (status >= 100 && status < 200) {
+                        // 100-continue, the real response follows
+                        state = State.STATUS_LINE;
+                    } else if (status == 204 || status == 304 || contentLength == 0) {
+                        emit(out);
+                    } else if (chunked) {
+                        body = Unpooled.buffer();
+                        state = State.CHUNK_SIZE;
+                    } else if (contentLength > 0) {
+                        body = Unpooled.buffer((int) Math.min(contentLength, MAX_LINE_LENGTH));
+                        remaining = contentLength;
+                        state = State.BODY;
+                    } else {
+                        body = Unpooled.buffer();
+                        closeConnection = true;
+                        state = State.BODY_UNTIL_CLOSE;
+                    }
+                    break;
+                }
+                case BODY:
+                case CHUNK_DATA: {
+                    int len = (int) Math.min(remaining, in.readableBytes());
+                    body.writeBytes(in, len);
+                    remaining -= len;
+                    if (remaining > 0) {
+                        return;
+                    }
+                    if (state == State.BODY) {
+                        emit(out);
+                    } else {
+                        state = State.CHUNK_END;
+                    }
+                    break;
+                }
+                case CHUNK_SIZE: {
+                    String line = readLine(in);
+                    if (line == null) {
+                        return;
+                    }
+                    int semicolon = line.indexOf(';');
+                    if (semicolon >= 0) {
+                        line = line.substring(0, semicolon);
+                    }
+                    long size = Long.parseLong(line.trim(), 16);
+                    if (size == 0) {
+                        state = State.TRAILERS;
+                    } else {
+                        remaining = size;
+                        state = State.CHUNK_DATA;
+                    }
+                    break;
+                }
+                case CHUNK_END: {
+                    String line = readLine(in);
+                    if (line == null) {
+                        return;
+                    }
+                    state = State.CHUNK_SIZE;
+                    break;
+                }
+                case TRAILERS: {
+                    String line = readLine(in);
+                    if (line == null) {
+                        return;
+                    }
+                    if (line.isEmpty()) {
+                        emit(out);
+                    }
+                    break;
+                }
+                case BODY_UNTIL_CLOSE:
+                    body.writeBytes(in);
+                    return;
+                default:
+                    throw new IllegalStateException(state + "");
+            }
+        }
+    }
+
+    @Override
+    protected void decodeLast(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        decode(ctx, in, out);
+        if (state == State.BODY_UNTIL_CLOSE) {
+            emit(out);
+        }
+    }
+
+    private void parseHeader(String line) throws CorruptedFrameException {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            throw new CorruptedFrameException("bad header line " + line);
+        }
+        String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+        String value = line.substring(colon + 1).trim();
+        switch (name) {
+            case "content-length":
+                contentLength = Long.parseLong(value);
+                break;
+            case "content-type":
+                contentType = value;
+                break;
+            case "transfer-encoding":
+                chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+                break;
+            case "connection":
+                if (value.equalsIgnoreCase("close")) {
+                    closeConnection = true;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void emit(List<Object> out) {
+        byte[] content;
+        if (body == null) {
+            content = new byte[0];
+        } else {
+            content = ByteBufUtil.getBytes(body);
+            body.release();
+            body = null;
+        }
+        out.add(new Response(status, content, contentType, closeConnection));
+        state = State.STATUS_LINE;
+    }
+
+    private static String readLine(ByteBuf in) throws TooLongFrameException {
+        int lf = in.forEachByte(ByteProcessor.FIND_LF);
+        if (lf < 0) {
+            if (in.readableBytes() > MAX_LINE_LENGTH) {
+                throw new TooLongFrameException("line is longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            return null;
+        }
+        int end = lf;
+        if (end > in.readerIndex() && in.getByte(end - 1) == '\r') {
+            end--;
+        }
+        String line = in.toString(in.readerIndex(), end - in.readerIndex(), StandardCharsets.ISO_8859_1);
+        in.readerIndex(lf + 1);
+        return line;
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        if (body != null) {
+            body.release();
+            body = null;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A connection to a broker which pipelines HTTP requests: requests are written
+ * as soon as they are issued, without waiting for the previous responses, and
+ * responses are matched to requests in FIFO order. All the state is accessed
+ * only by the event loop of the channel
+ *
+ * @author enrico.olivelli
+ */
+final class PipelinedHttpChannel extends SimpleChannelInboundHandler<HttpResponseDecoder.Response> {
+
+    private static final Logger LOGGER = Logger.getLogger(PipelinedHttpChannel.class.getName());
+
+    private final ArrayDeque<CompletableFuture<HttpResponseDecoder.Response>> pending = new ArrayDeque<>();
+    private ChannelFuture connectFuture;
+    private volatile boolean closed;
+
+    /**
+     * The request was not written to the connection, so it can be sent again
+     * safely
+     */
+    static final class RequestNotSentException extends IOException {
+
+        RequestNotSentException(String message) {
+            super(message);
+        }
+    }
+
+    void setConnectFuture(ChannelFuture connectFuture) {
+        this.connectFuture = connectFuture;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Sends a request
+     *
+     * @param request the encoded request, ownership is transferred to the
+     * channel
+     * @param timeout max time to wait for the response, in milliseconds. In case
+     * of timeout the connection is closed, as the following pipelined
+     * responses would not be matched to the right requests
+     * @return
+     */
+    CompletableFuture<HttpResponseDecoder.Response> send(ByteBuf request, long timeout) {
+        CompletableFuture<HttpResponseDecoder.Response> result = new CompletableFuture<>();
+        // listeners are always notified by the event loop
+        connectFuture.addListener((ChannelFuture connected) -> {
+            if (!connected.isSuccess()) {
+                closed = true;
+                request.release();
+                result.completeExceptionally(connected.cause());
+                return;
+            }
+            Channel channel = connected.channel();
+            if (closed || !channel.isActive()) {
+                request.release();
+                result.completeExceptionally(new RequestNotSentException("connection to " + channel.remoteAddress() + " is closed"));
+                return;
+            }
+            pending.add(result);
+            channel.writeAndFlush(request).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            if (timeout > 0) {
+                ScheduledFuture<?> timer = channel.eventLoop().schedule(() -> {
+                    if (!result.isDone()) {
+                        failAll(channel, new SocketTimeoutException("no response from " + channel.remoteAddress() + " after " + timeout + " ms"));
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+                result.whenComplete((r, error) -> timer.cancel(false));
+            }
+        });
+        return result;
+    }
+
+    void close() {
+        closed = true;
+        connectFuture.channel().close();
+    }
+
+    private void failAll(Channel channel, Throwable error) {
+        closed = true;
+        CompletableFuture<HttpResponseDecoder.Response> next;
+        while ((next = pending.poll()) != null) {
+            next.completeExceptionally(error);
+        }
+        channel.close();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, HttpResponseDecoder.Response response) throws Exception {
+        CompletableFuture<HttpResponseDecoder.Response> request = pending.poll();
+        if (request == null) {
+            failAll(ctx.channel(), new IOException("unexpected response from " + ctx.channel().remoteAddress()));
+            return;
+        }
+        if (response.closeConnection) {
+            // the server will not send other responses
+            closed = true;
+        }
+        request.complete(response);
+        if (response.closeConnection) {
+            failAll(ctx.channel(), new IOException("connection closed by " + ctx.channel().remoteAddress()));
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent && pending.isEmpty()) {
+            // close idle connections before the server does, otherwise a request could be lost
+            closed = true;
+            ctx.close();
+        } else {
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        failAll(ctx.channel(), new IOException("connection to " + ctx.channel().remoteAddress() + " closed"));
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        LOGGER.log(Level.SEVERE, "error on connection to " + ctx.channel().remoteAddress(), cause);
+        failAll(ctx.channel(), cause);
+    }
+
+}
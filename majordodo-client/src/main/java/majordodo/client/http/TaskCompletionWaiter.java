@@ -0,0 +1,156 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import majordodo.client.ClientException;
+import majordodo.client.TaskStatus;
+
+/**
+ * Waits for the completion of tasks on behalf of
+ * {@link Client#awaitTask(java.lang.String)}. Awaited tasks are batched into
+ * long-poll requests which return as soon as one of the tasks is finished, so
+ * that a few connections serve any number of waiting tasks. One poller is
+ * reserved to the tasks which have just been awaited and it uses short polls,
+ * so they are not delayed by the long polls which are in progress
+ *
+ * @author enrico.olivelli
+ */
+final class TaskCompletionWaiter implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(TaskCompletionWaiter.class.getName());
+    private static final int MAX_TASKS_PER_POLL = 1000;
+    private static final int NEW_TASKS_POLL_TIMEOUT = 1000;
+
+    private final Client client;
+    private final ClientConfiguration configuration;
+    private final ConcurrentHashMap<String, CompletableFuture<TaskStatus>> futures = new ConcurrentHashMap<>();
+    // tasks which have never been polled
+    private final LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    // tasks which were not finished at the end of their first poll
+    private final LinkedBlockingQueue<String> waiting = new LinkedBlockingQueue<>();
+    private final ExecutorService pollers;
+    private volatile boolean closed;
+
+    TaskCompletionWaiter(Client client, ClientConfiguration configuration) {
+        this.client = client;
+        this.configuration = configuration;
+        int threads = Math.max(2, configuration.getAwaitTasksMaxConcurrentPolls());
+        this.pollers = Executors.newFixedThreadPool(threads, (Runnable r) -> {
+            Thread t = new Thread(r, "majordodo-client-await-task");
+            t.setDaemon(true);
+            return t;
+        });
+        pollers.submit(() -> pollLoop(pending, NEW_TASKS_POLL_TIMEOUT));
+        for (int i = 1; i < threads; i++) {
+            pollers.submit(() -> pollLoop(waiting, configuration.getAwaitTasksPollTimeout()));
+        }
+    }
+
+    CompletableFuture<TaskStatus> awaitTask(String taskId) {
+        if (closed) {
+            CompletableFuture<TaskStatus> res = new CompletableFuture<>();
+            res.completeExceptionally(new ClientException("client is closed"));
+            return res;
+        }
+        CompletableFuture<TaskStatus> created = new CompletableFuture<>();
+        CompletableFuture<TaskStatus> existing = futures.putIfAbsent(taskId, created);
+        if (existing != null) {
+            return existing;
+        }
+        // the future MUST be visible before the pollers see the id
+        pending.add(taskId);
+        return created;
+    }
+
+    private void pollLoop(LinkedBlockingQueue<String> source, int pollTimeout) {
+        List<String> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                String first = source.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                source.drainTo(batch, MAX_TASKS_PER_POLL - 1);
+                // cancelled futures are simply forgotten
+                batch.removeIf((String id) -> {
+                    CompletableFuture<TaskStatus> future = futures.get(id);
+                    if (future != null && future.isDone()) {
+                        futures.remove(id, future);
+                        return true;
+                    }
+                    return future == null;
+                });
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                Map<String, TaskStatus> completed;
+                try (HTTPClientConnection connection = client.openConnection()) {
+                    completed = connection.waitForTasks(batch, Math.min(pollTimeout, configuration.getAwaitTasksPollTimeout()));
+                }
+                for (String taskId : batch) {
+                    if (completed.containsKey(taskId)) {
+                        CompletableFuture<TaskStatus> future = futures.remove(taskId);
+                        if (future != null) {
+                            future.complete(completed.get(taskId));
+                        }
+                    } else {
+                        waiting.add(taskId);
+                    }
+                }
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception err) {
+                LOGGER.log(Level.SEVERE, "error while waiting for " + batch.size() + " tasks", err);
+                source.addAll(batch);
+                try {
+                    Thread.sleep(configuration.getBrokerNotAvailableRetryInterval());
+                } catch (InterruptedException stop) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        pollers.shutdownNow();
+        ClientException error = new ClientException("client is closed");
+        futures.values().forEach(f -> f.completeExceptionally(error));
+        futures.clear();
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests for BatchingTaskSubmitter
+ *
+ * @author enrico.olivelli
+ */
+public class BatchingTaskSubmitterTest {
+
+    /**
+     * Fake broker connection which only implements submitTasks, slots are never
+     * released
+     */
+    private static class FakeBroker {
+
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        final Set<String> busySlots = new HashSet<>();
+        final AtomicLong nextTaskId = new AtomicLong();
+        volatile boolean fail;
+
+        ClientConnection connection() {
+            return (ClientConnection) Proxy.newProxyInstance(BatchingTaskSubmitterTest.class.getClassLoader(),
+                new Class[]{ClientConnection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isTransacted":
+                            return false;
+                        case "submitTasks":
+                            return submitTasks((List<SubmitTaskRequest>) args[0]);
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        }
+
+        private synchronized List<SubmitTaskResponse> submitTasks(List<SubmitTaskRequest> requests) throws ClientException {
+            if (fail) {
+                throw new ClientException("broker not available");
+            }
+            batchSizes.add(requests.size());
+            List<SubmitTaskResponse> res = new ArrayList<>();
+            for (SubmitTaskRequest request : requests) {
+                SubmitTaskResponse response = new SubmitTaskResponse();
+                if (request.getSlot() != null && !busySlots.add(request.getSlot())) {
+                    response.setOutcome("slot " + request.getSlot() + " already assigned");
+                } else {
+                    response.setTaskId(nextTaskId.incrementAndGet() + "");
+                    response.setOutcome("");
+                }
+                res.add(response);
+            }
+            return res;
+        }
+    }
+
+    private static SubmitTaskRequest request(String data, String slot) {
+        SubmitTaskRequest request = new SubmitTaskRequest();
+        request.setUserid("user");
+        request.setTasktype("mytype");
+        request.setData(data);
+        request.setSlot(slot);
+        return request;
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        FakeBroker broker = new FakeBroker();
+        int threads = 8;
+        int tasksPerThread = 500;
+        List<CompletableFuture<SubmitTaskResponse>> results = new CopyOnWriteArrayList<>();
+        try (BatchingTaskSubmitter submitter = new BatchingTaskSubmitter(broker.connection(), 100, 50);) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                pool.submit(() -> {
+                    for (int i = 0; i < tasksPerThread; i++) {
+                        results.add(submitter.submitTask(request("t" + thread + "_" + i, null)));
+                    }
+                });
+            }
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+            Set<String> taskIds = new HashSet<>();
+            for (CompletableFuture<SubmitTaskResponse> result : results) {
+                taskIds.add(result.get(10, TimeUnit.SECONDS).getTaskId());
+            }
+            assertEquals(threads * tasksPerThread, taskIds.size());
+        }
+        int total = 0;
+        for (int size : broker.batchSizes) {
+            assertTrue(size <= 100);
+            total += size;
+        }
+        assertEquals(threads * tasksPerThread, total);
+        assertTrue("too many requests: " + broker.batchSizes.size(), broker.batchSizes.size() < threads * tasksPerThread / 10);
+    }
+
+    @Test
+    public void testSlotConflictsAndLinger() throws Exception {
+        FakeBroker broker = new FakeBroker();
+        try (BatchingTaskSubmitter submitter = new BatchingTaskSubmitter(broker.connection(), 1000, 200);) {
+            CompletableFuture<SubmitTaskResponse> first = submitter.submitTask(request("a", "myslot"));
+            CompletableFuture<SubmitTaskResponse> second = submitter.submitTask(request("b", "myslot"));
+            CompletableFuture<SubmitTaskResponse> third = submitter.submitTask(request("c", "otherslot"));
+            // the batch is not full, it is sent when the linger time expires
+            assertNotNull(first.get(10, TimeUnit.SECONDS).getTaskId());
+            assertNull(second.get().getTaskId());
+            assertEquals("slot myslot already assigned", second.get().getOutcome());
+            assertNotNull(third.get().getTaskId());
+            assertEquals(1, broker.batchSizes.size());
+            assertEquals(3, broker.batchSizes.get(0).intValue());
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        FakeBroker broker = new FakeBroker();
+        BatchingTaskSubmitter submitter = new BatchingTaskSubmitter(broker.connection(), 10, 0);
+        try {
+            // an invalid request does not reach the broker
+            SubmitTaskRequest invalid = request("a", null);
+            invalid.setUserid(null);
+            try {
+                submitter.submitTask(invalid).get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException err) {
+                assertTrue(err.getCause() instanceof ClientException);
+            }
+            broker.fail = true;
+            try {
+                submitter.submitTask(request("b", null)).get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException err) {
+                assertEquals("broker not available", err.getCause().getMessage());
+            }
+            broker.fail = false;
+            assertNotNull(submitter.submitTask(request("c", null)).get(10, TimeUnit.SECONDS).getTaskId());
+        } finally {
+            submitter.close();
+        }
+        try {
+            submitter.submitTask(request("d", null)).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException err) {
+            assertEquals("submitter is closed", err.getCause().getMessage());
+        }
+        assertEquals(1, broker.batchSizes.size());
+    }
+
+    @Test
+    public void testSubmitConcurrentlyWithClose() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            FakeBroker broker = new FakeBroker();
+            List<CompletableFuture<SubmitTaskResponse>> results = new CopyOnWriteArrayList<>();
+            // a small queue, in order to have submitters blocked on a full queue too
+            BatchingTaskSubmitter submitter = new BatchingTaskSubmitter(broker.connection(), 1, 0);
+            int threads = 8;
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++) {
+                pool.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        results.add(submitter.submitTask(request("a", null)));
+                    }
+                });
+            }
+            Thread.sleep(10);
+            submitter.close();
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+            // every task is either submitted or rejected
+            for (CompletableFuture<SubmitTaskResponse> result : results) {
+                try {
+                    assertNotNull(result.get(10, TimeUnit.SECONDS).getTaskId());
+                } catch (ExecutionException err) {
+                    assertEquals("submitter is closed", err.getCause().getMessage());
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,312 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import majordodo.client.BrokerAddress;
+import majordodo.client.ClientException;
+import majordodo.client.SubmitTaskRequest;
+import majordodo.client.SubmitTaskResponse;
+import majordodo.client.TaskStatus;
+import majordodo.client.discovery.StaticBrokerDiscoveryService;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link AsyncClient} against a fake broker
+ *
+ * @author enrico.olivelli
+ */
+public class AsyncClientTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private HttpServer server;
+    private final Set<InetSocketAddress> clientConnections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextTaskId = new AtomicLong();
+    private final AtomicInteger notLeaderResponses = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicLong nextTransactionId = new AtomicLong();
+    private final List<String> transactionalActions = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.createContext("/majordodo", this::handle);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private ClientConfiguration configuration() {
+        return ClientConfiguration
+            .defaultConfiguration()
+            .setUsername("admin")
+            .setPassword("password")
+            .setBrokerNotAvailableRetryInterval(10)
+            .setBrokerDiscoveryService(new StaticBrokerDiscoveryService(BrokerAddress.http("localhost", server.getAddress().getPort())));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        clientConnections.add(exchange.getRemoteAddress());
+        String expectedAuth = "Basic " + Base64.getEncoder().encodeToString("admin:password".getBytes("utf-8"));
+        if (!expectedAuth.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            exchange.sendResponseHeaders(401, -1);
+            exchange.close();
+            return;
+        }
+        Map<String, Object> response = new HashMap<>();
+        if (notLeaderResponses.getAndUpdate(i -> i > 0 ? i - 1 : 0) > 0) {
+            response.put("ok", false);
+            response.put("error", "broker_not_leader");
+            reply(exchange, response, false);
+            return;
+        }
+        response.put("ok", true);
+        if (exchange.getRequestMethod().equals("GET")) {
+            String query = exchange.getRequestURI().getQuery();
+            if (query.contains("view=task")) {
+                if (query.contains("taskId=1")) {
+                    Map<String, Object> task = new HashMap<>();
+                    task.put("taskId", 1);
+                    task.put("status", "finished");
+                    task.put("attempts", 1);
+                    task.put("maxattempts", 1);
+                    task.put("createdTimestamp", 0);
+                    task.put("deadline", 0);
+                    task.put("requestedStartTime", 0);
+                    task.put("tasktype", "mytype");
+                    task.put("userId", "user");
+                    task.put("result", "myresult");
+                    response.put("task", task);
+                } else {
+                    response.put("task", new HashMap<>());
+                }
+                // no content-length, the response is chunked
+                reply(exchange, response, true);
+                return;
+            }
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+        Map<String, Object> request = MAPPER.readValue(exchange.getRequestBody(), Map.class);
+        switch (request.get("action") + "") {
+            case "submitTask":
+                if (request.containsKey("transaction")) {
+                    transactionalActions.add("submitTask:" + request.get("transaction"));
+                }
+                response.put("taskId", nextTaskId.incrementAndGet());
+                break;
+            case "submitTasks": {
+                List<Map<String, Object>> results = new ArrayList<>();
+                for (Map<String, Object> task : (List<Map<String, Object>>) request.get("tasks")) {
+                    if (task.containsKey("transaction")) {
+                        transactionalActions.add("submitTasks:" + task.get("transaction"));
+                    }
+                    Map<String, Object> result = new HashMap<>();
+                    result.put("taskId", nextTaskId.incrementAndGet());
+                    results.add(result);
+                }
+                response.put("results", results);
+                break;
+            }
+            case "beginTransaction": {
+                long transaction = nextTransactionId.incrementAndGet();
+                transactionalActions.add("beginTransaction:" + transaction);
+                response.put("transaction", transaction);
+                break;
+            }
+            case "commitTransaction":
+            case "rollbackTransaction":
+                transactionalActions.add(request.get("action") + ":" + request.get("transaction"));
+                break;
+            default:
+                response.put("ok", false);
+                response.put("error", "bad action " + request.get("action"));
+        }
+        reply(exchange, response, false);
+    }
+
+    private static void reply(HttpExchange exchange, Map<String, Object> response, boolean chunked) throws IOException {
+        byte[] body = MAPPER.writeValueAsBytes(response);
+        exchange.sendResponseHeaders(200, chunked ? 0 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static SubmitTaskRequest request(String data) {
+        SubmitTaskRequest request = new SubmitTaskRequest();
+        request.setUserid("user");
+        request.setTasktype("mytype");
+        request.setData(data);
+        return request;
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        try (AsyncClient client = new AsyncClient(configuration().setAsyncClientConnectionsPerBroker(2));
+            AsyncHTTPClientConnection connection = client.openConnection();) {
+            int count = 5000;
+            List<CompletableFuture<SubmitTaskResponse>> results = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                results.add(connection.submitTaskAsync(request("task" + i)));
+            }
+            Set<String> taskIds = new HashSet<>();
+            for (CompletableFuture<SubmitTaskResponse> result : results) {
+                taskIds.add(result.get(1, TimeUnit.MINUTES).getTaskId());
+            }
+            assertEquals(count, taskIds.size());
+            assertTrue("too many connections: " + clientConnections, clientConnections.size() <= 2);
+
+            List<SubmitTaskRequest> batch = new ArrayList<>();
+            batch.add(request("a"));
+            batch.add(request("b"));
+            assertEquals(2, connection.submitTasks(batch).size());
+        }
+    }
+
+    @Test
+    public void testResponses() throws Exception {
+        try (AsyncClient client = new AsyncClient(configuration());
+            AsyncHTTPClientConnection connection = client.openConnection();) {
+            // chunked responses
+            TaskStatus task = connection.getTaskStatusAsync("1").get(10, TimeUnit.SECONDS);
+            assertEquals("1", task.getTaskId());
+            assertEquals("myresult", task.getResult());
+            assertNull(connection.getTaskStatus("2"));
+
+            // requests are validated before being sent
+            try {
+                SubmitTaskRequest invalid = request("invalid");
+                invalid.setUserid(null);
+                connection.submitTask(invalid);
+                fail();
+            } catch (ClientException ok) {
+            }
+
+            // HTTP errors
+            try {
+                connection.getBrokerStatusAsync().get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ok) {
+                assertTrue(ok.getCause() instanceof ClientException);
+            }
+            // the connection is still usable
+            assertNotNull(connection.submitTask(request("after error")).getTaskId());
+        }
+    }
+
+    @Test
+    public void testTransactions() throws Exception {
+        try (AsyncClient client = new AsyncClient(configuration().setAsyncClientConnectionsPerBroker(2));
+            AsyncHTTPClientConnection connection = client.openConnection();) {
+            connection.setTransacted(true);
+            assertTrue(connection.isTransacted());
+            int count = 100;
+            List<CompletableFuture<?>> results = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                results.add(connection.submitTaskAsync(request("task" + i)));
+            }
+            List<SubmitTaskRequest> batch = new ArrayList<>();
+            batch.add(request("a"));
+            batch.add(request("b"));
+            results.add(connection.submitTasksAsync(batch));
+            connection.commit();
+            for (CompletableFuture<?> result : results) {
+                assertTrue(result.isDone());
+            }
+            // a single transaction, committed after all the submissions
+            assertEquals(count + 4, transactionalActions.size());
+            assertEquals("beginTransaction:1", transactionalActions.get(0));
+            assertEquals("commitTransaction:1", transactionalActions.get(count + 3));
+            for (String action : transactionalActions.subList(1, count + 3)) {
+                assertTrue(action, action.equals("submitTask:1") || action.equals("submitTasks:1"));
+            }
+
+            transactionalActions.clear();
+            connection.submitTask(request("rolledback"));
+            try {
+                connection.setTransacted(false);
+                fail();
+            } catch (IllegalStateException ok) {
+            }
+            connection.rollback();
+            assertEquals(Arrays.asList("beginTransaction:2", "submitTask:2", "rollbackTransaction:2"), transactionalActions);
+
+            // nothing to rollback on close
+            transactionalActions.clear();
+            connection.setTransacted(false);
+            assertNotNull(connection.submitTask(request("no transaction")).getTaskId());
+        }
+        assertTrue(transactionalActions.isEmpty());
+    }
+
+    @Test
+    public void testRetryWhenBrokerIsNotLeader() throws Exception {
+        try (AsyncClient client = new AsyncClient(configuration().setBrokerNotAvailableRetries(5));
+            AsyncHTTPClientConnection connection = client.openConnection();) {
+            notLeaderResponses.set(3);
+            assertNotNull(connection.submitTaskAsync(request("retried")).get(10, TimeUnit.SECONDS).getTaskId());
+            assertEquals(4, requests.get());
+
+            notLeaderResponses.set(10);
+            try {
+                connection.submitTask(request("too many retries"));
+                fail();
+            } catch (ClientException ok) {
+                assertTrue(ok.getMessage().contains("could not issue request after 5 trials"));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import majordodo.client.BrokerAddress;
+import majordodo.client.TaskStatus;
+import majordodo.client.discovery.StaticBrokerDiscoveryService;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests {@link Client#awaitTask(java.lang.String)} against a fake broker which
+ * implements the "waitTasks" long-poll
+ *
+ * @author enrico.olivelli
+ */
+public class AwaitTaskTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static Map<String, Object> task(String taskId, String status) {
+        Map<String, Object> task = new HashMap<>();
+        task.put("taskId", Long.parseLong(taskId));
+        task.put("status", status);
+        task.put("attempts", 1);
+        task.put("maxattempts", 1);
+        task.put("createdTimestamp", 0);
+        task.put("deadline", 0);
+        task.put("requestedStartTime", 0);
+        task.put("tasktype", "mytype");
+        task.put("userId", "user");
+        task.put("result", "result" + taskId);
+        return task;
+    }
+
+    private static HttpServer startBroker(Map<String, String> finished, AtomicInteger requests) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            Map<String, Object> request = MAPPER.readValue(exchange.getRequestBody(), Map.class);
+            assertEquals("waitTasks", request.get("action"));
+            List<String> taskIds = (List<String>) request.get("taskIds");
+            long deadline = System.currentTimeMillis() + ((Number) request.get("timeout")).longValue();
+            List<Map<String, Object>> tasks = new ArrayList<>();
+            List<String> notFound = new ArrayList<>();
+            while (tasks.isEmpty() && notFound.isEmpty() && System.currentTimeMillis() < deadline) {
+                for (String taskId : taskIds) {
+                    String status = finished.get(taskId);
+                    if ("notfound".equals(status)) {
+                        notFound.add(taskId);
+                    } else if (status != null) {
+                        tasks.add(task(taskId, status));
+                    }
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException err) {
+                    break;
+                }
+            }
+            Map<String, Object> response = new HashMap<>();
+            response.put("ok", true);
+            response.put("tasks", tasks);
+            response.put("notFound", notFound);
+            byte[] body = MAPPER.writeValueAsBytes(response);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    @Test
+    public void testAwaitTask() throws Exception {
+        Map<String, String> finished = new ConcurrentHashMap<>();
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = startBroker(finished, requests);
+        try {
+            ClientConfiguration config = ClientConfiguration
+                .defaultConfiguration()
+                .setAwaitTasksMaxConcurrentPolls(2)
+                .setAwaitTasksPollTimeout(500)
+                .setBrokerDiscoveryService(new StaticBrokerDiscoveryService(BrokerAddress.http("localhost", server.getAddress().getPort())));
+            try (Client client = new Client(config);) {
+                List<CompletableFuture<TaskStatus>> futures = new ArrayList<>();
+                for (int i = 1; i <= 100; i++) {
+                    futures.add(client.awaitTask(i + ""));
+                }
+                // the same future for the same task
+                assertTrue(futures.get(0) == client.awaitTask("1"));
+                Thread.sleep(700);
+                assertFalse(futures.get(0).isDone());
+
+                finished.put("1", "finished");
+                finished.put("2", "error");
+                finished.put("3", "notfound");
+                TaskStatus status = futures.get(0).get(10, TimeUnit.SECONDS);
+                assertEquals("1", status.getTaskId());
+                assertEquals("finished", status.getStatus());
+                assertEquals("result1", status.getResult());
+                assertEquals("error", futures.get(1).get(10, TimeUnit.SECONDS).getStatus());
+                assertNull(futures.get(2).get(10, TimeUnit.SECONDS));
+
+                for (int i = 4; i <= 100; i++) {
+                    finished.put(i + "", "finished");
+                }
+                for (CompletableFuture<TaskStatus> future : futures) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+                // a few long polls serve all the tasks
+                assertTrue("too many requests: " + requests.get(), requests.get() < 50);
+
+                CompletableFuture<TaskStatus> pending = client.awaitTask("1000");
+                client.close();
+                assertTrue(pending.isCompletedExceptionally());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testNewTaskNotDelayedByLongPolls() throws Exception {
+        Map<String, String> finished = new ConcurrentHashMap<>();
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = startBroker(finished, requests);
+        try {
+            ClientConfiguration config = ClientConfiguration
+                .defaultConfiguration()
+                .setAwaitTasksMaxConcurrentPolls(2)
+                .setAwaitTasksPollTimeout(20000)
+                .setBrokerDiscoveryService(new StaticBrokerDiscoveryService(BrokerAddress.http("localhost", server.getAddress().getPort())));
+            try (Client client = new Client(config);) {
+                // two long tasks, awaited at different times in order to keep both pollers busy
+                CompletableFuture<TaskStatus> long1 = client.awaitTask("1");
+                Thread.sleep(200);
+                CompletableFuture<TaskStatus> long2 = client.awaitTask("2");
+                Thread.sleep(2500);
+
+                finished.put("3", "finished");
+                CompletableFuture<TaskStatus> shortTask = client.awaitTask("3");
+                assertEquals("finished", shortTask.get(5, TimeUnit.SECONDS).getStatus());
+                assertFalse(long1.isDone());
+                assertFalse(long2.isDone());
+
+                finished.put("1", "finished");
+                finished.put("2", "finished");
+                long1.get(10, TimeUnit.SECONDS);
+                long2.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+}
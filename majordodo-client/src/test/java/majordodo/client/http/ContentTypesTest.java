@@ -0,0 +1,65 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ContentTypesTest {
+
+    @Test
+    public void testNegotiation() throws Exception {
+        assertFalse(ContentTypes.isBinary(ContentTypes.JSON));
+        assertFalse(ContentTypes.isBinary(null));
+        assertEquals(ContentTypes.JSON, ContentTypes.selectResponseContentType(null));
+        assertEquals(ContentTypes.JSON, ContentTypes.selectResponseContentType("text/html, */*"));
+        assertSame(ContentTypes.getMapper(null), ContentTypes.getMapper("application/json; charset=utf-8"));
+
+        // binary formats are used only when the dataformat is available
+        String expected = ContentTypes.isBinary(ContentTypes.CBOR) ? ContentTypes.CBOR : ContentTypes.JSON;
+        assertEquals(expected, ContentTypes.selectResponseContentType("Application/CBOR;q=1, application/json;q=0.9"));
+        assertEquals(ContentTypes.JSON.equals(expected), ContentTypes.getMapper(ContentTypes.CBOR) == ContentTypes.getMapper(null));
+        assertTrue(ContentTypes.getAcceptHeader().endsWith(ContentTypes.JSON + ";q=0.9"));
+    }
+
+    @Test
+    public void testTaskData() throws Exception {
+        byte[] value = "serialized object".getBytes(StandardCharsets.UTF_8);
+        String data = ContentTypes.BASE64_PREFIX + Base64.getEncoder().encodeToString(value);
+
+        assertEquals(data, ContentTypes.encodeTaskData(data, false));
+        assertArrayEquals(value, (byte[]) ContentTypes.encodeTaskData(data, true));
+        assertEquals(data, ContentTypes.decodeTaskData(ContentTypes.encodeTaskData(data, true)));
+
+        // plain parameters and invalid base64 are left as they are
+        assertEquals("param", ContentTypes.encodeTaskData("param", true));
+        assertEquals("base64:not valid!", ContentTypes.encodeTaskData("base64:not valid!", true));
+        assertEquals(null, ContentTypes.encodeTaskData(null, true));
+        assertEquals("param", ContentTypes.decodeTaskData("param"));
+        assertEquals(null, ContentTypes.decodeTaskData(null));
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import majordodo.client.BrokerAddress;
+import majordodo.client.ClientConnection;
+import majordodo.client.SubmitTaskRequest;
+import majordodo.client.SubmitTaskResponse;
+import majordodo.client.discovery.StaticBrokerDiscoveryService;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that {@link HTTPClientConnection} submits again the tasks rejected by
+ * the rate limits of the broker
+ *
+ * @author enrico.olivelli
+ */
+public class RateLimitedSubmissionTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static Map<String, Object> result(long taskId, long retryAfter) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("taskId", taskId);
+        if (retryAfter > 0) {
+            result.put("result", "submission rate limit exceeded");
+            result.put("retryAfter", retryAfter);
+        } else {
+            result.put("result", null);
+        }
+        return result;
+    }
+
+    private static SubmitTaskRequest task(String data) {
+        SubmitTaskRequest request = new SubmitTaskRequest();
+        request.setTasktype("mytype");
+        request.setUserid("user");
+        request.setData(data);
+        return request;
+    }
+
+    @Test
+    public void testRetryAfter() throws Exception {
+        // requests received by the broker, they are checked by the test thread
+        List<Map<String, Object>> requests = new CopyOnWriteArrayList<>();
+        AtomicInteger nextTaskId = new AtomicInteger();
+        AtomicLong retryAfter = new AtomicLong(20);
+        AtomicBoolean rejectAll = new AtomicBoolean();
+        List<Object> submitted = new CopyOnWriteArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            Map<String, Object> request = MAPPER.readValue(exchange.getRequestBody(), Map.class);
+            requests.add(request);
+            // every other submission is rejected
+            boolean reject = rejectAll.get() || requests.size() % 2 == 1;
+            Map<String, Object> response = new HashMap<>();
+            response.put("ok", true);
+            if ("submitTask".equals(request.get("action"))) {
+                if (reject) {
+                    response.putAll(result(0, retryAfter.get()));
+                } else {
+                    submitted.add(request.get("data"));
+                    response.putAll(result(nextTaskId.incrementAndGet(), 0));
+                }
+            } else {
+                List<Map<String, Object>> results = new ArrayList<>();
+                List<Map<String, Object>> tasks = (List<Map<String, Object>>) request.get("tasks");
+                for (Map<String, Object> task : tasks) {
+                    if (reject && task != tasks.get(0)) {
+                        results.add(result(0, retryAfter.get()));
+                    } else {
+                        submitted.add(task.get("data"));
+                        results.add(result(nextTaskId.incrementAndGet(), 0));
+                    }
+                }
+                response.put("results", results);
+            }
+            byte[] body = MAPPER.writeValueAsBytes(response);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            ClientConfiguration config = ClientConfiguration
+                .defaultConfiguration()
+                .setBrokerDiscoveryService(new StaticBrokerDiscoveryService(BrokerAddress.http("localhost", server.getAddress().getPort())));
+            try (Client client = new Client(config);
+                ClientConnection connection = client.openConnection()) {
+                SubmitTaskResponse response = connection.submitTask(task("t1"));
+                assertEquals("1", response.getTaskId());
+                assertEquals(0, response.getRetryAfter());
+                assertEquals(2, requests.size());
+                assertEquals("submitTask", requests.get(1).get("action"));
+                assertEquals("t1", requests.get(1).get("data"));
+
+                List<SubmitTaskResponse> responses = connection.submitTasks(Arrays.asList(task("t2"), task("t3"), task("t4")));
+                assertEquals(Arrays.asList("2", "3", "4"), Arrays.asList(responses.get(0).getTaskId(), responses.get(1).getTaskId(), responses.get(2).getTaskId()));
+                assertEquals(Arrays.asList("t1", "t2", "t3", "t4"), submitted);
+                assertEquals(4, requests.size());
+                assertEquals("submitTasks", requests.get(2).get("action"));
+                // only the rejected tasks are submitted again
+                assertEquals("submitTasks", requests.get(3).get("action"));
+                assertEquals(2, ((List<?>) requests.get(3).get("tasks")).size());
+
+                // the broker suggests a wait longer than the configured max, the rejection is returned to the caller
+                retryAfter.set(60000);
+                rejectAll.set(true);
+                config.setRateLimitedMaxRetryAfter(1000);
+                long _start = System.currentTimeMillis();
+                response = connection.submitTask(task("t5"));
+                assertTrue(System.currentTimeMillis() - _start < 60000);
+                assertNull(response.getTaskId());
+                assertEquals(60000, response.getRetryAfter());
+                assertEquals(5, requests.size());
+                // the same for batches
+                responses = connection.submitTasks(Arrays.asList(task("t6"), task("t7")));
+                assertEquals("5", responses.get(0).getTaskId());
+                assertNull(responses.get(1).getTaskId());
+                assertEquals(60000, responses.get(1).getRetryAfter());
+                assertEquals(6, requests.size());
+
+                // retries disabled, the rejection is returned to the caller
+                retryAfter.set(20);
+                rejectAll.set(false);
+                config.setRateLimitedRetries(0);
+                response = connection.submitTask(task("t8"));
+                assertNull(response.getTaskId());
+                assertEquals(20, response.getRetryAfter());
+                assertEquals("submission rate limit exceeded", response.getOutcome());
+                assertEquals(7, requests.size());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+}
@@ -36,6 +36,30 @@ public class BrokerStatusView {
     private long errorTasks;
     private long finishedTasks;
     private long runningTasks;
+    private int delayedTasksQueueSize;
+    private long delayedTasksQueueEarliestStartTime;
+
+    public int getDelayedTasksQueueSize() {
+        return delayedTasksQueueSize;
+    }
+
+    public void setDelayedTasksQueueSize(int delayedTasksQueueSize) {
+        this.delayedTasksQueueSize = delayedTasksQueueSize;
+    }
+
+    /**
+     * Earliest requested start time of the tasks which are waiting in the
+     * delayed tasks queue, 0 if the queue is empty
+     *
+     * @return
+     */
+    public long getDelayedTasksQueueEarliestStartTime() {
+        return delayedTasksQueueEarliestStartTime;
+    }
+
+    public void setDelayedTasksQueueEarliestStartTime(long delayedTasksQueueEarliestStartTime) {
+        this.delayedTasksQueueEarliestStartTime = delayedTasksQueueEarliestStartTime;
+    }
 
     public long getDelayedTasks() {
         return delayedTasks;
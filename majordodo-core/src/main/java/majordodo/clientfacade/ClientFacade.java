@@ -20,9 +20,14 @@
 package majordodo.clientfacade;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import majordodo.task.AddTaskResult;
 import majordodo.task.Broker;
+import majordodo.task.TaskCompletionListener;
+import majordodo.task.TaskEventsSubscription;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Client API
@@ -46,10 +51,19 @@ public class ClientFacade {
     }
 
     public SubmitTaskResult submitTask(AddTaskRequest task) throws Exception {
+        long retryAfter = broker.getSubmissionRateLimiter().tryAcquire(task.userId, task.taskType);
+        if (retryAfter > 0) {
+            return rateLimited(task, retryAfter);
+        }
         AddTaskResult res = broker.addTask(task);
         return new SubmitTaskResult(res.taskId, res.error);
     }
 
+    private static SubmitTaskResult rateLimited(AddTaskRequest task, long retryAfter) {
+        return new SubmitTaskResult(0, "submission rate limit exceeded for user " + task.userId + " and tasktype " + task.taskType
+            + ", retry after " + retryAfter + " ms", retryAfter);
+    }
+
     public TransactionStatus getTransaction(long transactionId) throws Exception {
         return broker.getTransactionStatus(transactionId);
     }
@@ -67,10 +81,26 @@ public class ClientFacade {
     }
 
     public List<SubmitTaskResult> submitTasks(List<AddTaskRequest> tasks) throws Exception {
-        List<AddTaskResult> addressult = broker.addTasks(tasks);
+        // rejected tasks are not written to the log, the others are submitted as a single batch
+        long[] retryAfter = new long[tasks.size()];
+        List<AddTaskRequest> accepted = new ArrayList<>(tasks.size());
+        for (int i = 0; i < retryAfter.length; i++) {
+            AddTaskRequest task = tasks.get(i);
+            retryAfter[i] = broker.getSubmissionRateLimiter().tryAcquire(task.userId, task.taskType);
+            if (retryAfter[i] == 0) {
+                accepted.add(task);
+            }
+        }
+        List<AddTaskResult> addressult = accepted.isEmpty() ? Collections.emptyList() : broker.addTasks(accepted);
         List<SubmitTaskResult> res = new ArrayList<>(tasks.size());
-        for (AddTaskResult a : addressult) {
-            res.add(new SubmitTaskResult(a.taskId, a.error));
+        int next = 0;
+        for (int i = 0; i < retryAfter.length; i++) {
+            if (retryAfter[i] > 0) {
+                res.add(rateLimited(tasks.get(i), retryAfter[i]));
+            } else {
+                AddTaskResult a = addressult.get(next++);
+                res.add(new SubmitTaskResult(a.taskId, a.error));
+            }
         }
         return res;
     }
@@ -91,6 +121,49 @@ public class ClientFacade {
         return broker.getBrokerStatus().getAllTasks();
     }
 
+    public TaskQueryResult queryTasks(TaskQuery query) {
+        return broker.getBrokerStatus().queryTasks(query);
+    }
+
+    public Map<String, Long> countTasksByType(TaskQuery query) {
+        return broker.getBrokerStatus().countTasksByType(query);
+    }
+
+    /**
+     * Waits for at least one of the given tasks to finish
+     *
+     * @param taskIds
+     * @param timeout
+     * @return
+     * @throws InterruptedException
+     * @see majordodo.task.BrokerStatus#waitForTasks(java.util.Collection, long)
+     */
+    public TasksCompletionResult waitForTasks(Collection<Long> taskIds, long timeout) throws InterruptedException {
+        return broker.getBrokerStatus().waitForTasks(taskIds, timeout);
+    }
+
+    /**
+     * Notifies the completion of the given tasks to a listener, without
+     * blocking
+     *
+     * @param taskIds
+     * @param listener
+     * @return the tasks which are already in final status and the unknown
+     * tasks
+     * @see majordodo.task.BrokerStatus#subscribeTasksCompletion(java.util.Collection, majordodo.task.TaskCompletionListener)
+     */
+    public TasksCompletionResult subscribeTasksCompletion(Collection<Long> taskIds, TaskCompletionListener listener) {
+        return broker.getBrokerStatus().subscribeTasksCompletion(taskIds, listener);
+    }
+
+    public void unsubscribeTasksCompletion(Collection<Long> taskIds, TaskCompletionListener listener) {
+        broker.getBrokerStatus().unsubscribeTasksCompletion(taskIds, listener);
+    }
+
+    public TaskEventsSubscription subscribeTaskEvents(String userId, String taskType, int capacity) {
+        return broker.getBrokerStatus().subscribeTaskEvents(userId, taskType, capacity);
+    }
+
     public List<WorkerStatusView> getAllWorkers() {
         return broker.getBrokerStatus().getAllWorkers();
     }
@@ -123,4 +196,8 @@ public class ClientFacade {
         return broker.getSlotsStatusView();
     }
 
+    public SubmissionRateLimitsView getSubmissionRateLimitsView() {
+        return broker.getSubmissionRateLimiter().createView();
+    }
+
 }
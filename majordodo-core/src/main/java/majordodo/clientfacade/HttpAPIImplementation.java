@@ -19,29 +19,38 @@
  */
 package majordodo.clientfacade;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonSerializable;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.function.Predicate;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import majordodo.client.http.ContentTypes;
 import majordodo.network.jvm.JVMBrokersRegistry;
 import majordodo.task.Broker;
 import majordodo.task.Task;
+import majordodo.task.TaskEventsSubscription;
 
 /**
  * Implementation of the HTTP API, both for embedded and for standalone installation
@@ -94,6 +103,10 @@ public class HttpAPIImplementation {
         if (view == null) {
             view = "overview";
         }
+        if (view.equals("taskevents") && broker != null) {
+            streamTaskEvents(req, resp, broker);
+            return;
+        }
         Map<String, Object> resultMap = new HashMap<>();
         resultMap.put("ok", "true");
         if (broker == null) {
@@ -118,6 +131,8 @@ public class HttpAPIImplementation {
                     resultMap.put("errortasks", status.getErrorTasks());
                     resultMap.put("waitingtasks", status.getWaitingTasks());
                     resultMap.put("finishedtasks", status.getFinishedTasks());
+                    resultMap.put("delayedqueuesize", status.getDelayedTasksQueueSize());
+                    resultMap.put("delayedqueueearlieststarttime", status.getDelayedTasksQueueEarliestStartTime());
                 } else {
                     resultMap.put("status", "not_started");
                     resultMap.put("version", Broker.VERSION());
@@ -171,6 +186,14 @@ public class HttpAPIImplementation {
                     resultMap.put("status", "not_started");
                 }
                 break;
+            case "ratelimits":
+                if (broker != null) {
+                    resultMap.put("ratelimits", broker.getClient().getSubmissionRateLimitsView());
+                    resultMap.put("status", broker.getClient().getBrokerStatus());
+                } else {
+                    resultMap.put("status", "not_started");
+                }
+                break;
             case "transactions":
                 if (broker != null) {
                     resultMap.put("transactions", broker.getClient().getTransactionsStatusView());
@@ -193,8 +216,7 @@ public class HttpAPIImplementation {
                     try {
                         long id = Long.parseLong(req.getParameter("taskId") + "");
                         TaskStatusView task = broker.getClient().getTask(id);
-                        Map<String, Object> map = serializeTaskForClient(task);
-                        resultMap.put("task", map);
+                        resultMap.put("task", new TaskForClient(task));
                     } catch (NumberFormatException err) {
                         resultMap.put("ok", false);
                         resultMap.put("error", "bad task id " + err);
@@ -238,79 +260,55 @@ public class HttpAPIImplementation {
                     String user = req.getParameter("userId");
 
                     resultMap.put("max", max);
-                    List<Map<String, Object>> tt;
-                    Predicate<TaskStatusView> filterPred;
-                    Predicate<TaskStatusView> filterWorker;
-                    Predicate<TaskStatusView> filterTasktype;
-                    Predicate<TaskStatusView> filterSlots;
-                    Predicate<TaskStatusView> filterUser;
-                    switch (status) {
-                        case "all":
-                            filterPred = (t) -> true;
-                            break;
-                        case "waiting":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_WAITING;
-                            break;
-                        case "delayed":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_DELAYED;
-                            break;
-                        case "running":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_RUNNING;
-                            break;
-                        case "error":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_ERROR;
-                            break;
-                        case "finished":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_FINISHED;
-                            break;
-                        default:
-                            filterPred = (t) -> false;
-                    }
-
-                    if (worker != null && !worker.isEmpty()) {
-                        filterWorker = (t) -> {
-                            return worker.equalsIgnoreCase(t.getWorkerId());
-                        };
-                    } else {
-                        filterWorker = (t) -> true;
-                    }
-                    if (slot != null && !slot.isEmpty()) {
-                        filterSlots = (t) -> {
-                            return slot.equalsIgnoreCase(t.getSlot());
-                        };
-                    } else {
-                        filterSlots = (t) -> true;
+                    long cursor = 0;
+                    if (req.getParameter("cursor") != null) {
+                        cursor = Long.parseLong(req.getParameter("cursor"));
                     }
-
-                    if (user != null && !user.isEmpty()) {
-                        filterUser = (t) -> {
-                            return user.equalsIgnoreCase(t.getUser());
-                        };
-                    } else {
-                        filterUser = (t) -> true;
-                    }
-
-                    if (tasktype != null && !tasktype.isEmpty()) {
-                        filterTasktype = (t) -> {
-                            return tasktype.equalsIgnoreCase(t.getType());
-                        };
+                    List<TaskForClient> tt;
+                    long nextCursor = 0;
+                    Integer statusFilter = parseTaskStatusFilter(status);
+                    if (statusFilter != null) {
+                        TaskQuery query = new TaskQuery();
+                        query.setStatus(statusFilter);
+                        query.setUserId(user);
+                        query.setTaskType(tasktype);
+                        query.setWorkerId(worker);
+                        query.setSlot(slot);
+                        query.setAfterTaskId(cursor);
+                        query.setMax(max);
+                        TaskQueryResult queryResult = broker.getClient().queryTasks(query);
+                        tt = queryResult.getTasks().stream().map(TaskForClient::new).collect(Collectors.toList());
+                        nextCursor = queryResult.getNextCursor();
                     } else {
-                        filterTasktype = (t) -> true;
+                        tt = new ArrayList<>();
                     }
 
-                    tt = broker.getClient().getAllTasks().stream().filter(filterPred).filter(filterUser).filter(filterSlots).filter(filterWorker).filter(filterTasktype).limit(max).map(t -> {
-                        Map<String, Object> map = serializeTaskForClient(t);
-                        return map;
-                    }).collect(Collectors.toList());
-
                     resultMap.put("tasks", tt);
                     resultMap.put("count", tt.size());
+                    resultMap.put("nextCursor", nextCursor);
                     resultMap.put("status", broker.getClient().getBrokerStatus());
                 } else {
                     resultMap.put("status", "not_started");
                 }
                 break;
 
+            case "waittasks":
+                if (broker != null) {
+                    List<Long> taskIds = new ArrayList<>();
+                    String _taskIds = req.getParameter("taskIds");
+                    if (_taskIds != null) {
+                        for (String id : _taskIds.split(",")) {
+                            if (!id.trim().isEmpty()) {
+                                taskIds.add(Long.parseLong(id.trim()));
+                            }
+                        }
+                    }
+                    waitForTasks(broker, taskIds, req.getParameter("timeout"), resultMap);
+                    resultMap.put("status", broker.getClient().getBrokerStatus());
+                } else {
+                    resultMap.put("status", "not_started");
+                }
+                break;
             case "tasksoverview":
                 if (broker != null) {
                     String worker = req.getParameter("workerId");
@@ -319,57 +317,18 @@ public class HttpAPIImplementation {
                     if (filter == null) {
                         filter = "all";
                     }
-                    List<Map<String, Object>> tt;
-                    Predicate<TaskStatusView> filterPred;
-                    Predicate<TaskStatusView> filterWorker;
-                    Predicate<TaskStatusView> filterTasktype;
-                    switch (filter) {
-                        case "all":
-                            filterPred = (t) -> true;
-
-                            break;
-                        case "waiting":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_WAITING;
-                            break;
-                        case "delayed":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_DELAYED;
-                            break;
-                        case "running":
-                            filterPred = (t)
-                                -> t.getStatus() == Task.STATUS_RUNNING;
-                            break;
-                        case "error":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_ERROR;
-                            break;
-                        case "finished":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_FINISHED;
-                            break;
-                        default:
-                            filterPred = (t) -> false;
-                    }
-
-                    if (worker != null && !worker.isEmpty()) {
-                        filterWorker = (t) -> {
-                            return worker.equalsIgnoreCase(t.getWorkerId());
-                        };
-                    } else {
-                        filterWorker = (t) -> true;
-                    }
-
-                    if (tasktype != null && !tasktype.isEmpty()) {
-                        filterTasktype = (t) -> {
-                            return tasktype.equalsIgnoreCase(t.getType());
-                        };
+                    Map<String, Long> groupByTaskType;
+                    Integer statusFilter = parseTaskStatusFilter(filter);
+                    if (statusFilter != null) {
+                        TaskQuery query = new TaskQuery();
+                        query.setStatus(statusFilter);
+                        query.setTaskType(tasktype);
+                        query.setWorkerId(worker);
+                        groupByTaskType = broker.getClient().countTasksByType(query);
                     } else {
-                        filterTasktype = (t) -> true;
+                        groupByTaskType = new HashMap<>();
                     }
 
-                    Map<String, Long> groupByTaskType = broker.getClient().getAllTasks().stream()
-                        .filter(filterPred).filter(filterWorker).filter(filterTasktype)
-                        .collect(
-                            Collectors.groupingBy(TaskStatusView::getType, Collectors.counting())
-                        );
-
                     resultMap.put("tasks", groupByTaskType);
                     resultMap.put("count", groupByTaskType.values().stream().collect(Collectors.summingLong((l) -> l)));
                     resultMap.put("status", broker.getClient().getBrokerStatus());
@@ -381,14 +340,132 @@ public class HttpAPIImplementation {
         }
 
         LOGGER.log(Level.FINER, "GET  -> {0}", resultMap);
-        String s = MAPPER.writeValueAsString(resultMap);
-        byte[] res = s.getBytes(StandardCharsets.UTF_8);
+        writeResponse(req, resp, resultMap);
+    }
+
+    private static final long DEFAULT_WAIT_TASKS_TIMEOUT = 30000;
+    private static final long MAX_WAIT_TASKS_TIMEOUT = 120000;
+    private static final int TASK_EVENTS_BUFFER = 10000;
+    private static final long TASK_EVENTS_KEEPALIVE = 15000;
+
+    /**
+     * Long poll: blocks until at least one of the tasks is in final status,
+     * or is not known by the broker, or the timeout expires
+     */
+    private static void waitForTasks(Broker broker, List<Long> taskIds, String _timeout, Map<String, Object> resultMap) throws IOException {
+        long timeout = DEFAULT_WAIT_TASKS_TIMEOUT;
+        if (_timeout != null) {
+            timeout = Math.min(Long.parseLong(_timeout), MAX_WAIT_TASKS_TIMEOUT);
+        }
+        TasksCompletionResult result;
+        try {
+            result = broker.getClient().waitForTasks(taskIds, timeout);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new IOException(err);
+        }
+        resultMap.put("tasks", result.getCompletedTasks().stream().map(TaskForClient::new).collect(Collectors.toList()));
+        resultMap.put("notFound", result.getNotFoundTaskIds());
+    }
 
-        resp.setContentLength(res.length);
+    /**
+     * Server-sent events stream of the changes of status of the tasks,
+     * optionally filtered by user and tasktype. Each change is sent as a
+     * "status" event with the same JSON of the "task" view, an "overflow"
+     * event tells that some change has been dropped because the client was
+     * too slow
+     */
+    private static void streamTaskEvents(HttpServletRequest req, HttpServletResponse resp, Broker broker) throws IOException {
+        if (broker.getConfiguration().isApiCorsEnabled()) {
+            resp.setHeader("Access-Control-Allow-Origin", "*");
+        }
+        long deadline = Long.MAX_VALUE;
+        if (req.getParameter("timeout") != null) {
+            deadline = System.currentTimeMillis() + Long.parseLong(req.getParameter("timeout"));
+        }
+        resp.setContentType("text/event-stream;charset=utf-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        try (TaskEventsSubscription subscription = broker.getClient().subscribeTaskEvents(req.getParameter("userId"), req.getParameter("tasktype"), TASK_EVENTS_BUFFER);
+            OutputStream out = resp.getOutputStream()) {
+            // tell the client that the subscription is active
+            out.write(": subscribed\n\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            long lastWrite = System.currentTimeMillis();
+            while (!broker.isStopped()) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    break;
+                }
+                TaskStatusView event = subscription.poll(Math.min(1000, deadline - now), TimeUnit.MILLISECONDS);
+                boolean written = false;
+                if (subscription.checkAndClearOverflow()) {
+                    out.write("event: overflow\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8));
+                    written = true;
+                }
+                if (event != null) {
+                    out.write("event: status\ndata: ".getBytes(StandardCharsets.UTF_8));
+                    out.write(MAPPER.writeValueAsBytes(new TaskForClient(event)));
+                    out.write("\n\n".getBytes(StandardCharsets.UTF_8));
+                    written = true;
+                } else if (System.currentTimeMillis() - lastWrite >= TASK_EVENTS_KEEPALIVE) {
+                    out.write(": keepalive\n\n".getBytes(StandardCharsets.UTF_8));
+                    written = true;
+                }
+                if (written) {
+                    out.flush();
+                    lastWrite = System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        resp.setContentType("application/json;charset=utf-8");
+    /**
+     * Writes the result straight to the servlet output stream, without
+     * building the whole document in memory. The format is negotiated with
+     * the Accept header, JSON is the default
+     *
+     * @param req
+     * @param resp
+     * @param resultMap
+     * @throws IOException
+     */
+    private static void writeResponse(HttpServletRequest req, HttpServletResponse resp, Map<String, Object> resultMap) throws IOException {
+        String contentType = ContentTypes.selectResponseContentType(req.getHeader("Accept"));
+        resp.setHeader("Vary", "Accept");
+        if (ContentTypes.isBinary(contentType)) {
+            resp.setContentType(contentType);
+        } else {
+            resp.setContentType(contentType + ";charset=utf-8");
+        }
         try (OutputStream out = resp.getOutputStream()) {
-            out.write(res);
+            ContentTypes.getMapper(contentType).writeValue(out, resultMap);
+        }
+    }
+
+    /**
+     * Maps the status filter of the "tasks" and "tasksoverview" views
+     *
+     * @param status
+     * @return the status for the {@link TaskQuery}, null if no task can match
+     */
+    private static Integer parseTaskStatusFilter(String status) {
+        switch (status) {
+            case "all":
+                return TaskQuery.STATUS_ANY;
+            case "waiting":
+                return Task.STATUS_WAITING;
+            case "delayed":
+                return Task.STATUS_DELAYED;
+            case "running":
+                return Task.STATUS_RUNNING;
+            case "error":
+                return Task.STATUS_ERROR;
+            case "finished":
+                return Task.STATUS_FINISHED;
+            default:
+                return null;
         }
     }
 
@@ -403,36 +480,212 @@ public class HttpAPIImplementation {
         return map;
     }
 
-    private static Map<String, Object> serializeTaskForClient(TaskStatusView t) {
-        Map<String, Object> map = new HashMap<>();
-        if (t == null) {
-            return map;
+    /**
+     * Task as seen by clients of the HTTP API, written directly to the
+     * response without an intermediate map
+     */
+    private static final class TaskForClient extends JsonSerializable.Base {
+
+        private final TaskStatusView t;
+
+        TaskForClient(TaskStatusView t) {
+            this.t = t;
         }
-        map.put("taskId", t.getTaskId());
-        map.put("userId", t.getUser());
-        map.put("deadline", t.getExecutionDeadline());
-        map.put("requestedStartTime", t.getRequestedStartTime());
-        map.put("createdTimestamp", t.getCreatedTimestamp());
-        map.put("maxattempts", t.getMaxattempts());
-        map.put("attempts", t.getAttempts());
-        map.put("tasktype", t.getType());
-        map.put("workerId", t.getWorkerId());
-        map.put("result", t.getResult());
-        map.put("slot", t.getSlot());
-        map.put("data", t.getData());
-        if (t.getMode() != null) {
-            map.put("mode", t.getMode());
+
+        @Override
+        public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeStartObject();
+            if (t != null) {
+                gen.writeNumberField("taskId", t.getTaskId());
+                gen.writeStringField("userId", t.getUser());
+                gen.writeNumberField("deadline", t.getExecutionDeadline());
+                gen.writeNumberField("requestedStartTime", t.getRequestedStartTime());
+                gen.writeNumberField("createdTimestamp", t.getCreatedTimestamp());
+                gen.writeNumberField("maxattempts", t.getMaxattempts());
+                gen.writeNumberField("attempts", t.getAttempts());
+                gen.writeStringField("tasktype", t.getType());
+                gen.writeStringField("workerId", t.getWorkerId());
+                gen.writeStringField("result", t.getResult());
+                gen.writeStringField("slot", t.getSlot());
+                Object data = ContentTypes.encodeTaskData(t.getData(), gen.canWriteBinaryNatively());
+                if (data instanceof byte[]) {
+                    gen.writeBinaryField("data", (byte[]) data);
+                } else {
+                    gen.writeStringField("data", (String) data);
+                }
+                if (t.getMode() != null) {
+                    gen.writeStringField("mode", t.getMode());
+                }
+                if (t.getCodePoolId() != null) {
+                    gen.writeStringField("codePoolId", t.getCodePoolId());
+                }
+                if (t.getResources() != null) {
+                    gen.writeStringField("resources", t.getResources());
+                }
+                gen.writeStringField("status", TaskStatusView.convertTaskStatusForClient(t.getStatus()));
+            }
+            gen.writeEndObject();
         }
-        if (t.getCodePoolId() != null) {
-            map.put("codePoolId", t.getCodePoolId());
+
+        @Override
+        public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer) throws IOException {
+            serialize(gen, serializers);
         }
-        if (t.getResources() != null) {
-            map.put("resources", t.getResources());
+
+        @Override
+        public String toString() {
+            return t == null ? "{}" : "{taskId=" + t.getTaskId() + "}";
         }
-        int taskStatus = t.getStatus();
-        String status = TaskStatusView.convertTaskStatusForClient(taskStatus);
-        map.put("status", status);
-        return map;
+
+    }
+
+    /**
+     * Outcome of each task of a "submitTasks" action, in the same order of the
+     * requests
+     */
+    private static final class SubmitTasksResultsForClient extends JsonSerializable.Base {
+
+        private final List<AddTaskRequest> requests;
+        private final List<SubmitTaskResult> results;
+
+        SubmitTasksResultsForClient(List<AddTaskRequest> requests, List<SubmitTaskResult> results) {
+            this.requests = requests;
+            this.results = results;
+        }
+
+        @Override
+        public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeStartArray();
+            int i = 0;
+            for (AddTaskRequest addreq : requests) {
+                SubmitTaskResult result = results.get(i++);
+                gen.writeStartObject();
+                gen.writeNumberField("taskId", result.getTaskId());
+                if (addreq.transaction > 0) {
+                    gen.writeNumberField("transaction", addreq.transaction);
+                }
+                gen.writeStringField("result", result.getOutcome());
+                if (result.getRetryAfter() > 0) {
+                    gen.writeNumberField("retryAfter", result.getRetryAfter());
+                }
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+        }
+
+        @Override
+        public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer) throws IOException {
+            serialize(gen, serializers);
+        }
+
+        @Override
+        public String toString() {
+            return results.toString();
+        }
+
+    }
+
+    /**
+     * Fields of an element of the "tasks" array of a "submitTasks" action
+     */
+    private static final class TaskElement {
+
+        String type;
+        String user;
+        String parameters;
+        String maxattempts;
+        String attempt;
+        String transaction;
+        boolean hasTransaction;
+        String deadline;
+        String slot;
+    }
+
+    /**
+     * Parses the body of a POST request. The "tasks" array is read one element
+     * at a time into {@link TaskElement}s, every other top level field is put
+     * into the data map
+     *
+     * @param in
+     * @param mapper the mapper for the format of the body
+     * @param data
+     * @return the elements of the "tasks" array, null if not present
+     * @throws IOException
+     */
+    private static List<TaskElement> parseRequest(InputStream in, ObjectMapper mapper, Map<String, Object> data) throws IOException {
+        List<TaskElement> tasks = null;
+        try (JsonParser parser = mapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (field.equals("tasks") && token == JsonToken.START_ARRAY) {
+                    tasks = new ArrayList<>();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        tasks.add(parseTaskElement(parser));
+                    }
+                } else {
+                    data.put(field, mapper.readValue(parser, Object.class));
+                }
+            }
+        }
+        return tasks;
+    }
+
+    private static TaskElement parseTaskElement(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "expected a JSON object for each task");
+        }
+        TaskElement task = new TaskElement();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token.isStructStart()) {
+                // only plain values are meaningful
+                parser.skipChildren();
+                continue;
+            }
+            String value;
+            if (token == JsonToken.VALUE_EMBEDDED_OBJECT) {
+                // raw bytes, sent by binary formats
+                value = ContentTypes.decodeTaskData(parser.getBinaryValue());
+            } else {
+                value = parser.getValueAsString();
+            }
+            switch (field) {
+                case "tasktype":
+                    task.type = value;
+                    break;
+                case "userid":
+                    task.user = value;
+                    break;
+                case "data":
+                    task.parameters = value;
+                    break;
+                case "maxattempts":
+                    task.maxattempts = value;
+                    break;
+                case "attempt":
+                    task.attempt = value;
+                    break;
+                case "transaction":
+                    task.hasTransaction = true;
+                    task.transaction = value;
+                    break;
+                case "deadline":
+                    task.deadline = value;
+                    break;
+                case "slot":
+                    task.slot = value;
+                    break;
+                default:
+                    // not interesting
+                    break;
+            }
+        }
+        return task;
     }
 
     public static void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
@@ -443,11 +696,11 @@ public class HttpAPIImplementation {
     public static void doPost(HttpServletRequest req, HttpServletResponse resp, Broker broker) throws ServletException, IOException {
         try {
 
-            ByteArrayOutputStream oo = new ByteArrayOutputStream();
+            Map<String, Object> data = new HashMap<>();
+            List<TaskElement> tasks;
             try (InputStream in = req.getInputStream()) {
-                copyStreams(in, oo);
+                tasks = parseRequest(in, ContentTypes.getMapper(req.getContentType()), data);
             }
-            Map<String, Object> data = MAPPER.readValue(oo.toString("utf-8"), Map.class);
             AuthenticatedUser auth_user = login(req);
             LOGGER.log(Level.FINE, "POST {0} broker={1}, user: {2}", new Object[]{data, broker, auth_user});
             String action = data.get("action") + "";
@@ -472,7 +725,7 @@ public class HttpAPIImplementation {
                         String error = "";
                         String type = (String) data.get("tasktype");
                         String user = (String) data.get("userid");
-                        String parameters = (String) data.get("data");
+                        String parameters = ContentTypes.decodeTaskData(data.get("data"));
                         String _maxattempts = (String) data.get("maxattempts");
                         String _attempt = (String) data.get("attempt");
                         long transaction = 0;
@@ -522,6 +775,9 @@ public class HttpAPIImplementation {
                             long taskId = result.getTaskId();
                             resultMap.put("taskId", taskId);
                             resultMap.put("result", result.getOutcome());
+                            if (result.getRetryAfter() > 0) {
+                                resultMap.put("retryAfter", result.getRetryAfter());
+                            }
                         } catch (Exception err) {
                             LOGGER.log(Level.SEVERE, "error for " + data, err);
                             error = err + "";
@@ -532,77 +788,56 @@ public class HttpAPIImplementation {
                     }
                     case "submitTasks": {
                         String error = "";
-                        List<Map<String, Object>> results = new ArrayList<>();
-                        List<Map<String, Object>> tasks = (List<Map<String, Object>>) data.get("tasks");
+                        Object results = Collections.emptyList();
                         if (tasks == null) {
                             error = "tasks element not present in json";
                         } else {
-                            List<AddTaskRequest> requests = new ArrayList<>();
-                            for (Map<String, Object> task : tasks) {
-                                String type = (String) task.get("tasktype");
-                                String user = (String) task.get("userid");
+                            String _requestedStartTime = (String) data.get("requestedStartTime");
+                            long requestedStartTime = 0;
+                            if (_requestedStartTime != null) {
+                                requestedStartTime = Long.parseLong(_requestedStartTime);
+                            }
+                            String codepool = (String) data.get("codePoolId");
+                            if (codepool != null && codepool.trim().isEmpty()) {
+                                codepool = null;
+                            }
+                            String mode = (String) data.get("mode");
+                            if (mode != null && mode.trim().isEmpty()) {
+                                mode = null;
+                            }
+                            List<AddTaskRequest> requests = new ArrayList<>(tasks.size());
+                            for (TaskElement task : tasks) {
                                 if (auth_user.getRole() != UserRole.ADMINISTRATOR
-                                    && !auth_user.getUserId().equals(user)) {
+                                    && !auth_user.getUserId().equals(task.user)) {
                                     resp.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Majordodo broker API");
                                     return;
                                 }
-                                String parameters = (String) task.get("data");
-                                String _maxattempts = (String) task.get("maxattempts");
-                                String _attempt = (String) task.get("attempt");
                                 long transaction = 0;
-                                if (task.containsKey("transaction")) {
-                                    transaction = Long.parseLong(task.get("transaction") + "");
+                                if (task.hasTransaction) {
+                                    transaction = Long.parseLong(task.transaction + "");
                                 }
                                 int maxattempts = 1;
-                                if (_maxattempts != null) {
-                                    maxattempts = Integer.parseInt(_maxattempts);
+                                if (task.maxattempts != null) {
+                                    maxattempts = Integer.parseInt(task.maxattempts);
                                 }
                                 int attempt = 0;
-                                if (_attempt != null) {
-                                    attempt = Integer.parseInt(_attempt);
-                                }
-                                String _requestedStartTime = (String) data.get("requestedStartTime");
-                                long requestedStartTime = 0;
-                                if (_requestedStartTime != null) {
-                                    requestedStartTime = Long.parseLong(_requestedStartTime);
+                                if (task.attempt != null) {
+                                    attempt = Integer.parseInt(task.attempt);
                                 }
-                                String _deadline = (String) task.get("deadline");
                                 long deadline = 0;
-                                if (_deadline != null) {
-                                    deadline = Long.parseLong(_deadline);
+                                if (task.deadline != null) {
+                                    deadline = Long.parseLong(task.deadline);
                                 }
-                                String slot = (String) task.get("slot");
+                                String slot = task.slot;
                                 if (slot != null && slot.trim().isEmpty()) {
                                     slot = null;
                                 }
-                                String codepool = (String) data.get("codePoolId");
-                                if (codepool != null && codepool.trim().isEmpty()) {
-                                    codepool = null;
-                                }
-                                String mode = (String) data.get("mode");
-                                if (mode != null && mode.trim().isEmpty()) {
-                                    mode = null;
-                                }
 
-                                requests.add(new AddTaskRequest(transaction, type, user, parameters, maxattempts, requestedStartTime, deadline, slot, attempt, codepool, mode));
+                                requests.add(new AddTaskRequest(transaction, task.type, task.user, task.parameters, maxattempts, requestedStartTime, deadline, slot, attempt, codepool, mode));
                             }
                             try {
                                 List<SubmitTaskResult> addresults = broker.getClient().submitTasks(requests);
-                                int i = 0;
-                                for (AddTaskRequest addreq : requests) {
-                                    SubmitTaskResult result;
-
-                                    result = addresults.get(i++);
-
-                                    long taskId = result.getTaskId();
-                                    Map<String, Object> resForTask = new HashMap<>();
-                                    resForTask.put("taskId", taskId);
-                                    if (addreq.transaction > 0) {
-                                        resForTask.put("transaction", addreq.transaction);
-                                    }
-                                    resForTask.put("result", result.getOutcome());
-                                    results.add(resForTask);
-                                }
+                                results = new SubmitTasksResultsForClient(requests, addresults);
                             } catch (Exception err) {
                                 // very bad error
                                 LOGGER.log(Level.SEVERE, "error for " + data, err);
@@ -658,6 +893,19 @@ public class HttpAPIImplementation {
                         resultMap.put("ok", error == null && transactionId > 0);
                         break;
                     }
+                    case "waitTasks": {
+                        List<Long> taskIds = new ArrayList<>();
+                        List<Object> _taskIds = (List<Object>) data.get("taskIds");
+                        if (_taskIds != null) {
+                            for (Object id : _taskIds) {
+                                taskIds.add(Long.parseLong(id + ""));
+                            }
+                        }
+                        Object timeout = data.get("timeout");
+                        waitForTasks(broker, taskIds, timeout != null ? timeout + "" : null, resultMap);
+                        resultMap.put("ok", true);
+                        break;
+                    }
                     case "deleteCodePool": {
                         String error = "";
                         String id = (String) data.get("id");
@@ -679,7 +927,7 @@ public class HttpAPIImplementation {
                         String error = "";
                         String id = (String) data.get("id");
                         long ttl = 0;
-                        String codepooldata = (String) data.get("data");
+                        Object codepooldata = data.get("data");
 
                         if (data.containsKey("ttl")) {
                             ttl = Long.parseLong(data.get("ttl") + "");
@@ -692,7 +940,7 @@ public class HttpAPIImplementation {
 
                         CreateCodePoolResult result;
                         try {
-                            result = broker.getClient().createCodePool(new CreateCodePoolRequest(id, System.currentTimeMillis(), ttl, Base64.getDecoder().decode(codepooldata)));
+                            result = broker.getClient().createCodePool(new CreateCodePoolRequest(id, System.currentTimeMillis(), ttl, codepooldata instanceof byte[] ? (byte[]) codepooldata : Base64.getDecoder().decode((String) codepooldata)));
                             resultMap.put("ok", result.ok);
                             resultMap.put("result", result.outcome);
                         } catch (Exception err) {
@@ -714,16 +962,8 @@ public class HttpAPIImplementation {
                 }
             }
 
-            LOGGER.log(Level.FINE, "POST " + data + " -> " + resultMap);
-            String s = MAPPER.writeValueAsString(resultMap);
-            byte[] res = s.getBytes(StandardCharsets.UTF_8);
-
-            resp.setContentLength(res.length);
-
-            resp.setContentType("application/json;charset=utf-8");
-            try (OutputStream out = resp.getOutputStream()) {
-                out.write(res);
-            }
+            LOGGER.log(Level.FINE, "POST {0} -> {1}", new Object[]{data, resultMap});
+            writeResponse(req, resp, resultMap);
         } catch (IOException err) {
             LOGGER.log(Level.FINER, "IO error: " + err, err);
             throw err;
@@ -732,17 +972,4 @@ public class HttpAPIImplementation {
             throw err;
         }
     }
-
-    private static final int COPY_BUFFER_SIZE = 64 * 1024;
-
-    private static long copyStreams(InputStream input, OutputStream output) throws IOException {
-        long count = 0;
-        int n = 0;
-        byte[] buffer = new byte[COPY_BUFFER_SIZE];
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            count += n;
-        }
-        return count;
-    }
 }
@@ -0,0 +1,86 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.clientfacade;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counters of the submissions accepted and rejected by the rate limits
+ *
+ * @author enrico.olivelli
+ */
+public class SubmissionRateLimitsView {
+
+    private Map<String, Counters> users = new HashMap<>();
+    private Map<String, Counters> taskTypes = new HashMap<>();
+
+    public Map<String, Counters> getUsers() {
+        return users;
+    }
+
+    public void setUsers(Map<String, Counters> users) {
+        this.users = users;
+    }
+
+    public Map<String, Counters> getTaskTypes() {
+        return taskTypes;
+    }
+
+    public void setTaskTypes(Map<String, Counters> taskTypes) {
+        this.taskTypes = taskTypes;
+    }
+
+    public static class Counters {
+
+        private long accepted;
+        private long rejected;
+
+        public Counters() {
+        }
+
+        public Counters(long accepted, long rejected) {
+            this.accepted = accepted;
+            this.rejected = rejected;
+        }
+
+        public long getAccepted() {
+            return accepted;
+        }
+
+        public void setAccepted(long accepted) {
+            this.accepted = accepted;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public void setRejected(long rejected) {
+            this.rejected = rejected;
+        }
+
+        @Override
+        public String toString() {
+            return "Counters{" + "accepted=" + accepted + ", rejected=" + rejected + '}';
+        }
+
+    }
+}
@@ -28,10 +28,16 @@ public class SubmitTaskResult {
 
     private final long taskId;
     private final String outcome;
+    private final long retryAfter;
 
     public SubmitTaskResult(long taskId, String outcome) {
+        this(taskId, outcome, 0);
+    }
+
+    public SubmitTaskResult(long taskId, String outcome, long retryAfter) {
         this.taskId = taskId;
         this.outcome = outcome;
+        this.retryAfter = retryAfter;
     }
 
     public long getTaskId() {
@@ -42,9 +48,19 @@ public class SubmitTaskResult {
         return outcome;
     }
 
+    /**
+     * Milliseconds after which a submission rejected by the rate limits can be
+     * retried, 0 if the submission has not been rejected by the rate limits
+     *
+     * @return
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
     @Override
     public String toString() {
-        return "SubmitTaskResult{" + "taskId=" + taskId + ", outcome=" + outcome + '}';
+        return "SubmitTaskResult{" + "taskId=" + taskId + ", outcome=" + outcome + ", retryAfter=" + retryAfter + '}';
     }
 
 }
@@ -0,0 +1,103 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.clientfacade;
+
+/**
+ * Filters for a query over the tasks known by the broker. Null (or
+ * {@link #STATUS_ANY}) fields do not filter anything, string fields are
+ * compared ignoring case. Results are ordered by task id, the afterTaskId
+ * field is the cursor returned by the previous page
+ *
+ * @author enrico.olivelli
+ */
+public class TaskQuery {
+
+    public static final int STATUS_ANY = -1;
+
+    private int status = STATUS_ANY;
+    private String userId;
+    private String taskType;
+    private String workerId;
+    private String slot;
+    private long afterTaskId;
+    private int max = 100;
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getTaskType() {
+        return taskType;
+    }
+
+    public void setTaskType(String taskType) {
+        this.taskType = taskType;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    public void setWorkerId(String workerId) {
+        this.workerId = workerId;
+    }
+
+    public String getSlot() {
+        return slot;
+    }
+
+    public void setSlot(String slot) {
+        this.slot = slot;
+    }
+
+    public long getAfterTaskId() {
+        return afterTaskId;
+    }
+
+    public void setAfterTaskId(long afterTaskId) {
+        this.afterTaskId = afterTaskId;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public void setMax(int max) {
+        this.max = max;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskQuery{" + "status=" + status + ", userId=" + userId + ", taskType=" + taskType + ", workerId=" + workerId + ", slot=" + slot + ", afterTaskId=" + afterTaskId + ", max=" + max + '}';
+    }
+
+}
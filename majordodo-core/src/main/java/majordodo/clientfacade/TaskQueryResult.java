@@ -0,0 +1,58 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.clientfacade;
+
+import java.util.List;
+
+/**
+ * A page of results of a {@link TaskQuery}
+ *
+ * @author enrico.olivelli
+ */
+public class TaskQueryResult {
+
+    private final List<TaskStatusView> tasks;
+    private final long nextCursor;
+
+    public TaskQueryResult(List<TaskStatusView> tasks, long nextCursor) {
+        this.tasks = tasks;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<TaskStatusView> getTasks() {
+        return tasks;
+    }
+
+    /**
+     * Value for {@link TaskQuery#setAfterTaskId(long)} in order to read the
+     * next page, 0 if there are no more tasks
+     *
+     * @return
+     */
+    public long getNextCursor() {
+        return nextCursor;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskQueryResult{" + "tasks=" + tasks.size() + ", nextCursor=" + nextCursor + '}';
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.clientfacade;
+
+import java.util.List;
+
+/**
+ * Result of a wait for the completion of a set of tasks
+ *
+ * @author enrico.olivelli
+ */
+public class TasksCompletionResult {
+
+    private final List<TaskStatusView> completedTasks;
+    private final List<Long> notFoundTaskIds;
+
+    public TasksCompletionResult(List<TaskStatusView> completedTasks, List<Long> notFoundTaskIds) {
+        this.completedTasks = completedTasks;
+        this.notFoundTaskIds = notFoundTaskIds;
+    }
+
+    /**
+     * Tasks in FINISHED or ERROR status
+     *
+     * @return
+     */
+    public List<TaskStatusView> getCompletedTasks() {
+        return completedTasks;
+    }
+
+    /**
+     * Tasks not known by the broker, maybe they have already been purged
+     *
+     * @return
+     */
+    public List<Long> getNotFoundTaskIds() {
+        return notFoundTaskIds;
+    }
+
+    public boolean isEmpty() {
+        return completedTasks.isEmpty() && notFoundTaskIds.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "TasksCompletionResult{" + "completedTasks=" + completedTasks.size() + ", notFoundTaskIds=" + notFoundTaskIds + '}';
+    }
+
+}
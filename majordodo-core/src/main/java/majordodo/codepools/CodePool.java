@@ -19,6 +19,11 @@
  */
 package majordodo.codepools;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import majordodo.client.CodePoolUtils;
+
 /**
  * A pool of Code (JAR files/Java Classes) used for the implementation of Tasks.
  * Code pools are immutable
@@ -31,6 +36,13 @@ public class CodePool {
     private final long creationTimestamp;
     private final byte[] codePoolData;
     private final long ttl;
+    private volatile String hash;
+    private List<CodePoolChunk> chunks;
+
+    /**
+     * Size of the chunks used to send data to workers
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024;
 
     @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "EI_EXPOSE_REP2")
     public CodePool(String id, long creationTimestamp, byte[] codePoolData, long ttl) {
@@ -57,4 +69,36 @@ public class CodePool {
         return ttl;
     }
 
+    /**
+     * Hash of the content of the CodePool, computed on first access
+     *
+     * @return
+     * @see CodePoolUtils#computeCodePoolHash(byte[])
+     */
+    public String getHash() {
+        String _hash = hash;
+        if (_hash == null) {
+            _hash = CodePoolUtils.computeCodePoolHash(codePoolData);
+            hash = _hash;
+        }
+        return _hash;
+    }
+
+    /**
+     * Chunks of the data, computed on first access. Concurrent downloads of
+     * the same CodePool share the same chunks
+     *
+     * @return
+     */
+    public synchronized List<CodePoolChunk> getChunks() {
+        if (chunks == null) {
+            List<CodePoolChunk> res = new ArrayList<>();
+            for (int offset = 0; offset < codePoolData.length; offset += CHUNK_SIZE) {
+                res.add(new CodePoolChunk(codePoolData, offset, Math.min(CHUNK_SIZE, codePoolData.length - offset)));
+            }
+            chunks = Collections.unmodifiableList(res);
+        }
+        return chunks;
+    }
+
 }
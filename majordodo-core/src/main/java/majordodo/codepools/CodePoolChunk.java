@@ -0,0 +1,104 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.codepools;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import majordodo.client.CodePoolUtils;
+
+/**
+ * A slice of the data of a CodePool. Workers download CodePools chunk by
+ * chunk, the compressed form of each chunk is computed only once and it is
+ * shared by all the workers. Chunks which do not shrink are sent straight from
+ * the data of the CodePool
+ *
+ * @author enrico.olivelli
+ */
+public final class CodePoolChunk {
+
+    private static final byte[] NOT_COMPRESSIBLE = new byte[0];
+
+    private final byte[] codePoolData;
+    private final int offset;
+    private final int length;
+    private final String hash;
+    /**
+     * null until the chunk has been compressed, NOT_COMPRESSIBLE if DEFLATE
+     * does not make it smaller
+     */
+    private byte[] compressedData;
+
+    CodePoolChunk(byte[] codePoolData, int offset, int length) {
+        this.codePoolData = codePoolData;
+        this.offset = offset;
+        this.length = length;
+        this.hash = CodePoolUtils.computeCodePoolHash(codePoolData, offset, length);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Data to be sent on the wire. Data is compressed with DEFLATE unless
+     * compression does not make it smaller (JARs are already compressed), in
+     * that case the buffer wraps the slice of the data of the CodePool
+     *
+     * @return
+     * @see #isCompressed()
+     */
+    public ByteBuffer getData() {
+        if (isCompressed()) {
+            return ByteBuffer.wrap(compressedData);
+        } else {
+            return ByteBuffer.wrap(codePoolData, offset, length);
+        }
+    }
+
+    public synchronized boolean isCompressed() {
+        if (compressedData == null) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(codePoolData, offset, length);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished() && out.size() < length) {
+                    int count = deflater.deflate(buffer);
+                    out.write(buffer, 0, count);
+                }
+                if (deflater.finished() && out.size() < length) {
+                    compressedData = out.toByteArray();
+                } else {
+                    compressedData = NOT_COMPRESSIBLE;
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return compressedData != NOT_COMPRESSIBLE;
+    }
+
+}
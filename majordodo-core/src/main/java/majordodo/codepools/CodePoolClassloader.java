@@ -19,54 +19,38 @@
  */
 package majordodo.codepools;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import majordodo.client.CodePoolUtils;
 
 /**
- * Classloader with loads classes from a given CodePool
+ * Classloader with loads classes from a given CodePool. Files are owned by
+ * the {@link CodePoolsCache}
  *
  * @author enrico.olivelli
  */
 public final class CodePoolClassloader extends URLClassLoader {
 
     private static final Logger LOGGER = Logger.getLogger(CodePoolClassloader.class.getName());
-    private final Path directory;
+    private final String codePoolId;
 
-    public CodePoolClassloader(ClassLoader parent, String codePoolId, byte[] data, Path tmpDirectory) throws IOException {
-        super(new URL[0], parent);
-        directory = tmpDirectory.resolve(codePoolId);
-        deleteDirectory(directory);
-        buildCodePoolTmpDirectory(codePoolId, data);
-    }
-
-    private void buildCodePoolTmpDirectory(String codePoolId, byte[] data) throws IOException {
-        LOGGER.log(Level.INFO, "Unzipping codepool data for pool " + codePoolId + " to " + directory.toAbsolutePath());
-        List<URL> unzipCodePoolData = CodePoolUtils.unzipCodePoolData(directory, data);
-        unzipCodePoolData.forEach(this::addURL);
+    public CodePoolClassloader(ClassLoader parent, String codePoolId, List<URL> urls) {
+        super(urls.toArray(new URL[urls.size()]), parent);
+        this.codePoolId = codePoolId;
         LOGGER.log(Level.INFO, "Classpath for " + codePoolId + ": " + Arrays.toString(this.getURLs()));
-
     }
 
-    @Override
-    public void close() throws IOException {
-        deleteDirectory(directory);
+    public String getCodePoolId() {
+        return codePoolId;
     }
 
     private static class FileDeleter extends SimpleFileVisitor<Path> {
@@ -20,63 +20,232 @@
 package majordodo.codepools;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.net.URL;
 import java.nio.file.Path;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.WeakHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import majordodo.worker.WorkerCore;
 
 /**
- * Manager for classloaders
+ * Manager for classloaders. Data of CodePools is kept in a
+ * {@link CodePoolsCache}, so after a restart of the worker the broker only
+ * has to confirm that the local copy is still valid. Classloaders are pinned
+ * while tasks which use them are running, the others can be dropped when the
+ * cache needs space. A classloader is reused only while its hash matches the
+ * one of the CodePool on the broker, a re-created CodePool gets a new one
  *
  * @author enrico.olivelli
  */
 public class CodePoolClassloadersManager {
 
-    private final Path codeTemporaryDirectory;
-    private final WeakHashMap<String, CodePoolClassloader> classloaders = new WeakHashMap<>();
+    private static final Logger LOGGER = Logger.getLogger(CodePoolClassloadersManager.class.getName());
+
+    private final CodePoolsCache cache;
+    private final Map<String, LoadedCodePool> classloaders = new HashMap<>();
+    private final Map<Long, LoadedCodePool> pinned = new HashMap<>();
     private final ReentrantLock lock = new ReentrantLock();
     private final WorkerCore parent;
 
+    private static final class LoadedCodePool {
+
+        private final String hash;
+        private final CodePoolClassloader classloader;
+        private int refCount;
+        private boolean replaced;
+
+        private LoadedCodePool(String hash, CodePoolClassloader classloader) {
+            this.hash = hash;
+            this.classloader = classloader;
+        }
+    }
+
     public CodePoolClassloadersManager(Path codeTemporaryDirectory, WorkerCore parent) throws IOException {
-        this.codeTemporaryDirectory = codeTemporaryDirectory;
-        Files.createDirectories(codeTemporaryDirectory);
+        this(codeTemporaryDirectory, 0, parent);
+    }
+
+    /**
+     *
+     * @param codeTemporaryDirectory
+     * @param maxCacheSize maximum size of the local cache of CodePools, 0
+     * means no limit
+     * @param parent
+     * @throws IOException
+     */
+    public CodePoolClassloadersManager(Path codeTemporaryDirectory, long maxCacheSize, WorkerCore parent) throws IOException {
+        this.cache = new CodePoolsCache(codeTemporaryDirectory.resolve("cache"), maxCacheSize);
         this.parent = parent;
     }
 
     public ClassLoader getCodePoolClassloader(String codePoolId) throws Exception {
         lock.lock();
         try {
-            CodePoolClassloader cl = classloaders.get(codePoolId);
-            if (cl != null) {
-                return cl;
+            return load(codePoolId, null).classloader;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the classloader for a task. The classloader will not be
+     * discarded until {@link #releaseCodePoolClassloader(long)} is called for
+     * the same task
+     *
+     * @param taskId
+     * @param codePoolId
+     * @return
+     * @throws Exception
+     */
+    public ClassLoader acquireCodePoolClassloader(long taskId, String codePoolId) throws Exception {
+        return acquireCodePoolClassloader(taskId, codePoolId, null);
+    }
+
+    /**
+     * Returns the classloader for a task. The classloader will not be
+     * discarded until {@link #releaseCodePoolClassloader(long)} is called for
+     * the same task
+     *
+     * @param taskId
+     * @param codePoolId
+     * @param codePoolHash hash of the CodePool as sent by the broker together
+     * with the task, if null the broker is asked again for the current version
+     * @return
+     * @throws Exception
+     */
+    public ClassLoader acquireCodePoolClassloader(long taskId, String codePoolId, String codePoolHash) throws Exception {
+        lock.lock();
+        try {
+            LoadedCodePool loaded = load(codePoolId, codePoolHash);
+            if (pinned.put(taskId, loaded) == null) {
+                loaded.refCount++;
             }
-            byte[] data = parent.downloadCodePool(codePoolId);
-            try {
-                cl = AccessController.doPrivileged((PrivilegedExceptionAction<CodePoolClassloader>) ()
-                    -> new CodePoolClassloader(Thread.currentThread().getContextClassLoader(),
-                        codePoolId, data, codeTemporaryDirectory));
-                classloaders.put(codePoolId, cl);
-            } catch (PrivilegedActionException err) {
-                throw err.getException();
+            return loaded.classloader;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void releaseCodePoolClassloader(long taskId) {
+        lock.lock();
+        try {
+            LoadedCodePool loaded = pinned.remove(taskId);
+            if (loaded != null) {
+                loaded.refCount--;
+                if (loaded.refCount == 0 && loaded.replaced) {
+                    closeClassloader(loaded.classloader);
+                }
             }
-            return cl;
         } finally {
             lock.unlock();
         }
     }
 
+    private LoadedCodePool load(String codePoolId, String expectedHash) throws Exception {
+        LoadedCodePool loaded = classloaders.get(codePoolId);
+        if (loaded != null && loaded.hash.equals(expectedHash)) {
+            return loaded;
+        }
+        List<URL> urls = null;
+        String hash = null;
+        byte[] data = null;
+        if (expectedHash != null) {
+            // the CodePool was re-created with some content already known by the cache
+            urls = cache.open(codePoolId, expectedHash);
+            hash = expectedHash;
+        }
+        if (urls == null) {
+            String knownHash = loaded != null ? loaded.hash : cache.getHash(codePoolId);
+            data = parent.downloadCodePool(codePoolId, knownHash);
+            if (data == null && loaded != null) {
+                return loaded;
+            }
+            hash = knownHash;
+        }
+        if (loaded != null) {
+            LOGGER.log(Level.INFO, "codepool {0} changed, hash {1} is no more valid", new Object[]{codePoolId, loaded.hash});
+            classloaders.remove(codePoolId);
+            loaded.replaced = true;
+            if (loaded.refCount == 0) {
+                closeClassloader(loaded.classloader);
+            }
+        }
+        if (urls == null && data == null) {
+            urls = cache.open(codePoolId, hash);
+            if (urls == null) {
+                // local copy is corrupted
+                data = parent.downloadCodePool(codePoolId, null);
+            }
+        }
+        if (urls == null) {
+            hash = cache.store(codePoolId, data);
+            urls = cache.open(codePoolId, hash);
+            if (urls == null) {
+                throw new IOException("cannot store data for codepool " + codePoolId);
+            }
+        }
+        LOGGER.log(Level.INFO, "codepool {0} loaded, hash {1}, cached {2}", new Object[]{codePoolId, hash, data == null});
+        List<URL> _urls = urls;
+        CodePoolClassloader cl;
+        try {
+            cl = AccessController.doPrivileged((PrivilegedExceptionAction<CodePoolClassloader>) ()
+                -> new CodePoolClassloader(Thread.currentThread().getContextClassLoader(),
+                    codePoolId, _urls));
+        } catch (PrivilegedActionException err) {
+            throw err.getException();
+        }
+        loaded = new LoadedCodePool(hash, cl);
+        classloaders.put(codePoolId, loaded);
+        // the caller has not pinned the new classloader yet
+        evict(hash);
+        return loaded;
+    }
+
+    private void evict(String justLoadedHash) throws IOException {
+        Set<String> inUse = new HashSet<>();
+        inUse.add(justLoadedHash);
+        for (LoadedCodePool loaded : pinned.values()) {
+            inUse.add(loaded.hash);
+        }
+        List<CodePoolClassloader> dropped = new ArrayList<>();
+        cache.evict(inUse, (String hash) -> {
+            for (Iterator<LoadedCodePool> it = classloaders.values().iterator(); it.hasNext();) {
+                LoadedCodePool loaded = it.next();
+                if (loaded.hash.equals(hash)) {
+                    it.remove();
+                    dropped.add(loaded.classloader);
+                }
+            }
+        });
+        for (CodePoolClassloader cl : dropped) {
+            closeClassloader(cl);
+        }
+    }
+
+    private static void closeClassloader(CodePoolClassloader cl) {
+        try {
+            cl.close();
+        } catch (IOException err) {
+            LOGGER.log(Level.SEVERE, "cannot close classloader for codepool " + cl.getCodePoolId(), err);
+        }
+    }
+
     public void close() {
-        List<CodePoolClassloader> loaders;
+        List<CodePoolClassloader> loaders = new ArrayList<>();
         lock.lock();
         try {
-            loaders = new ArrayList<>(classloaders.values());
+            classloaders.values().forEach(l -> loaders.add(l.classloader));
             classloaders.clear();
+            pinned.clear();
         } finally {
             lock.unlock();
         }
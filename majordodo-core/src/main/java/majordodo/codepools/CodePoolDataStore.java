@@ -0,0 +1,105 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.codepools;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import majordodo.client.CodePoolUtils;
+
+/**
+ * Stores the data of CodePools next to the snapshots of the broker. Each file
+ * is named by the hash of its content, so that a snapshot only references the
+ * data and data which did not change is never written again
+ *
+ * @author enrico.olivelli
+ */
+public class CodePoolDataStore {
+
+    private static final Logger LOGGER = Logger.getLogger(CodePoolDataStore.class.getName());
+    private static final String EXTENSION = ".codepool";
+
+    private final Path directory;
+
+    public CodePoolDataStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Stores data, if not already present
+     *
+     * @param codePool
+     * @return the hash of the data
+     * @throws IOException
+     */
+    public String write(CodePool codePool) throws IOException {
+        String hash = codePool.getHash();
+        Path file = directory.resolve(hash + EXTENSION);
+        if (!Files.isRegularFile(file)) {
+            Files.createDirectories(directory);
+            Path tmpFile = directory.resolve(hash + EXTENSION + ".tmp");
+            Files.write(tmpFile, codePool.getCodePoolData());
+            Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return hash;
+    }
+
+    public byte[] read(String hash) throws IOException {
+        byte[] data = Files.readAllBytes(directory.resolve(hash + EXTENSION));
+        if (!hash.equals(CodePoolUtils.computeCodePoolHash(data))) {
+            throw new IOException("corrupted codepool data " + hash + " in " + directory);
+        }
+        return data;
+    }
+
+    /**
+     * Deletes data which is not referenced any more
+     *
+     * @param codePools CodePools referenced by the latest snapshot
+     * @throws IOException
+     */
+    public void retainOnly(Collection<CodePool> codePools) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        Set<String> hashes = new HashSet<>();
+        for (CodePool codePool : codePools) {
+            hashes.add(codePool.getHash());
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String filename = file.getFileName().toString();
+                if (!filename.endsWith(EXTENSION)
+                    || !hashes.contains(filename.substring(0, filename.length() - EXTENSION.length()))) {
+                    LOGGER.log(Level.INFO, "deleting unused codepool data {0}", file);
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.codepools;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import majordodo.client.CodePoolUtils;
+
+/**
+ * Cache of the data of CodePools on the local disk of a worker. Data is stored
+ * by content hash, so it survives restarts of the worker and it is shared by
+ * CodePools with the same content. The least recently used entries are
+ * evicted when the cache grows over its maximum size.
+ * <p>
+ * Layout of the directory:
+ * <ul>
+ * <li>&lt;hash&gt;/ : the original data (source.zip) and the unzipped files
+ * <li>&lt;hash&gt;.lastused : written when the entry is complete, its
+ * modification time is the time of last use
+ * <li>codepools.properties : last known hash for each CodePool id
+ * </ul>
+ * This class is not thread safe.
+ *
+ * @author enrico.olivelli
+ */
+public class CodePoolsCache {
+
+    private static final Logger LOGGER = Logger.getLogger(CodePoolsCache.class.getName());
+    private static final String SOURCE_FILE = "source.zip";
+    private static final String LASTUSED_SUFFIX = ".lastused";
+    private static final String INDEX_FILE = "codepools.properties";
+
+    private final Path directory;
+    private final long maxSize;
+    private final Properties index = new Properties();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long totalSize;
+
+    private static final class Entry {
+
+        private final String hash;
+        private final long size;
+        private long lastUsed;
+        private List<URL> urls;
+
+        private Entry(String hash, long size, long lastUsed) {
+            this.hash = hash;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     *
+     * @param directory
+     * @param maxSize maximum size in bytes, 0 means no limit
+     * @throws IOException
+     */
+    public CodePoolsCache(Path directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory);
+        load();
+    }
+
+    private void load() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String filename = file.getFileName().toString();
+                if (Files.isDirectory(file)) {
+                    Path lastUsed = directory.resolve(filename + LASTUSED_SUFFIX);
+                    if (Files.isRegularFile(lastUsed)) {
+                        Entry entry = new Entry(filename, directorySize(file), Files.getLastModifiedTime(lastUsed).toMillis());
+                        entries.put(filename, entry);
+                        totalSize += entry.size;
+                    } else {
+                        LOGGER.log(Level.INFO, "dropping incomplete codepool data {0}", file);
+                        CodePoolClassloader.deleteDirectory(file);
+                    }
+                } else if (filename.endsWith(LASTUSED_SUFFIX)
+                    && !Files.isDirectory(directory.resolve(filename.substring(0, filename.length() - LASTUSED_SUFFIX.length())))) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Path indexFile = directory.resolve(INDEX_FILE);
+        if (Files.isRegularFile(indexFile)) {
+            try (InputStream in = Files.newInputStream(indexFile)) {
+                index.load(in);
+            }
+        }
+        LOGGER.log(Level.INFO, "codepools cache {0}: {1} entries, {2} bytes", new Object[]{directory, entries.size(), totalSize});
+    }
+
+    /**
+     * Returns the hash of the version of the given CodePool which was last
+     * stored in the cache
+     *
+     * @param codePoolId
+     * @return null if there is no data for the CodePool
+     */
+    public String getHash(String codePoolId) {
+        String hash = index.getProperty(codePoolId);
+        if (hash == null || !entries.containsKey(hash)) {
+            return null;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the files of the given version of a CodePool. The content of the
+     * entry is verified on the first access after the boot of the worker
+     *
+     * @param codePoolId
+     * @param hash
+     * @return null if the data is not in the cache or it is corrupted
+     * @throws IOException
+     */
+    public List<URL> open(String codePoolId, String hash) throws IOException {
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.urls == null) {
+            List<URL> urls = verify(entry);
+            if (urls == null) {
+                LOGGER.log(Level.SEVERE, "corrupted codepool data {0} for codepool {1}", new Object[]{hash, codePoolId});
+                remove(entry);
+                return null;
+            }
+            entry.urls = urls;
+        }
+        touch(entry);
+        if (!hash.equals(index.getProperty(codePoolId))) {
+            index.setProperty(codePoolId, hash);
+            saveIndex();
+        }
+        return entry.urls;
+    }
+
+    /**
+     * Stores the data of a CodePool
+     *
+     * @param codePoolId
+     * @param data
+     * @return the hash of the data
+     * @throws IOException
+     */
+    public String store(String codePoolId, byte[] data) throws IOException {
+        String hash = CodePoolUtils.computeCodePoolHash(data);
+        if (!entries.containsKey(hash)) {
+            Path entryDirectory = directory.resolve(hash);
+            CodePoolClassloader.deleteDirectory(entryDirectory);
+            List<URL> urls = CodePoolUtils.unzipCodePoolData(entryDirectory, data);
+            Entry entry = new Entry(hash, directorySize(entryDirectory), System.currentTimeMillis());
+            entry.urls = urls;
+            // the entry is complete only after this file has been written
+            Files.write(directory.resolve(hash + LASTUSED_SUFFIX), new byte[0]);
+            entries.put(hash, entry);
+            totalSize += entry.size;
+        }
+        index.setProperty(codePoolId, hash);
+        saveIndex();
+        return hash;
+    }
+
+    /**
+     * Evicts the least recently used entries, until the size of the cache is
+     * under the limit
+     *
+     * @param inUse hashes of the entries which cannot be evicted
+     * @param beforeEviction called for each entry before the deletion of its
+     * files
+     * @return the number of evicted entries
+     * @throws IOException
+     */
+    public int evict(Set<String> inUse, Consumer<String> beforeEviction) throws IOException {
+        if (maxSize <= 0 || totalSize <= maxSize) {
+            return 0;
+        }
+        List<Entry> candidates = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!inUse.contains(entry.hash)) {
+                candidates.add(entry);
+            }
+        }
+        Collections.sort(candidates, (Entry a, Entry b) -> Long.compare(a.lastUsed, b.lastUsed));
+        int count = 0;
+        for (Entry entry : candidates) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            LOGGER.log(Level.INFO, "evicting codepool data {0}, {1} bytes", new Object[]{entry.hash, entry.size});
+            beforeEviction.accept(entry.hash);
+            remove(entry);
+            count++;
+        }
+        return count;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    private void remove(Entry entry) throws IOException {
+        entries.remove(entry.hash);
+        totalSize -= entry.size;
+        Files.deleteIfExists(directory.resolve(entry.hash + LASTUSED_SUFFIX));
+        CodePoolClassloader.deleteDirectory(directory.resolve(entry.hash));
+        boolean indexChanged = false;
+        for (Enumeration<?> e = index.propertyNames(); e.hasMoreElements();) {
+            String codePoolId = (String) e.nextElement();
+            if (entry.hash.equals(index.getProperty(codePoolId))) {
+                index.remove(codePoolId);
+                indexChanged = true;
+            }
+        }
+        if (indexChanged) {
+            saveIndex();
+        }
+    }
+
+    private void touch(Entry entry) throws IOException {
+        entry.lastUsed = System.currentTimeMillis();
+        Files.setLastModifiedTime(directory.resolve(entry.hash + LASTUSED_SUFFIX), FileTime.fromMillis(entry.lastUsed));
+    }
+
+    private List<URL> verify(Entry entry) throws IOException {
+        Path entryDirectory = directory.resolve(entry.hash);
+        Path source = entryDirectory.resolve(SOURCE_FILE);
+        if (!Files.isRegularFile(source)) {
+            return null;
+        }
+        byte[] data = Files.readAllBytes(source);
+        if (!entry.hash.equals(CodePoolUtils.computeCodePoolHash(data))) {
+            return null;
+        }
+        List<URL> urls = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(data))) {
+            ZipEntry zipEntry = zip.getNextEntry();
+            while (zipEntry != null) {
+                if (!zipEntry.isDirectory()) {
+                    Path file = entryDirectory.resolve(zipEntry.getName());
+                    if (!Files.isRegularFile(file)) {
+                        return null;
+                    }
+                    urls.add(file.toUri().toURL());
+                }
+                zipEntry = zip.getNextEntry();
+            }
+        }
+        return urls;
+    }
+
+    private void saveIndex() throws IOException {
+        Path indexFile = directory.resolve(INDEX_FILE);
+        Path tmpFile = directory.resolve(INDEX_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmpFile)) {
+            index.store(out, "last known hash for each codepool");
+        }
+        Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        long[] size = new long[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                size[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+
+}
@@ -52,6 +52,7 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import majordodo.codepools.CodePoolDataStore;
 import majordodo.network.BrokerHostData;
 import majordodo.network.BrokerNotAvailableException;
 import majordodo.network.BrokerRejectedConnectionException;
@@ -97,6 +98,7 @@ public class ReplicatedCommitLog extends StatusChangesLog {
     private long currentLedgerId = 0;
     private long lastSequenceNumber = -1;
     private Path snapshotsDirectory;
+    private CodePoolDataStore codePoolDataStore;
     private LedgersInfo actualLedgersList;
     // these are expected to be configurable at runtime from the EmbeddedBroker
     private volatile int ensembleSize = 1;
@@ -433,6 +435,7 @@ public class ReplicatedCommitLog extends StatusChangesLog {
             this.zKClusterManager.waitForConnection();
             this.bookKeeper = new BookKeeper(config, zKClusterManager.getZooKeeper());
             this.snapshotsDirectory = snapshotsDirectory;
+            this.codePoolDataStore = new CodePoolDataStore(snapshotsDirectory.resolve("codepools"));
             this.zKClusterManager.start();
         } catch (Exception t) {
             close();
@@ -718,6 +721,11 @@ public class ReplicatedCommitLog extends StatusChangesLog {
             Path snapshotfilename = writeSnapshotOnDisk(snapshotData);
 
             deleteOldSnapshots(snapshotfilename);
+            try {
+                codePoolDataStore.retainOnly(snapshotData.getCodePools());
+            } catch (IOException err) {
+                throw new LogNotAvailableException(err);
+            }
         } finally {
             snapshotLock.unlock();
         }
@@ -764,7 +772,7 @@ public class ReplicatedCommitLog extends StatusChangesLog {
         try (OutputStream out = Files.newOutputStream(snapshotfilename_tmp);
             BufferedOutputStream bout = new BufferedOutputStream(out, 64 * 1024);
             GZIPOutputStream zout = new GZIPOutputStream(bout)) {
-            BrokerStatusSnapshot.serializeSnapshot(snapshotData, zout);
+            BrokerStatusSnapshot.serializeSnapshot(snapshotData, zout, codePoolDataStore);
         } catch (IOException err) {
             throw new LogNotAvailableException(err);
         }
@@ -899,7 +907,7 @@ public class ReplicatedCommitLog extends StatusChangesLog {
             try (InputStream in = Files.newInputStream(snapshotfilename);
                 BufferedInputStream bin = new BufferedInputStream(in);
                 GZIPInputStream gzip = new GZIPInputStream(bin)) {
-                BrokerStatusSnapshot result = BrokerStatusSnapshot.deserializeSnapshot(gzip);
+                BrokerStatusSnapshot result = BrokerStatusSnapshot.deserializeSnapshot(gzip, codePoolDataStore);
                 currentLedgerId = result.getActualLogSequenceNumber().ledgerId;
 
                 LOGGER.log(Level.INFO,
@@ -32,8 +32,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -60,7 +58,15 @@ import majordodo.utils.Version;
  */
 public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, BrokerFailureListener {
 
+    /**
+     * Max number of delayed tasks resumed with a single batch of edits
+     */
     public static final int MAX_SIMULTANEOUS_RESUMED_TASKS = 1000;
+    /**
+     * Period of the noop and of the external process check, the life cycle
+     * can wake up more often in order to resume delayed tasks
+     */
+    private static final long MAX_LIFE_CYCLE_WAIT = 10000;
 
     private static final Logger LOGGER = Logger.getLogger(Broker.class.getName());
     private String brokerId = UUID.randomUUID().toString();
@@ -68,6 +74,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
     private Runnable brokerDiedCallback;
     private AuthenticationManager authenticationManager;
     private GlobalResourceLimitsConfiguration globalResourceLimitsConfiguration = new NoLimitsGlobalResourceLimitsConfiguration();
+    private volatile SubmissionRateLimitsConfiguration submissionRateLimitsConfiguration = new MapSubmissionRateLimitsConfiguration();
+    private final SubmissionRateLimiter submissionRateLimiter = new SubmissionRateLimiter(this::getSubmissionRateLimitsConfiguration);
 
     public AuthenticationManager getAuthenticationManager() {
         return authenticationManager;
@@ -85,6 +93,24 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         this.globalResourceLimitsConfiguration = globalResourceLimitsConfiguration;
     }
 
+    public SubmissionRateLimitsConfiguration getSubmissionRateLimitsConfiguration() {
+        return submissionRateLimitsConfiguration;
+    }
+
+    /**
+     * Sets the limits on the rate of submission of tasks, this can be called
+     * at any time
+     *
+     * @param submissionRateLimitsConfiguration
+     */
+    public void setSubmissionRateLimitsConfiguration(SubmissionRateLimitsConfiguration submissionRateLimitsConfiguration) {
+        this.submissionRateLimitsConfiguration = submissionRateLimitsConfiguration;
+    }
+
+    public SubmissionRateLimiter getSubmissionRateLimiter() {
+        return submissionRateLimiter;
+    }
+
     public Callable<Void> getExternalProcessChecker() {
         return externalProcessChecker;
     }
@@ -123,7 +149,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
     private final Workers workers;
     public final TasksHeap tasksHeap;
-    private final DelayQueue<Task> delayedTasksQueue = new DelayQueue<>();
+    private final DelayedTasksQueue delayedTasksQueue = new DelayedTasksQueue();
     private final BrokerStatus brokerStatus;
     private final StatusChangesLog log;
     private final ResourceUsageCounters globalResourceUsageCounters;
@@ -131,7 +157,6 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
     private final ClientFacade client;
     private volatile boolean started;
     private volatile boolean stopped;
-    private final CountDownLatch stopperLatch = new CountDownLatch(1);
 
     private final BrokerConfiguration configuration;
     private final CheckpointScheduler checkpointScheduler;
@@ -317,18 +342,23 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                     checkpoint();
                 }
                 try {
+                    long lastHousekeeping = 0;
                     while (!stopped && !failed) {
-                        if (!suspendLogFlush) {
+                        long now = System.currentTimeMillis();
+                        boolean housekeeping = now - lastHousekeeping >= MAX_LIFE_CYCLE_WAIT;
+                        if (housekeeping && !suspendLogFlush) {
                             // write something to log, this simple action detects fencing and forces flushes 
                             // to other follower brokers
                             noop();
                         }
                         resumeDelayedTasks();
-                        if (externalProcessChecker != null) {
-                            externalProcessChecker.call();
+                        if (housekeeping) {
+                            if (externalProcessChecker != null) {
+                                externalProcessChecker.call();
+                            }
+                            lastHousekeeping = now;
                         }
-                        stopperLatch.await(10, TimeUnit.SECONDS
-                        );
+                        delayedTasksQueue.awaitNextStartTime(lastHousekeeping + MAX_LIFE_CYCLE_WAIT - System.currentTimeMillis());
                     }
                 } catch (InterruptedException exit) {
                 }
@@ -342,24 +372,26 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
     };
 
     public void resumeDelayedTasks() throws LogNotAvailableException {
-        List<Task> tasksToResume = new ArrayList<>();
-        List<StatusEdit> edits = new ArrayList<>();
-        delayedTasksQueue.drainTo(tasksToResume, MAX_SIMULTANEOUS_RESUMED_TASKS);
-        for (Task task : tasksToResume) {
-            edits.add(StatusEdit.TASK_STATUS_CHANGE(task.getTaskId(), null, Task.STATUS_WAITING, null));
-        }
-        List<BrokerStatus.ModificationResult> results = brokerStatus.applyModifications(edits);
-        int i = 0;
-        for (BrokerStatus.ModificationResult mod : results) {
-            Task task = tasksToResume.get(i++);
-            if (mod.error == null) {
-                LOGGER.log(Level.FINER, "task {0} resumed", task.getTaskId());
-            } else {
-                //LOGGER.log(Level.SEVERE, String.format("fail to resume task %s (%s)", task.getTaskId(), mod.error));
-                throw new IllegalStateException(String.format("fail to resume task %s (%s)", task.getTaskId(), mod.error));
+        List<Task> expired = delayedTasksQueue.pollExpired(System.currentTimeMillis());
+        for (int start = 0; start < expired.size(); start += MAX_SIMULTANEOUS_RESUMED_TASKS) {
+            List<Task> tasksToResume = expired.subList(start, Math.min(expired.size(), start + MAX_SIMULTANEOUS_RESUMED_TASKS));
+            List<StatusEdit> edits = new ArrayList<>(tasksToResume.size());
+            for (Task task : tasksToResume) {
+                edits.add(StatusEdit.TASK_STATUS_CHANGE(task.getTaskId(), null, Task.STATUS_WAITING, null));
+            }
+            List<BrokerStatus.ModificationResult> results = brokerStatus.applyModifications(edits);
+            int i = 0;
+            for (BrokerStatus.ModificationResult mod : results) {
+                Task task = tasksToResume.get(i++);
+                if (mod.error == null) {
+                    LOGGER.log(Level.FINER, "task {0} resumed", task.getTaskId());
+                } else {
+                    //LOGGER.log(Level.SEVERE, String.format("fail to resume task %s (%s)", task.getTaskId(), mod.error));
+                    throw new IllegalStateException(String.format("fail to resume task %s (%s)", task.getTaskId(), mod.error));
+                }
+                int groupId = tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
+                workers.taskAvailable(groupId, task.getType());
             }
-            tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
-
         }
     }
 
@@ -367,7 +399,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         if (stopped) {
             return;
         }
-        stopperLatch.countDown();
+        delayedTasksQueue.stopWaiting();
         stopped = true;
         try {
             checkpoint(false);
@@ -499,6 +531,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
     public void recomputeGroups() {
         try {
             tasksHeap.recomputeGroups();
+            workers.wakeUp();
         } catch (Throwable t) {
             LOGGER.log(Level.SEVERE, "error during group mapping recomputation", t);
         }
@@ -541,7 +574,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         for (Task task : preparedtasks) {
             switch (task.getStatus()) {
                 case Task.STATUS_WAITING:
-                    this.tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
+                    int groupId = this.tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
+                    workers.taskAvailable(groupId, task.getType());
                     break;
                 case Task.STATUS_DELAYED:
                     this.delayedTasksQueue.add(task);
@@ -592,6 +626,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         res.setDelayedTasks(brokerStatus.getStats().getDelayedTasks());
         res.setErrorTasks(brokerStatus.getStats().getErrorTasks());
         res.setFinishedTasks(brokerStatus.getStats().getFinishedTasks());
+        res.setDelayedTasksQueueSize(delayedTasksQueue.size());
+        res.setDelayedTasksQueueEarliestStartTime(delayedTasksQueue.getEarliestStartTime());
         return res;
     }
 
@@ -723,7 +759,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
             if (taskId > 0 && result.error == null && newTask != null) {
                 switch (newTask.getStatus()) {
                     case Task.STATUS_WAITING:
-                        this.tasksHeap.insertTask(taskId, request.taskType, request.userId);
+                        int groupId = this.tasksHeap.insertTask(taskId, request.taskType, request.userId);
+                        workers.taskAvailable(groupId, request.taskType);
                         break;
                     case Task.STATUS_DELAYED:
                         this.delayedTasksQueue.add(newTask);
@@ -767,7 +804,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                 if (taskId > 0 && result.error == null && newTask != null) {
                     switch (newTask.getStatus()) {
                         case Task.STATUS_WAITING:
-                            this.tasksHeap.insertTask(taskId, addTask.taskType, addTask.userid);
+                            int groupId = this.tasksHeap.insertTask(taskId, addTask.taskType, addTask.userid);
+                            workers.taskAvailable(groupId, addTask.taskType);
                             break;
                         case Task.STATUS_DELAYED:
                             this.delayedTasksQueue.add(newTask);
@@ -871,6 +909,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
         List<BrokerStatus.ModificationResult> modifications = brokerStatus.applyModifications(edits);
 
+        boolean resourcesReleased = false;
         for (int i = 0; i < edits.size(); i++) {
             if (modifications.get(i).sequenceNumber != null) {
                 StatusEdit edit = edits.get(i);
@@ -878,13 +917,23 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                 if (resourceIds != null) {
                     workers.getWorkerManager(workerId).releaseResources(resourceIds);
                     globalResourceUsageCounters.releaseResources(resourceIds);
+                    resourcesReleased = true;
                 }
             }
         }
 
         for (Task task : toSchedule) {
             LOGGER.log(Level.INFO, "Schedule task for recovery {0} {1} {2} ({3})", new Object[]{task.getTaskId(), task.getType(), task.getUserId(), task.getResult() + ""});
-            this.tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
+            int groupId = this.tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
+            workers.taskAvailable(groupId, task.getType());
+        }
+
+        if (resourcesReleased) {
+            // resources are shared among workers
+            workers.wakeUp();
+        } else {
+            // the worker has new free slots
+            workers.wakeUp(workers.getWorkerManager(workerId));
         }
 
     }
@@ -177,6 +177,21 @@ public class BrokerConfiguration {
         this.workersThreadpoolSize = workersThreadpoolSize;
     }
 
+    /**
+     * Period of the full scan of the workers. Tasks are assigned as soon as a
+     * task is submitted or a worker has free slots, the full scan is needed
+     * only to detect dead workers and as a fallback. Defaults to 2 seconds
+     */
+    private int workersScanPeriod = 2000;
+
+    public int getWorkersScanPeriod() {
+        return workersScanPeriod;
+    }
+
+    public void setWorkersScanPeriod(int workersScanPeriod) {
+        this.workersScanPeriod = workersScanPeriod;
+    }
+
     public void read(Map<String, Object> properties) {
         ReflectionUtils.apply(properties, this);
     }
@@ -32,11 +32,23 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 import majordodo.codepools.CodePool;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.clientfacade.AuthenticatedUser;
+import majordodo.clientfacade.BrokerStatusView;
+import majordodo.clientfacade.CodePoolView;
+import majordodo.clientfacade.CreateCodePoolRequest;
+import majordodo.clientfacade.CreateCodePoolResult;
+import majordodo.clientfacade.SubmitTaskResult;
+import majordodo.clientfacade.TaskStatusView;
+import majordodo.clientfacade.TasksCompletionResult;
+import majordodo.clientfacade.UserRole;
+import majordodo.codepools.CodePoolChunk;
 import majordodo.network.ConnectionRequestInfo;
 import majordodo.security.sasl.SaslNettyServer;
 
@@ -62,7 +74,18 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
     private boolean requireAuthentication;
     private volatile boolean isWorker = false;
     private volatile boolean isBroker = false;
+    private volatile boolean isClient = false;
     private volatile String username;
+    /**
+     * User logged in on a client connection
+     */
+    private volatile AuthenticatedUser clientUser;
+    private volatile boolean multiTaskAssignment;
+    /**
+     * Tasks whose completion has to be pushed to the client
+     */
+    private final Set<Long> subscribedTasks = ConcurrentHashMap.newKeySet();
+    private final TaskCompletionListener completionListener = this::subscribedTaskCompleted;
     private static final AtomicLong SESSIONID = new AtomicLong();
 
     public BrokerSideConnection() {
@@ -208,15 +231,30 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
                     case ConnectionRequestInfo.CLIENT_TYPE_BROKER:
                         isBroker = true;
                         break;
+                    case ConnectionRequestInfo.CLIENT_TYPE_CLIENT:
+                        isClient = true;
+                        break;
                     default:
                         answerConnectionNotAcceptedAndClose(message, new Exception("invalid clientType " + clientType));
                         return;
                 }
 
-                String sharedSecret = (String) message.parameters.get("secret");
-                if (sharedSecret == null || !sharedSecret.equals(broker.getConfiguration().getSharedSecret())) {
-                    answerConnectionNotAcceptedAndClose(message, new Exception("invalid network secret"));
-                    return;
+                if (isClient) {
+                    // client applications log in as users of the broker, like on the HTTP API
+                    AuthenticatedUser user = broker.getClient().login((String) message.parameters.get("username"), (String) message.parameters.get("password"));
+                    if (user == null) {
+                        answerConnectionNotAcceptedAndClose(message, new Exception("invalid username or password"));
+                        return;
+                    }
+                    clientUser = user;
+                    username = user.getUserId();
+                    authenticated = true;
+                } else {
+                    String sharedSecret = (String) message.parameters.get("secret");
+                    if (sharedSecret == null || !sharedSecret.equals(broker.getConfiguration().getSharedSecret())) {
+                        answerConnectionNotAcceptedAndClose(message, new Exception("invalid network secret"));
+                        return;
+                    }
                 }
                 if (isWorker && workerProcessId != null && !message.workerProcessId.equals(workerProcessId)) {
                     // worker process is not the same as the one we expect, send a "die" message and close the channel
@@ -245,8 +283,21 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
                 Set<Integer> excludedGroups = (Set<Integer>) message.parameters.getOrDefault("excludedGroups", Collections.emptySet());
                 Map<String, Integer> resourceLimits = (Map<String, Integer>) message.parameters.getOrDefault("resources", Collections.emptyMap());
                 int maxThreadPerUserPerTaskTypePercent = (Integer) message.parameters.getOrDefault("maxThreadPerUserPerTaskTypePercent", 0);
-
+                int prefetch = (Integer) message.parameters.getOrDefault("prefetch", 0);
+                // legacy peers do not declare any codec
+                int codecVersion = Math.min((Integer) message.parameters.getOrDefault("codecVersion", Message.CODEC_VERSION_LEGACY), Message.CODEC_VERSION_CURRENT);
+
+                if (isClient) {
+                    // clients are not tracked by id, many connections may share the same id
+                    this.location = (String) message.parameters.get("location");
+                    LOGGER.log(Level.INFO, "registering client connection {0}, clientId:{1}, location={2}", new Object[]{connectionId, _clientId, location});
+                    channel.setName(_clientId);
+                    channel.setRemoteHost(location);
+                    answerConnectionAccepted(message, codecVersion);
+                    break;
+                }
                 this.clientId = _clientId;
+                this.multiTaskAssignment = (Integer) message.parameters.getOrDefault("multiTaskAssignment", 0) > 0;
                 this.location = (String) message.parameters.get("location");
                 this.workerProcessId = (String) message.parameters.get("processId");
                 if (isWorker) {
@@ -276,10 +327,11 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
                 broker.getAcceptor().connectionAccepted(this);
                 if (isWorker) {
                     this.manager = broker.getWorkers().getWorkerManager(clientId);
-                    manager.applyConfiguration(maxThreads, maxThreadsByTaskType, groups, excludedGroups, resourceLimits, maxThreadPerUserPerTaskTypePercent);
+                    manager.applyConfiguration(maxThreads, maxThreadsByTaskType, groups, excludedGroups, resourceLimits, maxThreadPerUserPerTaskTypePercent, prefetch);
                     manager.activateConnection(this);
+                    broker.getWorkers().wakeUp(manager);
                 }
-                answerConnectionAccepted(message);
+                answerConnectionAccepted(message, codecVersion);
                 break;
             }
 
@@ -328,6 +380,7 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
                 String processId = (String) message.parameters.getOrDefault("processId", "");
                 Integer maxThreads = (Integer) message.parameters.getOrDefault("maxThreads", 0);
                 int maxThreadPerUserPerTaskTypePercent = (Integer) message.parameters.getOrDefault("maxThreadPerUserPerTaskTypePercent", 0);
+                int prefetch = (Integer) message.parameters.getOrDefault("prefetch", 0);
                 Map<String, Integer> maxThreadsByTaskType = (Map<String, Integer>) message.parameters.getOrDefault("maxThreadsByTaskType", Collections.emptyMap());
                 List<Integer> groups = (List<Integer>) message.parameters.getOrDefault("groups", Collections.emptyList());
                 Set<Integer> excludedGroups = (Set<Integer>) message.parameters.getOrDefault("excludedGroups", Collections.emptySet());
@@ -343,7 +396,8 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
                     return;
                 }
                 this.manager = broker.getWorkers().getWorkerManager(clientId);
-                manager.applyConfiguration(maxThreads, maxThreadsByTaskType, groups, excludedGroups, resourceLimits, maxThreadPerUserPerTaskTypePercent);
+                manager.applyConfiguration(maxThreads, maxThreadsByTaskType, groups, excludedGroups, resourceLimits, maxThreadPerUserPerTaskTypePercent, prefetch);
+                broker.getWorkers().wakeUp(manager);
                 break;
             case Message.TYPE_WORKER_SHUTDOWN:
                 if (!authenticated && requireAuthentication) {
@@ -408,13 +462,88 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
                     if (codePool == null) {
                         throw new Exception("codepool " + codePoolId + " does not exist");
                     } else {
-                        channel.sendReplyMessage(message, Message.DOWNLOAD_CODEPOOL_RESPONSE(codePool.getCodePoolData()));
+                        // do not send again data which is already on the cache of the worker
+                        String knownHash = (String) message.parameters.get("hash");
+                        String hash = codePool.getHash();
+                        if (hash.equals(knownHash)) {
+                            channel.sendReplyMessage(message, Message.DOWNLOAD_CODEPOOL_RESPONSE(hash, null));
+                        } else if (message.parameters.get("chunked") != null) {
+                            // the worker will pull the chunks, so that it will never have too much data in flight
+                            List<String> chunks = new ArrayList<>();
+                            for (CodePoolChunk chunk : codePool.getChunks()) {
+                                chunks.add(chunk.getHash());
+                            }
+                            channel.sendReplyMessage(message, Message.DOWNLOAD_CODEPOOL_CHUNKS_RESPONSE(hash, codePool.getCodePoolData().length, chunks));
+                        } else {
+                            channel.sendReplyMessage(message, Message.DOWNLOAD_CODEPOOL_RESPONSE(hash, codePool.getCodePoolData()));
+                        }
+                    }
+                } catch (Exception error) {
+                    LOGGER.log(Level.SEVERE, "Error", error);
+                    channel.sendReplyMessage(message, Message.ERROR(workerProcessId, error));
+                }
+                break;
+            case Message.TYPE_DOWNLOAD_CODEPOOL_CHUNK: {
+                if (!authenticated && requireAuthentication) {
+                    Message error = Message.ERROR(null, new Exception("autentication required (client " + channel + ")"));
+                    _channel.sendReplyMessage(message, error);
+                    break;
+                }
+                if (!isWorker) {
+                    Message error = Message.ERROR(null, new Exception("request type " + message.type + " is only for workers"));
+                    _channel.sendReplyMessage(message, error);
+                    break;
+                }
+                String chunkCodePoolId = (String) message.parameters.get("codePoolId");
+                try {
+                    CodePool codePool = broker.getBrokerStatus().getCodePool(chunkCodePoolId);
+                    if (codePool == null) {
+                        throw new Exception("codepool " + chunkCodePoolId + " does not exist");
+                    }
+                    if (!codePool.getHash().equals(message.parameters.get("hash"))) {
+                        throw new Exception("codepool " + chunkCodePoolId + " changed during the download");
                     }
+                    int index = (Integer) message.parameters.get("index");
+                    List<CodePoolChunk> chunks = codePool.getChunks();
+                    if (index < 0 || index >= chunks.size()) {
+                        throw new Exception("codepool " + chunkCodePoolId + " has no chunk " + index);
+                    }
+                    CodePoolChunk chunk = chunks.get(index);
+                    channel.sendReplyMessage(message, Message.DOWNLOAD_CODEPOOL_CHUNK_RESPONSE(chunk.getData(), chunk.isCompressed() ? 1 : 0, chunk.getLength()));
                 } catch (Exception error) {
                     LOGGER.log(Level.SEVERE, "Error", error);
                     channel.sendReplyMessage(message, Message.ERROR(workerProcessId, error));
                 }
                 break;
+            }
+
+            case Message.TYPE_CLIENT_SUBMIT_TASKS:
+            case Message.TYPE_CLIENT_BEGIN_TRANSACTION:
+            case Message.TYPE_CLIENT_COMMIT_TRANSACTION:
+            case Message.TYPE_CLIENT_ROLLBACK_TRANSACTION:
+            case Message.TYPE_CLIENT_TASK_STATUS_REQUEST:
+            case Message.TYPE_CLIENT_SUBSCRIBE_TASKS_COMPLETION:
+            case Message.TYPE_CLIENT_BROKER_STATUS_REQUEST:
+            case Message.TYPE_CLIENT_CREATE_CODEPOOL:
+            case Message.TYPE_CLIENT_DELETE_CODEPOOL:
+            case Message.TYPE_CLIENT_CODEPOOL_STATUS_REQUEST:
+                if (!authenticated && requireAuthentication) {
+                    Message error = Message.ERROR(null, new Exception("autentication required (client " + channel + ")"));
+                    _channel.sendReplyMessage(message, error);
+                    break;
+                }
+                if (!isClient) {
+                    Message error = Message.ERROR(null, new Exception("request type " + message.type + " is only for clients"));
+                    _channel.sendReplyMessage(message, error);
+                    break;
+                }
+                try {
+                    _channel.sendReplyMessage(message, executeClientRequest(message));
+                } catch (Exception error) {
+                    LOGGER.log(Level.SEVERE, "error for " + message, error);
+                    _channel.sendReplyMessage(message, Message.ERROR(null, error));
+                }
+                break;
 
             default:
                 LOGGER.log(Level.SEVERE, "worker {0} at {1}, processid {2} sent unknown message {3}", new Object[]{clientId, location, workerProcessId, message});
@@ -424,10 +553,178 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
 
     }
 
+    /**
+     * Executes a request of a client through the {@link majordodo.clientfacade.ClientFacade}
+     *
+     * @param message
+     * @return the reply
+     * @throws Exception
+     */
+    private Message executeClientRequest(Message message) throws Exception {
+        switch (message.type) {
+            case Message.TYPE_CLIENT_SUBMIT_TASKS: {
+                List<Map<String, Object>> tasks = (List<Map<String, Object>>) message.parameters.get("tasks");
+                List<AddTaskRequest> requests = new ArrayList<>(tasks.size());
+                for (Map<String, Object> task : tasks) {
+                    String userid = (String) task.get("userid");
+                    if (!isAdministrator() && !clientUser.getUserId().equals(userid)) {
+                        return Message.ERROR(null, new Exception("user " + clientUser.getUserId() + " cannot submit tasks for user " + userid));
+                    }
+                    requests.add(new AddTaskRequest(
+                        longParameter(task, "transaction"),
+                        (String) task.get("tasktype"),
+                        userid,
+                        (String) task.get("parameter"),
+                        (int) longParameter(task, "maxattempts"),
+                        longParameter(task, "requestedStartTime"),
+                        longParameter(task, "deadline"),
+                        (String) task.get("slot"),
+                        (int) longParameter(task, "attempt"),
+                        (String) task.get("codepool"),
+                        (String) task.get("mode")));
+                }
+                List<SubmitTaskResult> results = broker.getClient().submitTasks(requests);
+                List<Map<String, Object>> resultsData = new ArrayList<>(results.size());
+                for (SubmitTaskResult result : results) {
+                    Map<String, Object> resultData = new HashMap<>();
+                    resultData.put("taskid", result.getTaskId());
+                    resultData.put("outcome", result.getOutcome());
+                    resultData.put("retryAfter", result.getRetryAfter());
+                    resultsData.add(resultData);
+                }
+                return Message.CLIENT_SUBMIT_TASKS_RESULT(resultsData);
+            }
+            case Message.TYPE_CLIENT_BEGIN_TRANSACTION:
+                return Message.ACK(null).setParameter("transaction", broker.getClient().beginTransaction());
+            case Message.TYPE_CLIENT_COMMIT_TRANSACTION:
+                broker.getClient().commitTransaction(longParameter(message.parameters, "transaction"));
+                return Message.ACK(null);
+            case Message.TYPE_CLIENT_ROLLBACK_TRANSACTION:
+                broker.getClient().rollbackTransaction(longParameter(message.parameters, "transaction"));
+                return Message.ACK(null);
+            case Message.TYPE_CLIENT_TASK_STATUS_REQUEST: {
+                TaskStatusView task = broker.getClient().getTask(longParameter(message.parameters, "taskid"));
+                return Message.CLIENT_TASK_STATUS(task != null ? taskStatusForClient(task) : null);
+            }
+            case Message.TYPE_CLIENT_SUBSCRIBE_TASKS_COMPLETION: {
+                List<Long> taskIds = (List<Long>) message.parameters.get("taskids");
+                List<Long> newTaskIds = new ArrayList<>(taskIds.size());
+                for (Long taskId : taskIds) {
+                    // tasks already subscribed will be notified only once
+                    if (subscribedTasks.add(taskId)) {
+                        newTaskIds.add(taskId);
+                    }
+                }
+                TasksCompletionResult result = broker.getClient().subscribeTasksCompletion(newTaskIds, completionListener);
+                List<Map<String, Object>> completed = new ArrayList<>(result.getCompletedTasks().size());
+                for (TaskStatusView task : result.getCompletedTasks()) {
+                    subscribedTasks.remove(task.getTaskId());
+                    completed.add(taskStatusForClient(task));
+                }
+                subscribedTasks.removeAll(result.getNotFoundTaskIds());
+                return Message.CLIENT_TASKS_COMPLETED(completed, result.getNotFoundTaskIds());
+            }
+            case Message.TYPE_CLIENT_BROKER_STATUS_REQUEST: {
+                BrokerStatusView status = broker.getClient().getBrokerStatus();
+                Map<String, Object> data = new HashMap<>();
+                data.put("version", Broker.VERSION());
+                data.put("status", status.getClusterMode());
+                data.put("currentLedgerId", status.getCurrentLedgerId());
+                data.put("currentSequenceNumber", status.getCurrentSequenceNumber());
+                data.put("tasks", status.getTasks());
+                data.put("pendingtasks", status.getPendingTasks());
+                data.put("runningtasks", status.getRunningTasks());
+                data.put("errortasks", status.getErrorTasks());
+                data.put("waitingtasks", status.getWaitingTasks());
+                data.put("finishedtasks", status.getFinishedTasks());
+                return Message.CLIENT_BROKER_STATUS(data);
+            }
+            case Message.TYPE_CLIENT_CREATE_CODEPOOL: {
+                if (!isAdministrator()) {
+                    return Message.ERROR(null, new Exception("only administrators can create code pools"));
+                }
+                CreateCodePoolResult result = broker.getClient().createCodePool(new CreateCodePoolRequest(
+                    (String) message.parameters.get("codePoolId"), System.currentTimeMillis(),
+                    longParameter(message.parameters, "ttl"), (byte[]) message.parameters.get("data")));
+                return Message.ACK(null).setParameter("ok", result.ok ? 1 : 0).setParameter("outcome", result.outcome);
+            }
+            case Message.TYPE_CLIENT_DELETE_CODEPOOL:
+                if (!isAdministrator()) {
+                    return Message.ERROR(null, new Exception("only administrators can delete code pools"));
+                }
+                broker.getClient().deleteCodePool((String) message.parameters.get("codePoolId"));
+                return Message.ACK(null);
+            case Message.TYPE_CLIENT_CODEPOOL_STATUS_REQUEST: {
+                CodePoolView codePool = broker.getClient().getCodePool((String) message.parameters.get("codePoolId"));
+                if (codePool == null) {
+                    return Message.CLIENT_CODEPOOL_STATUS(null);
+                }
+                Map<String, Object> data = new HashMap<>();
+                data.put("codePoolId", codePool.getCodePoolId());
+                data.put("creationTimestamp", codePool.getCreationTimestamp());
+                data.put("ttl", codePool.getTtl());
+                return Message.CLIENT_CODEPOOL_STATUS(data);
+            }
+            default:
+                throw new IllegalArgumentException("invalid message type:" + message.type);
+        }
+    }
+
+    private boolean isAdministrator() {
+        return clientUser.getRole() == UserRole.ADMINISTRATOR;
+    }
+
+    private static long longParameter(Map<String, Object> parameters, String key) {
+        Number value = (Number) parameters.get(key);
+        return value != null ? value.longValue() : 0;
+    }
+
+    private static Map<String, Object> taskStatusForClient(TaskStatusView task) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("taskId", task.getTaskId());
+        data.put("status", TaskStatusView.convertTaskStatusForClient(task.getStatus()));
+        data.put("userId", task.getUser());
+        data.put("tasktype", task.getType());
+        data.put("data", task.getData());
+        data.put("result", task.getResult());
+        data.put("workerId", task.getWorkerId());
+        data.put("slot", task.getSlot());
+        data.put("codePoolId", task.getCodePoolId());
+        data.put("mode", task.getMode());
+        data.put("createdTimestamp", task.getCreatedTimestamp());
+        data.put("requestedStartTime", task.getRequestedStartTime());
+        data.put("deadline", task.getExecutionDeadline());
+        data.put("attempts", task.getAttempts());
+        data.put("maxattempts", task.getMaxattempts());
+        return data;
+    }
+
+    private void subscribedTaskCompleted(TaskStatusView task) {
+        // called under the lock of the status of the broker, the write is asynchronous
+        subscribedTasks.remove(task.getTaskId());
+        Channel _channel = channel;
+        if (_channel == null) {
+            return;
+        }
+        _channel.sendOneWayMessage(Message.CLIENT_TASKS_COMPLETED(Collections.singletonList(taskStatusForClient(task)), null), new SendResultCallback() {
+
+            @Override
+            public void messageSent(Message originalMessage, Throwable error) {
+                if (error != null) {
+                    LOGGER.log(Level.SEVERE, "cannot notify completion of task " + task.getTaskId() + " to client " + _channel, error);
+                }
+            }
+        });
+    }
+
     @Override
     public void channelClosed() {
         LOGGER.log(Level.INFO, "client {0} connection {1} closed", new Object[]{clientId, this});
         channel = null;
+        if (!subscribedTasks.isEmpty()) {
+            broker.getClient().unsubscribeTasksCompletion(new ArrayList<>(subscribedTasks), completionListener);
+            subscribedTasks.clear();
+        }
         if (clientId != null) {
             WorkerManager workerManager = broker.getWorkers().getWorkerManagerNoCreate(clientId);
             if (workerManager != null) {
@@ -436,7 +733,10 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
         }
         broker.getAcceptor().connectionClosed(this);
         if (clientId != null) {
-            broker.getWorkers().wakeUp();
+            WorkerManager workerManager = broker.getWorkers().getWorkerManagerNoCreate(clientId);
+            if (workerManager != null) {
+                broker.getWorkers().wakeUp(workerManager);
+            }
         }
     }
 
@@ -456,12 +756,59 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
         }
     }
 
-    void answerConnectionAccepted(Message connectionRequestMessage
+    void answerConnectionAccepted(Message connectionRequestMessage, int codecVersion
     ) {
-        channel.sendReplyMessage(connectionRequestMessage, Message.ACK(workerProcessId));
+        Message ack = Message.ACK(workerProcessId);
+        if (codecVersion > Message.CODEC_VERSION_LEGACY) {
+            ack.setParameter("codecVersion", codecVersion);
+        }
+        channel.sendReplyMessage(connectionRequestMessage, ack);
+        // the peer is able to decode every codec version it declared, so we can switch immediately
+        channel.setCodecVersion(codecVersion);
     }
 
     public void sendTaskAssigned(Task task, SimpleCallback<Void> callback) {
+        channel.sendOneWayMessage(Message.TYPE_TASK_ASSIGNED(workerProcessId, taskAssignedParameters(task)), new SendResultCallback() {
+
+            @Override
+            public void messageSent(Message originalMessage, Throwable error) {
+                callback.onResult(null, error);
+            }
+        });
+    }
+
+    /**
+     * Sends many tasks to the worker, using a single message if the worker
+     * supports it. The callback is called once for each task
+     *
+     * @param tasks
+     * @param callback
+     */
+    public void sendTasksAssigned(List<Task> tasks, SimpleCallback<Task> callback) {
+        if (!multiTaskAssignment || tasks.size() == 1) {
+            for (Task task : tasks) {
+                sendTaskAssigned(task, (Void result, Throwable error) -> {
+                    callback.onResult(task, error);
+                });
+            }
+            return;
+        }
+        List<Map<String, Object>> tasksData = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            tasksData.add(taskAssignedParameters(task));
+        }
+        channel.sendOneWayMessage(Message.TASKS_ASSIGNED(workerProcessId, tasksData), new SendResultCallback() {
+
+            @Override
+            public void messageSent(Message originalMessage, Throwable error) {
+                for (Task task : tasks) {
+                    callback.onResult(task, error);
+                }
+            }
+        });
+    }
+
+    private Map<String, Object> taskAssignedParameters(Task task) {
         Map<String, Object> params = new HashMap<>();
         params.put("taskid", task.getTaskId());
         params.put("tasktype", task.getType());
@@ -474,14 +821,13 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
         }
         if (task.getCodepool() != null) {
             params.put("codepool", task.getCodepool());
-        }
-        channel.sendOneWayMessage(Message.TYPE_TASK_ASSIGNED(workerProcessId, params), new SendResultCallback() {
-
-            @Override
-            public void messageSent(Message originalMessage, Throwable error) {
-                callback.onResult(null, error);
+            // the worker uses the hash to detect that the CodePool has been re-created
+            CodePool codePool = broker.getBrokerStatus().getCodePool(task.getCodepool());
+            if (codePool != null) {
+                params.put("codepoolhash", codePool.getHash());
             }
-        });
+        }
+        return params;
     }
 
     public void workerDied() {
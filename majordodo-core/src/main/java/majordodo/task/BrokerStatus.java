@@ -19,7 +19,10 @@
  */
 package majordodo.task;
 
+import majordodo.clientfacade.TaskQuery;
+import majordodo.clientfacade.TaskQueryResult;
 import majordodo.clientfacade.TaskStatusView;
+import majordodo.clientfacade.TasksCompletionResult;
 import majordodo.clientfacade.WorkerStatusView;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -30,6 +33,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -52,6 +57,8 @@ public final class BrokerStatus {
     private static final Logger LOGGER = Logger.getLogger(BrokerStatus.class.getName());
 
     private final Map<Long, Task> tasks = new HashMap<>();
+    private final TasksIndex tasksIndex = new TasksIndex();
+    private final TaskStatusNotifier taskStatusNotifier = new TaskStatusNotifier();
     private final Map<Long, Transaction> transactions = new HashMap<>();
 
     private final Map<String, WorkerStatus> workers = new HashMap<>();
@@ -127,7 +134,184 @@ public final class BrokerStatus {
         return result;
     }
 
-    private TaskStatusView createTaskStatusView(Task task) {
+    /**
+     * Executes a query using the secondary indexes. Only the tasks of the
+     * requested page are copied, the scan stops as soon as the page is full
+     *
+     * @param query
+     * @return
+     */
+    public TaskQueryResult queryTasks(TaskQuery query) {
+        int max = query.getMax();
+        List<TaskStatusView> result = new ArrayList<>(Math.min(Math.max(max, 0), 1000));
+        long nextCursor = 0;
+        lock.readLock().lock();
+        try {
+            Iterator<Long> candidates = tasksIndex.candidates(query);
+            while (candidates.hasNext()) {
+                Task task = tasks.get(candidates.next());
+                if (task == null || !TasksIndex.matches(task, query)) {
+                    continue;
+                }
+                if (result.size() >= max) {
+                    // there is at least one more task
+                    if (!result.isEmpty()) {
+                        nextCursor = result.get(result.size() - 1).getTaskId();
+                    }
+                    break;
+                }
+                result.add(createTaskStatusView(task));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new TaskQueryResult(result, nextCursor);
+    }
+
+    /**
+     * Counts the tasks which match the query, grouped by tasktype. The max of
+     * the query is not taken into account
+     *
+     * @param query
+     * @return
+     */
+    public Map<String, Long> countTasksByType(TaskQuery query) {
+        Map<String, Long> result = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            Iterator<Long> candidates = tasksIndex.candidates(query);
+            while (candidates.hasNext()) {
+                Task task = tasks.get(candidates.next());
+                if (task != null && TasksIndex.matches(task, query)) {
+                    result.merge(task.getType(), 1L, Long::sum);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    private void putTask(Task task) {
+        Task prev = tasks.put(task.getTaskId(), task);
+        if (prev != null) {
+            tasksIndex.remove(prev);
+        }
+        tasksIndex.add(task);
+    }
+
+    /**
+     * Waits for at least one of the given tasks to reach a final status
+     * (FINISHED or ERROR). The wait is driven by the edits applied to the
+     * status, no polling is involved
+     *
+     * @param taskIds
+     * @param timeout max time to wait, in milliseconds
+     * @return the tasks in final status and the ids of unknown tasks, empty
+     * lists in case of timeout
+     * @throws InterruptedException
+     */
+    public TasksCompletionResult waitForTasks(Collection<Long> taskIds, long timeout) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        TaskCompletionListener listener = task -> latch.countDown();
+        lock.readLock().lock();
+        try {
+            TasksCompletionResult res = collectCompletedTasks(taskIds);
+            if (!res.isEmpty() || timeout <= 0) {
+                return res;
+            }
+            // edits cannot be applied until we release the lock, no change can be lost
+            for (Long taskId : taskIds) {
+                taskStatusNotifier.addWaiter(taskId, listener);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            latch.await(timeout, TimeUnit.MILLISECONDS);
+        } finally {
+            for (Long taskId : taskIds) {
+                taskStatusNotifier.removeWaiter(taskId, listener);
+            }
+        }
+        lock.readLock().lock();
+        try {
+            return collectCompletedTasks(taskIds);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Registers a listener for the completion of the given tasks, without
+     * blocking the caller. The listener is called once for each task which
+     * reaches a final status, after that it is no more registered for that
+     * task
+     *
+     * @param taskIds
+     * @param listener
+     * @return the tasks already in final status and the ids of unknown tasks,
+     * the listener is not registered for them
+     * @see #unsubscribeTasksCompletion(java.util.Collection,
+     * majordodo.task.TaskCompletionListener)
+     */
+    public TasksCompletionResult subscribeTasksCompletion(Collection<Long> taskIds, TaskCompletionListener listener) {
+        lock.readLock().lock();
+        try {
+            TasksCompletionResult res = collectCompletedTasks(taskIds);
+            for (Long taskId : taskIds) {
+                Task task = tasks.get(taskId);
+                if (task != null && !Task.isFinalStatus(task.getStatus())) {
+                    // edits cannot be applied until we release the lock, no change can be lost
+                    taskStatusNotifier.addWaiter(taskId, listener);
+                }
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Unregisters a listener which is no more interested in the completion of
+     * the given tasks
+     *
+     * @param taskIds
+     * @param listener
+     */
+    public void unsubscribeTasksCompletion(Collection<Long> taskIds, TaskCompletionListener listener) {
+        for (Long taskId : taskIds) {
+            taskStatusNotifier.removeWaiter(taskId, listener);
+        }
+    }
+
+    private TasksCompletionResult collectCompletedTasks(Collection<Long> taskIds) {
+        List<TaskStatusView> completed = new ArrayList<>();
+        List<Long> notFound = new ArrayList<>();
+        for (Long taskId : taskIds) {
+            Task task = tasks.get(taskId);
+            if (task == null) {
+                notFound.add(taskId);
+            } else if (Task.isFinalStatus(task.getStatus())) {
+                completed.add(createTaskStatusView(task));
+            }
+        }
+        return new TasksCompletionResult(completed, notFound);
+    }
+
+    /**
+     * Subscribes to the changes of status of the tasks
+     *
+     * @param userId only tasks of the given user, null for all the users
+     * @param taskType only tasks of the given type, null for all the types
+     * @param capacity max number of events buffered for the subscriber
+     * @return
+     */
+    public TaskEventsSubscription subscribeTaskEvents(String userId, String taskType, int capacity) {
+        return taskStatusNotifier.subscribe(userId, taskType, capacity);
+    }
+
+    static TaskStatusView createTaskStatusView(Task task) {
         if (task == null) {
             return null;
         }
@@ -359,6 +543,7 @@ public final class BrokerStatus {
                                 LOGGER.log(Level.FINER, "purging finished task {0} slot {2}, created at {1}", new Object[]{t.getTaskId(), new java.util.Date(t.getCreatedTimestamp()), t.getSlot()});
                             }                            
                             it.remove();
+                            tasksIndex.remove(t);
                             stats.taskStatusChange(t.getStatus(), -1);
                         }
                         break;
@@ -694,16 +879,19 @@ public final class BrokerStatus {
                         throw new RuntimeException("task " + taskId + " not present in brokerstatus. maybe you are recovering broken snapshot");
                     }
                     int oldStatus = task.getStatus();
+                    String oldWorkerId = task.getWorkerId();
                     task.setStatus(Task.STATUS_RUNNING);
                     if (workerId == null || workerId.isEmpty()) {
                         throw new RuntimeException("bug " + edit);
                     }
                     task.setWorkerId(workerId.intern());
+                    tasksIndex.update(task, oldStatus, oldWorkerId);
                     if (resources != null) {
                         task.setResources(resources.intern());
                     }
                     task.setAttempts(edit.attempt);
                     stats.taskStatusChange(oldStatus, task.getStatus());
+                    taskStatusNotifier.taskStatusChanged(task);
                     return new ModificationResult(num, null, null);
                 }
                 case StatusEdit.TYPE_TASK_STATUS_CHANGE: {
@@ -715,6 +903,7 @@ public final class BrokerStatus {
                     int oldStatus = task.getStatus();
                     task.setStatus(edit.taskStatus);
                     task.setResult(edit.result);
+                    tasksIndex.update(task, oldStatus, task.getWorkerId());
                     if (task.getSlot() != null) {
                         switch (edit.taskStatus) {
                             case Task.STATUS_FINISHED:
@@ -729,6 +918,7 @@ public final class BrokerStatus {
                     }
 
                     stats.taskStatusChange(oldStatus, edit.taskStatus);
+                    taskStatusNotifier.taskStatusChanged(task);
 
                     return new ModificationResult(num, null, null);
                 }
@@ -747,8 +937,9 @@ public final class BrokerStatus {
                         return new ModificationResult(num, 0L, "no transaction " + edit.transactionId);
                     }
                     for (Task task : transaction.getPreparedTasks()) {
-                        tasks.put(task.getTaskId(), task);
+                        putTask(task);
                         stats.taskStatusChange(-1, task.getStatus());
+                        taskStatusNotifier.taskStatusChanged(task);
                     }
                     transactions.remove(edit.transactionId);
                     return new ModificationResult(num, transaction.getPreparedTasks(), null);
@@ -796,8 +987,9 @@ public final class BrokerStatus {
                     } else {
                         task.setStatus(Task.STATUS_WAITING);
                     }
-                    tasks.put(edit.taskId, task);
+                    putTask(task);
                     stats.taskStatusChange(-1, task.getStatus());
+                    taskStatusNotifier.taskStatusChanged(task);
 
                     if (edit.slot != null) {
                         // we need this, for log-replay on recovery and on followers
@@ -923,7 +1115,7 @@ public final class BrokerStatus {
             Map<String, Long> busySlots = new HashMap<>();
             for (Task task : snapshot.getTasks()) {
                 long taskId = task.getTaskId();
-                this.tasks.put(taskId, task);
+                putTask(task);
                 if (maxTaskId < taskId) {
                     maxTaskId = taskId;
                 }
@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 import majordodo.codepools.CodePool;
+import majordodo.codepools.CodePoolDataStore;
 
 /**
  * Snapshot of the status of the broker
@@ -54,12 +55,16 @@ public class BrokerStatusSnapshot {
         g.writeEndObject();
     }
 
-    private static void serializeCodePool(CodePool transaction, JsonGenerator g) throws IOException {
+    private static void serializeCodePool(CodePool transaction, JsonGenerator g, CodePoolDataStore dataStore) throws IOException {
         g.writeStartObject();
         writeSimpleProperty(g, "id", transaction.getId());
         writeSimpleProperty(g, "creationTimestamp", transaction.getCreationTimestamp());
         writeSimpleProperty(g, "ttl", transaction.getTtl());
-        writeSimpleProperty(g, "data", Base64.getEncoder().encodeToString(transaction.getCodePoolData()));
+        if (dataStore != null) {
+            writeSimpleProperty(g, "datahash", dataStore.write(transaction));
+        } else {
+            writeSimpleProperty(g, "data", Base64.getEncoder().encodeToString(transaction.getCodePoolData()));
+        }
         g.writeEndObject();
     }
 
@@ -146,6 +151,19 @@ public class BrokerStatusSnapshot {
     }
 
     public static BrokerStatusSnapshot deserializeSnapshot(InputStream in) throws IOException {
+        return deserializeSnapshot(in, null);
+    }
+
+    /**
+     * Reads a snapshot
+     *
+     * @param in
+     * @param dataStore store for data of CodePools which is only referenced
+     * by the snapshot, can be null if the snapshot is self-contained
+     * @return
+     * @throws IOException
+     */
+    public static BrokerStatusSnapshot deserializeSnapshot(InputStream in, CodePoolDataStore dataStore) throws IOException {
         JsonFactory jfactory = new JsonFactory();
         JsonParser jParser = jfactory.createJsonParser(in);
 
@@ -216,7 +234,7 @@ public class BrokerStatusSnapshot {
                 case "codepools": {
                     nextToken(jParser); // field name                                        
                     while (jParser.nextToken() != JsonToken.END_ARRAY) {
-                        CodePool codePool = readCodePool(jParser);
+                        CodePool codePool = readCodePool(jParser, dataStore);
                         codePools.add(codePool);
                     }
                     break;
@@ -318,7 +336,7 @@ public class BrokerStatusSnapshot {
 
     }
 
-    private static CodePool readCodePool(JsonParser jParser) throws IOException {
+    private static CodePool readCodePool(JsonParser jParser, CodePoolDataStore dataStore) throws IOException {
         long creationTimestamp = 0;
         String id = "";
         long ttl = 0;
@@ -344,6 +362,14 @@ public class BrokerStatusSnapshot {
                     String base64data = readValue(jParser);
                     payload = Base64.getDecoder().decode(base64data);
                     break;
+                case "datahash":
+                    nextToken(jParser);
+                    String hash = readValue(jParser);
+                    if (dataStore == null) {
+                        throw new IOException("snapshot references codepool data " + hash + " but no store is available");
+                    }
+                    payload = dataStore.read(hash);
+                    break;
 
                 default:
                     throw new IOException("Unexpected field " + jParser.getCurrentName());
@@ -442,6 +468,19 @@ public class BrokerStatusSnapshot {
     }
 
     public static void serializeSnapshot(BrokerStatusSnapshot snapshotData, OutputStream out) throws IOException {
+        serializeSnapshot(snapshotData, out, null);
+    }
+
+    /**
+     * Writes a snapshot
+     *
+     * @param snapshotData
+     * @param out
+     * @param dataStore if not null data of CodePools is written to this store
+     * and the snapshot only references it, otherwise data is inlined
+     * @throws IOException
+     */
+    public static void serializeSnapshot(BrokerStatusSnapshot snapshotData, OutputStream out, CodePoolDataStore dataStore) throws IOException {
         JsonFactory f = new JsonFactory();
         JsonGenerator g = f.createJsonGenerator(out);
         g.writeStartObject();
@@ -480,7 +519,7 @@ public class BrokerStatusSnapshot {
             g.writeFieldName("codepools");
             g.writeStartArray();
             for (CodePool t : snapshotData.getCodePools()) {
-                serializeCodePool(t, g);
+                serializeCodePool(t, g, dataStore);
             }
             g.writeEndArray();
         }
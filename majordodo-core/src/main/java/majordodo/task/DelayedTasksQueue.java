@@ -0,0 +1,274 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Queue of the tasks waiting for their requested start time, implemented as an
+ * hierarchical timing wheel. Inserts are O(1), every wheel covers wheelSize
+ * ticks of the wheel below it, tasks are moved towards the lowest wheel as
+ * time passes and they are returned only when their start time has been
+ * reached
+ *
+ * @author enrico.olivelli
+ */
+class DelayedTasksQueue {
+
+    static final long DEFAULT_TICK = 1000;
+    static final int DEFAULT_WHEEL_SIZE = 64;
+
+    private static final class Bucket {
+
+        private final List<Task> tasks = new ArrayList<>();
+        private long minStartTime = Long.MAX_VALUE;
+
+        void add(Task task, long startTime) {
+            tasks.add(task);
+            if (startTime < minStartTime) {
+                minStartTime = startTime;
+            }
+        }
+
+        boolean isEmpty() {
+            return tasks.isEmpty();
+        }
+
+        void drainTo(List<Task> result) {
+            result.addAll(tasks);
+            tasks.clear();
+            minStartTime = Long.MAX_VALUE;
+        }
+    }
+
+    private static final class Wheel {
+
+        private final long tick;
+        private final long interval;
+        private final Bucket[] buckets;
+        private long currentTime;
+        private Wheel overflowWheel;
+
+        Wheel(long tick, int wheelSize, long startTime) {
+            this.tick = tick;
+            this.interval = tick * wheelSize;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket();
+            }
+            this.currentTime = startTime - (startTime % tick);
+        }
+
+        Bucket bucketFor(long time) {
+            return buckets[(int) ((time / tick) % buckets.length)];
+        }
+
+        /**
+         * Advances the clock of this wheel and of the overflow wheels, the
+         * contents of the buckets which are now expired are moved to the given
+         * list
+         */
+        void advance(long now, List<Task> expired) {
+            long target = now - (now % tick);
+            if (target > currentTime) {
+                if (target - currentTime >= interval) {
+                    for (Bucket bucket : buckets) {
+                        bucket.drainTo(expired);
+                    }
+                } else {
+                    for (long time = currentTime + tick; time <= target; time += tick) {
+                        bucketFor(time).drainTo(expired);
+                    }
+                }
+                currentTime = target;
+            }
+            if (overflowWheel != null) {
+                overflowWheel.advance(now, expired);
+            }
+        }
+
+        long earliestStartTime() {
+            long earliest = Long.MAX_VALUE;
+            // buckets are visited in time order
+            for (long time = currentTime + tick; time < currentTime + interval; time += tick) {
+                Bucket bucket = bucketFor(time);
+                if (!bucket.isEmpty()) {
+                    earliest = bucket.minStartTime;
+                    break;
+                }
+            }
+            if (overflowWheel != null) {
+                // a task still waiting in the overflow wheel may start before the ones already moved to this wheel
+                earliest = Math.min(earliest, overflowWheel.earliestStartTime());
+            }
+            return earliest;
+        }
+
+        void forEach(Consumer<Task> consumer) {
+            for (Bucket bucket : buckets) {
+                bucket.tasks.forEach(consumer);
+            }
+            if (overflowWheel != null) {
+                overflowWheel.forEach(consumer);
+            }
+        }
+    }
+
+    private final int wheelSize;
+    private final Wheel wheel;
+    /**
+     * Tasks whose start time falls into the current tick
+     */
+    private final Bucket ready = new Bucket();
+    private int size;
+    /**
+     * Time until the broker is waiting for, in order to resume the tasks
+     */
+    private long waitingUntil = Long.MAX_VALUE;
+    private boolean stopWaiting;
+
+    DelayedTasksQueue() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE, System.currentTimeMillis());
+    }
+
+    DelayedTasksQueue(long tick, int wheelSize, long startTime) {
+        if (tick <= 0 || wheelSize <= 1) {
+            throw new IllegalArgumentException();
+        }
+        this.wheelSize = wheelSize;
+        this.wheel = new Wheel(tick, wheelSize, startTime);
+    }
+
+    public synchronized void add(Task task) {
+        insert(task);
+        size++;
+        if (task.getRequestedStartTime() < waitingUntil) {
+            notifyAll();
+        }
+    }
+
+    private void insert(Task task) {
+        long startTime = task.getRequestedStartTime();
+        if (startTime < wheel.currentTime + wheel.tick) {
+            ready.add(task, startTime);
+            return;
+        }
+        Wheel current = wheel;
+        while (true) {
+            // the tick of a wheel is the interval of the wheel below, so the task cannot fall into the current tick
+            if (startTime < current.currentTime + current.interval) {
+                current.bucketFor(startTime).add(task, startTime);
+                return;
+            }
+            if (current.overflowWheel == null) {
+                current.overflowWheel = new Wheel(current.interval, wheelSize, current.currentTime);
+            }
+            current = current.overflowWheel;
+        }
+    }
+
+    /**
+     * Removes and returns all the tasks whose requested start time is not
+     * after the given time
+     *
+     * @param now
+     * @return
+     */
+    public synchronized List<Task> pollExpired(long now) {
+        List<Task> expired = new ArrayList<>();
+        wheel.advance(now, expired);
+        expired.forEach(this::insert);
+        if (ready.isEmpty() || ready.minStartTime > now) {
+            return new ArrayList<>();
+        }
+        List<Task> result = new ArrayList<>();
+        List<Task> candidates = new ArrayList<>();
+        ready.drainTo(candidates);
+        for (Task task : candidates) {
+            long startTime = task.getRequestedStartTime();
+            if (startTime <= now) {
+                result.add(task);
+            } else {
+                ready.add(task, startTime);
+            }
+        }
+        size -= result.size();
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Earliest requested start time of the tasks in the queue
+     *
+     * @return the time, or 0 if the queue is empty
+     */
+    public synchronized long getEarliestStartTime() {
+        if (size == 0) {
+            return 0;
+        }
+        return Math.min(ready.minStartTime, wheel.earliestStartTime());
+    }
+
+    /**
+     * Waits until the earliest start time of the tasks in the queue, or until
+     * a task with an earlier start time is added. In order to limit the
+     * number of wake ups the wait is never shorter than a tick
+     *
+     * @param maxWait
+     * @throws InterruptedException
+     */
+    public synchronized void awaitNextStartTime(long maxWait) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long until = now + maxWait;
+        long earliestStartTime = getEarliestStartTime();
+        if (earliestStartTime > 0 && earliestStartTime < until) {
+            until = Math.min(until, Math.max(earliestStartTime, now + wheel.tick));
+        }
+        if (until <= now || stopWaiting) {
+            return;
+        }
+        waitingUntil = until;
+        try {
+            wait(until - now);
+        } finally {
+            waitingUntil = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Wakes up the waiting thread, subsequent calls to
+     * {@link #awaitNextStartTime(long)} will not wait any more
+     */
+    public synchronized void stopWaiting() {
+        stopWaiting = true;
+        notifyAll();
+    }
+
+    public synchronized void forEach(Consumer<Task> consumer) {
+        ready.tasks.forEach(consumer);
+        wheel.forEach(consumer);
+    }
+
+}
@@ -49,6 +49,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import majordodo.codepools.CodePoolDataStore;
 import majordodo.utils.FileUtils;
 
 /**
@@ -63,6 +64,7 @@ public class FileCommitLog extends StatusChangesLog {
     private static final Logger LOGGER = Logger.getLogger(FileCommitLog.class.getName());
 
     private final Path snapshotsDirectory;
+    private final CodePoolDataStore codePoolDataStore;
     private final Path logDirectory;
     private LogSequenceNumber recoveredLogSequence;
 
@@ -226,6 +228,7 @@ public class FileCommitLog extends StatusChangesLog {
     public FileCommitLog(Path snapshotsDirectory, Path logDirectory, long maxLogFileSize) {
         this.maxLogFileSize = maxLogFileSize;
         this.snapshotsDirectory = snapshotsDirectory.toAbsolutePath();
+        this.codePoolDataStore = new CodePoolDataStore(this.snapshotsDirectory.resolve("codepools"));
         this.logDirectory = logDirectory.toAbsolutePath();
         this.spool = new Thread(new SpoolTask(), "commitlog-" + logDirectory);
         this.spool.setDaemon(true);
@@ -472,7 +475,7 @@ public class FileCommitLog extends StatusChangesLog {
         try (OutputStream out = Files.newOutputStream(snapshotfilename_tmp);
             BufferedOutputStream bout = new BufferedOutputStream(out, 64 * 1024);
             GZIPOutputStream zout = new GZIPOutputStream(bout)) {
-            BrokerStatusSnapshot.serializeSnapshot(snapshotData, zout);
+            BrokerStatusSnapshot.serializeSnapshot(snapshotData, zout, codePoolDataStore);
         } catch (IOException err) {
             throw new LogNotAvailableException(err);
         }
@@ -518,6 +521,11 @@ public class FileCommitLog extends StatusChangesLog {
 
             Path snapshotfilename = writeSnapshotOnDisk(snapshotData);
             deleteOldSnapshots(snapshotfilename);
+            try {
+                codePoolDataStore.retainOnly(snapshotData.getCodePools());
+            } catch (IOException err) {
+                throw new LogNotAvailableException(err);
+            }
 
             try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDirectory)) {
                 List<Path> names = new ArrayList<>();
@@ -594,7 +602,7 @@ public class FileCommitLog extends StatusChangesLog {
             try (InputStream in = Files.newInputStream(snapshotfilename);
                 BufferedInputStream bin = new BufferedInputStream(in);
                 GZIPInputStream gzip = new GZIPInputStream(bin)) {
-                BrokerStatusSnapshot result = BrokerStatusSnapshot.deserializeSnapshot(gzip);
+                BrokerStatusSnapshot result = BrokerStatusSnapshot.deserializeSnapshot(gzip, codePoolDataStore);
                 currentLedgerId = result.getActualLogSequenceNumber().ledgerId;
                 return result;
             } catch (IOException err) {
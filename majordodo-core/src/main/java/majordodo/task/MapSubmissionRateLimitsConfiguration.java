@@ -0,0 +1,78 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Simple configuration based on Maps. The {@link #DEFAULT} key defines the
+ * limit of the users (or task types) which are not listed explicitly
+ *
+ * @author enrico.olivelli
+ */
+public class MapSubmissionRateLimitsConfiguration implements SubmissionRateLimitsConfiguration {
+
+    public static final String DEFAULT = "*";
+
+    private volatile Map<String, SubmissionRateLimit> userLimits;
+    private volatile Map<String, SubmissionRateLimit> taskTypeLimits;
+
+    public MapSubmissionRateLimitsConfiguration(Map<String, SubmissionRateLimit> userLimits, Map<String, SubmissionRateLimit> taskTypeLimits) {
+        setUserLimits(userLimits);
+        setTaskTypeLimits(taskTypeLimits);
+    }
+
+    public MapSubmissionRateLimitsConfiguration() {
+        this(null, null);
+    }
+
+    public Map<String, SubmissionRateLimit> getUserLimits() {
+        return userLimits;
+    }
+
+    public void setUserLimits(Map<String, SubmissionRateLimit> userLimits) {
+        this.userLimits = userLimits != null ? Collections.unmodifiableMap(userLimits) : Collections.emptyMap();
+    }
+
+    public Map<String, SubmissionRateLimit> getTaskTypeLimits() {
+        return taskTypeLimits;
+    }
+
+    public void setTaskTypeLimits(Map<String, SubmissionRateLimit> taskTypeLimits) {
+        this.taskTypeLimits = taskTypeLimits != null ? Collections.unmodifiableMap(taskTypeLimits) : Collections.emptyMap();
+    }
+
+    private static SubmissionRateLimit lookup(Map<String, SubmissionRateLimit> limits, String key) {
+        SubmissionRateLimit limit = limits.get(key);
+        return limit != null ? limit : limits.get(DEFAULT);
+    }
+
+    @Override
+    public SubmissionRateLimit getUserRateLimit(String userId) {
+        return lookup(userLimits, userId);
+    }
+
+    @Override
+    public SubmissionRateLimit getTaskTypeRateLimit(String taskType) {
+        return lookup(taskTypeLimits, taskType);
+    }
+
+}
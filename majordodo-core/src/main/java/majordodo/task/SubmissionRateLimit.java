@@ -0,0 +1,82 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+/**
+ * Rate limit on the submission of tasks: a token bucket which is refilled at
+ * a fixed rate and which can hold at most {@link #getBurst()} tokens
+ *
+ * @author enrico.olivelli
+ */
+public final class SubmissionRateLimit {
+
+    private final double tasksPerSecond;
+    private final int burst;
+
+    public SubmissionRateLimit(double tasksPerSecond, int burst) {
+        if (!(tasksPerSecond > 0)) {
+            throw new IllegalArgumentException("invalid rate " + tasksPerSecond);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("invalid burst " + burst);
+        }
+        this.tasksPerSecond = tasksPerSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * Sustained number of submissions per second
+     *
+     * @return
+     */
+    public double getTasksPerSecond() {
+        return tasksPerSecond;
+    }
+
+    /**
+     * Max number of submissions which are accepted at once after a period of
+     * inactivity
+     *
+     * @return
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Double.hashCode(tasksPerSecond) + burst;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof SubmissionRateLimit)) {
+            return false;
+        }
+        SubmissionRateLimit other = (SubmissionRateLimit) obj;
+        return Double.compare(tasksPerSecond, other.tasksPerSecond) == 0 && burst == other.burst;
+    }
+
+    @Override
+    public String toString() {
+        return "SubmissionRateLimit{" + "tasksPerSecond=" + tasksPerSecond + ", burst=" + burst + '}';
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import majordodo.clientfacade.SubmissionRateLimitsView;
+
+/**
+ * Admission control on the submission of tasks, with a token bucket for each
+ * limited user and task type.
+ * <p>
+ * The limits are read from the configuration at every submission: when a
+ * limit changes the bucket keeps its tokens (up to the new burst), when a
+ * limit is removed the bucket is dropped
+ *
+ * @author enrico.olivelli
+ * @see SubmissionRateLimitsConfiguration
+ */
+public class SubmissionRateLimiter {
+
+    private final Supplier<SubmissionRateLimitsConfiguration> configuration;
+    private final LongSupplier nanoTime;
+    private final ConcurrentHashMap<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> taskTypeBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counters> userCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counters> taskTypeCounters = new ConcurrentHashMap<>();
+
+    public SubmissionRateLimiter(Supplier<SubmissionRateLimitsConfiguration> configuration) {
+        this(configuration, System::nanoTime);
+    }
+
+    SubmissionRateLimiter(Supplier<SubmissionRateLimitsConfiguration> configuration, LongSupplier nanoTime) {
+        this.configuration = configuration;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Takes a token from the buckets of the user and of the task type
+     *
+     * @param userId
+     * @param taskType
+     * @return 0 if the submission is accepted, otherwise the number of
+     * milliseconds after which the submission should be retried
+     */
+    public long tryAcquire(String userId, String taskType) {
+        String user = userId != null ? userId : "";
+        String type = taskType != null ? taskType : "";
+        SubmissionRateLimitsConfiguration limits = configuration.get();
+        long now = nanoTime.getAsLong();
+
+        SubmissionRateLimit userLimit = limits.getUserRateLimit(user);
+        TokenBucket userBucket = getBucket(userBuckets, user, userLimit, now);
+        long retryAfter = userBucket != null ? userBucket.tryAcquire(userLimit, now) : 0;
+        if (retryAfter == 0) {
+            SubmissionRateLimit taskTypeLimit = limits.getTaskTypeRateLimit(type);
+            TokenBucket taskTypeBucket = getBucket(taskTypeBuckets, type, taskTypeLimit, now);
+            retryAfter = taskTypeBucket != null ? taskTypeBucket.tryAcquire(taskTypeLimit, now) : 0;
+            if (retryAfter > 0 && userBucket != null) {
+                // the task is not submitted, give the token back
+                userBucket.release();
+            }
+        }
+
+        boolean accepted = retryAfter == 0;
+        userCounters.computeIfAbsent(user, k -> new Counters()).count(accepted);
+        taskTypeCounters.computeIfAbsent(type, k -> new Counters()).count(accepted);
+        return retryAfter;
+    }
+
+    private static TokenBucket getBucket(ConcurrentHashMap<String, TokenBucket> buckets, String key, SubmissionRateLimit limit, long now) {
+        if (limit == null) {
+            if (!buckets.isEmpty()) {
+                buckets.remove(key);
+            }
+            return null;
+        }
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(limit, now));
+    }
+
+    public SubmissionRateLimitsView createView() {
+        SubmissionRateLimitsView res = new SubmissionRateLimitsView();
+        userCounters.forEach((user, counters) -> res.getUsers().put(user, counters.toView()));
+        taskTypeCounters.forEach((type, counters) -> res.getTaskTypes().put(type, counters.toView()));
+        return res;
+    }
+
+    /**
+     * Counters of the given user
+     *
+     * @param userId
+     * @return
+     */
+    public SubmissionRateLimitsView.Counters getUserCounters(String userId) {
+        Counters counters = userCounters.get(userId != null ? userId : "");
+        return counters != null ? counters.toView() : new SubmissionRateLimitsView.Counters();
+    }
+
+    private static final class TokenBucket {
+
+        private SubmissionRateLimit limit;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(SubmissionRateLimit limit, long now) {
+            this.limit = limit;
+            this.tokens = limit.getBurst();
+            this.lastRefill = now;
+        }
+
+        synchronized long tryAcquire(SubmissionRateLimit currentLimit, long now) {
+            if (!currentLimit.equals(limit)) {
+                // the configuration has been reloaded
+                limit = currentLimit;
+                tokens = Math.min(tokens, limit.getBurst());
+            }
+            long elapsed = now - lastRefill;
+            if (elapsed > 0) {
+                tokens = Math.min(limit.getBurst(), tokens + elapsed * limit.getTasksPerSecond() / TimeUnit.SECONDS.toNanos(1));
+                lastRefill = now;
+            }
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            double missingSeconds = (1 - tokens) / limit.getTasksPerSecond();
+            return Math.max(1, (long) Math.ceil(missingSeconds * 1000));
+        }
+
+        synchronized void release() {
+            tokens = Math.min(limit.getBurst(), tokens + 1);
+        }
+    }
+
+    private static final class Counters {
+
+        private final LongAdder accepted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        void count(boolean isAccepted) {
+            if (isAccepted) {
+                accepted.increment();
+            } else {
+                rejected.increment();
+            }
+        }
+
+        SubmissionRateLimitsView.Counters toView() {
+            return new SubmissionRateLimitsView.Counters(accepted.sum(), rejected.sum());
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+/**
+ * Defines the limits on the rate of submission of tasks, per user and per
+ * task type. Limits are checked before the tasks are written to the log. The
+ * configuration is read at every submission, so it can be changed at runtime
+ *
+ * @author enrico.olivelli
+ */
+public interface SubmissionRateLimitsConfiguration {
+
+    /**
+     * Limit on the submissions of the given user
+     *
+     * @param userId
+     * @return the limit, null for no limit
+     */
+    public SubmissionRateLimit getUserRateLimit(String userId);
+
+    /**
+     * Limit on the submissions of tasks of the given type, shared among all
+     * the users
+     *
+     * @param taskType
+     * @return the limit, null for no limit
+     */
+    public SubmissionRateLimit getTaskTypeRateLimit(String taskType);
+}
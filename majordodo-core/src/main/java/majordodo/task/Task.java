@@ -70,6 +70,10 @@ public class Task implements Delayed {
         }
     }
 
+    public static boolean isFinalStatus(int status) {
+        return status == STATUS_FINISHED || status == STATUS_ERROR;
+    }
+
     public static String statusToString(int status) {
         switch (status) {
             case STATUS_ERROR:
@@ -0,0 +1,92 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import majordodo.clientfacade.TaskStatusView;
+
+/**
+ * Stream of the changes of status of the tasks of a given user and/or
+ * tasktype. Events are buffered up to a fixed capacity, when the consumer is
+ * too slow further events are dropped and the subscription is marked as
+ * overflowed
+ *
+ * @author enrico.olivelli
+ */
+public final class TaskEventsSubscription implements AutoCloseable {
+
+    private final TaskStatusNotifier notifier;
+    private final String userId;
+    private final String taskType;
+    private final BlockingQueue<TaskStatusView> events;
+    private volatile boolean overflowed;
+
+    TaskEventsSubscription(TaskStatusNotifier notifier, String userId, String taskType, int capacity) {
+        this.notifier = notifier;
+        this.userId = userId == null || userId.isEmpty() ? null : userId;
+        this.taskType = taskType == null || taskType.isEmpty() ? null : taskType;
+        this.events = new ArrayBlockingQueue<>(capacity);
+    }
+
+    boolean accept(Task task) {
+        return (userId == null || userId.equalsIgnoreCase(task.getUserId()))
+            && (taskType == null || taskType.equalsIgnoreCase(task.getType()));
+    }
+
+    void offer(TaskStatusView event) {
+        if (!events.offer(event)) {
+            overflowed = true;
+        }
+    }
+
+    /**
+     * Waits for the next change of status
+     *
+     * @param timeout
+     * @param unit
+     * @return the new status of the task, null in case of timeout
+     * @throws InterruptedException
+     */
+    public TaskStatusView poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return events.poll(timeout, unit);
+    }
+
+    /**
+     * Tells whether some event has been lost since the last call and resets
+     * the flag
+     *
+     * @return
+     */
+    public boolean checkAndClearOverflow() {
+        if (overflowed) {
+            overflowed = false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        notifier.unsubscribe(this);
+    }
+
+}
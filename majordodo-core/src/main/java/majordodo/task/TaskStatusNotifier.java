@@ -0,0 +1,92 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import majordodo.clientfacade.TaskStatusView;
+
+/**
+ * Dispatches changes of status of tasks to clients waiting for them.
+ * {@link BrokerStatus} notifies every change while applying edits, under its
+ * write lock, so a notification costs a lookup by task id and a pass over the
+ * (few) active event subscriptions
+ *
+ * @author enrico.olivelli
+ */
+final class TaskStatusNotifier {
+
+    private final ConcurrentHashMap<Long, List<TaskCompletionListener>> waiters = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<TaskEventsSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    void taskStatusChanged(Task task) {
+        TaskStatusView view = null;
+        if (Task.isFinalStatus(task.getStatus())) {
+            // a final status never changes, so each waiter is notified only once
+            List<TaskCompletionListener> listeners = waiters.remove(task.getTaskId());
+            if (listeners != null) {
+                view = BrokerStatus.createTaskStatusView(task);
+                for (TaskCompletionListener listener : listeners) {
+                    listener.taskCompleted(view);
+                }
+            }
+        }
+        if (!subscriptions.isEmpty()) {
+            for (TaskEventsSubscription subscription : subscriptions) {
+                if (subscription.accept(task)) {
+                    if (view == null) {
+                        view = BrokerStatus.createTaskStatusView(task);
+                    }
+                    subscription.offer(view);
+                }
+            }
+        }
+    }
+
+    void addWaiter(long taskId, TaskCompletionListener listener) {
+        // lists are never modified after being published
+        waiters.compute(taskId, (id, listeners) -> {
+            List<TaskCompletionListener> res = listeners == null ? new ArrayList<>(1) : new ArrayList<>(listeners);
+            res.add(listener);
+            return res;
+        });
+    }
+
+    void removeWaiter(long taskId, TaskCompletionListener listener) {
+        waiters.computeIfPresent(taskId, (id, listeners) -> {
+            List<TaskCompletionListener> res = new ArrayList<>(listeners);
+            res.remove(listener);
+            return res.isEmpty() ? null : res;
+        });
+    }
+
+    TaskEventsSubscription subscribe(String userId, String taskType, int capacity) {
+        TaskEventsSubscription subscription = new TaskEventsSubscription(this, userId, taskType, capacity);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    void unsubscribe(TaskEventsSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+}
@@ -147,7 +147,15 @@ public class TasksHeap {
         this.actuallist = newList;
     }
 
-    public void insertTask(long taskid, String tasktype, String userid) {
+    /**
+     * Inserts a task in the heap
+     *
+     * @param taskid
+     * @param tasktype
+     * @param userid
+     * @return the group of the task
+     */
+    public int insertTask(long taskid, String tasktype, String userid) {
         TaskProperties taskProperties = resourceMapper.getTaskProperties(taskid, tasktype, userid);
         int groupid = taskProperties.groupId;
         String[] resourceIds = taskProperties.resources;
@@ -172,6 +180,7 @@ public class TasksHeap {
         } finally {
             lock.writeLock().unlock();
         }
+        return groupid;
     }
 
     String resolveTaskType(int tasktype) {
@@ -0,0 +1,231 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import majordodo.clientfacade.TaskQuery;
+
+/**
+ * Secondary indexes over the tasks of the {@link BrokerStatus}, by status,
+ * user, tasktype and worker. Every index keeps task ids sorted, so that queries
+ * can be paginated by task id without scanning all the tasks. Not thread safe,
+ * access is guarded by the lock of the BrokerStatus
+ *
+ * @author enrico.olivelli
+ */
+final class TasksIndex {
+
+    private final Map<Integer, NavigableSet<Long>> byStatus = new HashMap<>();
+    private final Map<String, NavigableSet<Long>> byUser = new HashMap<>();
+    private final Map<String, NavigableSet<Long>> byTaskType = new HashMap<>();
+    private final Map<String, NavigableSet<Long>> byWorker = new HashMap<>();
+
+    void add(Task task) {
+        Long taskId = task.getTaskId();
+        addKey(byStatus, task.getStatus(), taskId);
+        addKey(byUser, normalize(task.getUserId()), taskId);
+        addKey(byTaskType, normalize(task.getType()), taskId);
+        addKey(byWorker, normalize(task.getWorkerId()), taskId);
+    }
+
+    void remove(Task task) {
+        Long taskId = task.getTaskId();
+        removeKey(byStatus, task.getStatus(), taskId);
+        removeKey(byUser, normalize(task.getUserId()), taskId);
+        removeKey(byTaskType, normalize(task.getType()), taskId);
+        removeKey(byWorker, normalize(task.getWorkerId()), taskId);
+    }
+
+    /**
+     * Updates the indexes after a change of status and/or of worker of the
+     * task
+     *
+     * @param task
+     * @param oldStatus
+     * @param oldWorkerId
+     */
+    void update(Task task, int oldStatus, String oldWorkerId) {
+        Long taskId = task.getTaskId();
+        if (oldStatus != task.getStatus()) {
+            removeKey(byStatus, oldStatus, taskId);
+            addKey(byStatus, task.getStatus(), taskId);
+        }
+        String oldWorker = normalize(oldWorkerId);
+        String newWorker = normalize(task.getWorkerId());
+        if (oldWorker == null ? newWorker != null : !oldWorker.equals(newWorker)) {
+            removeKey(byWorker, oldWorker, taskId);
+            addKey(byWorker, newWorker, taskId);
+        }
+    }
+
+    void clear() {
+        byStatus.clear();
+        byUser.clear();
+        byTaskType.clear();
+        byWorker.clear();
+    }
+
+    /**
+     * Returns the ids of the tasks which may match the query, in ascending
+     * order and greater than the cursor of the query. The most selective index
+     * among the ones usable for the query is used, so the caller MUST still
+     * check every task against the query
+     *
+     * @param query
+     * @return
+     */
+    Iterator<Long> candidates(TaskQuery query) {
+        List<NavigableSet<Long>> sets = new ArrayList<>();
+        if (query.getStatus() != TaskQuery.STATUS_ANY) {
+            sets.add(byStatus.get(query.getStatus()));
+        }
+        if (isFilter(query.getUserId())) {
+            sets.add(byUser.get(normalize(query.getUserId())));
+        }
+        if (isFilter(query.getTaskType())) {
+            sets.add(byTaskType.get(normalize(query.getTaskType())));
+        }
+        if (isFilter(query.getWorkerId())) {
+            sets.add(byWorker.get(normalize(query.getWorkerId())));
+        }
+        long after = query.getAfterTaskId();
+        if (sets.isEmpty()) {
+            // every task is in exactly one status index
+            List<Iterator<Long>> iterators = new ArrayList<>(byStatus.size());
+            for (NavigableSet<Long> set : byStatus.values()) {
+                iterators.add(set.tailSet(after, false).iterator());
+            }
+            return new MergeIterator(iterators);
+        }
+        NavigableSet<Long> best = null;
+        for (NavigableSet<Long> set : sets) {
+            if (set == null) {
+                return Collections.emptyIterator();
+            }
+            if (best == null || set.size() < best.size()) {
+                best = set;
+            }
+        }
+        return best.tailSet(after, false).iterator();
+    }
+
+    static boolean matches(Task task, TaskQuery query) {
+        return (query.getStatus() == TaskQuery.STATUS_ANY || task.getStatus() == query.getStatus())
+            && matches(task.getUserId(), query.getUserId())
+            && matches(task.getType(), query.getTaskType())
+            && matches(task.getWorkerId(), query.getWorkerId())
+            && matches(task.getSlot(), query.getSlot());
+    }
+
+    private static boolean matches(String value, String filter) {
+        return !isFilter(filter) || filter.equalsIgnoreCase(value);
+    }
+
+    private static boolean isFilter(String filter) {
+        return filter != null && !filter.isEmpty();
+    }
+
+    private static String normalize(String key) {
+        if (key == null || key.isEmpty()) {
+            return null;
+        }
+        return key.toLowerCase();
+    }
+
+    private static <K> void addKey(Map<K, NavigableSet<Long>> index, K key, Long taskId) {
+        if (key == null) {
+            return;
+        }
+        NavigableSet<Long> set = index.get(key);
+        if (set == null) {
+            set = new TreeSet<>();
+            index.put(key, set);
+        }
+        set.add(taskId);
+    }
+
+    private static <K> void removeKey(Map<K, NavigableSet<Long>> index, K key, Long taskId) {
+        if (key == null) {
+            return;
+        }
+        NavigableSet<Long> set = index.get(key);
+        if (set != null && set.remove(taskId) && set.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * Merges sorted iterators over disjoint sets
+     */
+    private static final class MergeIterator implements Iterator<Long> {
+
+        private final List<Iterator<Long>> iterators;
+        private final Long[] heads;
+
+        MergeIterator(List<Iterator<Long>> iterators) {
+            this.iterators = iterators;
+            this.heads = new Long[iterators.size()];
+            for (int i = 0; i < heads.length; i++) {
+                advance(i);
+            }
+        }
+
+        private void advance(int i) {
+            Iterator<Long> it = iterators.get(i);
+            heads[i] = it.hasNext() ? it.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (Long head : heads) {
+                if (head != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Long next() {
+            int min = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] != null && (min < 0 || heads[i] < heads[min])) {
+                    min = i;
+                }
+            }
+            if (min < 0) {
+                throw new NoSuchElementException();
+            }
+            Long res = heads[min];
+            advance(min);
+            return res;
+        }
+
+    }
+
+}
@@ -19,6 +19,7 @@
  */
 package majordodo.task;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -28,6 +29,7 @@ import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,9 +51,10 @@ public class WorkerManager {
 
     private int maxThreads = 0;
     private int maxThreadPerUserPerTaskTypePercent = 0;
-    private Map<String, Integer> maxThreadsByTaskType = Collections.emptyMap();
-    private List<Integer> groups = Collections.emptyList();
-    private Set<Integer> excludedGroups = Collections.emptySet();
+    private int prefetch = 0;
+    private volatile Map<String, Integer> maxThreadsByTaskType = Collections.emptyMap();
+    private volatile List<Integer> groups = Collections.emptyList();
+    private volatile Set<Integer> excludedGroups = Collections.emptySet();
     private Map<String, Integer> resourceLimis = Collections.emptyMap();
 
     private long lastActivity = System.currentTimeMillis();
@@ -71,10 +74,12 @@ public class WorkerManager {
         List<Integer> groups,
         Set<Integer> excludedGroups,
         Map<String, Integer> resourceLimis,
-        int maxThreadPerUserPerTaskTypePercent) {
+        int maxThreadPerUserPerTaskTypePercent,
+        int prefetch) {
         LOGGER.log(Level.FINEST, "{0} applyConfiguration maxThreads {1} maxThreadPerUserPerTaskTypePercent {2} ", new Object[]{workerId, maxThreads});
         this.maxThreads = maxThreads;
         this.maxThreadPerUserPerTaskTypePercent = maxThreadPerUserPerTaskTypePercent;
+        this.prefetch = Math.max(0, prefetch);
         Map<String, Integer> maxThreadsByTaskTypeNoZero = new HashMap<>(maxThreadsByTaskType);
         for (Iterator<Map.Entry<String, Integer>> it = maxThreadsByTaskTypeNoZero.entrySet().iterator(); it.hasNext();) {
             Map.Entry<String, Integer> entry = it.next();
@@ -93,6 +98,11 @@ public class WorkerManager {
         int max = this.maxThreads;
         try {
             Map<String, Integer> availableSpace = new HashMap<>(this.maxThreadsByTaskType);
+            if (prefetch > 0 && max > 0) {
+                // the worker keeps the tasks over its limits in a local queue
+                max += prefetch;
+                availableSpace.replaceAll((taskType, limit) -> limit + prefetch);
+            }
             int actuallyRunning = broker.getBrokerStatus().applyRunningTasksFilterToAssignTasksRequest(workerId, availableSpace);
             LOGGER.log(Level.FINEST, "{0} requestNewTasks actuallyRunning {2} max {3} groups {4},excludedGroups {5} availableSpace {1}, maxThreadsByTaskType {6}, maxThreadPerUserPerTaskTypePercent {7} ",
                 new Object[]{workerId, availableSpace + "", actuallyRunning, max, groups, excludedGroups, maxThreadsByTaskType, maxThreadPerUserPerTaskTypePercent});
@@ -120,6 +130,7 @@ public class WorkerManager {
     }
 
     private volatile boolean threadAssigned;
+    private final AtomicBoolean wakeUpRequested = new AtomicBoolean();
 
     public boolean isThreadAssigned() {
         return threadAssigned;
@@ -129,6 +140,32 @@ public class WorkerManager {
         threadAssigned = true;
     }
 
+    void requestWakeUp() {
+        wakeUpRequested.set(true);
+    }
+
+    boolean consumeWakeUpRequest() {
+        return wakeUpRequested.getAndSet(false);
+    }
+
+    /**
+     * Checks whether the worker could run a task, according to its
+     * configuration
+     *
+     * @param groupId
+     * @param taskType
+     * @return
+     */
+    boolean canRunTask(int groupId, String taskType) {
+        Map<String, Integer> _maxThreadsByTaskType = maxThreadsByTaskType;
+        if (!_maxThreadsByTaskType.containsKey(taskType) && !_maxThreadsByTaskType.containsKey(Task.TASKTYPE_ANY)) {
+            return false;
+        }
+        List<Integer> _groups = groups;
+        return _groups.contains(groupId)
+            || (_groups.contains(Task.GROUP_ANY) && !excludedGroups.contains(groupId));
+    }
+
     public Runnable operation() {
         return new Runnable() {
             @Override
@@ -140,6 +177,10 @@ public class WorkerManager {
                 } finally {
                     Thread.currentThread().setName(name);
                     threadAssigned = false;
+                    if (wakeUpRequested.get()) {
+                        // an event arrived during this run
+                        broker.getWorkers().wakeUp(WorkerManager.this);
+                    }
                 }
             }
         };
@@ -191,6 +232,8 @@ public class WorkerManager {
                 }
                 LOGGER.log(Level.FINEST, "wakeup {0}, lastActivity {1}  taskToBeSubmittedToRemoteWorker {2} tasksRunningOnRemoteWorker {3}", new Object[]{workerId, new java.util.Date(lastActivity), taskToBeSubmittedToRemoteWorker, tasksRunningOnRemoteWorker});
                 requestNewTasks();
+                List<Task> tasksToSend = new ArrayList<>();
+                Map<Long, AssignedTask> assignedTasksToSend = new HashMap<>();
                 int max = 100;
                 while (max-- > 0) {
                     AssignedTask taskToBeSubmitted = taskToBeSubmittedToRemoteWorker.poll();
@@ -204,18 +247,11 @@ public class WorkerManager {
                         } else {
                             if (tasksRunningOnRemoteWorker.contains(taskToBeSubmitted.taskid)) {
                                 LOGGER.log(Level.SEVERE, "wakeup {0} -> assign task {1}, task {2} is already running on worker", new Object[]{workerId, taskToBeSubmitted, task});
-                                return;
+                                break;
                             }
                             if (task.getStatus() == Task.STATUS_RUNNING && task.getWorkerId().equals(workerId)) {
-                                connection.sendTaskAssigned(task, (Void result, Throwable error) -> {
-                                    if (error != null) {
-                                        // the write failed
-                                        LOGGER.log(Level.SEVERE, "wakeup {0} -> assign task {1}, task {2} network failure, rescheduling for retry:{3}", new Object[]{workerId, taskToBeSubmitted, task, error});
-                                        taskToBeSubmittedToRemoteWorker.add(taskToBeSubmitted);
-                                    } else {
-                                        tasksRunningOnRemoteWorker.add(taskToBeSubmitted.taskid);
-                                    }
-                                });
+                                tasksToSend.add(task);
+                                assignedTasksToSend.put(taskId, taskToBeSubmitted);
                             } else {
                                 LOGGER.log(Level.SEVERE, "wakeup {0} -> assign task {1}, task {2} not in running status for this worker", new Object[]{workerId, taskToBeSubmitted, task});
                             }
@@ -224,7 +260,23 @@ public class WorkerManager {
                         break;
                     }
                 }
-
+                if (!tasksToSend.isEmpty()) {
+                    connection.sendTasksAssigned(tasksToSend, (Task task, Throwable error) -> {
+                        AssignedTask taskToBeSubmitted = assignedTasksToSend.get(task.getTaskId());
+                        if (error != null) {
+                            // the write failed
+                            LOGGER.log(Level.SEVERE, "wakeup {0} -> assign task {1}, task {2} network failure, rescheduling for retry:{3}", new Object[]{workerId, taskToBeSubmitted, task, error});
+                            taskToBeSubmittedToRemoteWorker.add(taskToBeSubmitted);
+                            broker.getWorkers().wakeUp(this);
+                        } else {
+                            tasksRunningOnRemoteWorker.add(taskToBeSubmitted.taskid);
+                        }
+                    });
+                }
+                if (!taskToBeSubmittedToRemoteWorker.isEmpty()) {
+                    // more than one batch of tasks
+                    requestWakeUp();
+                }
             }
         } finally {
             connectionLock.unlock();
@@ -52,10 +52,13 @@ public class Workers {
     private final ExecutorService workersThreadpool;
 
     private final Object waitForEvent = new Object();
+    private boolean eventPending;
+    private final long scanPeriod;
 
     public Workers(Broker broker) {
         this.broker = broker;
         this.workersActivityThread = new Thread(new Life(), "workers-life");
+        this.scanPeriod = broker.getConfiguration().getWorkersScanPeriod();
         this.workersThreadpool = Executors.newFixedThreadPool(broker.getConfiguration().getWorkersThreadpoolSize(), new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -119,9 +122,19 @@ public class Workers {
         @Override
         public void run() {
             try {
+                long nextScan = 0;
                 while (!stop) {
                     synchronized (waitForEvent) {
-                        waitForEvent.wait(500);
+                        long now = System.currentTimeMillis();
+                        if (!eventPending && now < nextScan) {
+                            waitForEvent.wait(nextScan - now);
+                        }
+                        eventPending = false;
+                    }
+                    long now = System.currentTimeMillis();
+                    boolean fullScan = now >= nextScan;
+                    if (fullScan) {
+                        nextScan = now + scanPeriod;
                     }
                     List<WorkerManager> managers;
                     lock.readLock().lock();
@@ -130,9 +143,12 @@ public class Workers {
                     } finally {
                         lock.readLock().unlock();
                     }
-                    Collections.shuffle(managers);
+                    if (fullScan) {
+                        Collections.shuffle(managers);
+                    }
                     for (WorkerManager man : managers) {
-                        if (!man.isThreadAssigned()) {
+                        // a manager which is already running will be woken up again at the end of its run
+                        if (!man.isThreadAssigned() && (man.consumeWakeUpRequest() || fullScan)) {
                             man.threadAssigned();
                             try {
                                 workersThreadpool.submit(man.operation());
@@ -150,12 +166,60 @@ public class Workers {
         }
     }
 
-    public void wakeUp() {
+    private void signalEvent() {
         synchronized (waitForEvent) {
+            eventPending = true;
             waitForEvent.notify();
         }
     }
 
+    /**
+     * Wakes up every manager
+     */
+    public void wakeUp() {
+        lock.readLock().lock();
+        try {
+            nodeManagers.values().forEach(WorkerManager::requestWakeUp);
+        } finally {
+            lock.readLock().unlock();
+        }
+        signalEvent();
+    }
+
+    /**
+     * Wakes up a single manager
+     *
+     * @param manager
+     */
+    public void wakeUp(WorkerManager manager) {
+        manager.requestWakeUp();
+        signalEvent();
+    }
+
+    /**
+     * Wakes up the managers of the workers which could run a new task
+     *
+     * @param groupId
+     * @param taskType
+     */
+    public void taskAvailable(int groupId, String taskType) {
+        boolean found = false;
+        lock.readLock().lock();
+        try {
+            for (WorkerManager manager : nodeManagers.values()) {
+                if (manager.canRunTask(groupId, taskType)) {
+                    manager.requestWakeUp();
+                    found = true;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (found) {
+            signalEvent();
+        }
+    }
+
     public WorkerManager getWorkerManagerNoCreate(String id) {
         lock.readLock().lock();
         try {
@@ -0,0 +1,93 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.worker;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import majordodo.executors.BatchTaskExecutor;
+
+/**
+ * Real execution of a group of tasks of the same tasktype
+ *
+ * @author enrico.olivelli
+ */
+public class BatchExecutorRunnable implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(BatchExecutorRunnable.class.getName());
+
+    private final BatchTaskExecutor executor;
+    private final List<Map<String, Object>> tasks;
+    private final ExecutorRunnable.TaskExecutionCallback callback;
+
+    public BatchExecutorRunnable(BatchTaskExecutor executor, List<Map<String, Object>> tasks, ExecutorRunnable.TaskExecutionCallback callback) {
+        this.executor = executor;
+        this.tasks = tasks;
+        this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+        long _start = System.nanoTime();
+        // tasks without an outcome
+        Map<Long, Map<String, Object>> pending = new ConcurrentHashMap<>();
+        for (Map<String, Object> parameters : tasks) {
+            long taskId = (Long) parameters.get("taskid");
+            pending.put(taskId, parameters);
+            callback.taskStatusChanged(taskId, parameters, TaskExecutorStatus.RUNNING, null, null);
+        }
+        BatchTaskExecutor.Results results = new BatchTaskExecutor.Results() {
+            @Override
+            public void taskFinished(long taskId, String result) {
+                Map<String, Object> parameters = pending.remove(taskId);
+                if (parameters != null) {
+                    callback.taskStatusChanged(taskId, parameters, TaskExecutorStatus.FINISHED, result, null);
+                }
+            }
+
+            @Override
+            public void taskError(long taskId, Throwable error) {
+                Map<String, Object> parameters = pending.remove(taskId);
+                if (parameters != null) {
+                    LOGGER.log(Level.SEVERE, "error while executing task " + parameters, error);
+                    callback.taskStatusChanged(taskId, parameters, TaskExecutorStatus.ERROR, null, error);
+                }
+            }
+        };
+        Throwable error;
+        try {
+            executor.executeTasks(Collections.unmodifiableList(tasks), results);
+            error = new Exception("no result for the task from the batch executor " + executor);
+        } catch (Throwable t) {
+            LOGGER.log(Level.SEVERE, "error while executing a batch of " + tasks.size() + " tasks", t);
+            error = t;
+        }
+        for (Long taskId : pending.keySet()) {
+            results.taskError(taskId, error);
+        }
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            long _end = System.nanoTime();
+            LOGGER.log(Level.FINEST, "batch time " + tasks.size() + " tasks " + (_end - _start) + " ns");
+        }
+    }
+}
@@ -21,6 +21,8 @@ package majordodo.worker;
 
 import java.util.Map;
 import majordodo.codepools.CodePoolClassloadersManager;
+import majordodo.executors.BatchTaskExecutor;
+import majordodo.executors.BatchTaskExecutorFactory;
 import majordodo.executors.TaskExecutor;
 import majordodo.executors.TaskExecutorFactory;
 
@@ -29,7 +31,7 @@ import majordodo.executors.TaskExecutorFactory;
  *
  * @author enrico.olivelli
  */
-public class CodePoolAwareExecutorFactory implements TaskExecutorFactory {
+public class CodePoolAwareExecutorFactory implements BatchTaskExecutorFactory {
 
     private final TaskExecutorFactory inner;
     private final CodePoolClassloadersManager classloadersManager;
@@ -45,8 +47,9 @@ public class CodePoolAwareExecutorFactory implements TaskExecutorFactory {
         if (codePoolId == null) {
             return inner.createTaskExecutor(taskType, parameters);
         }
-        try {            
-            ClassLoader cl = classloadersManager.getCodePoolClassloader(codePoolId);
+        try {
+            ClassLoader cl = classloadersManager.acquireCodePoolClassloader((Long) parameters.get("taskid"), codePoolId,
+                (String) parameters.get("codepoolhash"));
             ClassLoader tccl = Thread.currentThread().getContextClassLoader();
             Thread.currentThread().setContextClassLoader(cl);
             try {
@@ -65,4 +68,15 @@ public class CodePoolAwareExecutorFactory implements TaskExecutorFactory {
 
     }
 
+    /**
+     * Batches are only for tasks without a CodePool
+     */
+    @Override
+    public BatchTaskExecutor createBatchTaskExecutor(String taskType) {
+        if (inner instanceof BatchTaskExecutorFactory) {
+            return ((BatchTaskExecutorFactory) inner).createBatchTaskExecutor(taskType);
+        }
+        return null;
+    }
+
 }
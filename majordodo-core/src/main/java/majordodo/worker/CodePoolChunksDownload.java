@@ -0,0 +1,160 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.worker;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import majordodo.client.CodePoolUtils;
+import majordodo.network.Channel;
+import majordodo.network.Message;
+
+/**
+ * Downloads the chunks of a CodePool, with a bounded number of requests in
+ * flight. The broker never has to buffer more than a few chunks for each
+ * worker, and the worker can verify each chunk as soon as it arrives
+ *
+ * @author enrico.olivelli
+ */
+class CodePoolChunksDownload {
+
+    private final Channel channel;
+    private final String workerId;
+    private final String codePoolId;
+    private final String hash;
+    private final int size;
+    private final List<String> chunks;
+    private final int parallelism;
+    private final long timeout;
+    private final byte[][] parts;
+    private volatile Throwable error;
+
+    CodePoolChunksDownload(Channel channel, String workerId, String codePoolId, String hash, int size, List<String> chunks, int parallelism, long timeout) {
+        this.channel = channel;
+        this.workerId = workerId;
+        this.codePoolId = codePoolId;
+        this.hash = hash;
+        this.size = size;
+        this.chunks = chunks;
+        this.parallelism = Math.max(1, parallelism);
+        this.timeout = timeout;
+        this.parts = new byte[chunks.size()][];
+    }
+
+    byte[] download() throws Exception {
+        Semaphore window = new Semaphore(parallelism);
+        CountDownLatch finished = new CountDownLatch(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            if (!window.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new Exception("timed out while downloading codepool " + codePoolId);
+            }
+            if (error != null) {
+                break;
+            }
+            int index = i;
+            channel.sendMessageWithAsyncReply(Message.DOWNLOAD_CODEPOOL_CHUNK(workerId, codePoolId, hash, index), timeout,
+                (Message originalMessage, Message reply, Throwable err) -> {
+                    try {
+                        if (err != null) {
+                            throw err;
+                        }
+                        parts[index] = readChunk(index, reply);
+                    } catch (Throwable t) {
+                        error = t;
+                    } finally {
+                        window.release();
+                        finished.countDown();
+                    }
+                });
+        }
+        // every request has its own timeout
+        if (error == null && !finished.await(timeout * 2, TimeUnit.MILLISECONDS)) {
+            throw new Exception("timed out while downloading codepool " + codePoolId);
+        }
+        if (error != null) {
+            throw new Exception("error while downloading codepool " + codePoolId + ": " + error, error);
+        }
+        byte[] data = new byte[size];
+        int offset = 0;
+        for (byte[] part : parts) {
+            if (offset + part.length > size) {
+                throw new Exception("bad size for codepool " + codePoolId);
+            }
+            System.arraycopy(part, 0, data, offset, part.length);
+            offset += part.length;
+        }
+        if (offset != size || !hash.equals(CodePoolUtils.computeCodePoolHash(data))) {
+            throw new Exception("corrupted data for codepool " + codePoolId);
+        }
+        return data;
+    }
+
+    private byte[] readChunk(int index, Message reply) throws Exception {
+        if (reply.type != Message.TYPE_DOWNLOAD_CODEPOOL_CHUNK_RESPONSE) {
+            throw new Exception("error from broker while downloading codepool " + codePoolId + " chunk " + index + ":" + reply);
+        }
+        Object rawData = reply.parameters.get("data");
+        byte[] data;
+        if (rawData instanceof ByteBuffer) {
+            // in-JVM channel, the buffer is shared with the broker
+            ByteBuffer buffer = ((ByteBuffer) rawData).duplicate();
+            data = new byte[buffer.remaining()];
+            buffer.get(data);
+        } else {
+            data = (byte[]) rawData;
+        }
+        int chunkSize = (Integer) reply.parameters.get("size");
+        Integer compressed = (Integer) reply.parameters.get("compressed");
+        if (compressed != null && compressed == 1) {
+            data = inflate(data, chunkSize);
+        }
+        if (data.length != chunkSize || !chunks.get(index).equals(CodePoolUtils.computeCodePoolHash(data))) {
+            throw new Exception("corrupted chunk " + index + " for codepool " + codePoolId);
+        }
+        return data;
+    }
+
+    private static byte[] inflate(byte[] data, int size) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] res = new byte[size];
+            int count = 0;
+            while (count < size && !inflater.finished()) {
+                int n = inflater.inflate(res, count, size - count);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += n;
+            }
+            if (count != size) {
+                throw new DataFormatException("bad compressed data");
+            }
+            return res;
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.worker;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import majordodo.executors.TaskExecutorPayloadFactory;
+
+/**
+ * Caches the resolution of class names, for each classloader. Classes are
+ * referenced weakly, so that the cache never keeps a classloader alive
+ *
+ * @author enrico.olivelli
+ */
+final class ExecutorClassCache {
+
+    private final Map<ClassLoader, Map<String, WeakReference<Class<?>>>> classes = new WeakHashMap<>();
+
+    private static final ClassValue<TaskExecutorPayloadFactory> FACTORIES = new ClassValue<TaskExecutorPayloadFactory>() {
+        @Override
+        protected TaskExecutorPayloadFactory computeValue(Class<?> type) {
+            try {
+                return (TaskExecutorPayloadFactory) type.newInstance();
+            } catch (InstantiationException | IllegalAccessException err) {
+                throw new RuntimeException("cannot create factory " + type.getName() + ": " + err, err);
+            }
+        }
+    };
+
+    Class<?> resolveClass(ClassLoader loader, String name) throws ClassNotFoundException {
+        Map<String, WeakReference<Class<?>>> byName;
+        synchronized (classes) {
+            byName = classes.computeIfAbsent(loader, l -> new ConcurrentHashMap<>());
+        }
+        WeakReference<Class<?>> ref = byName.get(name);
+        Class<?> res = ref != null ? ref.get() : null;
+        if (res == null) {
+            res = Class.forName(name, false, loader);
+            byName.put(name, new WeakReference<>(res));
+        }
+        return res;
+    }
+
+    /**
+     * Returns the shared instance of a factory
+     *
+     * @param loader
+     * @param name
+     * @return
+     * @throws ClassNotFoundException
+     */
+    TaskExecutorPayloadFactory getPayloadFactory(ClassLoader loader, String name) throws ClassNotFoundException {
+        Class<?> type = resolveClass(loader, name);
+        if (!TaskExecutorPayloadFactory.class.isAssignableFrom(type)) {
+            throw new ClassCastException(name + " is not a " + TaskExecutorPayloadFactory.class.getName());
+        }
+        return FACTORIES.get(type);
+    }
+
+}
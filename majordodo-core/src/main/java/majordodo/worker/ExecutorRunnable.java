@@ -19,6 +19,7 @@
  */
 package majordodo.worker;
 
+import majordodo.executors.AsyncTaskExecutor;
 import majordodo.executors.TaskExecutor;
 import java.util.Map;
 import java.util.logging.Level;
@@ -56,6 +57,19 @@ public class ExecutorRunnable implements Runnable {
             String taskType = (String) parameters.get("tasktype");
             callback.taskStatusChanged(taskId, parameters, TaskExecutorStatus.RUNNING, null, null);
             TaskExecutor executor = core.createTaskExecutor(taskType, parameters);
+            if (executor instanceof AsyncTaskExecutor) {
+                // the task is still running, but the thread is released
+                ((AsyncTaskExecutor) executor).executeTaskAsync(parameters).whenComplete((String result, Throwable error) -> {
+                    if (error != null) {
+                        error = AsyncTaskExecutor.unwrap(error);
+                        LOGGER.log(Level.SEVERE, "error while executing task " + parameters, error);
+                        callback.taskStatusChanged(taskId, parameters, TaskExecutorStatus.ERROR, null, error);
+                    } else {
+                        callback.taskStatusChanged(taskId, parameters, TaskExecutorStatus.FINISHED, result, null);
+                    }
+                });
+                return;
+            }
             String result = executor.executeTask(parameters);
             callback.taskStatusChanged(taskId, parameters, TaskExecutorStatus.FINISHED, result, null);
         } catch (Throwable t) {
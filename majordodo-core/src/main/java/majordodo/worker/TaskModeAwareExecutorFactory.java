@@ -23,9 +23,11 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamClass;
-import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Map;
+import majordodo.executors.BatchTaskExecutor;
+import majordodo.executors.BatchTaskExecutorFactory;
 import majordodo.executors.TaskExecutor;
 import majordodo.executors.TaskExecutorFactory;
 import majordodo.task.Task;
@@ -35,9 +37,16 @@ import majordodo.task.Task;
  *
  * @author enrico.olivelli
  */
-public class TaskModeAwareExecutorFactory implements TaskExecutorFactory {
+public class TaskModeAwareExecutorFactory implements BatchTaskExecutorFactory {
+
+    /**
+     * Bigger buffers are not kept by the threads
+     */
+    private static final int MAX_REUSED_BUFFER_SIZE = 64 * 1024;
 
     private final TaskExecutorFactory inner;
+    private final ExecutorClassCache classCache = new ExecutorClassCache();
+    private final ThreadLocal<byte[]> decodeBuffer = new ThreadLocal<>();
 
     public TaskModeAwareExecutorFactory(TaskExecutorFactory inner) {
         this.inner = inner;
@@ -53,15 +62,25 @@ public class TaskModeAwareExecutorFactory implements TaskExecutorFactory {
         try {
             String parameter = (String) parameters.getOrDefault("parameter", "");
             if (parameter.startsWith("base64:")) {
-                parameter = parameter.substring("base64:".length());
-                byte[] serializedObjectData = Base64.getDecoder().decode(parameter);
-                ByteArrayInputStream ii = new ByteArrayInputStream(serializedObjectData);
+                byte[] encoded = parameter.substring("base64:".length()).getBytes(StandardCharsets.ISO_8859_1);
+                byte[] buffer = decodeBuffer.get();
+                int maxLength = encoded.length / 4 * 3 + 3;
+                if (buffer == null || buffer.length < maxLength) {
+                    buffer = new byte[Math.max(maxLength, 1024)];
+                    if (buffer.length <= MAX_REUSED_BUFFER_SIZE) {
+                        decodeBuffer.set(buffer);
+                    }
+                }
+                int length = Base64.getDecoder().decode(encoded, buffer);
+                ByteArrayInputStream ii = new ByteArrayInputStream(buffer, 0, length);
                 ObjectInputStream is = new ObjectInputStream(ii) {
                     @Override
                     public Class resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
-                        try {
-                            return tccl.loadClass(desc.getName());
-                        } catch (Exception e) {
+                        if (tccl != null) {
+                            try {
+                                return classCache.resolveClass(tccl, desc.getName());
+                            } catch (ClassNotFoundException e) {
+                            }
                         }
                         return super.resolveClass(desc);
                     }
@@ -71,9 +90,16 @@ public class TaskModeAwareExecutorFactory implements TaskExecutorFactory {
                 return res;
             } else if (parameter.startsWith("newinstance:")) {
                 parameter = parameter.substring("newinstance:".length());
-                Class clazz = Class.forName(parameter, true, tccl);
+                Class clazz = classCache.resolveClass(tccl, parameter);
                 TaskExecutor res = (TaskExecutor) clazz.newInstance();
                 return res;
+            } else if (parameter.startsWith("factory:")) {
+                int pos = parameter.indexOf(':', "factory:".length());
+                if (pos < 0) {
+                    throw new RuntimeException("bad parameter: " + parameter);
+                }
+                String factoryClass = parameter.substring("factory:".length(), pos);
+                return classCache.getPayloadFactory(tccl, factoryClass).createTaskExecutor(parameter.substring(pos + 1));
             } else {
                 throw new RuntimeException("bad parameter: " + parameter);
             }
@@ -89,4 +115,15 @@ public class TaskModeAwareExecutorFactory implements TaskExecutorFactory {
 
     }
 
+    /**
+     * Batches are only for tasks in {@link Task#MODE_EXECUTE_FACTORY} mode
+     */
+    @Override
+    public BatchTaskExecutor createBatchTaskExecutor(String taskType) {
+        if (inner instanceof BatchTaskExecutorFactory) {
+            return ((BatchTaskExecutorFactory) inner).createBatchTaskExecutor(taskType);
+        }
+        return null;
+    }
+
 }
@@ -20,13 +20,20 @@
 package majordodo.worker;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import majordodo.network.BrokerRejectedConnectionException;
 import majordodo.network.BrokerNotAvailableException;
 import majordodo.network.BrokerLocator;
 import majordodo.network.ConnectionRequestInfo;
+import majordodo.executors.BatchTaskExecutor;
+import majordodo.executors.BatchTaskExecutorFactory;
 import majordodo.executors.TaskExecutor;
 import majordodo.executors.TaskExecutorFactory;
 import majordodo.network.Channel;
@@ -43,12 +50,16 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import majordodo.codepools.CodePoolClassloadersManager;
 import majordodo.network.ReplyCallback;
+import majordodo.task.Task;
 import majordodo.utils.ErrorUtils;
 
 /**
@@ -61,20 +72,31 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
     private static final Logger LOGGER = Logger.getLogger(WorkerCore.class.getName());
 
     private final ExecutorService threadpool;
+    private final boolean virtualThreads;
     private final String processId;
     private final String workerId;
     private final String location;
     private final Map<Long, String> runningTasks = new HashMap<>();
     private final ReentrantReadWriteLock runningTasksLock = new ReentrantReadWriteLock(true);
+    /**
+     * Tasks assigned in advance by the broker, waiting for a free thread.
+     * Guarded by runningTasksLock
+     */
+    private final Deque<Map<String, Object>> prefetchedTasks = new ArrayDeque<>();
+    /**
+     * Tasks waiting to be executed together, by tasktype. Guarded by itself
+     */
+    private final Map<String, PendingBatch> pendingBatches = new HashMap<>();
     private final BrokerLocator brokerLocator;
     private final Thread coreThread;
+    private final ScheduledExecutorService timer;
     private final Path codePoolsDirectory;
     private final CodePoolClassloadersManager classloadersManager;
     private volatile boolean stopped = false;
     private Channel channel;
     private WorkerStatusListener listener;
     private KillWorkerHandler killWorkerHandler = KillWorkerHandler.GRACEFULL_STOP;
-    private Callable<Void> externalProcessChecker; // PIDFILECHECKER
+    private volatile Callable<Void> externalProcessChecker; // PIDFILECHECKER
 
     public CodePoolClassloadersManager getClassloadersManager() {
         return classloadersManager;
@@ -105,13 +127,31 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
     }
 
     public byte[] downloadCodePool(String codePoolId) throws Exception {
+        return downloadCodePool(codePoolId, null);
+    }
+
+    /**
+     * Downloads the data of a CodePool
+     *
+     * @param codePoolId
+     * @param knownHash the hash of the version on the local cache, can be null
+     * @return null if the CodePool on the broker has the same hash as knownHash
+     * @throws Exception
+     */
+    public byte[] downloadCodePool(String codePoolId, String knownHash) throws Exception {
         Channel _channel = channel;
         if (_channel == null) {
             throw new Exception("not connected");
         }
-        Message reply = _channel.sendMessageWithReply(Message.DOWNLOAD_CODEPOOL(workerId, codePoolId), 10000);
+        Message reply = _channel.sendMessageWithReply(Message.DOWNLOAD_CODEPOOL(workerId, codePoolId, knownHash, true), 10000);
         if (reply.type == Message.TYPE_DOWNLOAD_CODEPOOL_RESPONSE) {
-            return (byte[]) reply.parameters.get("data");
+            List<String> chunks = (List<String>) reply.parameters.get("chunks");
+            if (chunks == null) {
+                // older brokers always send the whole data
+                return (byte[]) reply.parameters.get("data");
+            }
+            return new CodePoolChunksDownload(_channel, workerId, codePoolId, (String) reply.parameters.get("hash"),
+                (Integer) reply.parameters.get("size"), chunks, config.getCodePoolDownloadParallelism(), 10000).download();
         } else {
             throw new Exception("error from broker while downloading codepool " + codePoolId + " data:" + reply);
         }
@@ -143,6 +183,10 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
         runningTasksLock.readLock().lock();
         try {
             res.addAll(runningTasks.keySet());
+            // prefetched tasks are running for the broker
+            for (Map<String, Object> parameters : prefetchedTasks) {
+                res.add((Long) parameters.get("taskid"));
+            }
         } finally {
             runningTasksLock.readLock().unlock();
         }
@@ -165,17 +209,11 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
     }
 
     private void ping() {
-        long now = System.currentTimeMillis();
-        long delta = now - lastPingSent;
-        if (delta < config.getMaxKeepAliveTime()) {
-            return;
-        }
-        lastPingSent = now;
         Channel _channel = channel;
         if (_channel != null) {
             _channel.sendOneWayMessage(Message.WORKER_PING(
                 processId, config.getGroups(), config.getExcludedGroups(), config.getMaxThreadsByTaskType(), config.getMaxThreads(), config.getResourcesLimits(),
-                config.getMaxThreadPerUserPerTaskTypePercent()),
+                config.getMaxThreadPerUserPerTaskTypePercent(), config.getPrefetch()),
                 (Message originalMessage, Throwable error) -> {
                     if (error != null) {
                         if (!stopped) {
@@ -189,6 +227,19 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
         }
     }
 
+    private void checkExternalProcess() {
+        Callable<Void> _externalProcessChecker = externalProcessChecker;
+        if (_externalProcessChecker == null || stopped) {
+            return;
+        }
+        try {
+            _externalProcessChecker.call();
+        } catch (Exception err) {
+            err.printStackTrace();
+            killWorkerHandler.killWorker(this);
+        }
+    }
+
     private WorkerCoreConfiguration config;
 
     public WorkerCore(
@@ -203,18 +254,33 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
             };
         }
         this.listener = listener;
-        this.threadpool = Executors.newCachedThreadPool(new ThreadFactory() {
+        ExecutorService virtualThreadsExecutor = config.isVirtualThreads() ? createVirtualThreadsExecutor(config.getWorkerId()) : null;
+        if (virtualThreadsExecutor != null) {
+            this.threadpool = virtualThreadsExecutor;
+            this.virtualThreads = true;
+        } else {
+            this.threadpool = Executors.newCachedThreadPool(new ThreadFactory() {
 
-            @Override
-            public Thread newThread(Runnable r) {
-                return new Thread(r, "dodo-worker-thread-" + workerId);
-            }
-        });
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "dodo-worker-thread-" + workerId);
+                }
+            });
+            this.virtualThreads = false;
+        }
         this.processId = processId;
         this.workerId = config.getWorkerId();
         this.location = config.getLocation();
         this.brokerLocator = brokerLocator;
         this.coreThread = new Thread(new ConnectionManager(), "dodo-worker-connection-manager-" + workerId);
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "dodo-worker-timer-" + workerId);
+                t.setDaemon(true);
+                return t;
+            }
+        });
         if (config.isEnableCodePools()) {
             if (config.getCodePoolsDirectory() == null || config.getCodePoolsDirectory().isEmpty()) {
                 codePoolsDirectory = Paths.get("codepools").toAbsolutePath();
@@ -223,7 +289,7 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
             }
             LOGGER.log(Level.INFO, "CodePools Working directory {0}", codePoolsDirectory);
             try {
-                this.classloadersManager = new CodePoolClassloadersManager(codePoolsDirectory, this);
+                this.classloadersManager = new CodePoolClassloadersManager(codePoolsDirectory, config.getCodePoolsCacheMaxSize(), this);
             } catch (IOException err) {
                 throw new RuntimeException(err);
             }
@@ -233,6 +299,38 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
         }
     }
 
+    /**
+     * Creates an executor which starts a new virtual thread for each task.
+     * Virtual threads are accessed using reflection, as Majordodo is built
+     * for Java 8
+     *
+     * @param workerId
+     * @return null if the JVM does not support virtual threads
+     */
+    private static ExecutorService createVirtualThreadsExecutor(String workerId) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "dodo-worker-vthread-" + workerId + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException err) {
+            LOGGER.log(Level.SEVERE, "virtual threads are not available on this JVM (" + System.getProperty("java.version") + "), using platform threads: " + err);
+            return null;
+        }
+    }
+
+    /**
+     * Tells whether tasks are executed on virtual threads
+     *
+     * @return
+     * @see WorkerCoreConfiguration#isVirtualThreads()
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
     public void start() {
         if (executorFactory == null) {
             if (codePoolsDirectory == null) {
@@ -247,6 +345,21 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
             }
         }
         this.coreThread.start();
+        // a failure would cancel the next executions
+        this.timer.scheduleWithFixedDelay(() -> {
+            try {
+                ping();
+            } catch (Throwable error) {
+                LOGGER.log(Level.SEVERE, "error while sending ping:" + error, error);
+            }
+        }, config.getMaxKeepAliveTime(), config.getMaxKeepAliveTime(), TimeUnit.MILLISECONDS);
+        this.timer.scheduleWithFixedDelay(() -> {
+            try {
+                checkExternalProcess();
+            } catch (Throwable error) {
+                LOGGER.log(Level.SEVERE, "error while checking external process:" + error, error);
+            }
+        }, config.getExternalProcessCheckPeriod(), config.getExternalProcessCheckPeriod(), TimeUnit.MILLISECONDS);
         JVMWorkersRegistry.registerWorker(workerId, this);
     }
 
@@ -258,7 +371,10 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
             return;
         }
         if (message.type == Message.TYPE_TASK_ASSIGNED) {
-            startTask(message);
+            startTasks(Collections.singletonList(message.parameters));
+        } else if (message.type == Message.TYPE_TASKS_ASSIGNED) {
+            List<Map<String, Object>> tasks = (List<Map<String, Object>>) message.parameters.get("tasks");
+            startTasks(tasks);
         }
     }
 
@@ -270,8 +386,29 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
     }
 
     BlockingQueue<FinishedTaskNotification> pendingFinishedTaskNotifications = new LinkedBlockingQueue<>();
-    private long lastFinishedTaskNotificationSent;
-    private long lastPingSent;
+    /**
+     * Guards the state of the notification of finished tasks, the
+     * ConnectionManager waits on this object for new notifications
+     */
+    private final Object notificationsLock = new Object();
+    private boolean notificationsInFlight;
+    private long notificationsRetryTime;
+
+    private void wakeUpConnectionManager() {
+        synchronized (notificationsLock) {
+            notificationsLock.notifyAll();
+        }
+    }
+
+    private void notificationsSent(boolean ok) {
+        synchronized (notificationsLock) {
+            notificationsInFlight = false;
+            if (!ok) {
+                notificationsRetryTime = System.currentTimeMillis() + config.getMaxWaitPendingFinishedTaskNotifications();
+            }
+            notificationsLock.notifyAll();
+        }
+    }
 
     ExecutorRunnable.TaskExecutionCallback executionCallback = new ExecutorRunnable.TaskExecutionCallback() {
         @Override
@@ -286,7 +423,12 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
                     } finally {
                         runningTasksLock.writeLock().unlock();
                     }
+                    if (classloadersManager != null && parameters.get("codepool") != null) {
+                        classloadersManager.releaseCodePoolClassloader(taskId);
+                    }
+                    startPrefetchedTasks();
                     pendingFinishedTaskNotifications.add(new FinishedTaskNotification(taskId, finalStatus, results, error));
+                    wakeUpConnectionManager();
                     break;
                 case TaskExecutorStatus.RUNNING:
                     break;
@@ -320,33 +462,207 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
                     if (error != null) {
                         LOGGER.log(Level.SEVERE, "re-enqueing notification of task finish, due to broker comunication failure", error);
                         pendingFinishedTaskNotifications.addAll(notifications);
+                        notificationsSent(false);
                     } else if (msg.type != Message.TYPE_ACK) {
                         LOGGER.log(Level.SEVERE, "re-enqueing notification of task finish, due to broker error anwser {0}", msg);
                         pendingFinishedTaskNotifications.addAll(notifications);
+                        notificationsSent(false);
+                    } else {
+                        notificationsSent(true);
                     }
                 }
             });
         } else {
             LOGGER.log(Level.INFO, "re-enqueing notification of task finish, due to broker connection failure");
             pendingFinishedTaskNotifications.addAll(notifications);
+            notificationsSent(false);
+        }
+    }
+
+    private void startTasks(List<Map<String, Object>> tasks) {
+        if (config.getPrefetch() > 0) {
+            // the broker could assign more tasks than the available threads
+            runningTasksLock.writeLock().lock();
+            try {
+                prefetchedTasks.addAll(tasks);
+            } finally {
+                runningTasksLock.writeLock().unlock();
+            }
+            startPrefetchedTasks();
+            return;
+        }
+        runningTasksLock.writeLock().lock();
+        try {
+            for (Map<String, Object> parameters : tasks) {
+                runningTasks.put((Long) parameters.get("taskid"), (String) parameters.get("tasktype"));
+            }
+        } finally {
+            runningTasksLock.writeLock().unlock();
+        }
+        executeTasks(tasks);
+    }
+
+    private void executeTasks(List<Map<String, Object>> tasks) {
+        boolean batched = false;
+        for (Map<String, Object> parameters : tasks) {
+            if (addToBatch(parameters)) {
+                batched = true;
+            } else {
+                ExecutorRunnable runnable = new ExecutorRunnable(this, (Long) parameters.get("taskid"), parameters, executionCallback);
+                threadpool.submit(runnable);
+            }
+        }
+        if (batched && config.getBatchLingerTime() <= 0) {
+            flushBatches();
         }
     }
 
-    private void startTask(Message message) {
-        Long taskid = (Long) message.parameters.get("taskid");
-        String tasktype = (String) message.parameters.get("tasktype");
+    private static final class PendingBatch {
+
+        private final String taskType;
+        private final BatchTaskExecutor executor;
+        private final List<Map<String, Object>> tasks = new ArrayList<>();
+
+        private PendingBatch(String taskType, BatchTaskExecutor executor) {
+            this.taskType = taskType;
+            this.executor = executor;
+        }
+
+    }
+
+    /**
+     * Adds the task to the batch for its tasktype, if the executor factory
+     * supports batches for it. The batch is submitted when it is full or when
+     * it has waited for batchLingerTime
+     *
+     * @param parameters
+     * @return false if the task must be executed alone
+     */
+    private boolean addToBatch(Map<String, Object> parameters) {
+        TaskExecutorFactory factory = executorFactory;
+        if (!(factory instanceof BatchTaskExecutorFactory)
+            || config.getMaxBatchSize() <= 1
+            || parameters.get("codepool") != null
+            || !Task.MODE_EXECUTE_FACTORY.equals(parameters.getOrDefault("mode", Task.MODE_DEFAULT))) {
+            return false;
+        }
+        String tasktype = (String) parameters.get("tasktype");
+        PendingBatch full = null;
+        synchronized (pendingBatches) {
+            PendingBatch batch = pendingBatches.get(tasktype);
+            if (batch == null) {
+                BatchTaskExecutor executor = ((BatchTaskExecutorFactory) factory).createBatchTaskExecutor(tasktype);
+                if (executor == null) {
+                    return false;
+                }
+                batch = new PendingBatch(tasktype, executor);
+                pendingBatches.put(tasktype, batch);
+                if (config.getBatchLingerTime() > 0) {
+                    PendingBatch _batch = batch;
+                    try {
+                        timer.schedule(() -> flushBatch(_batch), config.getBatchLingerTime(), TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException err) {
+                        // the worker is stopping, do not wait
+                        full = batch;
+                    }
+                }
+            }
+            batch.tasks.add(parameters);
+            if (batch.tasks.size() >= config.getMaxBatchSize()) {
+                full = batch;
+            }
+            if (full != null) {
+                pendingBatches.remove(tasktype);
+            }
+        }
+        if (full != null) {
+            submitBatch(full);
+        }
+        return true;
+    }
+
+    private void flushBatch(PendingBatch batch) {
+        synchronized (pendingBatches) {
+            if (pendingBatches.get(batch.taskType) != batch) {
+                // already full
+                return;
+            }
+            pendingBatches.remove(batch.taskType);
+        }
+        submitBatch(batch);
+    }
+
+    private void flushBatches() {
+        List<PendingBatch> batches;
+        synchronized (pendingBatches) {
+            batches = new ArrayList<>(pendingBatches.values());
+            pendingBatches.clear();
+        }
+        for (PendingBatch batch : batches) {
+            submitBatch(batch);
+        }
+    }
+
+    private void submitBatch(PendingBatch batch) {
+        LOGGER.log(Level.FINEST, "submitting a batch of {0} tasks of type {1}", new Object[]{batch.tasks.size(), batch.taskType});
+        threadpool.submit(new BatchExecutorRunnable(batch.executor, batch.tasks, executionCallback));
+    }
+
+    private void startPrefetchedTasks() {
+        List<Map<String, Object>> toStart = new ArrayList<>();
         runningTasksLock.writeLock().lock();
         try {
-            runningTasks.put(taskid, tasktype);
+            if (stopped) {
+                // prefetched tasks will be recovered by the broker
+                return;
+            }
+            for (Iterator<Map<String, Object>> it = prefetchedTasks.iterator(); it.hasNext();) {
+                Map<String, Object> parameters = it.next();
+                String tasktype = (String) parameters.get("tasktype");
+                if (canStartTask(tasktype)) {
+                    it.remove();
+                    runningTasks.put((Long) parameters.get("taskid"), tasktype);
+                    toStart.add(parameters);
+                }
+            }
         } finally {
             runningTasksLock.writeLock().unlock();
         }
-        ExecutorRunnable runnable = new ExecutorRunnable(this, taskid, message.parameters, executionCallback);
-        threadpool.submit(runnable);
+        executeTasks(toStart);
+    }
+
+    /**
+     * Checks the local limits on the number of threads, must be called while
+     * holding the write lock on runningTasks
+     */
+    private boolean canStartTask(String tasktype) {
+        int maxThreads = config.getMaxThreads();
+        if (maxThreads > 0 && runningTasks.size() >= maxThreads) {
+            return false;
+        }
+        Map<String, Integer> maxThreadsByTaskType = config.getMaxThreadsByTaskType();
+        Integer limit = maxThreadsByTaskType.get(tasktype);
+        boolean anyTaskType = false;
+        if (limit == null) {
+            limit = maxThreadsByTaskType.get(Task.TASKTYPE_ANY);
+            if (limit == null) {
+                return true;
+            }
+            anyTaskType = true;
+        }
+        int count = 0;
+        for (String type : runningTasks.values()) {
+            if (anyTaskType ? !maxThreadsByTaskType.containsKey(type) : type.equals(tasktype)) {
+                count++;
+            }
+        }
+        return count < limit;
     }
 
     public void stop() {
         stopped = true;
+        timer.shutdown();
+        wakeUpConnectionManager();
         try {
             coreThread.join();
         } catch (InterruptedException ex) {
@@ -401,17 +717,6 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
                         LOGGER.log(Level.SEVERE, "exit loop " + exit);
                         break;
                     }
-
-                    ping();
-
-                    if (externalProcessChecker != null) {
-                        try {
-                            externalProcessChecker.call();
-                        } catch (Exception err) {
-                            err.printStackTrace();
-                            killWorkerHandler.killWorker(WorkerCore.this);
-                        }
-                    }
                 } catch (Throwable error) {
                     LOGGER.log(Level.SEVERE, "error on main WorkerCore loop:" + error, error);
                 }
@@ -436,28 +741,29 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
 
         }
 
+        /**
+         * Sends the pending notifications as a single batch. Only one batch at
+         * a time is waiting for the acknowledgement of the broker,
+         * notifications which arrive in the meantime will be sent together in
+         * the next batch
+         */
         private void sendPendingNotifications(boolean force) throws InterruptedException {
-            long now = System.currentTimeMillis();
-            long delta = now - lastFinishedTaskNotificationSent;
-            int count = pendingFinishedTaskNotifications.size();
-            if (!force && (count < config.getMaxPendingFinishedTaskNotifications() && delta < config.getMaxWaitPendingFinishedTaskNotifications())) {
-                LOGGER.log(Level.FINEST, "sendPendingNotifications count {0} elapsed {1}", new Object[]{count, delta + " ms"});
-                Thread.sleep(100);
-                return;
-            }
-            lastFinishedTaskNotificationSent = now;
-            int max = 1000;
             List<FinishedTaskNotification> batch = new ArrayList<>();
-            FinishedTaskNotification notification = pendingFinishedTaskNotifications.poll();
-            while (notification != null) {
-                batch.add(notification);
-                if (max-- <= 0) {
-                    break;
+            synchronized (notificationsLock) {
+                long now = System.currentTimeMillis();
+                if (!force && (notificationsInFlight || pendingFinishedTaskNotifications.isEmpty() || now < notificationsRetryTime)) {
+                    LOGGER.log(Level.FINEST, "sendPendingNotifications count {0} inflight {1}", new Object[]{pendingFinishedTaskNotifications.size(), notificationsInFlight});
+                    // wake up at least once per second in order to check the connection
+                    long wait = now < notificationsRetryTime ? Math.min(notificationsRetryTime - now, 1000) : 1000;
+                    notificationsLock.wait(wait);
+                    return;
                 }
-                notification = pendingFinishedTaskNotifications.poll();
-            }
-            if (batch.isEmpty()) {
-                return;
+                int maxBatchSize = (int) Math.min(Integer.MAX_VALUE, Math.max(1, config.getMaxPendingFinishedTaskNotifications()));
+                pendingFinishedTaskNotifications.drainTo(batch, maxBatchSize);
+                if (batch.isEmpty()) {
+                    return;
+                }
+                notificationsInFlight = true;
             }
             long _start = System.currentTimeMillis();
             notifyTasksFinished(batch);
@@ -496,6 +802,7 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
             }
         } finally {
             channel = null;
+            wakeUpConnectionManager();
         }
 
     }
@@ -555,6 +862,11 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
         return config.getResourcesLimits();
     }
 
+    @Override
+    public int getPrefetch() {
+        return config.getPrefetch();
+    }
+
     public WorkerStatusView createWorkerStatusView() {
         WorkerStatusView res = new WorkerStatusView();
         if (stopped) {
@@ -568,6 +880,7 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
         runningTasksLock.readLock().lock();
         try {
             res.setRunningTasks(this.runningTasks.size());
+            res.setPrefetchedTasks(this.prefetchedTasks.size());
         } finally {
             runningTasksLock.readLock().unlock();
         }
@@ -45,8 +45,14 @@ public class WorkerCoreConfiguration {
     private Map<String, Integer> resourcesLimits;
     private String codePoolsDirectory;
     private boolean enableCodePools;
+    private long codePoolsCacheMaxSize = 1024L * 1024 * 1024;
+    private int codePoolDownloadParallelism = 4;
     private int networkTimeout = 1000 * 60 * 10;
     private int maxThreadPerUserPerTaskTypePercent;
+    private int prefetch;
+    private boolean virtualThreads;
+    private int maxBatchSize = 100;
+    private long batchLingerTime;
 
     public WorkerCoreConfiguration() {
         maxThreadsByTaskType = new HashMap<>();
@@ -77,6 +83,71 @@ public class WorkerCoreConfiguration {
         this.maxThreads = maxThreads;
     }
 
+    /**
+     * Number of tasks which the broker can assign to the worker over
+     * maxThreads (and over the limit for each tasktype). These tasks are kept
+     * in a local queue and started as soon as a thread is free, so that
+     * threads do not wait for the broker between tasks. Default is 0 (no
+     * prefetch)
+     *
+     * @return
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Execute tasks using virtual threads, one for each task, instead of a
+     * pool of platform threads. This is useful for workers which run thousands
+     * of I/O-bound tasks at the same time. Virtual threads need Java 21, on
+     * older JVMs the worker will fall back to platform threads
+     *
+     * @return
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Maximum number of tasks executed together by a BatchTaskExecutor. This
+     * is used only if the TaskExecutorFactory is a BatchTaskExecutorFactory.
+     * Each task of the batch still counts as a running task for the limits on
+     * the number of threads
+     *
+     * @return
+     * @see majordodo.executors.BatchTaskExecutorFactory
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Maximum time (in milliseconds) to wait for other tasks of the same
+     * tasktype before executing a batch which is not full. With 0 (default) a
+     * batch contains only tasks assigned together by the broker
+     *
+     * @return
+     */
+    public long getBatchLingerTime() {
+        return batchLingerTime;
+    }
+
+    public void setBatchLingerTime(long batchLingerTime) {
+        this.batchLingerTime = batchLingerTime;
+    }
+
     /**
      * Directory for temporary directories for CodePools
      *
@@ -103,6 +174,36 @@ public class WorkerCoreConfiguration {
         this.enableCodePools = enableCodePools;
     }
 
+    /**
+     * Maximum size in bytes of the local cache of CodePools. Data of CodePools
+     * is kept on disk across restarts of the worker, least recently used
+     * CodePools are deleted when the cache is over this size. Default is 1 GB,
+     * 0 means no limit
+     *
+     * @return
+     */
+    public long getCodePoolsCacheMaxSize() {
+        return codePoolsCacheMaxSize;
+    }
+
+    public void setCodePoolsCacheMaxSize(long codePoolsCacheMaxSize) {
+        this.codePoolsCacheMaxSize = codePoolsCacheMaxSize;
+    }
+
+    /**
+     * Maximum number of chunks of a CodePool which can be requested to the
+     * broker at the same time. Default is 4
+     *
+     * @return
+     */
+    public int getCodePoolDownloadParallelism() {
+        return codePoolDownloadParallelism;
+    }
+
+    public void setCodePoolDownloadParallelism(int codePoolDownloadParallelism) {
+        this.codePoolDownloadParallelism = codePoolDownloadParallelism;
+    }
+
     /**
      * Worker id (not the processId!)
      *
@@ -197,10 +298,12 @@ public class WorkerCoreConfiguration {
         this.tasksRequestTimeout = tasksRequestTimeout;
     }
 
-    private long maxPendingFinishedTaskNotifications = 10;
+    private long maxPendingFinishedTaskNotifications = 1000;
 
     /**
-     * Maximum number of tasks for which a "finished" notification is waiting in queues
+     * Maximum number of "finished" notifications sent to the broker in a
+     * single batch. Notifications are sent as soon as the broker acknowledges
+     * the previous batch, the others wait for the next one
      *
      * @return
      */
@@ -213,7 +316,8 @@ public class WorkerCoreConfiguration {
     }
 
     /**
-     * Maximum time to be in the pendingFinishedTaskNotifications queue
+     * Time to wait before sending again "finished" notifications after a
+     * failure
      */
     private long maxWaitPendingFinishedTaskNotifications = 1000;
 
@@ -238,6 +342,20 @@ public class WorkerCoreConfiguration {
         this.maxKeepAliveTime = maxKeepAliveTime;
     }
 
+    /**
+     * Period for the execution of the external process checker (for instance
+     * the pid file check)
+     */
+    private long externalProcessCheckPeriod = 1000;
+
+    public long getExternalProcessCheckPeriod() {
+        return externalProcessCheckPeriod;
+    }
+
+    public void setExternalProcessCheckPeriod(long externalProcessCheckPeriod) {
+        this.externalProcessCheckPeriod = externalProcessCheckPeriod;
+    }
+
     /**
      * Shared secret among all the brokers and workers. Provides minimum security level
      */
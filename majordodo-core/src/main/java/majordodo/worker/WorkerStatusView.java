@@ -27,6 +27,7 @@ package majordodo.worker;
 public class WorkerStatusView {
 
     private int runningTasks;
+    private int prefetchedTasks;
     private int finishedTasksPendingNotification;
     private String status;
     private String connectionInfo;
@@ -39,6 +40,19 @@ public class WorkerStatusView {
         this.runningTasks = runningTasks;
     }
 
+    /**
+     * Tasks assigned in advance, waiting for a free thread
+     *
+     * @return
+     */
+    public int getPrefetchedTasks() {
+        return prefetchedTasks;
+    }
+
+    public void setPrefetchedTasks(int prefetchedTasks) {
+        this.prefetchedTasks = prefetchedTasks;
+    }
+
     public int getFinishedTasksPendingNotification() {
         return finishedTasksPendingNotification;
     }
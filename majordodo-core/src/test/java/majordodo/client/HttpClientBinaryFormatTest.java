@@ -0,0 +1,145 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import majordodo.client.discovery.StaticBrokerDiscoveryService;
+import majordodo.client.http.Client;
+import majordodo.client.http.ClientConfiguration;
+import majordodo.client.http.ContentTypes;
+import majordodo.clientfacade.HttpAPIImplementation;
+import majordodo.task.BasicBrokerEnv;
+import majordodo.task.Broker;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Binary format negotiation between the HTTP client and the HTTP API of the
+ * broker
+ *
+ * @author enrico.olivelli
+ */
+public class HttpClientBinaryFormatTest extends BasicBrokerEnv {
+
+    private static final String TASKTYPE_MYTYPE = "mytype";
+    private static final String USERID = "queue1";
+
+    private Server httpserver;
+    private final List<String> requestContentTypes = new CopyOnWriteArrayList<>();
+    private final List<String> responseContentTypes = new CopyOnWriteArrayList<>();
+
+    @Override
+    protected void afterStartBroker() throws Exception {
+        httpserver = new Server(0);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(new BrokerAPIServlet(broker)), "/majordodo");
+        httpserver.setHandler(context);
+        httpserver.start();
+    }
+
+    @After
+    @Override
+    public void stopBroker() {
+        super.stopBroker();
+        if (httpserver != null) {
+            try {
+                httpserver.stop();
+            } catch (Exception err) {
+                err.printStackTrace();
+            }
+        }
+    }
+
+    private ClientConfiguration configuration() {
+        int port = ((ServerConnector) httpserver.getConnectors()[0]).getLocalPort();
+        return ClientConfiguration
+            .defaultConfiguration()
+            .setUsername("admin")
+            .setPassword("password")
+            .setBrokerDiscoveryService(new StaticBrokerDiscoveryService(BrokerAddress.http("localhost", port)));
+    }
+
+    @Test
+    public void binaryFormatTest() throws Exception {
+        // jackson-dataformat-smile is a dependency of both the broker and the client
+        assertTrue(ContentTypes.isBinary(ContentTypes.SMILE));
+
+        String data = ContentTypes.BASE64_PREFIX + Base64.getEncoder().encodeToString(new byte[]{0, 1, 2, (byte) 255});
+        try (Client client = new Client(configuration());
+            ClientConnection con = client.openConnection()) {
+            SubmitTaskRequest req = new SubmitTaskRequest();
+            req.setTasktype(TASKTYPE_MYTYPE);
+            req.setUserid(USERID);
+            req.setData(data);
+            req.setMode(SubmitTaskRequest.MODE_OBJECT);
+            con.submitTask(req);
+            // serialized objects travel as raw bytes
+            String taskId = con.submitTask(req).getTaskId();
+
+            TaskStatus status = con.getTaskStatus(taskId);
+            assertEquals(data, status.getData());
+            assertEquals(SubmitTaskRequest.MODE_OBJECT, status.getMode());
+        }
+
+        assertEquals(2, requestContentTypes.size());
+        // the first request is JSON, the broker answers with the binary format the client accepts
+        assertTrue(requestContentTypes.get(0).startsWith(ContentTypes.JSON));
+        assertEquals(ContentTypes.SMILE, responseContentTypes.get(0));
+        // then the client switches to the binary format
+        assertEquals(ContentTypes.SMILE, requestContentTypes.get(1));
+        assertEquals(ContentTypes.SMILE, responseContentTypes.get(1));
+    }
+
+    private class BrokerAPIServlet extends HttpServlet {
+
+        private final Broker broker;
+
+        public BrokerAPIServlet(Broker broker) {
+            this.broker = broker;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            HttpAPIImplementation.doGet(req, resp, broker);
+        }
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            HttpAPIImplementation.doPost(req, resp, broker);
+            requestContentTypes.add(req.getContentType());
+            responseContentTypes.add(resp.getContentType());
+        }
+    }
+
+}
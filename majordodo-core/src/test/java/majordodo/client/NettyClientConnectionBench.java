@@ -0,0 +1,200 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import majordodo.client.discovery.StaticBrokerDiscoveryService;
+import majordodo.client.http.AsyncClient;
+import majordodo.client.http.AsyncHTTPClientConnection;
+import majordodo.client.http.Client;
+import majordodo.client.http.ClientConfiguration;
+import majordodo.client.netty.NettyClientConnection;
+import majordodo.network.BrokerLocator;
+import majordodo.network.netty.NettyBrokerLocator;
+import majordodo.network.netty.NettyChannelAcceptor;
+import majordodo.task.BasicBrokerEnv;
+import majordodo.task.Broker;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Compares the latency and the throughput of task submission using the binary
+ * protocol and the HTTP API.
+ * Not part of the default build, run it with -Dtest=NettyClientConnectionBench
+ *
+ * @author enrico.olivelli
+ */
+public class NettyClientConnectionBench extends BasicBrokerEnv {
+
+    private static final String TASKTYPE_MYTYPE = "mytype";
+    private static final String USERID = "queue1";
+    private static final int WARMUP = 1000;
+    private static final int SEQUENTIAL_TASKS = 2000;
+    private static final int PIPELINED_TASKS = 20000;
+    private static final int MAX_IN_FLIGHT = 100;
+
+    private NettyChannelAcceptor server;
+    private Server httpserver;
+
+    @Override
+    protected int getTasksHeapsSize() {
+        return 2 * (WARMUP + SEQUENTIAL_TASKS + PIPELINED_TASKS);
+    }
+
+    @Override
+    protected void afterStartBroker() throws Exception {
+        server = new NettyChannelAcceptor(broker.getAcceptor());
+        server.start();
+
+        httpserver = new Server(0);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(new BrokerAPIServlet(broker)), "/majordodo");
+        httpserver.setHandler(context);
+        httpserver.start();
+    }
+
+    @Override
+    protected BrokerLocator createBrokerLocator() throws Exception {
+        return new NettyBrokerLocator(server.getHost(), server.getPort(), false);
+    }
+
+    @After
+    @Override
+    public void stopBroker() {
+        super.stopBroker();
+        if (server != null) {
+            server.close();
+        }
+        if (httpserver != null) {
+            try {
+                httpserver.stop();
+            } catch (Exception err) {
+                err.printStackTrace();
+            }
+        }
+    }
+
+    private ClientConfiguration httpConfiguration() {
+        int port = ((ServerConnector) httpserver.getConnectors()[0]).getLocalPort();
+        return ClientConfiguration
+            .defaultConfiguration()
+            .setUsername("admin")
+            .setPassword("password")
+            .setBrokerDiscoveryService(new StaticBrokerDiscoveryService(BrokerAddress.http("localhost", port)));
+    }
+
+    private static SubmitTaskRequest task() {
+        SubmitTaskRequest req = new SubmitTaskRequest();
+        req.setTasktype(TASKTYPE_MYTYPE);
+        req.setUserid(USERID);
+        req.setData("param");
+        return req;
+    }
+
+    private static void sequential(String name, ClientConnection con) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            con.submitTask(task());
+        }
+        long[] latencies = new long[SEQUENTIAL_TASKS];
+        for (int i = 0; i < SEQUENTIAL_TASKS; i++) {
+            long _start = System.nanoTime();
+            con.submitTask(task());
+            latencies[i] = System.nanoTime() - _start;
+        }
+        Arrays.sort(latencies);
+        System.out.println(name + " submit latency over " + SEQUENTIAL_TASKS + " tasks:"
+            + " p50 " + TimeUnit.NANOSECONDS.toMicros(latencies[SEQUENTIAL_TASKS / 2]) + " us,"
+            + " p90 " + TimeUnit.NANOSECONDS.toMicros(latencies[SEQUENTIAL_TASKS * 9 / 10]) + " us,"
+            + " p99 " + TimeUnit.NANOSECONDS.toMicros(latencies[SEQUENTIAL_TASKS * 99 / 100]) + " us,"
+            + " max " + TimeUnit.NANOSECONDS.toMicros(latencies[SEQUENTIAL_TASKS - 1]) + " us");
+    }
+
+    private static void pipelined(String name, Function<SubmitTaskRequest, CompletableFuture<SubmitTaskResponse>> submit) throws Exception {
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        AtomicInteger errors = new AtomicInteger();
+        long _start = System.nanoTime();
+        for (int i = 0; i < PIPELINED_TASKS; i++) {
+            inFlight.acquire();
+            submit.apply(task()).whenComplete((res, error) -> {
+                if (error != null) {
+                    errors.incrementAndGet();
+                }
+                inFlight.release();
+            });
+        }
+        inFlight.acquire(MAX_IN_FLIGHT);
+        long delta = System.nanoTime() - _start;
+        assertEquals(0, errors.get());
+        System.out.println(name + " pipelined throughput, " + MAX_IN_FLIGHT + " requests in flight: "
+            + (PIPELINED_TASKS * 1000000000L / delta) + " tasks/s");
+    }
+
+    @Test
+    public void compareWithHttp() throws Exception {
+        try (NettyClientConnection con = new NettyClientConnection(getBrokerLocator(), "admin", "password")) {
+            sequential("binary", con);
+            pipelined("binary", con::submitTaskAsync);
+        }
+        try (Client client = new Client(httpConfiguration());
+            ClientConnection con = client.openConnection()) {
+            sequential("http", con);
+        }
+        try (AsyncClient client = new AsyncClient(httpConfiguration());
+            AsyncHTTPClientConnection con = client.openConnection()) {
+            pipelined("http", con::submitTaskAsync);
+        }
+    }
+
+    private static class BrokerAPIServlet extends HttpServlet {
+
+        private final Broker broker;
+
+        public BrokerAPIServlet(Broker broker) {
+            this.broker = broker;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            majordodo.clientfacade.HttpAPIImplementation.doGet(req, resp, broker);
+        }
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            majordodo.clientfacade.HttpAPIImplementation.doPost(req, resp, broker);
+        }
+    }
+
+}
@@ -0,0 +1,316 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import majordodo.client.netty.NettyClientConnection;
+import majordodo.clientfacade.AuthenticatedUser;
+import majordodo.clientfacade.AuthenticationManager;
+import majordodo.clientfacade.UserRole;
+import majordodo.executors.TaskExecutor;
+import majordodo.network.BrokerLocator;
+import majordodo.network.netty.NettyBrokerLocator;
+import majordodo.network.netty.NettyChannelAcceptor;
+import majordodo.task.BasicBrokerEnv;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests for the binary client protocol
+ *
+ * @author enrico.olivelli
+ */
+public class NettyClientConnectionTest extends BasicBrokerEnv {
+
+    private static final String TASKTYPE_MYTYPE = "mytype";
+    private static final String USERID = "queue1";
+    private static final int GROUP = 12345;
+    private static final String ADMIN = "admin";
+    private static final String ADMIN_PASSWORD = "password";
+    private static final String USER_PASSWORD = "userpassword";
+
+    private NettyChannelAcceptor server;
+
+    @Override
+    protected void afterStartBroker() throws Exception {
+        broker.setAuthenticationManager(new AuthenticationManager() {
+            @Override
+            public AuthenticatedUser login(String username, String password) {
+                if (ADMIN.equals(username) && ADMIN_PASSWORD.equals(password)) {
+                    return new AuthenticatedUser(username, UserRole.ADMINISTRATOR);
+                }
+                if (USERID.equals(username) && USER_PASSWORD.equals(password)) {
+                    return new AuthenticatedUser(username, UserRole.USER);
+                }
+                return null;
+            }
+        });
+        server = new NettyChannelAcceptor(broker.getAcceptor());
+        server.start();
+    }
+
+    @Override
+    protected BrokerLocator createBrokerLocator() throws Exception {
+        return new NettyBrokerLocator(server.getHost(), server.getPort(), false);
+    }
+
+    @After
+    @Override
+    public void stopBroker() {
+        super.stopBroker();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private static SubmitTaskRequest task(String data) {
+        SubmitTaskRequest req = new SubmitTaskRequest();
+        req.setTasktype(TASKTYPE_MYTYPE);
+        req.setUserid(USERID);
+        req.setData(data);
+        return req;
+    }
+
+    private NettyClientConnection openConnection() throws Exception {
+        return new NettyClientConnection(getBrokerLocator(), ADMIN, ADMIN_PASSWORD);
+    }
+
+    @Test
+    public void submitAndWaitTest() throws Exception {
+        declareGroupForUser(USERID, GROUP);
+        try (NettyClientConnection con = openConnection()) {
+            BrokerStatus brokerStatus = con.getBrokerStatus();
+            assertEquals("LEADER", brokerStatus.getStatus());
+
+            SubmitTaskResponse resp = con.submitTask(task("param"));
+            assertFalse(resp.getTaskId().isEmpty());
+            assertEquals("", resp.getOutcome());
+            String taskId = resp.getTaskId();
+
+            TaskStatus status = con.getTaskStatus(taskId);
+            assertEquals(taskId, status.getTaskId());
+            assertEquals("waiting", status.getStatus());
+            assertEquals("param", status.getData());
+            assertEquals(USERID, status.getUserId());
+            assertNull(con.getTaskStatus("1234567"));
+
+            // pipelined submissions
+            List<CompletableFuture<SubmitTaskResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(con.submitTaskAsync(task("param" + i)));
+            }
+            List<String> taskIds = new ArrayList<>();
+            taskIds.add(taskId);
+            for (CompletableFuture<SubmitTaskResponse> future : futures) {
+                taskIds.add(future.get(10, TimeUnit.SECONDS).getTaskId());
+            }
+            assertEquals(101, taskIds.size());
+            assertEquals(101, con.getBrokerStatus().getWaitingtasks());
+
+            // an unknown task completes immediately
+            assertNull(con.waitForTaskAsync("1234567").get(10, TimeUnit.SECONDS));
+            // no task is finished yet
+            assertTrue(con.waitForTasks(taskIds, 100).isEmpty());
+
+            CountDownLatch connectedLatch = new CountDownLatch(1);
+            WorkerStatusListener listener = new WorkerStatusListener() {
+
+                @Override
+                public void connectionEvent(String event, WorkerCore core) {
+                    if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                        connectedLatch.countDown();
+                    }
+                }
+
+            };
+            Map<String, Integer> tags = new HashMap<>();
+            tags.put(TASKTYPE_MYTYPE, 10);
+            WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+            config.setWorkerId("workerid");
+            config.setMaxThreadsByTaskType(tags);
+            config.setGroups(Arrays.asList(GROUP));
+            try (WorkerCore core = new WorkerCore(config, "here", getBrokerLocator(), listener);) {
+                core.start();
+                assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+                core.setExecutorFactory((String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
+
+                    @Override
+                    public String executeTask(Map<String, Object> parameters) throws Exception {
+                        return "result";
+                    }
+
+                });
+
+                TaskStatus finished = con.waitForTaskAsync(taskId).get(10, TimeUnit.SECONDS);
+                assertEquals("finished", finished.getStatus());
+                assertEquals("result", finished.getResult());
+                assertEquals("workerid", finished.getWorkerId());
+
+                Map<String, TaskStatus> completed = new HashMap<>();
+                long deadline = System.currentTimeMillis() + 10000;
+                while (completed.size() < taskIds.size() && System.currentTimeMillis() < deadline) {
+                    List<String> remaining = new ArrayList<>(taskIds);
+                    remaining.removeAll(completed.keySet());
+                    completed.putAll(con.waitForTasks(remaining, 1000));
+                }
+                assertEquals(taskIds.size(), completed.size());
+                for (TaskStatus t : completed.values()) {
+                    assertEquals("finished", t.getStatus());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void transactionsTest() throws Exception {
+        try (NettyClientConnection con = openConnection()) {
+            con.setTransacted(true);
+            String taskId = con.submitTask(task("param")).getTaskId();
+            assertEquals(0, con.getBrokerStatus().getWaitingtasks());
+            con.rollback();
+            assertNull(con.getTaskStatus(taskId));
+
+            List<SubmitTaskResponse> responses = con.submitTasks(Arrays.asList(task("a"), task("b")));
+            assertEquals(2, responses.size());
+            con.commit();
+            for (SubmitTaskResponse resp : responses) {
+                assertNotNull(con.getTaskStatus(resp.getTaskId()));
+            }
+            assertEquals(2, con.getBrokerStatus().getWaitingtasks());
+        }
+    }
+
+    @Test
+    public void errorsTest() throws Exception {
+        try (NettyClientConnection con = openConnection()) {
+            SubmitTaskRequest req = task("param");
+            req.setUserid(null);
+            try {
+                con.submitTask(req);
+                fail();
+            } catch (ClientException ok) {
+            }
+            SubmitTaskRequest slot1 = task("param");
+            slot1.setSlot("myslot");
+            SubmitTaskRequest slot2 = task("param");
+            slot2.setSlot("myslot");
+            List<SubmitTaskResponse> responses = con.submitTasks(Arrays.asList(slot1, slot2));
+            assertFalse(responses.get(0).getTaskId().isEmpty());
+            assertEquals("", responses.get(0).getOutcome());
+            assertNull(responses.get(1).getTaskId());
+            assertFalse(responses.get(1).getOutcome().isEmpty());
+        }
+
+        try (NettyClientConnection con = new NettyClientConnection(getBrokerLocator(), ADMIN, "wrong")) {
+            con.getBrokerStatus();
+            fail();
+        } catch (ClientException ok) {
+        }
+        // the shared secret of the cluster is not a valid password
+        try (NettyClientConnection con = new NettyClientConnection(getBrokerLocator(), ADMIN, broker.getConfiguration().getSharedSecret())) {
+            con.getBrokerStatus();
+            fail();
+        } catch (ClientException ok) {
+        }
+    }
+
+    @Test
+    public void permissionsTest() throws Exception {
+        try (NettyClientConnection con = new NettyClientConnection(getBrokerLocator(), USERID, USER_PASSWORD)) {
+            // an user can submit tasks only for itself
+            assertFalse(con.submitTask(task("param")).getTaskId().isEmpty());
+            SubmitTaskRequest other = task("param");
+            other.setUserid("otheruser");
+            try {
+                con.submitTask(other);
+                fail();
+            } catch (ClientException ok) {
+                assertTrue(ok.getMessage().contains("cannot submit tasks for user otheruser"));
+            }
+            try {
+                con.submitTasks(Arrays.asList(task("a"), other));
+                fail();
+            } catch (ClientException ok) {
+            }
+            assertEquals(1, con.getBrokerStatus().getWaitingtasks());
+
+            // only administrators manage code pools
+            CreateCodePoolRequest codePool = new CreateCodePoolRequest();
+            codePool.setCodePoolID("mypool");
+            codePool.setCodePoolData("");
+            try {
+                con.createCodePool(codePool);
+                fail();
+            } catch (ClientException ok) {
+                assertTrue(ok.getMessage().contains("only administrators can create code pools"));
+            }
+            try {
+                con.deleteCodePool("mypool");
+                fail();
+            } catch (ClientException ok) {
+                assertTrue(ok.getMessage().contains("only administrators can delete code pools"));
+            }
+        }
+        try (NettyClientConnection con = openConnection()) {
+            // an administrator can submit tasks for any user
+            SubmitTaskRequest other = task("param");
+            other.setUserid("otheruser");
+            assertFalse(con.submitTask(other).getTaskId().isEmpty());
+        }
+    }
+
+    @Test
+    public void connectionLostTest() throws Exception {
+        try (NettyClientConnection con = openConnection()) {
+            String taskId = con.submitTask(task("param")).getTaskId();
+            CompletableFuture<TaskStatus> completion = con.waitForTaskAsync(taskId);
+            // wait for the subscription
+            assertNotNull(con.getTaskStatus(taskId));
+            server.close();
+            try {
+                completion.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ok) {
+                assertTrue(ok.getCause() instanceof ClientException);
+            }
+            afterStartBroker();
+            // the connection is established again
+            assertEquals("waiting", con.getTaskStatus(taskId).getStatus());
+        }
+    }
+
+}
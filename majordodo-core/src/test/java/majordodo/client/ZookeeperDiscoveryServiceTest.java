@@ -0,0 +1,117 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import majordodo.client.discovery.ZookeeperDiscoveryService;
+import majordodo.replication.ZKTestEnv;
+import majordodo.utils.TestUtils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ZookeeperDiscoveryServiceTest {
+
+    @Rule
+    public TemporaryFolder folderZk = new TemporaryFolder();
+
+    private static byte[] brokerData(int port) {
+        return ("{\"client.api.url\":\"http://localhost:" + port + "/majordodo\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void leaderCacheTest() throws Exception {
+        try (ZKTestEnv zkServer = new ZKTestEnv(folderZk.getRoot().toPath());) {
+            ZooKeeper zk = new ZooKeeper(zkServer.getAddress(), zkServer.getTimeout(), null);
+            try {
+                String basePath = zkServer.getPath();
+                zk.create(basePath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                ZookeeperDiscoveryService discovery = new ZookeeperDiscoveryService(zk).setZkPath(basePath);
+
+                assertNull(discovery.getLeaderBroker());
+                CompletableFuture<BrokerAddress> newLeader = discovery.awaitLeaderChange(null);
+                assertFalse(newLeader.isDone());
+
+                // waiting clients are notified as soon as the leader registers
+                zk.create(basePath + "/leader", brokerData(7000), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                BrokerAddress leader = newLeader.get(10, TimeUnit.SECONDS);
+                assertEquals(7000, leader.getPort());
+                assertEquals("/majordodo", leader.getPath());
+                assertSame(leader, discovery.getLeaderBroker());
+
+                // a failure reloads the znode, the leader did not change
+                discovery.brokerFailed(leader);
+                assertSame(leader, discovery.getLeaderBroker());
+                CompletableFuture<BrokerAddress> leaderAfterFailure = discovery.awaitLeaderChange(leader);
+                assertFalse(leaderAfterFailure.isDone());
+
+                zk.setData(basePath + "/leader", brokerData(7001), -1);
+                assertEquals(7001, leaderAfterFailure.get(10, TimeUnit.SECONDS).getPort());
+                assertEquals(7001, discovery.getLeaderBroker().getPort());
+                // a stale failure does not discard the new leader
+                BrokerAddress current = discovery.getLeaderBroker();
+                discovery.brokerFailed(leader);
+                assertSame(current, discovery.awaitLeaderChange(leader).getNow(null));
+
+                zk.delete(basePath + "/leader", -1);
+                TestUtils.waitForCondition(() -> discovery.getLeaderBroker() == null, null, 100);
+            } finally {
+                zk.close();
+            }
+        }
+    }
+
+    @Test
+    public void discoverBrokersTest() throws Exception {
+        try (ZKTestEnv zkServer = new ZKTestEnv(folderZk.getRoot().toPath());) {
+            ZooKeeper zk = new ZooKeeper(zkServer.getAddress(), zkServer.getTimeout(), null);
+            try {
+                String basePath = zkServer.getPath();
+                zk.create(basePath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                zk.create(basePath + "/discoverypath", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                ZookeeperDiscoveryService discovery = new ZookeeperDiscoveryService(zk).setZkPath(basePath);
+
+                zk.create(basePath + "/discoverypath/brokers", brokerData(7000), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+                List<BrokerAddress> brokers = discovery.discoverBrokers();
+                assertEquals(1, brokers.size());
+                assertEquals(7000, brokers.get(0).getPort());
+                assertSame(brokers, discovery.discoverBrokers());
+
+                zk.create(basePath + "/discoverypath/brokers", brokerData(7001), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+                TestUtils.waitForCondition(() -> discovery.discoverBrokers().size() == 2, null, 100);
+                assertTrue(discovery.discoverBrokers().stream().anyMatch(b -> b.getPort() == 7001));
+            } finally {
+                zk.close();
+            }
+        }
+    }
+
+}
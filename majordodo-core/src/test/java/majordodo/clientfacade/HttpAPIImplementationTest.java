@@ -0,0 +1,250 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.clientfacade;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import majordodo.task.Broker;
+import majordodo.task.BrokerConfiguration;
+import majordodo.task.MemoryCommitLog;
+import majordodo.task.TaskProperties;
+import majordodo.task.TasksHeap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class HttpAPIImplementationTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static HttpServletRequest request(Map<String, String> parameters, String body) {
+        ByteArrayInputStream in = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+        ServletInputStream servletIn = new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+        };
+        String auth = "Basic " + Base64.getEncoder().encodeToString("admin:password".getBytes(StandardCharsets.UTF_8));
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpAPIImplementationTest.class.getClassLoader(),
+            new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getParameter":
+                        return parameters.get((String) args[0]);
+                    case "getHeader":
+                        return "Authorization".equals(args[0]) ? auth : null;
+                    case "getInputStream":
+                        return servletIn;
+                    default:
+                        return null;
+                }
+            });
+    }
+
+    private static HttpServletResponse response(ByteArrayOutputStream out) {
+        ServletOutputStream servletOut = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                out.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(HttpAPIImplementationTest.class.getClassLoader(),
+            new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getOutputStream":
+                        return servletOut;
+                    case "sendError":
+                        throw new AssertionError("unexpected error " + args[0]);
+                    default:
+                        return null;
+                }
+            });
+    }
+
+    private static Map<String, Object> post(Broker broker, String body) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpAPIImplementation.doPost(request(new HashMap<>(), body), response(out), broker);
+        return MAPPER.readValue(out.toByteArray(), Map.class);
+    }
+
+    private static Map<String, Object> get(Broker broker, Map<String, String> parameters) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpAPIImplementation.doGet(request(parameters, ""), response(out), broker);
+        return MAPPER.readValue(out.toByteArray(), Map.class);
+    }
+
+    @Test
+    public void testSubmitAndQueryTasks() throws Exception {
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(),
+            new TasksHeap(1000, (long taskid, String taskType, String userid) -> new TaskProperties(1, null)));) {
+            broker.startAsWritable();
+
+            // top level fields may follow the tasks array
+            Map<String, Object> res = post(broker, "{\"tasks\":["
+                + "{\"tasktype\":\"type1\",\"userid\":\"user1\",\"data\":\"p1\",\"maxattempts\":\"2\"},"
+                + "{\"tasktype\":\"type2\",\"userid\":\"user1\",\"data\":\"p2\",\"slot\":\"myslot\",\"extra\":{\"ignored\":[1,2]}},"
+                + "{\"tasktype\":\"type1\",\"userid\":\"user2\",\"data\":null,\"deadline\":\"123\"}"
+                + "],\"action\":\"submitTasks\",\"mode\":\"\"}");
+            assertEquals(true, res.get("ok"));
+            assertEquals("", res.get("error"));
+            List<Map<String, Object>> results = (List<Map<String, Object>>) res.get("results");
+            assertEquals(3, results.size());
+            for (Map<String, Object> result : results) {
+                assertTrue(((Number) result.get("taskId")).longValue() > 0);
+                assertNull(result.get("result"));
+            }
+
+            res = post(broker, "{\"action\":\"submitTask\",\"tasktype\":\"type3\",\"userid\":\"user3\",\"data\":\"p4\"}");
+            assertEquals(true, res.get("ok"));
+            long lastTaskId = ((Number) res.get("taskId")).longValue();
+
+            res = post(broker, "{\"action\":\"submitTasks\"}");
+            assertEquals(false, res.get("ok"));
+            assertEquals("tasks element not present in json", res.get("error"));
+
+            Map<String, String> parameters = new HashMap<>();
+            parameters.put("view", "tasks");
+            parameters.put("status", "waiting");
+            parameters.put("max", "2");
+            res = get(broker, parameters);
+            assertEquals(2, res.get("count"));
+            List<Map<String, Object>> tasks = (List<Map<String, Object>>) res.get("tasks");
+            Map<String, Object> first = tasks.get(0);
+            assertEquals("user1", first.get("userId"));
+            assertEquals("type1", first.get("tasktype"));
+            assertEquals("p1", first.get("data"));
+            assertEquals(2, first.get("maxattempts"));
+            assertEquals("waiting", first.get("status"));
+            assertTrue(first.containsKey("workerId"));
+            assertNull(first.get("workerId"));
+            assertEquals("myslot", tasks.get(1).get("slot"));
+
+            parameters.put("cursor", res.get("nextCursor") + "");
+            res = get(broker, parameters);
+            assertEquals(2, res.get("count"));
+            tasks = (List<Map<String, Object>>) res.get("tasks");
+            assertEquals(123, ((Number) tasks.get(0).get("deadline")).intValue());
+            assertEquals(lastTaskId, ((Number) tasks.get(1).get("taskId")).longValue());
+            assertEquals(0, ((Number) res.get("nextCursor")).intValue());
+
+            parameters.clear();
+            parameters.put("view", "task");
+            parameters.put("taskId", lastTaskId + "");
+            res = get(broker, parameters);
+            assertEquals("user3", ((Map<String, Object>) res.get("task")).get("userId"));
+
+            parameters.clear();
+            parameters.put("view", "tasksoverview");
+            parameters.put("tasktype", "TYPE1");
+            res = get(broker, parameters);
+            assertEquals(2, ((Map<String, Object>) res.get("tasks")).get("type1"));
+        }
+    }
+
+    @Test
+    public void testWaitTasksAndTaskEvents() throws Exception {
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(),
+            new TasksHeap(1000, (long taskid, String taskType, String userid) -> new TaskProperties(1, null)));) {
+            broker.startAsWritable();
+
+            ByteArrayOutputStream events = new ByteArrayOutputStream();
+            Map<String, String> parameters = new HashMap<>();
+            parameters.put("view", "taskevents");
+            parameters.put("userId", "user1");
+            parameters.put("timeout", "2000");
+            Thread stream = new Thread(() -> {
+                try {
+                    HttpAPIImplementation.doGet(request(parameters, ""), response(events), broker);
+                } catch (Exception err) {
+                    throw new RuntimeException(err);
+                }
+            });
+            stream.start();
+            for (int i = 0; i < 100 && !events.toString("utf-8").startsWith(": subscribed"); i++) {
+                Thread.sleep(50);
+            }
+
+            Map<String, Object> res = post(broker, "{\"action\":\"submitTask\",\"tasktype\":\"type1\",\"userid\":\"user1\",\"data\":\"p1\"}");
+            long taskId = ((Number) res.get("taskId")).longValue();
+            post(broker, "{\"action\":\"submitTask\",\"tasktype\":\"type1\",\"userid\":\"user2\",\"data\":\"p2\"}");
+
+            // timeout, the task is still waiting
+            res = post(broker, "{\"action\":\"waitTasks\",\"taskIds\":[\"" + taskId + "\"],\"timeout\":100}");
+            assertEquals(true, res.get("ok"));
+            assertTrue(((List<Object>) res.get("tasks")).isEmpty());
+            assertTrue(((List<Object>) res.get("notFound")).isEmpty());
+
+            Map<String, String> waitParameters = new HashMap<>();
+            waitParameters.put("view", "waittasks");
+            waitParameters.put("taskIds", taskId + ",9999");
+            res = get(broker, waitParameters);
+            assertEquals(1, ((List<Object>) res.get("notFound")).size());
+            assertEquals(9999, ((List<Object>) res.get("notFound")).get(0));
+
+            stream.join();
+            String[] chunks = events.toString("utf-8").split("\n\n");
+            assertEquals(": subscribed", chunks[0]);
+            assertEquals(2, chunks.length);
+            assertTrue(chunks[1].startsWith("event: status\ndata: "));
+            Map<String, Object> event = MAPPER.readValue(chunks[1].substring("event: status\ndata: ".length()), Map.class);
+            assertEquals(taskId, ((Number) event.get("taskId")).longValue());
+            assertEquals("waiting", event.get("status"));
+            assertEquals("user1", event.get("userId"));
+        }
+    }
+
+}
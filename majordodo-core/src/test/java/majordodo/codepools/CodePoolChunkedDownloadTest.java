@@ -0,0 +1,150 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.codepools;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import majordodo.clientfacade.CreateCodePoolRequest;
+import majordodo.network.BrokerLocator;
+import majordodo.network.jvm.JVMBrokerLocator;
+import majordodo.network.netty.NettyBrokerLocator;
+import majordodo.network.netty.NettyChannelAcceptor;
+import majordodo.task.Broker;
+import majordodo.task.BrokerConfiguration;
+import majordodo.task.MemoryCommitLog;
+import majordodo.task.TaskProperties;
+import majordodo.task.TasksHeap;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Workers download CodePools in compressed chunks
+ *
+ * @author enrico.olivelli
+ */
+public class CodePoolChunkedDownloadTest {
+
+    private static final String CODEPOOL = "codepool";
+
+    @Test
+    public void testIncompressibleChunk() throws Exception {
+        byte[] data = new byte[CodePool.CHUNK_SIZE * 2];
+        new Random(1234).nextBytes(data);
+        CodePool codePool = new CodePool(CODEPOOL, System.currentTimeMillis(), data, 0);
+        CodePoolChunk chunk = codePool.getChunks().get(1);
+        assertFalse(chunk.isCompressed());
+        // no copy of the data
+        ByteBuffer sent = chunk.getData();
+        assertSame(data, sent.array());
+        assertEquals(CodePool.CHUNK_SIZE, sent.position());
+        assertEquals(CodePool.CHUNK_SIZE, sent.remaining());
+    }
+
+    @Test
+    public void testChunkedDownload() throws Exception {
+        // 3.5 chunks, half of the data is compressible
+        byte[] data = new byte[CodePool.CHUNK_SIZE * 7 / 2];
+        Random random = new Random(1234);
+        for (int i = 0; i < data.length; i += 2) {
+            data[i] = (byte) random.nextInt();
+        }
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(),
+            new TasksHeap(1000, (long taskid, String taskType, String userid) -> new TaskProperties(0, null)));) {
+            broker.startAsWritable();
+            assertTrue(broker.getClient().createCodePool(new CreateCodePoolRequest(CODEPOOL, System.currentTimeMillis(), 0, data)).ok);
+            CodePool codePool = new CodePool(CODEPOOL, System.currentTimeMillis(), data, 0);
+            List<CodePoolChunk> chunks = codePool.getChunks();
+            assertEquals(4, chunks.size());
+            assertEquals(CodePool.CHUNK_SIZE / 2, chunks.get(3).getLength());
+            assertTrue(chunks.get(0).isCompressed());
+            // compressed only once
+            assertSame(chunks.get(0).getData().array(), codePool.getChunks().get(0).getData().array());
+
+            try (NettyChannelAcceptor server = new NettyChannelAcceptor(broker.getAcceptor());) {
+                server.start();
+                try (NettyBrokerLocator locator = new NettyBrokerLocator(server.getHost(), server.getPort(), server.isSsl())) {
+                    download(locator, data, codePool.getHash());
+                }
+            }
+            // the in-JVM channel delivers the buffers of the broker
+            try (JVMBrokerLocator locator = new JVMBrokerLocator(broker.getBrokerId())) {
+                download(locator, data, codePool.getHash());
+            }
+        }
+    }
+
+    private static void download(BrokerLocator locator, byte[] data, String hash) throws Exception {
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        WorkerStatusListener listener = new WorkerStatusListener() {
+
+            @Override
+            public void connectionEvent(String event, WorkerCore core) {
+                if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                    connectedLatch.countDown();
+                }
+            }
+
+        };
+        Map<String, Integer> tags = new HashMap<>();
+        tags.put("mytype", 1);
+        WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+        config.setWorkerId("abc");
+        config.setMaxThreadsByTaskType(tags);
+        config.setGroups(Arrays.asList(0));
+        config.setCodePoolDownloadParallelism(2);
+        try (WorkerCore core = new WorkerCore(config, "abc", locator, listener);) {
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+
+            ExecutorService threads = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<byte[]>> downloads = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    downloads.add(threads.submit(() -> core.downloadCodePool(CODEPOOL)));
+                }
+                for (Future<byte[]> download : downloads) {
+                    assertArrayEquals(data, download.get(30, TimeUnit.SECONDS));
+                }
+            } finally {
+                threads.shutdown();
+            }
+            assertNull(core.downloadCodePool(CODEPOOL, hash));
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.codepools;
+
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import majordodo.client.CodePoolUtils;
+import majordodo.clientfacade.CreateCodePoolRequest;
+import majordodo.network.netty.NettyBrokerLocator;
+import majordodo.network.netty.NettyChannelAcceptor;
+import majordodo.task.Broker;
+import majordodo.task.BrokerConfiguration;
+import majordodo.task.MemoryCommitLog;
+import majordodo.task.TaskProperties;
+import majordodo.task.TasksHeap;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the classloaders of CodePools on the worker
+ *
+ * @author enrico.olivelli
+ */
+public class CodePoolClassloadersManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] codePoolData(String content) throws Exception {
+        return CodePoolUtils.createZipWithOneEntry("lib.jar", content.getBytes("utf-8"));
+    }
+
+    private static boolean isAvailable(ClassLoader cl) throws Exception {
+        for (URL url : ((CodePoolClassloader) cl).getURLs()) {
+            if (!Files.exists(Paths.get(url.toURI()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String content(ClassLoader cl) throws Exception {
+        URL[] urls = ((CodePoolClassloader) cl).getURLs();
+        assertEquals(1, urls.length);
+        return new String(Files.readAllBytes(Paths.get(urls[0].toURI())), "utf-8");
+    }
+
+    @Test
+    public void testJustLoadedClassloaderIsNotEvicted() throws Exception {
+        long entrySize;
+        {
+            CodePoolsCache cache = new CodePoolsCache(folder.newFolder().toPath(), 0);
+            cache.store("probe", codePoolData("version0"));
+            entrySize = cache.getTotalSize();
+        }
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(),
+            new TasksHeap(1000, (long taskid, String taskType, String userid) -> new TaskProperties(0, null)));) {
+            broker.startAsWritable();
+            assertTrue(broker.getClient().createCodePool(new CreateCodePoolRequest("pool1", System.currentTimeMillis(), 0, codePoolData("version1"))).ok);
+            assertTrue(broker.getClient().createCodePool(new CreateCodePoolRequest("pool2", System.currentTimeMillis(), 0, codePoolData("version2"))).ok);
+
+            try (NettyChannelAcceptor server = new NettyChannelAcceptor(broker.getAcceptor());) {
+                server.start();
+                try (NettyBrokerLocator locator = new NettyBrokerLocator(server.getHost(), server.getPort(), server.isSsl())) {
+                    CountDownLatch connectedLatch = new CountDownLatch(1);
+                    WorkerStatusListener listener = new WorkerStatusListener() {
+
+                        @Override
+                        public void connectionEvent(String event, WorkerCore core) {
+                            if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                                connectedLatch.countDown();
+                            }
+                        }
+
+                    };
+                    Map<String, Integer> tags = new HashMap<>();
+                    tags.put("mytype", 1);
+                    Path codePoolsDirectory = folder.newFolder().toPath();
+                    WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+                    config.setWorkerId("abc");
+                    config.setMaxThreadsByTaskType(tags);
+                    config.setGroups(Arrays.asList(0));
+                    config.setEnableCodePools(true);
+                    config.setCodePoolsDirectory(codePoolsDirectory.toString());
+                    // room for only one CodePool
+                    config.setCodePoolsCacheMaxSize(entrySize);
+                    try (WorkerCore core = new WorkerCore(config, "abc", locator, listener);) {
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+                        CodePoolClassloadersManager manager = core.getClassloadersManager();
+
+                        ClassLoader cl1 = manager.acquireCodePoolClassloader(1, "pool1");
+                        assertTrue(isAvailable(cl1));
+
+                        // pool1 is pinned, the cache is over its limit but pool2 must survive until task 2 pins it
+                        ClassLoader cl2 = manager.acquireCodePoolClassloader(2, "pool2");
+                        assertNotSame(cl1, cl2);
+                        assertTrue(isAvailable(cl1));
+                        assertTrue(isAvailable(cl2));
+
+                        manager.releaseCodePoolClassloader(1);
+                        manager.releaseCodePoolClassloader(2);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRecreatedCodePool() throws Exception {
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(),
+            new TasksHeap(1000, (long taskid, String taskType, String userid) -> new TaskProperties(0, null)));) {
+            broker.startAsWritable();
+            byte[] version1 = codePoolData("version1");
+            assertTrue(broker.getClient().createCodePool(new CreateCodePoolRequest("pool1", System.currentTimeMillis(), 0, version1)).ok);
+
+            try (NettyChannelAcceptor server = new NettyChannelAcceptor(broker.getAcceptor());) {
+                server.start();
+                try (NettyBrokerLocator locator = new NettyBrokerLocator(server.getHost(), server.getPort(), server.isSsl())) {
+                    CountDownLatch connectedLatch = new CountDownLatch(1);
+                    WorkerStatusListener listener = new WorkerStatusListener() {
+
+                        @Override
+                        public void connectionEvent(String event, WorkerCore core) {
+                            if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                                connectedLatch.countDown();
+                            }
+                        }
+
+                    };
+                    Map<String, Integer> tags = new HashMap<>();
+                    tags.put("mytype", 1);
+                    WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+                    config.setWorkerId("abc");
+                    config.setMaxThreadsByTaskType(tags);
+                    config.setGroups(Arrays.asList(0));
+                    config.setEnableCodePools(true);
+                    config.setCodePoolsDirectory(folder.newFolder().toPath().toString());
+                    try (WorkerCore core = new WorkerCore(config, "abc", locator, listener);) {
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+                        CodePoolClassloadersManager manager = core.getClassloadersManager();
+
+                        ClassLoader cl1 = manager.acquireCodePoolClassloader(1, "pool1", CodePoolUtils.computeCodePoolHash(version1));
+                        assertEquals("version1", content(cl1));
+                        assertSame(cl1, manager.acquireCodePoolClassloader(2, "pool1", CodePoolUtils.computeCodePoolHash(version1)));
+
+                        // task 1 is still running while the CodePool is re-created
+                        broker.getClient().deleteCodePool("pool1");
+                        byte[] version2 = codePoolData("version2");
+                        assertTrue(broker.getClient().createCodePool(new CreateCodePoolRequest("pool1", System.currentTimeMillis(), 0, version2)).ok);
+
+                        ClassLoader cl3 = manager.acquireCodePoolClassloader(3, "pool1", CodePoolUtils.computeCodePoolHash(version2));
+                        assertNotSame(cl1, cl3);
+                        assertEquals("version2", content(cl3));
+                        assertTrue(isAvailable(cl1));
+                        manager.releaseCodePoolClassloader(1);
+                        manager.releaseCodePoolClassloader(2);
+
+                        // without the hash the worker asks the broker
+                        broker.getClient().deleteCodePool("pool1");
+                        assertTrue(broker.getClient().createCodePool(new CreateCodePoolRequest("pool1", System.currentTimeMillis(), 0, codePoolData("version3"))).ok);
+                        ClassLoader cl4 = manager.acquireCodePoolClassloader(4, "pool1");
+                        assertNotSame(cl3, cl4);
+                        assertEquals("version3", content(cl4));
+                        assertSame(cl4, manager.acquireCodePoolClassloader(5, "pool1"));
+
+                        // back to a version which is still in the local cache
+                        broker.getClient().deleteCodePool("pool1");
+                        assertTrue(broker.getClient().createCodePool(new CreateCodePoolRequest("pool1", System.currentTimeMillis(), 0, version2)).ok);
+                        ClassLoader cl6 = manager.acquireCodePoolClassloader(6, "pool1", CodePoolUtils.computeCodePoolHash(version2));
+                        assertNotSame(cl4, cl6);
+                        assertEquals("version2", content(cl6));
+
+                        manager.releaseCodePoolClassloader(3);
+                        manager.releaseCodePoolClassloader(4);
+                        manager.releaseCodePoolClassloader(5);
+                        manager.releaseCodePoolClassloader(6);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.codepools;
+
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import majordodo.client.CodePoolUtils;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the local cache of CodePools
+ *
+ * @author enrico.olivelli
+ */
+public class CodePoolsCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] codePoolData(String content) throws Exception {
+        return CodePoolUtils.createZipWithOneEntry("lib.jar", content.getBytes("utf-8"));
+    }
+
+    @Test
+    public void testReuseAfterRestart() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        byte[] data = codePoolData("version1");
+        String hash;
+        {
+            CodePoolsCache cache = new CodePoolsCache(dir, 0);
+            assertNull(cache.getHash("pool1"));
+            hash = cache.store("pool1", data);
+            assertEquals(CodePoolUtils.computeCodePoolHash(data), hash);
+            assertEquals(hash, cache.getHash("pool1"));
+            // same content, same entry
+            assertEquals(hash, cache.store("pool2", data));
+            assertEquals(1, cache.getSize());
+        }
+
+        // restart
+        CodePoolsCache cache = new CodePoolsCache(dir, 0);
+        assertEquals(1, cache.getSize());
+        assertEquals(hash, cache.getHash("pool1"));
+        assertEquals(hash, cache.getHash("pool2"));
+        List<URL> urls = cache.open("pool1", hash);
+        assertEquals(1, urls.size());
+        assertArrayEquals("version1".getBytes("utf-8"), Files.readAllBytes(Paths.get(urls.get(0).toURI())));
+        assertNull(cache.open("pool1", "unknownhash"));
+    }
+
+    @Test
+    public void testIncompleteEntryIsDropped() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        String hash = new CodePoolsCache(dir, 0).store("pool1", codePoolData("version1"));
+        // crash while writing the entry
+        Files.delete(dir.resolve(hash + ".lastused"));
+
+        CodePoolsCache cache = new CodePoolsCache(dir, 0);
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getTotalSize());
+        assertNull(cache.getHash("pool1"));
+        assertNull(cache.open("pool1", hash));
+        assertEquals(false, Files.exists(dir.resolve(hash)));
+    }
+
+    @Test
+    public void testCorruptedEntry() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        String hash = new CodePoolsCache(dir, 0).store("pool1", codePoolData("version1"));
+        Files.delete(dir.resolve(hash).resolve("lib.jar"));
+
+        CodePoolsCache cache = new CodePoolsCache(dir, 0);
+        assertEquals(hash, cache.getHash("pool1"));
+        assertNull(cache.open("pool1", hash));
+        assertNull(cache.getHash("pool1"));
+        assertEquals(0, cache.getSize());
+        assertEquals(false, Files.exists(dir.resolve(hash)));
+
+        // download again
+        assertEquals(hash, cache.store("pool1", codePoolData("version1")));
+        assertNotNull(cache.open("pool1", hash));
+
+        Files.write(dir.resolve(hash).resolve("source.zip"), codePoolData("version2"));
+        cache = new CodePoolsCache(dir, 0);
+        assertNull(cache.open("pool1", hash));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testLRUEviction() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        long entrySize;
+        {
+            CodePoolsCache cache = new CodePoolsCache(dir.resolve("probe"), 0);
+            cache.store("probe", codePoolData("version0"));
+            entrySize = cache.getTotalSize();
+        }
+        CodePoolsCache cache = new CodePoolsCache(dir.resolve("cache"), entrySize * 2);
+        List<String> hashes = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            hashes.add(cache.store("pool" + i, codePoolData("version" + i)));
+            Thread.sleep(10);
+        }
+        // pool1 is the most recently used
+        assertNotNull(cache.open("pool1", hashes.get(0)));
+
+        Set<String> evicted = new HashSet<>();
+        assertEquals(1, cache.evict(Collections.emptySet(), evicted::add));
+        assertEquals(Collections.singleton(hashes.get(1)), evicted);
+        assertNull(cache.getHash("pool2"));
+        assertEquals(hashes.get(0), cache.getHash("pool1"));
+        assertEquals(hashes.get(2), cache.getHash("pool3"));
+        assertEquals(entrySize * 2, cache.getTotalSize());
+
+        // entries in use are never evicted
+        hashes.add(cache.store("pool4", codePoolData("version4")));
+        evicted.clear();
+        Set<String> inUse = new HashSet<>(hashes.subList(0, 1));
+        inUse.add(hashes.get(2));
+        assertEquals(1, cache.evict(inUse, evicted::add));
+        assertEquals(Collections.singleton(hashes.get(3)), evicted);
+        assertEquals(2, cache.getSize());
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.codepools;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import majordodo.client.CodePoolUtils;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.clientfacade.CreateCodePoolRequest;
+import majordodo.executors.TaskExecutor;
+import majordodo.network.netty.NettyBrokerLocator;
+import majordodo.network.netty.NettyChannelAcceptor;
+import majordodo.task.Broker;
+import majordodo.task.BrokerConfiguration;
+import majordodo.task.MemoryCommitLog;
+import majordodo.task.TaskProperties;
+import majordodo.task.TasksHeap;
+import majordodo.worker.CodePoolAwareExecutorFactory;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tasks with a CodePool see the CodePool classloader as context classloader
+ * when the worker runs them on virtual threads. On JVMs without virtual
+ * threads the worker falls back to platform threads
+ *
+ * @author enrico.olivelli
+ */
+public class TaskExecutionWithCodePoolOnVirtualThreadsTest {
+
+    private static final String CODEPOOL = "codepool";
+    private static final String TASKTYPE_MYTYPE = "mytype";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static boolean isVirtual(Thread thread) throws Exception {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (NoSuchMethodException beforeJava21) {
+            return false;
+        }
+    }
+
+    @Test
+    public void contextClassLoaderTest() throws Exception {
+        byte[] data = CodePoolUtils.createZipWithOneEntry("lib.jar", "test".getBytes("utf-8"));
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(),
+            new TasksHeap(1000, (long taskid, String taskType, String userid) -> new TaskProperties(0, null)));) {
+            broker.startAsWritable();
+            assertTrue(broker.getClient().createCodePool(new CreateCodePoolRequest(CODEPOOL, System.currentTimeMillis(), 0, data)).ok);
+            long taskId = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, "queue1", "param", 1, 0, 0, null, 0, CODEPOOL, null)).getTaskId();
+            assertTrue(taskId > 0);
+
+            try (NettyChannelAcceptor server = new NettyChannelAcceptor(broker.getAcceptor());) {
+                server.start();
+                try (NettyBrokerLocator locator = new NettyBrokerLocator(server.getHost(), server.getPort(), server.isSsl())) {
+                    Map<String, Integer> tags = new HashMap<>();
+                    tags.put(TASKTYPE_MYTYPE, 1);
+                    WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+                    config.setWorkerId("abc");
+                    config.setMaxThreadsByTaskType(tags);
+                    config.setGroups(Arrays.asList(0));
+                    config.setEnableCodePools(true);
+                    config.setCodePoolsDirectory(folder.newFolder().getAbsolutePath());
+                    config.setVirtualThreads(true);
+
+                    AtomicReference<ClassLoader> contextClassLoader = new AtomicReference<>();
+                    AtomicReference<Thread> executionThread = new AtomicReference<>();
+                    CountDownLatch taskExecuted = new CountDownLatch(1);
+                    try (WorkerCore core = new WorkerCore(config, "abc", locator, new WorkerStatusListener() {
+                    });) {
+                        core.setExecutorFactory(new CodePoolAwareExecutorFactory((String tasktype, Map<String, Object> parameters) -> {
+                            contextClassLoader.set(Thread.currentThread().getContextClassLoader());
+                            executionThread.set(Thread.currentThread());
+                            return new TaskExecutor() {
+
+                                @Override
+                                public String executeTask(Map<String, Object> parameters) throws Exception {
+                                    taskExecuted.countDown();
+                                    return "";
+                                }
+
+                            };
+                        }, core.getClassloadersManager()));
+                        core.start();
+                        assertTrue(taskExecuted.await(30, TimeUnit.SECONDS));
+
+                        assertTrue(contextClassLoader.get() instanceof CodePoolClassloader);
+                        assertEquals(CODEPOOL, ((CodePoolClassloader) contextClassLoader.get()).getCodePoolId());
+                        assertEquals(core.isVirtualThreads(), isVirtual(executionThread.get()));
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.clientfacade.TaskStatusView;
+import majordodo.executors.AsyncTaskExecutor;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for tasks which complete asynchronously
+ *
+ * @author enrico.olivelli
+ */
+public class AsyncTaskExecutorTest extends BasicBrokerEnv {
+
+    private static final String TASKTYPE_MYTYPE = "mytype";
+    private static final String USERID = "queue1";
+    private static final int GROUP = 12345;
+    private static final int TASKS = 20;
+    private static final int MAXTHREADS = 5;
+
+    @Test
+    public void asyncExecutionTest() throws Exception {
+        declareGroupForUser(USERID, GROUP);
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        WorkerStatusListener listener = new WorkerStatusListener() {
+
+            @Override
+            public void connectionEvent(String event, WorkerCore core) {
+                if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                    connectedLatch.countDown();
+                }
+            }
+
+        };
+        Map<String, Integer> tags = new HashMap<>();
+        tags.put(TASKTYPE_MYTYPE, MAXTHREADS);
+        WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+        config.setWorkerId("workerid");
+        config.setMaxThreadsByTaskType(tags);
+        config.setGroups(Arrays.asList(GROUP));
+
+        ScheduledExecutorService remoteService = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Long> taskIds = new ArrayList<>();
+        try (WorkerCore core = new WorkerCore(config, "here", getBrokerLocator(), listener);) {
+            core.setExecutorFactory((String tasktype, Map<String, Object> parameters) -> new AsyncTaskExecutor() {
+
+                @Override
+                public CompletionStage<String> executeTaskAsync(Map<String, Object> parameters) throws Exception {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    String parameter = (String) parameters.get("parameter");
+                    CompletableFuture<String> result = new CompletableFuture<>();
+                    // simulate a call to a remote service
+                    remoteService.schedule(() -> {
+                        running.decrementAndGet();
+                        if (parameter.equals("fail")) {
+                            result.completeExceptionally(new Exception("remote failure"));
+                        } else {
+                            result.complete("result-" + parameter);
+                        }
+                    }, 100, TimeUnit.MILLISECONDS);
+                    return result;
+                }
+
+            });
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+
+            for (int i = 0; i < TASKS; i++) {
+                taskIds.add(getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, USERID, "p" + i, 0, 0, 0, null, 0, null, null)).getTaskId());
+            }
+            long failedTaskId = getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, USERID, "fail", 1, 0, 0, null, 0, null, null)).getTaskId();
+
+            for (int i = 0; i < 100; i++) {
+                int finished = 0;
+                for (long taskId : taskIds) {
+                    if (getClient().getTask(taskId).getStatus() == Task.STATUS_FINISHED) {
+                        finished++;
+                    }
+                }
+                if (finished == TASKS && getClient().getTask(failedTaskId).getStatus() == Task.STATUS_ERROR) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            for (int i = 0; i < TASKS; i++) {
+                TaskStatusView task = getClient().getTask(taskIds.get(i));
+                assertEquals(Task.STATUS_FINISHED, task.getStatus());
+                assertEquals("result-p" + i, task.getResult());
+            }
+            assertEquals(Task.STATUS_ERROR, getClient().getTask(failedTaskId).getStatus());
+
+            // tasks waiting for the remote service count as running tasks
+            assertTrue(maxRunning.get() <= MAXTHREADS);
+        } finally {
+            remoteService.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.executors.BatchTaskExecutor;
+import majordodo.executors.BatchTaskExecutorFactory;
+import majordodo.executors.TaskExecutor;
+import majordodo.executors.TaskExecutorFactory;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Compares the execution of tasks one at a time and in batches, when each call
+ * to the (simulated) external system has a fixed cost and the external system
+ * accepts a limited number of concurrent calls.
+ * Not part of the default build, run it with -Dtest=BatchExecutionBench
+ *
+ * @author enrico.olivelli
+ */
+public class BatchExecutionBench extends BasicBrokerEnv {
+
+    private static final String TASKTYPE_MYTYPE = "mytype";
+    private static final String USERID = "queue1";
+    private static final int GROUP = 12345;
+    private static final int TASKS = 2000;
+    private static final int CONNECTIONS = 4;
+    private static final long CALL_OVERHEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long ITEM_COST_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
+    private final Semaphore connections = new Semaphore(CONNECTIONS);
+
+    private void callExternalSystem(int items) throws InterruptedException {
+        connections.acquire();
+        try {
+            LockSupport.parkNanos(CALL_OVERHEAD_NANOS + items * ITEM_COST_NANOS);
+        } finally {
+            connections.release();
+        }
+    }
+
+    private class SingleFactory implements TaskExecutorFactory {
+
+        protected final CountDownLatch allTasksFinished;
+
+        private SingleFactory(CountDownLatch allTasksFinished) {
+            this.allTasksFinished = allTasksFinished;
+        }
+
+        @Override
+        public TaskExecutor createTaskExecutor(String taskType, Map<String, Object> parameters) {
+            return new TaskExecutor() {
+                @Override
+                public String executeTask(Map<String, Object> parameters) throws Exception {
+                    callExternalSystem(1);
+                    allTasksFinished.countDown();
+                    return "";
+                }
+            };
+        }
+    }
+
+    private class BatchFactory extends SingleFactory implements BatchTaskExecutorFactory {
+
+        private final AtomicInteger batches = new AtomicInteger();
+
+        private BatchFactory(CountDownLatch allTasksFinished) {
+            super(allTasksFinished);
+        }
+
+        @Override
+        public BatchTaskExecutor createBatchTaskExecutor(String taskType) {
+            return new BatchTaskExecutor() {
+                @Override
+                public void executeTasks(List<Map<String, Object>> tasks, BatchTaskExecutor.Results results) throws Exception {
+                    batches.incrementAndGet();
+                    callExternalSystem(tasks.size());
+                    for (Map<String, Object> task : tasks) {
+                        results.taskFinished((Long) task.get("taskid"), "");
+                        allTasksFinished.countDown();
+                    }
+                }
+            };
+        }
+    }
+
+    private long run(String workerId, TaskExecutorFactory factory, CountDownLatch allTasksFinished) throws Exception {
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        WorkerStatusListener listener = new WorkerStatusListener() {
+
+            @Override
+            public void connectionEvent(String event, WorkerCore core) {
+                if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                    connectedLatch.countDown();
+                }
+            }
+
+        };
+        Map<String, Integer> tags = new HashMap<>();
+        tags.put(TASKTYPE_MYTYPE, 200);
+        WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+        config.setWorkerId(workerId);
+        config.setMaxThreads(200);
+        config.setMaxThreadsByTaskType(tags);
+        config.setGroups(Arrays.asList(GROUP));
+        config.setMaxBatchSize(100);
+
+        for (int i = 0; i < TASKS; i++) {
+            getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, USERID, "param", 0, 0, 0, null, 0, null, null));
+        }
+        try (WorkerCore core = new WorkerCore(config, workerId, getBrokerLocator(), listener);) {
+            core.setExecutorFactory(factory);
+            long _start = System.currentTimeMillis();
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+            assertTrue(allTasksFinished.await(120, TimeUnit.SECONDS));
+            return System.currentTimeMillis() - _start;
+        }
+    }
+
+    @Test
+    public void batchVersusSingleExecution() throws Exception {
+        declareGroupForUser(USERID, GROUP);
+
+        CountDownLatch singleFinished = new CountDownLatch(TASKS);
+        long singleTime = run("worker-single", new SingleFactory(singleFinished), singleFinished);
+
+        CountDownLatch batchFinished = new CountDownLatch(TASKS);
+        BatchFactory batchFactory = new BatchFactory(batchFinished);
+        long batchTime = run("worker-batch", batchFactory, batchFinished);
+
+        System.out.println(TASKS + " tasks, " + CONNECTIONS + " connections, "
+            + TimeUnit.NANOSECONDS.toMillis(CALL_OVERHEAD_NANOS) + " ms per call:"
+            + " one at a time " + singleTime + " ms (" + (TASKS * 1000L / singleTime) + " tasks/s),"
+            + " batches " + batchTime + " ms (" + (TASKS * 1000L / batchTime) + " tasks/s, "
+            + batchFactory.batches.get() + " batches)");
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.executors.BatchTaskExecutor;
+import majordodo.executors.BatchTaskExecutorFactory;
+import majordodo.executors.TaskExecutor;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for tasks executed in batches
+ *
+ * @author enrico.olivelli
+ */
+public class BatchTaskExecutorTest extends BasicBrokerEnv {
+
+    private static final String TASKTYPE_BATCH = "batchtype";
+    private static final String TASKTYPE_SINGLE = "singletype";
+    private static final String USERID = "queue1";
+    private static final int GROUP = 12345;
+
+    private long submit(String tasktype, String parameter) throws Exception {
+        return getClient().submitTask(new AddTaskRequest(0, tasktype, USERID, parameter, 1, 0, 0, null, 0, null, null)).getTaskId();
+    }
+
+    private void waitForStatus(long taskId, int status) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            if (getClient().getTask(taskId).getStatus() == status) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        assertEquals(status, getClient().getTask(taskId).getStatus());
+    }
+
+    @Test
+    public void batchExecutionTest() throws Exception {
+        declareGroupForUser(USERID, GROUP);
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        WorkerStatusListener listener = new WorkerStatusListener() {
+
+            @Override
+            public void connectionEvent(String event, WorkerCore core) {
+                if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                    connectedLatch.countDown();
+                }
+            }
+
+        };
+        Map<String, Integer> tags = new HashMap<>();
+        tags.put(TASKTYPE_BATCH, 50);
+        tags.put(TASKTYPE_SINGLE, 5);
+        WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+        config.setWorkerId("workerid");
+        config.setMaxThreads(100);
+        config.setMaxThreadsByTaskType(tags);
+        config.setGroups(Arrays.asList(GROUP));
+        config.setMaxBatchSize(100);
+        config.setBatchLingerTime(500);
+
+        AtomicInteger batches = new AtomicInteger();
+        AtomicInteger maxBatchSize = new AtomicInteger();
+        AtomicInteger singleExecutions = new AtomicInteger();
+        try (WorkerCore core = new WorkerCore(config, "here", getBrokerLocator(), listener);) {
+            core.setExecutorFactory(new BatchTaskExecutorFactory() {
+                @Override
+                public BatchTaskExecutor createBatchTaskExecutor(String taskType) {
+                    if (!taskType.equals(TASKTYPE_BATCH)) {
+                        return null;
+                    }
+                    return new BatchTaskExecutor() {
+                        @Override
+                        public void executeTasks(List<Map<String, Object>> tasks, BatchTaskExecutor.Results results) throws Exception {
+                            batches.incrementAndGet();
+                            maxBatchSize.accumulateAndGet(tasks.size(), Math::max);
+                            for (Map<String, Object> task : tasks) {
+                                long taskId = (Long) task.get("taskid");
+                                String parameter = (String) task.get("parameter");
+                                switch (parameter) {
+                                    case "error":
+                                        results.taskError(taskId, new Exception("error for " + taskId));
+                                        break;
+                                    case "noresult":
+                                        break;
+                                    default:
+                                        results.taskFinished(taskId, "result-" + parameter);
+                                }
+                            }
+                        }
+                    };
+                }
+
+                @Override
+                public TaskExecutor createTaskExecutor(String taskType, Map<String, Object> parameters) {
+                    return new TaskExecutor() {
+                        @Override
+                        public String executeTask(Map<String, Object> parameters) throws Exception {
+                            singleExecutions.incrementAndGet();
+                            return "single";
+                        }
+                    };
+                }
+            });
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+
+            List<Long> okTasks = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                okTasks.add(submit(TASKTYPE_BATCH, "p" + i));
+            }
+            long errorTask = submit(TASKTYPE_BATCH, "error");
+            long noResultTask = submit(TASKTYPE_BATCH, "noresult");
+            long singleTask = submit(TASKTYPE_SINGLE, "p");
+
+            for (int i = 0; i < okTasks.size(); i++) {
+                waitForStatus(okTasks.get(i), Task.STATUS_FINISHED);
+                assertEquals("result-p" + i, getClient().getTask(okTasks.get(i)).getResult());
+            }
+            waitForStatus(errorTask, Task.STATUS_ERROR);
+            waitForStatus(noResultTask, Task.STATUS_ERROR);
+            waitForStatus(singleTask, Task.STATUS_FINISHED);
+            assertEquals("single", getClient().getTask(singleTask).getResult());
+            assertEquals(1, singleExecutions.get());
+            assertTrue(maxBatchSize.get() > 1);
+            assertTrue(batches.get() < 12);
+            assertEquals(0, core.getRunningTasks().size());
+        }
+    }
+
+}
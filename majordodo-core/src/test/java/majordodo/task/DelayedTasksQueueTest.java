@@ -0,0 +1,164 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class DelayedTasksQueueTest {
+
+    private static Task task(long taskId, long requestedStartTime) {
+        Task task = new Task();
+        task.setTaskId(taskId);
+        task.setRequestedStartTime(requestedStartTime);
+        return task;
+    }
+
+    private static Set<Long> ids(List<Task> tasks) {
+        Set<Long> res = new HashSet<>();
+        tasks.forEach(t -> res.add(t.getTaskId()));
+        return res;
+    }
+
+    @Test
+    public void testPollExpired() throws Exception {
+        // 10 ms tick, 4 buckets: the wheels cover 40 ms, 160 ms, 640 ms...
+        DelayedTasksQueue queue = new DelayedTasksQueue(10, 4, 1000);
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getEarliestStartTime());
+
+        queue.add(task(1, 1005));
+        queue.add(task(2, 1035));
+        queue.add(task(3, 1100));
+        queue.add(task(4, 1900));
+        queue.add(task(5, 5000));
+        queue.add(task(6, 900));
+        assertEquals(6, queue.size());
+        assertEquals(900, queue.getEarliestStartTime());
+
+        assertEquals(new HashSet<>(Arrays.asList(6L)), ids(queue.pollExpired(1000)));
+        assertEquals(1005, queue.getEarliestStartTime());
+        // never before the requested start time
+        assertTrue(queue.pollExpired(1004).isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList(1L)), ids(queue.pollExpired(1005)));
+        assertTrue(queue.pollExpired(1034).isEmpty());
+        assertEquals(1035, queue.getEarliestStartTime());
+        assertEquals(new HashSet<>(Arrays.asList(2L)), ids(queue.pollExpired(1099)));
+        assertEquals(new HashSet<>(Arrays.asList(3L)), ids(queue.pollExpired(1899)));
+        assertEquals(1900, queue.getEarliestStartTime());
+        assertEquals(2, queue.size());
+        assertEquals(new HashSet<>(Arrays.asList(4L)), ids(queue.pollExpired(1900)));
+
+        // add a task while the overflow wheels are already in place
+        queue.add(task(7, 2000));
+        assertEquals(2000, queue.getEarliestStartTime());
+        assertEquals(new HashSet<>(Arrays.asList(5L, 7L)), ids(queue.pollExpired(10000)));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getEarliestStartTime());
+    }
+
+    @Test
+    public void testEarliestStartTimeInOverflowWheel() throws Exception {
+        DelayedTasksQueue queue = new DelayedTasksQueue(1000, 64, 0);
+        queue.add(task(1, 65000));
+        assertTrue(queue.pollExpired(50000).isEmpty());
+        // this task goes to the lowest wheel, task 1 is still in the overflow wheel
+        queue.add(task(2, 110000));
+        assertEquals(65000, queue.getEarliestStartTime());
+        assertEquals(new HashSet<>(Arrays.asList(1L)), ids(queue.pollExpired(65000)));
+        assertEquals(110000, queue.getEarliestStartTime());
+    }
+
+    @Test
+    public void testInterleavedAddAndPoll() throws Exception {
+        long start = 1000000;
+        DelayedTasksQueue queue = new DelayedTasksQueue(7, 8, start);
+        Random random = new Random(1234);
+        List<Task> tasks = new ArrayList<>();
+        long nextId = 0;
+        for (long now = start; now <= start + 200000; now += random.nextInt(500)) {
+            // new tasks are added while time passes, at any distance in the future
+            for (int i = 0; i < 10; i++) {
+                Task task = task(nextId++, now + random.nextInt(100000));
+                tasks.add(task);
+                queue.add(task);
+            }
+            long expectedEarliest = Long.MAX_VALUE;
+            for (Task task : tasks) {
+                expectedEarliest = Math.min(expectedEarliest, task.getRequestedStartTime());
+            }
+            assertEquals(expectedEarliest, queue.getEarliestStartTime());
+            Set<Long> expected = new HashSet<>();
+            for (Task task : new ArrayList<>(tasks)) {
+                if (task.getRequestedStartTime() <= now) {
+                    expected.add(task.getTaskId());
+                    tasks.remove(task);
+                }
+            }
+            assertEquals(expected, ids(queue.pollExpired(now)));
+            assertEquals(tasks.size(), queue.size());
+        }
+    }
+
+    @Test
+    public void testRandomStartTimes() throws Exception {
+        long start = 1000000;
+        DelayedTasksQueue queue = new DelayedTasksQueue(7, 8, start);
+        Random random = new Random(1234);
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            Task task = task(i, start + random.nextInt(100000));
+            tasks.add(task);
+            queue.add(task);
+        }
+        assertEquals(tasks.size(), queue.size());
+        int count = 0;
+        for (long now = start; now <= start + 100000; now += random.nextInt(500)) {
+            long expectedEarliest = Long.MAX_VALUE;
+            for (Task task : tasks) {
+                expectedEarliest = Math.min(expectedEarliest, task.getRequestedStartTime());
+            }
+            if (!tasks.isEmpty()) {
+                assertEquals(expectedEarliest, queue.getEarliestStartTime());
+            }
+            Set<Long> expected = new HashSet<>();
+            for (Task task : new ArrayList<>(tasks)) {
+                if (task.getRequestedStartTime() <= now) {
+                    expected.add(task.getTaskId());
+                    tasks.remove(task);
+                }
+            }
+            List<Task> expired = queue.pollExpired(now);
+            assertEquals(expected.size(), expired.size());
+            assertEquals(expected, ids(expired));
+            assertEquals(tasks.size(), queue.size());
+            count += expired.size();
+        }
+        assertEquals(10000 - tasks.size(), count);
+    }
+
+}
@@ -24,11 +24,17 @@ import majordodo.task.FileCommitLog;
 import majordodo.task.LogSequenceNumber;
 import majordodo.task.Task;
 import majordodo.task.StatusEdit;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicLong;
+import majordodo.codepools.CodePool;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Rule;
@@ -93,4 +99,34 @@ public class FileCommitLogSimpleTest {
 
     }
 
+    @Test
+    public void testCodePoolDataReferencedBySnapshot() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        new Random(1234).nextBytes(data);
+        CodePool codePool = new CodePool("pool1", System.currentTimeMillis(), data, 0);
+        Path snapshots = folderSnapshots.getRoot().toPath();
+        try (FileCommitLog log = new FileCommitLog(snapshots, folderLogs.getRoot().toPath(), 1024 * 1024);) {
+            log.loadBrokerStatusSnapshot();
+            BrokerStatusSnapshot snapshot = new BrokerStatusSnapshot(0, 0, new LogSequenceNumber(1, 1));
+            snapshot.getCodePools().add(codePool);
+            log.checkpoint(snapshot);
+            snapshot = new BrokerStatusSnapshot(0, 0, new LogSequenceNumber(1, 2));
+            snapshot.getCodePools().add(codePool);
+            log.checkpoint(snapshot);
+        }
+        Path dataFile = snapshots.resolve("codepools").resolve(codePool.getHash() + ".codepool");
+        assertTrue(Files.isRegularFile(dataFile));
+        assertTrue(Files.size(snapshots.resolve("1_2.snap.json.gz")) < 1024);
+
+        try (FileCommitLog log = new FileCommitLog(snapshots, folderLogs.getRoot().toPath(), 1024 * 1024);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            assertEquals(1, snapshot.getCodePools().size());
+            assertArrayEquals(data, snapshot.getCodePools().get(0).getCodePoolData());
+
+            // data is dropped together with the last snapshot which references it
+            log.checkpoint(new BrokerStatusSnapshot(0, 0, new LogSequenceNumber(1, 3)));
+            assertFalse(Files.exists(dataFile));
+        }
+    }
+
 }
@@ -0,0 +1,134 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.executors.TaskExecutor;
+import majordodo.worker.FinishedTaskNotification;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Measures the time from the end of the execution of a task to the
+ * notification to the broker, using the default configuration of the worker.
+ * Not part of the default build, run it with -Dtest=FinishedNotificationLatencyBench
+ *
+ * @author enrico.olivelli
+ */
+public class FinishedNotificationLatencyBench extends BasicBrokerEnv {
+
+    private static final String TASKTYPE_MYTYPE = "mytype";
+    private static final String USERID = "queue1";
+    private static final int GROUP = 12345;
+    private static final int TASKS = 100;
+    private static final int LOAD_TASKS = 5000;
+
+    @Test
+    public void finishedNotificationLatency() throws Exception {
+        declareGroupForUser(USERID, GROUP);
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        AtomicInteger batches = new AtomicInteger();
+        AtomicInteger notifications = new AtomicInteger();
+        WorkerStatusListener listener = new WorkerStatusListener() {
+
+            @Override
+            public void connectionEvent(String event, WorkerCore core) {
+                if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                    connectedLatch.countDown();
+                }
+            }
+
+            @Override
+            public void beforeNotifyTasksFinished(List<FinishedTaskNotification> list, WorkerCore core) {
+                batches.incrementAndGet();
+                notifications.addAndGet(list.size());
+            }
+
+        };
+        Map<String, Integer> tags = new HashMap<>();
+        tags.put(TASKTYPE_MYTYPE, 20);
+        WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+        config.setWorkerId("workerid");
+        config.setMaxThreadsByTaskType(tags);
+        config.setGroups(Arrays.asList(GROUP));
+
+        long[] latencies = new long[TASKS];
+        AtomicLong executionEnd = new AtomicLong();
+        try (WorkerCore core = new WorkerCore(config, "here", getBrokerLocator(), listener);) {
+            core.setExecutorFactory((String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
+
+                @Override
+                public String executeTask(Map<String, Object> parameters) throws Exception {
+                    executionEnd.set(System.nanoTime());
+                    return "";
+                }
+
+            });
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+
+            // low load, one task at a time
+            for (int i = 0; i < TASKS; i++) {
+                long taskId = getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, USERID, "param", 0, 0, 0, null, 0, null, null)).getTaskId();
+                long deadline = System.currentTimeMillis() + 10000;
+                while (getClient().getTask(taskId).getStatus() != Task.STATUS_FINISHED) {
+                    assertTrue(System.currentTimeMillis() < deadline);
+                    Thread.yield();
+                }
+                latencies[i] = System.nanoTime() - executionEnd.get();
+            }
+            Arrays.sort(latencies);
+            System.out.println("finished notification latency over " + TASKS + " tasks:"
+                + " p50 " + TimeUnit.NANOSECONDS.toMicros(latencies[TASKS / 2]) + " us,"
+                + " p90 " + TimeUnit.NANOSECONDS.toMicros(latencies[TASKS * 9 / 10]) + " us,"
+                + " p99 " + TimeUnit.NANOSECONDS.toMicros(latencies[TASKS * 99 / 100]) + " us,"
+                + " max " + TimeUnit.NANOSECONDS.toMicros(latencies[TASKS - 1]) + " us");
+
+            // high load, notifications are sent in batches
+            batches.set(0);
+            notifications.set(0);
+            long _start = System.currentTimeMillis();
+            for (int i = 0; i < LOAD_TASKS; i++) {
+                getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, USERID, "param", 0, 0, 0, null, 0, null, null));
+            }
+            long deadline = System.currentTimeMillis() + 60000;
+            while (notifications.get() < LOAD_TASKS) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            long _stop = System.currentTimeMillis();
+            System.out.println(LOAD_TASKS + " tasks in " + (_stop - _start) + " ms, "
+                + batches.get() + " notification batches,"
+                + " avg batch size " + (notifications.get() / batches.get()));
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import majordodo.client.CodePoolUtils;
+import majordodo.executors.TaskExecutor;
+import majordodo.executors.TaskExecutorPayloadFactory;
+import majordodo.worker.TaskModeAwareExecutorFactory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Per-task overhead of the creation of executors for tasks in
+ * {@link Task#MODE_EXECUTE_OBJECT} mode.
+ * Not part of the default build, run it with -Dtest=ObjectModeExecutorBench
+ *
+ * @author enrico.olivelli
+ */
+public class ObjectModeExecutorBench {
+
+    private static final int TASKS = 200000;
+
+    public static final class MyExecutor extends TaskExecutor implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final String tableName;
+        private final long recordId;
+        private final Map<String, String> options = new HashMap<>();
+
+        public MyExecutor(String tableName, long recordId) {
+            this.tableName = tableName;
+            this.recordId = recordId;
+            options.put("mode", "fast");
+        }
+
+        @Override
+        public String executeTask(Map<String, Object> parameters) throws Exception {
+            return tableName + ":" + recordId;
+        }
+
+    }
+
+    public static final class MyExecutorFactory implements TaskExecutorPayloadFactory {
+
+        @Override
+        public TaskExecutor createTaskExecutor(String payload) throws Exception {
+            int pos = payload.indexOf(',');
+            return new MyExecutor(payload.substring(0, pos), Long.parseLong(payload.substring(pos + 1)));
+        }
+
+    }
+
+    private static Map<String, Object> parameters(String data) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("mode", Task.MODE_EXECUTE_OBJECT);
+        parameters.put("parameter", data);
+        return parameters;
+    }
+
+    @Test
+    public void testModes() throws Exception {
+        TaskModeAwareExecutorFactory factory = new TaskModeAwareExecutorFactory(null);
+        String serialized = CodePoolUtils.serializeExecutor(new MyExecutor("table", 12));
+        assertEquals("table:12", factory.createTaskExecutor("mytype", parameters(serialized)).executeTask(null));
+        assertEquals("table:12", factory.createTaskExecutor("mytype", parameters(serialized)).executeTask(null));
+
+        String withFactory = CodePoolUtils.serializeExecutorFactory(MyExecutorFactory.class.getName(), "table,13");
+        assertEquals("table:13", factory.createTaskExecutor("mytype", parameters(withFactory)).executeTask(null));
+        assertEquals("table:13", factory.createTaskExecutor("mytype", parameters(withFactory)).executeTask(null));
+
+        String notAFactory = CodePoolUtils.serializeExecutorFactory(MyExecutor.class.getName(), "table,13");
+        try {
+            factory.createTaskExecutor("mytype", parameters(notAFactory)).executeTask(null);
+            fail();
+        } catch (ClassCastException ok) {
+        }
+        String missingClass = CodePoolUtils.serializeExecutorFactory("my.MissingFactory", "table,13");
+        try {
+            factory.createTaskExecutor("mytype", parameters(missingClass)).executeTask(null);
+            fail();
+        } catch (ClassNotFoundException ok) {
+        }
+    }
+
+    /**
+     * How TaskModeAwareExecutorFactory used to deserialize executors
+     */
+    private static TaskExecutor uncachedDeserialize(String parameter) throws Exception {
+        ClassLoader tccl = Thread.currentThread().getContextClassLoader();
+        byte[] serializedObjectData = Base64.getDecoder().decode(parameter.substring("base64:".length()));
+        ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(serializedObjectData)) {
+            @Override
+            public Class resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                try {
+                    return tccl.loadClass(desc.getName());
+                } catch (Exception e) {
+                }
+                return super.resolveClass(desc);
+            }
+
+        };
+        return (TaskExecutor) is.readUnshared();
+    }
+
+    private interface ExecutorCreator {
+
+        TaskExecutor create(int i) throws Exception;
+    }
+
+    private static void run(String name, ExecutorCreator creator) throws Exception {
+        // warm up
+        for (int i = 0; i < TASKS / 4; i++) {
+            creator.create(i);
+        }
+        long _start = System.nanoTime();
+        for (int i = 0; i < TASKS; i++) {
+            assertTrue(creator.create(i) != null);
+        }
+        long nanos = System.nanoTime() - _start;
+        System.out.println(name + ": " + (nanos / TASKS) + " ns per task");
+    }
+
+    @Test
+    public void perTaskOverhead() throws Exception {
+        TaskModeAwareExecutorFactory factory = new TaskModeAwareExecutorFactory(null);
+        Map<String, Object> serialized = parameters(CodePoolUtils.serializeExecutor(new MyExecutor("table", 12)));
+        Map<String, Object> withFactory = parameters(CodePoolUtils.serializeExecutorFactory(MyExecutorFactory.class.getName(), "table,12"));
+
+        run("java serialization, uncached", i -> uncachedDeserialize((String) serialized.get("parameter")));
+        run("java serialization, cached classes", i -> factory.createTaskExecutor("mytype", serialized));
+        run("factory + payload", i -> factory.createTaskExecutor("mytype", withFactory));
+    }
+
+}
@@ -187,8 +187,6 @@ public class RestartBrokerAndStartWorkerTest {
                     config.setGroups(Arrays.asList(group));
 
                     try (WorkerCore core = new WorkerCore(config, "here", locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                                 (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -201,6 +199,8 @@ public class RestartBrokerAndStartWorkerTest {
 
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
                         assertTrue(allTaskExecuted.await(30, TimeUnit.SECONDS));
 
@@ -147,9 +147,9 @@ public abstract class SimpleBrokerSuite extends BasicBrokerEnv {
                 @Override
                 public String executeTask(Map<String, Object> parameters) throws Exception {
 
-                    allTaskExecuted.countDown();
                     long taskid = (Long) parameters.get("taskid");
                     todo.remove(taskid);
+                    allTaskExecuted.countDown();
                     return "";
                 }
 
@@ -210,9 +210,9 @@ public abstract class SimpleBrokerSuite extends BasicBrokerEnv {
                 @Override
                 public String executeTask(Map<String, Object> parameters) throws Exception {
 
-                    allTaskExecuted.countDown();
                     long taskid = (Long) parameters.get("taskid");
                     todo.remove(taskid);
+                    allTaskExecuted.countDown();
                     return "";
                 }
 
@@ -281,9 +281,9 @@ public abstract class SimpleBrokerSuite extends BasicBrokerEnv {
                 @Override
                 public String executeTask(Map<String, Object> parameters) throws Exception {
 
-                    allTaskExecuted.countDown();
                     long taskid = (Long) parameters.get("taskid");
                     todo.remove(taskid);
+                    allTaskExecuted.countDown();
                     return "";
                 }
 
@@ -354,9 +354,9 @@ public abstract class SimpleBrokerSuite extends BasicBrokerEnv {
                 @Override
                 public String executeTask(Map<String, Object> parameters) throws Exception {
 
-                    allTaskExecuted.countDown();
                     long taskid = (Long) parameters.get("taskid");
                     todo.remove(taskid);
+                    allTaskExecuted.countDown();
                     return "";
                 }
 
@@ -413,9 +413,9 @@ public abstract class SimpleBrokerSuite extends BasicBrokerEnv {
                 @Override
                 public String executeTask(Map<String, Object> parameters) throws Exception {
 
-                    allTaskExecuted.countDown();
                     long taskid = (Long) parameters.get("taskid");
                     todo.remove(taskid);
+                    allTaskExecuted.countDown();
                     return "";
                 }
 
@@ -479,9 +479,9 @@ public abstract class SimpleBrokerSuite extends BasicBrokerEnv {
                 @Override
                 public String executeTask(Map<String, Object> parameters) throws Exception {
 
-                    allTaskExecuted.countDown();
                     long taskid = (Long) parameters.get("taskid");
                     todo.remove(taskid);
+                    allTaskExecuted.countDown();
                     return "";
                 }
 
@@ -557,9 +557,9 @@ public abstract class SimpleBrokerSuite extends BasicBrokerEnv {
                 @Override
                 public String executeTask(Map<String, Object> parameters) throws Exception {
 
-                    allTaskExecuted.countDown();
                     long taskid = (Long) parameters.get("taskid");
                     todo.remove(taskid);
+                    allTaskExecuted.countDown();
                     return "";
                 }
 
@@ -615,9 +615,9 @@ public abstract class SimpleBrokerSuite extends BasicBrokerEnv {
                 @Override
                 public String executeTask(Map<String, Object> parameters) throws Exception {
 
-                    allTaskExecuted.countDown();
                     long taskid = (Long) parameters.get("taskid");
                     todo.remove(taskid);
+                    allTaskExecuted.countDown();
                     return "";
                 }
 
@@ -677,9 +677,9 @@ public abstract class SimpleBrokerSuite extends BasicBrokerEnv {
                 @Override
                 public String executeTask(Map<String, Object> parameters) throws Exception {
 
-                    allTaskExecuted.countDown();
                     long taskid = (Long) parameters.get("taskid");
                     todo.remove(taskid);
+                    allTaskExecuted.countDown();
                     return "";
                 }
 
@@ -0,0 +1,138 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.clientfacade.SubmissionRateLimitsView;
+import majordodo.clientfacade.SubmitTaskResult;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class SubmissionRateLimiterTest {
+
+    private static Map<String, SubmissionRateLimit> limits(String key, SubmissionRateLimit limit) {
+        Map<String, SubmissionRateLimit> res = new HashMap<>();
+        res.put(key, limit);
+        return res;
+    }
+
+    @Test
+    public void testTokenBuckets() throws Exception {
+        AtomicLong now = new AtomicLong();
+        MapSubmissionRateLimitsConfiguration configuration = new MapSubmissionRateLimitsConfiguration(
+            limits("user1", new SubmissionRateLimit(10, 5)), null);
+        SubmissionRateLimiter limiter = new SubmissionRateLimiter(() -> configuration, now::get);
+
+        // burst
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire("user1", "type1"));
+        }
+        assertEquals(100, limiter.tryAcquire("user1", "type1"));
+        // other users are not limited
+        assertEquals(0, limiter.tryAcquire("user2", "type1"));
+
+        // refill at 10 tasks per second
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(50, limiter.tryAcquire("user1", "type1"));
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, limiter.tryAcquire("user1", "type1"));
+
+        // limit on the tasktype, shared by all the users, the token of the user is given back
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        configuration.setTaskTypeLimits(limits(MapSubmissionRateLimitsConfiguration.DEFAULT, new SubmissionRateLimit(1, 1)));
+        assertEquals(0, limiter.tryAcquire("user2", "type1"));
+        assertEquals(1000, limiter.tryAcquire("user1", "type1"));
+        assertEquals(0, limiter.tryAcquire("user1", "type2"));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, limiter.tryAcquire("user1", "type" + (i + 3)));
+        }
+        assertEquals(100, limiter.tryAcquire("user1", "type10"));
+
+        // reload: the bucket keeps at most the new burst
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        configuration.setTaskTypeLimits(null);
+        configuration.setUserLimits(limits("user1", new SubmissionRateLimit(1, 2)));
+        assertEquals(0, limiter.tryAcquire("user1", "type1"));
+        assertEquals(0, limiter.tryAcquire("user1", "type1"));
+        assertEquals(1000, limiter.tryAcquire("user1", "type1"));
+        configuration.setUserLimits(null);
+        assertEquals(0, limiter.tryAcquire("user1", "type1"));
+
+        SubmissionRateLimitsView view = limiter.createView();
+        assertEquals(14, view.getUsers().get("user1").getAccepted());
+        assertEquals(5, view.getUsers().get("user1").getRejected());
+        assertEquals(2, view.getUsers().get("user2").getAccepted());
+        assertEquals(0, view.getUsers().get("user2").getRejected());
+        assertEquals(4, view.getTaskTypes().get("type1").getRejected());
+        assertEquals(14, limiter.getUserCounters("user1").getAccepted());
+        assertEquals(0, limiter.getUserCounters("nobody").getAccepted());
+    }
+
+    @Test
+    public void testSubmitTasks() throws Exception {
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(),
+            new TasksHeap(1000, (long taskid, String taskType, String userid) -> new TaskProperties(1, null)));) {
+            broker.startAsWritable();
+            // practically no refill during the test
+            broker.setSubmissionRateLimitsConfiguration(new MapSubmissionRateLimitsConfiguration(
+                limits("user1", new SubmissionRateLimit(0.001, 2)), null));
+
+            List<SubmitTaskResult> results = broker.getClient().submitTasks(Arrays.asList(
+                new AddTaskRequest(0, "type1", "user1", "p1", 1, 0, 0, null, 0, null, null),
+                new AddTaskRequest(0, "type1", "user1", "p2", 1, 0, 0, null, 0, null, null),
+                new AddTaskRequest(0, "type1", "user1", "p3", 1, 0, 0, null, 0, null, null),
+                new AddTaskRequest(0, "type1", "user2", "p4", 1, 0, 0, null, 0, null, null)));
+            assertEquals(4, results.size());
+            assertTrue(results.get(0).getTaskId() > 0);
+            assertTrue(results.get(1).getTaskId() > 0);
+            assertEquals(0, results.get(2).getTaskId());
+            assertTrue(results.get(2).getRetryAfter() > 0);
+            assertNotNull(results.get(2).getOutcome());
+            assertTrue(results.get(3).getTaskId() > 0);
+            assertNull(results.get(3).getOutcome());
+            // the rejected task has not been added
+            assertEquals(3, broker.getClient().getAllTasks().size());
+
+            SubmitTaskResult single = broker.getClient().submitTask(new AddTaskRequest(0, "type1", "user1", "p5", 1, 0, 0, null, 0, null, null));
+            assertEquals(0, single.getTaskId());
+            assertTrue(single.getRetryAfter() > 0);
+            assertEquals(3, broker.getClient().getAllTasks().size());
+
+            // runtime reload
+            broker.setSubmissionRateLimitsConfiguration(new MapSubmissionRateLimitsConfiguration());
+            assertTrue(broker.getClient().submitTask(new AddTaskRequest(0, "type1", "user1", "p6", 1, 0, 0, null, 0, null, null)).getTaskId() > 0);
+
+            SubmissionRateLimitsView view = broker.getClient().getSubmissionRateLimitsView();
+            assertEquals(3, view.getUsers().get("user1").getAccepted());
+            assertEquals(2, view.getUsers().get("user1").getRejected());
+            assertEquals(1, view.getUsers().get("user2").getAccepted());
+        }
+    }
+
+}
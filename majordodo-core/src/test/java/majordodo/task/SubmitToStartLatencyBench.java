@@ -0,0 +1,115 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.executors.TaskExecutor;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Measures the time from the submission of a task to the start of its
+ * execution on an idle worker.
+ * Not part of the default build, run it with -Dtest=SubmitToStartLatencyBench
+ *
+ * @author enrico.olivelli
+ */
+public class SubmitToStartLatencyBench extends BasicBrokerEnv {
+
+    private static final String TASKTYPE_MYTYPE = "mytype";
+    private static final String USERID = "queue1";
+    private static final int GROUP = 12345;
+    private static final int TASKS = 200;
+
+    @Test
+    public void submitToStartLatency() throws Exception {
+        declareGroupForUser(USERID, GROUP);
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        WorkerStatusListener listener = new WorkerStatusListener() {
+
+            @Override
+            public void connectionEvent(String event, WorkerCore core) {
+                if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                    connectedLatch.countDown();
+                }
+            }
+
+        };
+        Map<String, Integer> tags = new HashMap<>();
+        tags.put(TASKTYPE_MYTYPE, 100);
+        WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+        config.setWorkerId("workerid");
+        config.setMaxPendingFinishedTaskNotifications(1);
+        config.setMaxThreadsByTaskType(tags);
+        config.setGroups(Arrays.asList(GROUP));
+
+        Map<Long, Long> submitTime = new ConcurrentHashMap<>();
+        long[] latencies = new long[TASKS];
+        AtomicInteger started = new AtomicInteger();
+        CountDownLatch allTasksStarted = new CountDownLatch(TASKS);
+        try (WorkerCore core = new WorkerCore(config, "here", getBrokerLocator(), listener);) {
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+            core.setExecutorFactory((String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
+
+                @Override
+                public String executeTask(Map<String, Object> parameters) throws Exception {
+                    long now = System.nanoTime();
+                    long taskId = (Long) parameters.get("taskid");
+                    Long submitted;
+                    while ((submitted = submitTime.get(taskId)) == null) {
+                        // submitTask did not return yet
+                        Thread.yield();
+                    }
+                    latencies[started.getAndIncrement()] = now - submitted;
+                    allTasksStarted.countDown();
+                    return "";
+                }
+
+            });
+
+            for (int i = 0; i < TASKS; i++) {
+                long _start = System.nanoTime();
+                long taskId = getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, USERID, "param", 0, 0, 0, null, 0, null, null)).getTaskId();
+                submitTime.put(taskId, _start);
+                // let the worker become idle again
+                Thread.sleep(20);
+            }
+            assertTrue(allTasksStarted.await(60, TimeUnit.SECONDS));
+        }
+        Arrays.sort(latencies);
+        System.out.println("submit-to-start latency over " + TASKS + " tasks:"
+            + " p50 " + TimeUnit.NANOSECONDS.toMicros(latencies[TASKS / 2]) + " us,"
+            + " p90 " + TimeUnit.NANOSECONDS.toMicros(latencies[TASKS * 9 / 10]) + " us,"
+            + " p99 " + TimeUnit.NANOSECONDS.toMicros(latencies[TASKS * 99 / 100]) + " us,"
+            + " max " + TimeUnit.NANOSECONDS.toMicros(latencies[TASKS - 1]) + " us");
+    }
+
+}
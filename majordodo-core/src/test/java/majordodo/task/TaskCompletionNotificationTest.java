@@ -0,0 +1,137 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.clientfacade.TaskStatusView;
+import majordodo.clientfacade.TasksCompletionResult;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class TaskCompletionNotificationTest {
+
+    private static final int GROUP = 12345;
+
+    private static Broker createBroker() {
+        TaskPropertiesMapperFunction mapper = (long taskid, String taskType, String userid) -> new TaskProperties(GROUP, null);
+        return new Broker(new BrokerConfiguration(), new MemoryCommitLog(), new TasksHeap(1000, mapper));
+    }
+
+    private static long submit(Broker broker, String user) throws Exception {
+        return broker.getClient().submitTask(new AddTaskRequest(0, "mytype", user, "param", 1, 0, 0, null, 0, null, null)).getTaskId();
+    }
+
+    private static List<AssignedTask> assign(Broker broker, int max) throws Exception {
+        Map<String, Integer> maxThreads = new HashMap<>();
+        maxThreads.put(Task.TASKTYPE_ANY, max);
+        return broker.assignTasksToWorker(max, maxThreads, Collections.singletonList(GROUP),
+            Collections.emptySet(), "myworker", new HashMap<>(), new ResourceUsageCounters(), 0);
+    }
+
+    @Test
+    public void testWaitForTasks() throws Exception {
+        try (Broker broker = createBroker();) {
+            broker.startAsWritable();
+            long task1 = submit(broker, "user1");
+            long task2 = submit(broker, "user1");
+
+            // timeout
+            long _start = System.currentTimeMillis();
+            TasksCompletionResult result = broker.getClient().waitForTasks(Arrays.asList(task1, task2), 200);
+            assertTrue(result.isEmpty());
+            assertTrue(System.currentTimeMillis() - _start >= 200);
+
+            // unknown tasks do not wait
+            result = broker.getClient().waitForTasks(Arrays.asList(task1, 1234L), 60000);
+            assertEquals(Arrays.asList(1234L), result.getNotFoundTaskIds());
+            assertTrue(result.getCompletedTasks().isEmpty());
+
+            CompletableFuture<TasksCompletionResult> waiting = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return broker.getClient().waitForTasks(Arrays.asList(task1, task2), 60000);
+                } catch (InterruptedException err) {
+                    throw new RuntimeException(err);
+                }
+            });
+            assertEquals(2, assign(broker, 2).size());
+            Thread.sleep(100);
+            // running is not a final status
+            assertFalse(waiting.isDone());
+            broker.tasksFinished("myworker", Arrays.asList(new TaskFinishedData(task2, "theresult", Task.STATUS_FINISHED)));
+            result = waiting.get(10, TimeUnit.SECONDS);
+            assertEquals(1, result.getCompletedTasks().size());
+            TaskStatusView view = result.getCompletedTasks().get(0);
+            assertEquals(task2, view.getTaskId());
+            assertEquals(Task.STATUS_FINISHED, view.getStatus());
+            assertEquals("theresult", view.getResult());
+
+            // already finished
+            result = broker.getClient().waitForTasks(Arrays.asList(task1, task2), 60000);
+            assertEquals(1, result.getCompletedTasks().size());
+        }
+    }
+
+    @Test
+    public void testTaskEventsSubscription() throws Exception {
+        try (Broker broker = createBroker();) {
+            broker.startAsWritable();
+            try (TaskEventsSubscription subscription = broker.getClient().subscribeTaskEvents("USER1", null, 2);) {
+                long task1 = submit(broker, "user1");
+                submit(broker, "user2");
+                TaskStatusView event = subscription.poll(1, TimeUnit.SECONDS);
+                assertEquals(task1, event.getTaskId());
+                assertEquals(Task.STATUS_WAITING, event.getStatus());
+                assertNull(subscription.poll(100, TimeUnit.MILLISECONDS));
+
+                assertEquals(2, assign(broker, 2).size());
+                event = subscription.poll(1, TimeUnit.SECONDS);
+                assertEquals(task1, event.getTaskId());
+                assertEquals(Task.STATUS_RUNNING, event.getStatus());
+                assertEquals("myworker", event.getWorkerId());
+                broker.tasksFinished("myworker", Arrays.asList(new TaskFinishedData(task1, "", Task.STATUS_ERROR)));
+                event = subscription.poll(1, TimeUnit.SECONDS);
+                assertEquals(Task.STATUS_ERROR, event.getStatus());
+
+                // buffer is full after two events
+                for (int i = 0; i < 3; i++) {
+                    submit(broker, "user1");
+                }
+                assertTrue(subscription.checkAndClearOverflow());
+                assertFalse(subscription.checkAndClearOverflow());
+                assertEquals(Task.STATUS_WAITING, subscription.poll(1, TimeUnit.SECONDS).getStatus());
+                assertEquals(Task.STATUS_WAITING, subscription.poll(1, TimeUnit.SECONDS).getStatus());
+                assertNull(subscription.poll(100, TimeUnit.MILLISECONDS));
+            }
+            // no more events after close
+            submit(broker, "user1");
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.clientfacade.TaskQuery;
+import majordodo.clientfacade.TaskQueryResult;
+import majordodo.clientfacade.TaskStatusView;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class TaskQueryTest {
+
+    private static final int GROUP = 12345;
+
+    private static List<Long> ids(List<TaskStatusView> tasks) {
+        return tasks.stream().map(TaskStatusView::getTaskId).collect(Collectors.toList());
+    }
+
+    private static List<Long> readAllPages(Broker broker, TaskQuery query) {
+        List<Long> res = new ArrayList<>();
+        query.setAfterTaskId(0);
+        while (true) {
+            TaskQueryResult page = broker.getClient().queryTasks(query);
+            assertTrue(page.getTasks().size() <= query.getMax());
+            res.addAll(ids(page.getTasks()));
+            if (page.getNextCursor() == 0) {
+                return res;
+            }
+            assertEquals(query.getMax(), page.getTasks().size());
+            query.setAfterTaskId(page.getNextCursor());
+        }
+    }
+
+    private static List<Long> scan(Broker broker, TaskQuery query) {
+        return broker.getClient().getAllTasks().stream()
+            .filter(t -> query.getStatus() == TaskQuery.STATUS_ANY || t.getStatus() == query.getStatus())
+            .filter(t -> query.getUserId() == null || query.getUserId().equalsIgnoreCase(t.getUser()))
+            .filter(t -> query.getTaskType() == null || query.getTaskType().equalsIgnoreCase(t.getType()))
+            .filter(t -> query.getWorkerId() == null || query.getWorkerId().equalsIgnoreCase(t.getWorkerId()))
+            .filter(t -> query.getSlot() == null || query.getSlot().equalsIgnoreCase(t.getSlot()))
+            .map(TaskStatusView::getTaskId)
+            .sorted()
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        TaskPropertiesMapperFunction mapper = (long taskid, String taskType, String userid) -> new TaskProperties(GROUP, null);
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(), new TasksHeap(1000, mapper));) {
+            broker.startAsWritable();
+            List<String> users = Arrays.asList("user1", "user2", "User3");
+            List<String> types = Arrays.asList("type1", "type2");
+            for (int i = 0; i < 90; i++) {
+                broker.getClient().submitTask(new AddTaskRequest(0, types.get(i % types.size()), users.get(i % users.size()), "",
+                    1, 0, 0, i % 10 == 0 ? "slot" + i : null, 0, null, null));
+            }
+            Map<String, Integer> maxThreads = new HashMap<>();
+            maxThreads.put(Task.TASKTYPE_ANY, 20);
+            List<AssignedTask> assigned = broker.assignTasksToWorker(20, maxThreads, Collections.singletonList(GROUP),
+                Collections.emptySet(), "Worker1", new HashMap<>(), new ResourceUsageCounters(), 0);
+            assertEquals(20, assigned.size());
+            List<TaskFinishedData> finished = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                finished.add(new TaskFinishedData(assigned.get(i).taskid, "", i % 2 == 0 ? Task.STATUS_FINISHED : Task.STATUS_ERROR));
+            }
+            broker.tasksFinished("Worker1", finished);
+
+            List<TaskQuery> queries = new ArrayList<>();
+            for (int status : new int[]{TaskQuery.STATUS_ANY, Task.STATUS_WAITING, Task.STATUS_RUNNING, Task.STATUS_FINISHED, Task.STATUS_ERROR}) {
+                for (String user : Arrays.asList(null, "USER1", "user3", "nobody")) {
+                    for (String type : Arrays.asList(null, "type2")) {
+                        for (String worker : Arrays.asList(null, "worker1")) {
+                            TaskQuery query = new TaskQuery();
+                            query.setStatus(status);
+                            query.setUserId(user);
+                            query.setTaskType(type);
+                            query.setWorkerId(worker);
+                            queries.add(query);
+                        }
+                    }
+                }
+            }
+            TaskQuery bySlot = new TaskQuery();
+            bySlot.setSlot("slot30");
+            queries.add(bySlot);
+
+            for (TaskQuery query : queries) {
+                List<Long> expected = scan(broker, query);
+                for (int max : new int[]{1, 7, 100}) {
+                    query.setMax(max);
+                    assertEquals(query.toString(), expected, readAllPages(broker, query));
+                }
+                Map<String, Long> expectedCounts = broker.getClient().getAllTasks().stream()
+                    .filter(t -> expected.contains(t.getTaskId()))
+                    .collect(Collectors.groupingBy(TaskStatusView::getType, Collectors.counting()));
+                query.setAfterTaskId(0);
+                assertEquals(query.toString(), expectedCounts, broker.getClient().countTasksByType(query));
+            }
+            assertEquals(1, scan(broker, bySlot).size());
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.executors.TaskExecutor;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertTrue;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Runs 10k sleeping tasks at the same time on a worker configured to use
+ * virtual threads. The benchmark needs a JVM with virtual threads (Java 21).
+ * Not part of the default build, run it with -Dtest=VirtualThreadsBench
+ *
+ * @author enrico.olivelli
+ */
+public class VirtualThreadsBench extends BasicBrokerEnv {
+
+    private static final String TASKTYPE_MYTYPE = "mytype";
+    private static final String USERID = "queue1";
+    private static final int GROUP = 12345;
+    private static final int TASKS = 10000;
+    private static final int SLEEP = 2000;
+
+    @Override
+    protected int getTasksHeapsSize() {
+        return TASKS * 2;
+    }
+
+    private static boolean isVirtualThreadsAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException beforeJava21) {
+            return false;
+        }
+    }
+
+    @Test
+    public void manySleepingTasks() throws Exception {
+        // with platform threads the worker would start a thread for each task
+        Assume.assumeTrue("virtual threads are not available on this JVM (" + System.getProperty("java.version") + ")", isVirtualThreadsAvailable());
+        declareGroupForUser(USERID, GROUP);
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        WorkerStatusListener listener = new WorkerStatusListener() {
+
+            @Override
+            public void connectionEvent(String event, WorkerCore core) {
+                if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                    connectedLatch.countDown();
+                }
+            }
+
+        };
+        Map<String, Integer> tags = new HashMap<>();
+        tags.put(TASKTYPE_MYTYPE, TASKS);
+        WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+        config.setWorkerId("workerid");
+        config.setMaxThreads(TASKS);
+        config.setMaxThreadsByTaskType(tags);
+        config.setGroups(Arrays.asList(GROUP));
+        config.setVirtualThreads(true);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Runtime runtime = Runtime.getRuntime();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch allTasksFinished = new CountDownLatch(TASKS);
+        try (WorkerCore core = new WorkerCore(config, "here", getBrokerLocator(), listener);) {
+            core.setExecutorFactory((String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
+
+                @Override
+                public String executeTask(Map<String, Object> parameters) throws Exception {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(SLEEP);
+                    } finally {
+                        running.decrementAndGet();
+                        allTasksFinished.countDown();
+                    }
+                    return "";
+                }
+
+            });
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+
+            System.gc();
+            long usedMemoryBefore = runtime.totalMemory() - runtime.freeMemory();
+            int threadsBefore = threads.getThreadCount();
+            long _start = System.currentTimeMillis();
+            for (int i = 0; i < TASKS; i++) {
+                getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, USERID, "param", 0, 0, 0, null, 0, null, null));
+            }
+            long usedMemoryPeak = 0;
+            int threadsPeak = 0;
+            while (!allTasksFinished.await(100, TimeUnit.MILLISECONDS)) {
+                usedMemoryPeak = Math.max(usedMemoryPeak, runtime.totalMemory() - runtime.freeMemory());
+                threadsPeak = Math.max(threadsPeak, threads.getThreadCount());
+                assertTrue(System.currentTimeMillis() - _start < 120000);
+            }
+            long _stop = System.currentTimeMillis();
+            System.out.println(TASKS + " sleeping tasks (" + SLEEP + " ms) on "
+                + (core.isVirtualThreads() ? "virtual threads" : "platform threads")
+                + ": " + (_stop - _start) + " ms, " + (TASKS * 1000L / (_stop - _start)) + " tasks/s,"
+                + " max concurrent tasks " + maxRunning.get() + ","
+                + " platform threads " + threadsBefore + " -> " + threadsPeak + ","
+                + " heap " + (usedMemoryBefore >> 20) + " MB -> " + (usedMemoryPeak >> 20) + " MB");
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.executors.TaskExecutor;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for tasks assigned to the worker over its limits
+ *
+ * @author enrico.olivelli
+ */
+public class WorkerPrefetchTest extends BasicBrokerEnv {
+
+    private static final String TASKTYPE_MYTYPE = "mytype";
+    private static final String USERID = "queue1";
+    private static final int GROUP = 12345;
+
+    private int countTasks(List<Long> taskIds, int status) {
+        int count = 0;
+        for (long taskId : taskIds) {
+            if (getClient().getTask(taskId).getStatus() == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void prefetchTest() throws Exception {
+        declareGroupForUser(USERID, GROUP);
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        WorkerStatusListener listener = new WorkerStatusListener() {
+
+            @Override
+            public void connectionEvent(String event, WorkerCore core) {
+                if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                    connectedLatch.countDown();
+                }
+            }
+
+        };
+        Map<String, Integer> tags = new HashMap<>();
+        tags.put(TASKTYPE_MYTYPE, 1);
+        WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+        config.setWorkerId("workerid");
+        config.setMaxPendingFinishedTaskNotifications(1);
+        config.setMaxThreadsByTaskType(tags);
+        config.setGroups(Arrays.asList(GROUP));
+        config.setPrefetch(2);
+
+        CountDownLatch firstTaskStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstTask = new CountDownLatch(1);
+        List<Long> taskIds = new ArrayList<>();
+        try (WorkerCore core = new WorkerCore(config, "here", getBrokerLocator(), listener);) {
+            core.setExecutorFactory((String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
+
+                @Override
+                public String executeTask(Map<String, Object> parameters) throws Exception {
+                    if ("first".equals(parameters.get("parameter"))) {
+                        firstTaskStarted.countDown();
+                        assertTrue(releaseFirstTask.await(30, TimeUnit.SECONDS));
+                    }
+                    return "";
+                }
+
+            });
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+
+            taskIds.add(getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, USERID, "first", 0, 0, 0, null, 0, null, null)).getTaskId());
+            assertTrue(firstTaskStarted.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                taskIds.add(getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, USERID, "param" + i, 0, 0, 0, null, 0, null, null)).getTaskId());
+            }
+
+            // one task is running, two tasks are waiting on the worker, the last one is still on the broker
+            for (int i = 0; i < 100; i++) {
+                if (core.createWorkerStatusView().getPrefetchedTasks() == 2) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            assertEquals(2, core.createWorkerStatusView().getPrefetchedTasks());
+            assertEquals(1, core.createWorkerStatusView().getRunningTasks());
+            assertEquals(3, countTasks(taskIds, Task.STATUS_RUNNING));
+            assertEquals(1, countTasks(taskIds, Task.STATUS_WAITING));
+            assertEquals(3, core.getRunningTaskIds().size());
+
+            releaseFirstTask.countDown();
+            for (int i = 0; i < 100; i++) {
+                if (countTasks(taskIds, Task.STATUS_FINISHED) == taskIds.size()) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            assertEquals(taskIds.size(), countTasks(taskIds, Task.STATUS_FINISHED));
+            assertEquals(0, core.createWorkerStatusView().getPrefetchedTasks());
+        }
+    }
+
+}
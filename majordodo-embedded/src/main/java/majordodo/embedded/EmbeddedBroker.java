@@ -42,7 +42,9 @@ import majordodo.clientfacade.AuthenticationManager;
 import static majordodo.embedded.EmbeddedBrokerConfiguration.BOOKKEEPER_ADDITIONAL_PREFIX;
 import majordodo.network.BrokerHostData;
 import majordodo.task.GlobalResourceLimitsConfiguration;
+import majordodo.task.MapSubmissionRateLimitsConfiguration;
 import majordodo.task.NoLimitsGlobalResourceLimitsConfiguration;
+import majordodo.task.SubmissionRateLimitsConfiguration;
 
 /**
  * Utility to embed a Majordodo Broker
@@ -66,6 +68,7 @@ public class EmbeddedBroker implements AutoCloseable {
     private Runnable brokerDiedCallback;
     private AuthenticationManager authenticationManager;
     private GlobalResourceLimitsConfiguration globalResourceLimitsConfiguration = new NoLimitsGlobalResourceLimitsConfiguration();
+    private SubmissionRateLimitsConfiguration submissionRateLimitsConfiguration = new MapSubmissionRateLimitsConfiguration();
 
     public GlobalResourceLimitsConfiguration getGlobalResourceLimitsConfiguration() {
         return globalResourceLimitsConfiguration;
@@ -75,6 +78,24 @@ public class EmbeddedBroker implements AutoCloseable {
         this.globalResourceLimitsConfiguration = globalResourceLimitsConfiguration;
     }
 
+    public SubmissionRateLimitsConfiguration getSubmissionRateLimitsConfiguration() {
+        return submissionRateLimitsConfiguration;
+    }
+
+    /**
+     * Sets the limits on the rate of submission of tasks, the new limits are
+     * applied immediately if the broker is already running
+     *
+     * @param submissionRateLimitsConfiguration
+     */
+    public void setSubmissionRateLimitsConfiguration(SubmissionRateLimitsConfiguration submissionRateLimitsConfiguration) {
+        this.submissionRateLimitsConfiguration = submissionRateLimitsConfiguration;
+        Broker _broker = broker;
+        if (_broker != null) {
+            _broker.setSubmissionRateLimitsConfiguration(submissionRateLimitsConfiguration);
+        }
+    }
+
     public AuthenticationManager getAuthenticationManager() {
         return authenticationManager;
     }
@@ -211,6 +232,7 @@ public class EmbeddedBroker implements AutoCloseable {
         broker = new Broker(brokerConfiguration, statusChangesLog, new TasksHeap(brokerConfiguration.getTasksHeapSize(), taskPropertiesMapperFunction));
         broker.setAuthenticationManager(authenticationManager);
         broker.setGlobalResourceLimitsConfiguration(globalResourceLimitsConfiguration);
+        broker.setSubmissionRateLimitsConfiguration(submissionRateLimitsConfiguration);
         broker.setBrokerId(id);
         switch (mode) {
             case EmbeddedBrokerConfiguration.MODE_JVMONLY:
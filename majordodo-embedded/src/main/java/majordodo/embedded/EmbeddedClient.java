@@ -21,7 +21,10 @@ package majordodo.embedded;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import majordodo.clientfacade.AddTaskRequest;
 import majordodo.client.BrokerStatus;
 import majordodo.clientfacade.BrokerStatusView;
@@ -30,6 +33,7 @@ import majordodo.client.SubmitTaskResponse;
 import majordodo.clientfacade.SubmitTaskResult;
 import majordodo.client.TaskStatus;
 import majordodo.clientfacade.TaskStatusView;
+import majordodo.clientfacade.TasksCompletionResult;
 import majordodo.client.ClientConnection;
 import majordodo.client.ClientException;
 import majordodo.client.CodePoolStatus;
@@ -112,7 +116,33 @@ public class EmbeddedClient implements AutoCloseable {
 
         @Override
         public TaskStatus getTaskStatus(String id) throws ClientException {
-            TaskStatusView t = broker.getClient().getTask(Long.parseLong(id));
+            return convertTaskStatus(broker.getClient().getTask(Long.parseLong(id)));
+        }
+
+        @Override
+        public Map<String, TaskStatus> waitForTasks(Collection<String> taskIds, long timeout) throws ClientException {
+            List<Long> ids = new ArrayList<>(taskIds.size());
+            for (String taskId : taskIds) {
+                ids.add(Long.parseLong(taskId));
+            }
+            TasksCompletionResult result;
+            try {
+                result = broker.getClient().waitForTasks(ids, timeout);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                throw new ClientException(err);
+            }
+            Map<String, TaskStatus> res = new HashMap<>();
+            for (TaskStatusView t : result.getCompletedTasks()) {
+                res.put(t.getTaskId() + "", convertTaskStatus(t));
+            }
+            for (Long taskId : result.getNotFoundTaskIds()) {
+                res.put(taskId + "", null);
+            }
+            return res;
+        }
+
+        private static TaskStatus convertTaskStatus(TaskStatusView t) {
             if (t == null) {
                 return null;
             }
@@ -0,0 +1,138 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.embedded;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import majordodo.client.BatchingTaskSubmitter;
+import majordodo.client.ClientConnection;
+import majordodo.client.SubmitTaskRequest;
+import majordodo.client.SubmitTaskResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compares the throughput of one submitTask call per task with the batching
+ * submitter, on an embedded broker
+ *
+ * @author enrico.olivelli
+ */
+public class BatchingTaskSubmitterBench {
+
+    private static final int THREADS = 16;
+    private static final int TASKS_PER_THREAD = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SubmitTaskRequest request(String data, String slot) {
+        SubmitTaskRequest req = new SubmitTaskRequest();
+        req.setTasktype("mytype");
+        req.setUserid("myuser");
+        req.setData(data);
+        req.setSlot(slot);
+        return req;
+    }
+
+    @Test
+    public void test() throws Exception {
+        EmbeddedBrokerConfiguration ee = new EmbeddedBrokerConfiguration();
+        ee.getProperties().put(EmbeddedBrokerConfiguration.KEY_LOGSDIRECTORY, folder.newFolder().getAbsolutePath());
+        ee.getProperties().put(EmbeddedBrokerConfiguration.KEY_SNAPSHOTSDIRECTORY, folder.newFolder().getAbsolutePath());
+
+        try (EmbeddedBroker main = new EmbeddedBroker(ee);) {
+            main.start();
+            try (EmbeddedClient client = new EmbeddedClient();) {
+                ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+                try {
+                    for (int round = 0; round < 3; round++) {
+                        long _start = System.nanoTime();
+                        List<Future<?>> done = new ArrayList<>();
+                        for (int t = 0; t < THREADS; t++) {
+                            done.add(threads.submit(() -> {
+                                try (ClientConnection con = client.openConnection();) {
+                                    for (int i = 0; i < TASKS_PER_THREAD; i++) {
+                                        assertNotNull(con.submitTask(request("single", null)).getTaskId());
+                                    }
+                                }
+                                return null;
+                            }));
+                        }
+                        for (Future<?> f : done) {
+                            f.get();
+                        }
+                        report("submitTask", _start);
+
+                        _start = System.nanoTime();
+                        try (ClientConnection con = client.openConnection();
+                            BatchingTaskSubmitter submitter = new BatchingTaskSubmitter(con);) {
+                            List<Future<List<CompletableFuture<SubmitTaskResponse>>>> results = new ArrayList<>();
+                            for (int t = 0; t < THREADS; t++) {
+                                results.add(threads.submit(() -> {
+                                    List<CompletableFuture<SubmitTaskResponse>> res = new ArrayList<>();
+                                    for (int i = 0; i < TASKS_PER_THREAD; i++) {
+                                        res.add(submitter.submitTask(request("batched", null)));
+                                    }
+                                    return res;
+                                }));
+                            }
+                            for (Future<List<CompletableFuture<SubmitTaskResponse>>> f : results) {
+                                for (CompletableFuture<SubmitTaskResponse> res : f.get()) {
+                                    assertNotNull(res.get(1, TimeUnit.MINUTES).getTaskId());
+                                }
+                            }
+                        }
+                        report("BatchingTaskSubmitter", _start);
+                    }
+                } finally {
+                    threads.shutdown();
+                }
+
+                // slot conflicts inside the same batch are reported per-task
+                try (ClientConnection con = client.openConnection();
+                    BatchingTaskSubmitter submitter = new BatchingTaskSubmitter(con, 100, 100);) {
+                    CompletableFuture<SubmitTaskResponse> first = submitter.submitTask(request("slot1", "myslot"));
+                    CompletableFuture<SubmitTaskResponse> second = submitter.submitTask(request("slot2", "myslot"));
+                    assertFalse(first.get().getTaskId().isEmpty());
+                    // the embedded connection reports a rejected task as "0"
+                    assertEquals("0", second.get().getTaskId());
+                    assertFalse(second.get().getOutcome().isEmpty());
+                }
+            }
+        }
+    }
+
+    private static void report(String mode, long start) {
+        long delta = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int count = THREADS * TASKS_PER_THREAD;
+        System.out.println(mode + ": " + count + " tasks from " + THREADS + " threads in " + delta + " ms, "
+            + (count * 1000L / Math.max(1, delta)) + " tasks/s");
+    }
+
+}
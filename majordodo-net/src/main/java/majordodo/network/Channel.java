@@ -19,11 +19,15 @@
  */
 package majordodo.network;
 
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Abstract for two-way async comunication channels
@@ -32,9 +36,20 @@ import java.util.concurrent.TimeoutException;
  */
 public abstract class Channel implements AutoCloseable {
 
+    private static final long REPLY_TIMEOUT_TICK = Long.getLong("majordodo.network.replytimeouttick", 100);
+
+    /**
+     * Timer shared by all the channels, it expires the messages which are
+     * still waiting for a reply
+     */
+    protected static final Timer REPLY_TIMEOUT_TIMER = new HashedWheelTimer(
+        new DefaultThreadFactory("dodo-reply-timeout", true), REPLY_TIMEOUT_TICK, TimeUnit.MILLISECONDS);
+
     protected ChannelEventListener messagesReceiver;
     protected String name = "unnamed";
     protected String remoteHost = "localhost";
+    protected volatile int codecVersion = Message.CODEC_VERSION_LEGACY;
+    private final AtomicLong messageIdGenerator = new AtomicLong();
 
     public Channel() {
     }
@@ -47,6 +62,16 @@ public abstract class Channel implements AutoCloseable {
         this.messagesReceiver = messagesReceiver;
     }
 
+    /**
+     * Assigns a new id to an outgoing message. Ids are unique only inside the
+     * same connection
+     *
+     * @param message
+     */
+    protected void assignMessageId(Message message) {
+        message.setMessageId(messageIdGenerator.incrementAndGet());
+    }
+
     public abstract void sendOneWayMessage(Message message, SendResultCallback callback);
 
     public abstract void sendReplyMessage(Message inAnswerTo, Message message);
@@ -97,4 +122,33 @@ public abstract class Channel implements AutoCloseable {
         this.remoteHost = remoteHost;
     }
 
+    /**
+     * Codec used to encode outgoing messages. Incoming messages are always
+     * decoded whatever codec the peer used
+     *
+     * @return
+     * @see Message#CODEC_VERSION_CURRENT
+     */
+    public int getCodecVersion() {
+        return codecVersion;
+    }
+
+    public void setCodecVersion(int codecVersion) {
+        this.codecVersion = codecVersion;
+    }
+
+    /**
+     * Applies the codec version accepted by the peer in the reply to a
+     * connection request. Old peers do not send any version, in this case the
+     * legacy codec is retained
+     *
+     * @param connectionResponse
+     */
+    public void applyNegotiatedCodecVersion(Message connectionResponse) {
+        Object accepted = connectionResponse.parameters != null ? connectionResponse.parameters.get("codecVersion") : null;
+        if (accepted instanceof Integer) {
+            this.codecVersion = Math.min((Integer) accepted, Message.CODEC_VERSION_CURRENT);
+        }
+    }
+
 }
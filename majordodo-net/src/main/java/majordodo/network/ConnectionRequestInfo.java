@@ -40,6 +40,12 @@ public interface ConnectionRequestInfo {
      */
     public static final String CLIENT_TYPE_BROKER = "broker";
 
+    /**
+     * Connection will be used by a client application, in order to submit
+     * tasks and to follow their execution
+     */
+    public static final String CLIENT_TYPE_CLIENT = "client";
+
     Set<Long> getRunningTaskIds();
 
     String getWorkerId();
@@ -63,4 +69,36 @@ public interface ConnectionRequestInfo {
     public String getClientType();
 
     public int getMaxThreadPerUserPerTaskTypePercent();
+
+    /**
+     * Number of tasks the worker accepts over its maximum number of threads,
+     * they are queued locally and started as soon as a thread is free. Only
+     * workers use prefetch
+     *
+     * @return
+     */
+    public default int getPrefetch() {
+        return 0;
+    }
+
+    /**
+     * Name of the user, only for {@link #CLIENT_TYPE_CLIENT} connections,
+     * which are authenticated by the broker as users instead of using the
+     * shared secret
+     *
+     * @return
+     */
+    public default String getUsername() {
+        return null;
+    }
+
+    /**
+     * Password of the user, only for {@link #CLIENT_TYPE_CLIENT} connections
+     *
+     * @return
+     * @see #getUsername()
+     */
+    public default String getPassword() {
+        return null;
+    }
 }
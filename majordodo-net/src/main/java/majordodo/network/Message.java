@@ -21,7 +21,10 @@ package majordodo.network;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,18 +36,109 @@ import java.util.Set;
  */
 public final class Message {
 
-    public static Message DOWNLOAD_CODEPOOL(String workerProcessId, String codePoolId) {
+    /**
+     * Requests the data of a CodePool
+     *
+     * @param workerProcessId
+     * @param codePoolId
+     * @param knownHash hash of the version of the CodePool which the worker
+     * already has, can be null
+     * @return
+     */
+    public static Message DOWNLOAD_CODEPOOL(String workerProcessId, String codePoolId, String knownHash) {
+        return DOWNLOAD_CODEPOOL(workerProcessId, codePoolId, knownHash, false);
+    }
+
+    /**
+     * Requests the data of a CodePool
+     *
+     * @param workerProcessId
+     * @param codePoolId
+     * @param knownHash hash of the version of the CodePool which the worker
+     * already has, can be null
+     * @param chunked the worker will download data using
+     * {@link #DOWNLOAD_CODEPOOL_CHUNK(java.lang.String, java.lang.String, java.lang.String, int)},
+     * the broker will only send the list of the chunks
+     * @return
+     */
+    public static Message DOWNLOAD_CODEPOOL(String workerProcessId, String codePoolId, String knownHash, boolean chunked) {
         HashMap<String, Object> parameters = new HashMap<>();
         parameters.put("codePoolId", codePoolId);
+        if (knownHash != null) {
+            parameters.put("hash", knownHash);
+        }
+        if (chunked) {
+            parameters.put("chunked", 1);
+        }
         return new Message(workerProcessId, TYPE_DOWNLOAD_CODEPOOL, parameters);
     }
 
-    public static Message DOWNLOAD_CODEPOOL_RESPONSE(byte[] data) {
+    /**
+     * Response to DOWNLOAD_CODEPOOL
+     *
+     * @param hash
+     * @param data null if the worker already has this version
+     * @return
+     */
+    public static Message DOWNLOAD_CODEPOOL_RESPONSE(String hash, byte[] data) {
         HashMap<String, Object> parameters = new HashMap<>();
-        parameters.put("data", data);
+        parameters.put("hash", hash);
+        if (data != null) {
+            parameters.put("data", data);
+        }
         return new Message(null, TYPE_DOWNLOAD_CODEPOOL_RESPONSE, parameters);
     }
 
+    /**
+     * Response to a chunked DOWNLOAD_CODEPOOL
+     *
+     * @param hash
+     * @param size total size of the data
+     * @param chunks hashes of the chunks, in order
+     * @return
+     */
+    public static Message DOWNLOAD_CODEPOOL_CHUNKS_RESPONSE(String hash, int size, List<String> chunks) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("hash", hash);
+        parameters.put("size", size);
+        parameters.put("chunks", chunks);
+        return new Message(null, TYPE_DOWNLOAD_CODEPOOL_RESPONSE, parameters);
+    }
+
+    /**
+     * Requests one chunk of the data of a CodePool
+     *
+     * @param workerProcessId
+     * @param codePoolId
+     * @param hash hash of the whole CodePool
+     * @param index
+     * @return
+     */
+    public static Message DOWNLOAD_CODEPOOL_CHUNK(String workerProcessId, String codePoolId, String hash, int index) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("codePoolId", codePoolId);
+        parameters.put("hash", hash);
+        parameters.put("index", index);
+        return new Message(workerProcessId, TYPE_DOWNLOAD_CODEPOOL_CHUNK, parameters);
+    }
+
+    /**
+     *
+     * @param data the remaining bytes of the buffer are sent, the buffer is
+     * not consumed. The network channel delivers a byte[], the in-JVM channel
+     * delivers the buffer itself
+     * @param compressed 1 if data is compressed with DEFLATE
+     * @param size size of the uncompressed data
+     * @return
+     */
+    public static Message DOWNLOAD_CODEPOOL_CHUNK_RESPONSE(ByteBuffer data, int compressed, int size) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("data", data);
+        parameters.put("compressed", compressed);
+        parameters.put("size", size);
+        return new Message(null, TYPE_DOWNLOAD_CODEPOOL_CHUNK_RESPONSE, parameters);
+    }
+
     public static Message WORKER_SHUTDOWN(String workerProcessId) {
         return new Message(workerProcessId, TYPE_WORKER_SHUTDOWN, null);
     }
@@ -63,6 +157,21 @@ public final class Message {
         return new Message(workerProcessId, TYPE_TASK_ASSIGNED, taskParameters);
     }
 
+    /**
+     * Assignment of many tasks in a single message, it is sent only to
+     * workers which declared to support it at connection time
+     *
+     * @param workerProcessId
+     * @param tasks parameters of each task, as in
+     * {@link #TYPE_TASK_ASSIGNED(java.lang.String, java.util.Map)}
+     * @return
+     */
+    public static Message TASKS_ASSIGNED(String workerProcessId, List<Map<String, Object>> tasks) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("tasks", tasks);
+        return new Message(workerProcessId, TYPE_TASKS_ASSIGNED, params);
+    }
+
     public static Message KILL_WORKER(String workerProcessId) {
         return new Message(workerProcessId, TYPE_KILL_WORKER, null);
     }
@@ -116,7 +225,8 @@ public final class Message {
         Set<Integer> excludedGroups,
         Map<String, Integer> resources,
         String clientType,
-        int maxThreadPerUserPerTaskTypePercent) {
+        int maxThreadPerUserPerTaskTypePercent,
+        int prefetch) {
         Map<String, Object> params = new HashMap<>();
         params.put("workerId", workerId);
         params.put("clientType", clientType);
@@ -125,11 +235,37 @@ public final class Message {
         params.put("location", location);
         params.put("secret", sharedSecret);
         params.put("maxThreads", maxThreads);
-        params.put("maxThreadsByTaskType", maxThreadsByTaskType);
-        params.put("groups", groups);
-        params.put("resources", resources);
-        params.put("excludedGroups", excludedGroups);
+        // the configuration of the worker may change, the broker keeps these values
+        params.put("maxThreadsByTaskType", copy(maxThreadsByTaskType));
+        params.put("groups", copy(groups));
+        params.put("resources", copy(resources));
+        params.put("excludedGroups", copy(excludedGroups));
         params.put("maxThreadPerUserPerTaskTypePercent", maxThreadPerUserPerTaskTypePercent);
+        params.put("prefetch", prefetch);
+        params.put("codecVersion", CODEC_VERSION_CURRENT);
+        // worker is able to handle TYPE_TASKS_ASSIGNED
+        params.put("multiTaskAssignment", 1);
+        return new Message(processId, TYPE_CONNECTION_REQUEST, params);
+    }
+
+    /**
+     * Connection request of a client application. Clients do not know the
+     * shared secret of the cluster, they log in as a user of the broker, like
+     * on the HTTP API
+     */
+    public static Message CLIENT_CONNECTION_REQUEST(String clientId,
+        String processId,
+        String location,
+        String username,
+        String password) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("workerId", clientId);
+        params.put("clientType", ConnectionRequestInfo.CLIENT_TYPE_CLIENT);
+        params.put("processId", processId);
+        params.put("location", location);
+        params.put("username", username);
+        params.put("password", password);
+        params.put("codecVersion", CODEC_VERSION_CURRENT);
         return new Message(processId, TYPE_CONNECTION_REQUEST, params);
     }
 
@@ -141,30 +277,202 @@ public final class Message {
         return new Message(processId, TYPE_TASK_FINISHED, params);
     }
 
+    private static <T> List<T> copy(List<T> list) {
+        return list != null ? new ArrayList<>(list) : null;
+    }
+
+    private static <T> Set<T> copy(Set<T> set) {
+        return set != null ? new HashSet<>(set) : null;
+    }
+
+    private static <K, V> Map<K, V> copy(Map<K, V> map) {
+        return map != null ? new HashMap<>(map) : null;
+    }
+
     public static Message WORKER_PING(String processId, List<Integer> groups, Set<Integer> excludedGroups,
         Map<String, Integer> maxThreadsByTaskType, int max, Map<String, Integer> resources,
-        int maxThreadPerUserPerTaskTypePercent
+        int maxThreadPerUserPerTaskTypePercent, int prefetch
     ) {
         Map<String, Object> params = new HashMap<>();
 
         params.put("processId", processId);
-        params.put("groups", groups);
-        params.put("maxThreadsByTaskType", maxThreadsByTaskType);
+        params.put("groups", copy(groups));
+        params.put("maxThreadsByTaskType", copy(maxThreadsByTaskType));
         params.put("maxThreads", max);
-        params.put("excludedGroups", excludedGroups);
-        params.put("resources", resources);
+        params.put("excludedGroups", copy(excludedGroups));
+        params.put("resources", copy(resources));
         params.put("maxThreadPerUserPerTaskTypePercent", maxThreadPerUserPerTaskTypePercent);
+        params.put("prefetch", prefetch);
         return new Message(processId, TYPE_WORKER_PING, params);
     }
 
+    /**
+     * Submission of tasks by a client
+     *
+     * @param tasks for each task "tasktype", "userid", "parameter",
+     * "maxattempts", "attempt", "requestedStartTime", "deadline", "slot",
+     * "codepool", "mode" and "transaction"
+     * @return
+     */
+    public static Message CLIENT_SUBMIT_TASKS(List<Map<String, Object>> tasks) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("tasks", tasks);
+        return new Message(null, TYPE_CLIENT_SUBMIT_TASKS, params);
+    }
+
+    /**
+     * Reply to {@link #CLIENT_SUBMIT_TASKS(java.util.List)}
+     *
+     * @param results for each task, in the same order of the request, the
+     * "taskid" (0 if the task was not accepted) and the "outcome"
+     * @return
+     */
+    public static Message CLIENT_SUBMIT_TASKS_RESULT(List<Map<String, Object>> results) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("results", results);
+        return new Message(null, TYPE_CLIENT_SUBMIT_TASKS_RESULT, params);
+    }
+
+    /**
+     * Creates a transaction, the broker replies with an ACK which carries the
+     * "transaction" id
+     *
+     * @return
+     */
+    public static Message CLIENT_BEGIN_TRANSACTION() {
+        return new Message(null, TYPE_CLIENT_BEGIN_TRANSACTION, new HashMap<>());
+    }
+
+    public static Message CLIENT_COMMIT_TRANSACTION(long transaction) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("transaction", transaction);
+        return new Message(null, TYPE_CLIENT_COMMIT_TRANSACTION, params);
+    }
+
+    public static Message CLIENT_ROLLBACK_TRANSACTION(long transaction) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("transaction", transaction);
+        return new Message(null, TYPE_CLIENT_ROLLBACK_TRANSACTION, params);
+    }
+
+    public static Message CLIENT_TASK_STATUS_REQUEST(long taskId) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("taskid", taskId);
+        return new Message(null, TYPE_CLIENT_TASK_STATUS_REQUEST, params);
+    }
+
+    /**
+     * Reply to {@link #CLIENT_TASK_STATUS_REQUEST(long)}
+     *
+     * @param task status of the task, null if the task does not exist
+     * @return
+     */
+    public static Message CLIENT_TASK_STATUS(Map<String, Object> task) {
+        Map<String, Object> params = new HashMap<>();
+        if (task != null) {
+            params.put("task", task);
+        }
+        return new Message(null, TYPE_CLIENT_TASK_STATUS, params);
+    }
+
+    /**
+     * Subscribes to the completion of the given tasks. The broker replies with
+     * a {@link #CLIENT_TASKS_COMPLETED(java.util.List, java.util.List)} which
+     * contains the tasks already in final status and the unknown tasks, then
+     * it pushes one {@link #CLIENT_TASKS_COMPLETED(java.util.List, java.util.List)}
+     * message as soon as each of the other tasks reaches a final status
+     *
+     * @param taskIds
+     * @return
+     */
+    public static Message CLIENT_SUBSCRIBE_TASKS_COMPLETION(List<Long> taskIds) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("taskids", taskIds);
+        return new Message(null, TYPE_CLIENT_SUBSCRIBE_TASKS_COMPLETION, params);
+    }
+
+    public static Message CLIENT_TASKS_COMPLETED(List<Map<String, Object>> tasks, List<Long> notFoundTaskIds) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("tasks", tasks);
+        if (notFoundTaskIds != null && !notFoundTaskIds.isEmpty()) {
+            params.put("notFound", notFoundTaskIds);
+        }
+        return new Message(null, TYPE_CLIENT_TASKS_COMPLETED, params);
+    }
+
+    public static Message CLIENT_BROKER_STATUS_REQUEST() {
+        return new Message(null, TYPE_CLIENT_BROKER_STATUS_REQUEST, new HashMap<>());
+    }
+
+    public static Message CLIENT_BROKER_STATUS(Map<String, Object> status) {
+        return new Message(null, TYPE_CLIENT_BROKER_STATUS, status);
+    }
+
+    /**
+     * Creates a CodePool, the broker replies with an ACK which carries the
+     * "ok" flag (1 or 0) and the "outcome"
+     *
+     * @param codePoolId
+     * @param ttl
+     * @param data
+     * @return
+     */
+    public static Message CLIENT_CREATE_CODEPOOL(String codePoolId, long ttl, byte[] data) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("codePoolId", codePoolId);
+        params.put("ttl", ttl);
+        params.put("data", data);
+        return new Message(null, TYPE_CLIENT_CREATE_CODEPOOL, params);
+    }
+
+    public static Message CLIENT_DELETE_CODEPOOL(String codePoolId) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("codePoolId", codePoolId);
+        return new Message(null, TYPE_CLIENT_DELETE_CODEPOOL, params);
+    }
+
+    public static Message CLIENT_CODEPOOL_STATUS_REQUEST(String codePoolId) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("codePoolId", codePoolId);
+        return new Message(null, TYPE_CLIENT_CODEPOOL_STATUS_REQUEST, params);
+    }
+
+    /**
+     * Reply to {@link #CLIENT_CODEPOOL_STATUS_REQUEST(java.lang.String)}
+     *
+     * @param codePool status of the CodePool, null if the CodePool does not
+     * exist
+     * @return
+     */
+    public static Message CLIENT_CODEPOOL_STATUS(Map<String, Object> codePool) {
+        Map<String, Object> params = new HashMap<>();
+        if (codePool != null) {
+            params.put("codePool", codePool);
+        }
+        return new Message(null, TYPE_CLIENT_CODEPOOL_STATUS, params);
+    }
+
     public final String workerProcessId;
     public final int type;
     public final Map<String, Object> parameters;
-    public String messageId;
-    public String replyMessageId;
+    public long messageId;
+    public long replyMessageId;
+    /**
+     * Textual id of a message received from a peer which does not use numeric
+     * ids, it is only echoed back in replies
+     */
+    public String legacyMessageId;
+    public String legacyReplyMessageId;
 
     @Override
     public String toString() {
+        if (type == TYPE_CONNECTION_REQUEST && (parameters.containsKey("password") || parameters.containsKey("secret"))) {
+            // messages are logged, never print the credentials
+            Map<String, Object> redacted = new HashMap<>(parameters);
+            redacted.computeIfPresent("password", (key, value) -> "****");
+            redacted.computeIfPresent("secret", (key, value) -> "****");
+            return typeToString(type) + ", " + redacted;
+        }
         return typeToString(type) + ", " + parameters;
     }
 
@@ -180,6 +488,38 @@ public final class Message {
     public static final int TYPE_SNAPSHOT_DOWNLOAD_RESPONSE = 10;
     public static final int TYPE_DOWNLOAD_CODEPOOL = 11;
     public static final int TYPE_DOWNLOAD_CODEPOOL_RESPONSE = 12;
+    public static final int TYPE_TASKS_ASSIGNED = 13;
+    public static final int TYPE_DOWNLOAD_CODEPOOL_CHUNK = 14;
+    public static final int TYPE_DOWNLOAD_CODEPOOL_CHUNK_RESPONSE = 15;
+    public static final int TYPE_CLIENT_SUBMIT_TASKS = 16;
+    public static final int TYPE_CLIENT_SUBMIT_TASKS_RESULT = 17;
+    public static final int TYPE_CLIENT_BEGIN_TRANSACTION = 18;
+    public static final int TYPE_CLIENT_COMMIT_TRANSACTION = 19;
+    public static final int TYPE_CLIENT_ROLLBACK_TRANSACTION = 20;
+    public static final int TYPE_CLIENT_TASK_STATUS_REQUEST = 21;
+    public static final int TYPE_CLIENT_TASK_STATUS = 22;
+    public static final int TYPE_CLIENT_SUBSCRIBE_TASKS_COMPLETION = 23;
+    public static final int TYPE_CLIENT_TASKS_COMPLETED = 24;
+    public static final int TYPE_CLIENT_BROKER_STATUS_REQUEST = 25;
+    public static final int TYPE_CLIENT_BROKER_STATUS = 26;
+    public static final int TYPE_CLIENT_CREATE_CODEPOOL = 27;
+    public static final int TYPE_CLIENT_DELETE_CODEPOOL = 28;
+    public static final int TYPE_CLIENT_CODEPOOL_STATUS_REQUEST = 29;
+    public static final int TYPE_CLIENT_CODEPOOL_STATUS = 30;
+
+    /**
+     * Map-based encoding, every parameter is written with its key and a type opcode. Supported by every peer
+     */
+    public static final int CODEC_VERSION_LEGACY = 0;
+    /**
+     * Fixed layouts for hot message types, negotiated at connection time
+     */
+    public static final int CODEC_VERSION_TYPED = 1;
+    /**
+     * Best codec version supported by this peer
+     */
+    public static final int CODEC_VERSION_CURRENT = Boolean.parseBoolean(System.getProperty("majordodo.network.typedcodec", "true"))
+        ? CODEC_VERSION_TYPED : CODEC_VERSION_LEGACY;
 
     public static final int TYPE_SASL_TOKEN_MESSAGE_REQUEST = 100;
     public static final int TYPE_SASL_TOKEN_SERVER_RESPONSE = 101;
@@ -205,12 +545,48 @@ public final class Message {
                 return "TYPE_CONNECTION_REQUEST";
             case TYPE_TASK_ASSIGNED:
                 return "TYPE_TASK_ASSIGNED";
+            case TYPE_TASKS_ASSIGNED:
+                return "TYPE_TASKS_ASSIGNED";
             case TYPE_WORKER_PING:
                 return "TYPE_WORKER_PING";
             case TYPE_DOWNLOAD_CODEPOOL:
                 return "TYPE_DOWNLOAD_CODEPOOL";
             case TYPE_DOWNLOAD_CODEPOOL_RESPONSE:
                 return "TYPE_DOWNLOAD_CODEPOOL_RESPONSE";
+            case TYPE_DOWNLOAD_CODEPOOL_CHUNK:
+                return "TYPE_DOWNLOAD_CODEPOOL_CHUNK";
+            case TYPE_DOWNLOAD_CODEPOOL_CHUNK_RESPONSE:
+                return "TYPE_DOWNLOAD_CODEPOOL_CHUNK_RESPONSE";
+            case TYPE_CLIENT_SUBMIT_TASKS:
+                return "TYPE_CLIENT_SUBMIT_TASKS";
+            case TYPE_CLIENT_SUBMIT_TASKS_RESULT:
+                return "TYPE_CLIENT_SUBMIT_TASKS_RESULT";
+            case TYPE_CLIENT_BEGIN_TRANSACTION:
+                return "TYPE_CLIENT_BEGIN_TRANSACTION";
+            case TYPE_CLIENT_COMMIT_TRANSACTION:
+                return "TYPE_CLIENT_COMMIT_TRANSACTION";
+            case TYPE_CLIENT_ROLLBACK_TRANSACTION:
+                return "TYPE_CLIENT_ROLLBACK_TRANSACTION";
+            case TYPE_CLIENT_TASK_STATUS_REQUEST:
+                return "TYPE_CLIENT_TASK_STATUS_REQUEST";
+            case TYPE_CLIENT_TASK_STATUS:
+                return "TYPE_CLIENT_TASK_STATUS";
+            case TYPE_CLIENT_SUBSCRIBE_TASKS_COMPLETION:
+                return "TYPE_CLIENT_SUBSCRIBE_TASKS_COMPLETION";
+            case TYPE_CLIENT_TASKS_COMPLETED:
+                return "TYPE_CLIENT_TASKS_COMPLETED";
+            case TYPE_CLIENT_BROKER_STATUS_REQUEST:
+                return "TYPE_CLIENT_BROKER_STATUS_REQUEST";
+            case TYPE_CLIENT_BROKER_STATUS:
+                return "TYPE_CLIENT_BROKER_STATUS";
+            case TYPE_CLIENT_CREATE_CODEPOOL:
+                return "TYPE_CLIENT_CREATE_CODEPOOL";
+            case TYPE_CLIENT_DELETE_CODEPOOL:
+                return "TYPE_CLIENT_DELETE_CODEPOOL";
+            case TYPE_CLIENT_CODEPOOL_STATUS_REQUEST:
+                return "TYPE_CLIENT_CODEPOOL_STATUS_REQUEST";
+            case TYPE_CLIENT_CODEPOOL_STATUS:
+                return "TYPE_CLIENT_CODEPOOL_STATUS";
             case TYPE_SASL_TOKEN_MESSAGE_REQUEST:
                 return "SASL_TOKEN_MESSAGE_REQUEST";
             case TYPE_SASL_TOKEN_SERVER_RESPONSE:
@@ -228,24 +604,40 @@ public final class Message {
         this.parameters = parameters;
     }
 
-    public String getMessageId() {
+    public long getMessageId() {
         return messageId;
     }
 
-    public Message setMessageId(String messageId) {
+    public Message setMessageId(long messageId) {
         this.messageId = messageId;
         return this;
     }
 
-    public String getReplyMessageId() {
+    public long getReplyMessageId() {
         return replyMessageId;
     }
 
-    public Message setReplyMessageId(String replyMessageId) {
+    public Message setReplyMessageId(long replyMessageId) {
         this.replyMessageId = replyMessageId;
         return this;
     }
 
+    /**
+     * Marks this message as the reply to another message
+     *
+     * @param inAnswerTo
+     * @return
+     */
+    public Message setReplyTo(Message inAnswerTo) {
+        this.replyMessageId = inAnswerTo.messageId;
+        this.legacyReplyMessageId = inAnswerTo.legacyMessageId;
+        return this;
+    }
+
+    public boolean isReply() {
+        return replyMessageId != 0;
+    }
+
     public Message setParameter(String key, Object value) {
         this.parameters.put(key, value);
         return this;
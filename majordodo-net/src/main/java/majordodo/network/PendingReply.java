@@ -0,0 +1,60 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.network;
+
+import io.netty.util.Timeout;
+
+/**
+ * A message which is waiting for a reply
+ *
+ * @author enrico.olivelli
+ */
+public final class PendingReply {
+
+    public final Message message;
+    public final ReplyCallback callback;
+    private volatile Timeout timeout;
+
+    public PendingReply(Message message, ReplyCallback callback) {
+        this.message = message;
+        this.callback = callback;
+    }
+
+    public void setTimeout(Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Cancels the reply timeout, to be called as soon as the message is
+     * removed from the pending table
+     */
+    public void cancelTimeout() {
+        Timeout _timeout = timeout;
+        if (_timeout != null) {
+            _timeout.cancel();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PendingReply{" + "message=" + message + '}';
+    }
+
+}
@@ -61,19 +61,27 @@ public class JVMBrokerLocator implements BrokerLocator {
         brokerSide.setOtherSide(workerSide);
         workerSide.setOtherSide(brokerSide);
 
-        try {
-            performAuthentication(workerSide, workerSide.getRemoteHost(), workerInfo.getSharedSecret());
-        } catch (Exception err) {
-            throw new BrokerRejectedConnectionException("auth failed:" + err, err);
-        }
+        Message acceptMessage;
+        if (ConnectionRequestInfo.CLIENT_TYPE_CLIENT.equals(workerInfo.getClientType())) {
+            // clients log in with the connection request
+            acceptMessage = Message.CLIENT_CONNECTION_REQUEST(workerInfo.getWorkerId(), workerInfo.getProcessId(),
+                workerInfo.getLocation(), workerInfo.getUsername(), workerInfo.getPassword());
+        } else {
+            try {
+                performAuthentication(workerSide, workerSide.getRemoteHost(), workerInfo.getSharedSecret());
+            } catch (Exception err) {
+                throw new BrokerRejectedConnectionException("auth failed:" + err, err);
+            }
 
-        Message acceptMessage = Message.CONNECTION_REQUEST(workerInfo.getWorkerId(), workerInfo.getProcessId(),
-            workerInfo.getLocation(), workerInfo.getSharedSecret(), workerInfo.getRunningTaskIds(), workerInfo.getMaxThreads(),
-            workerInfo.getMaxThreadsByTaskType(), workerInfo.getGroups(), workerInfo.getExcludedGroups(), workerInfo.getResourceLimits(),
-            workerInfo.getClientType(), workerInfo.getMaxThreadPerUserPerTaskTypePercent());
+            acceptMessage = Message.CONNECTION_REQUEST(workerInfo.getWorkerId(), workerInfo.getProcessId(),
+                workerInfo.getLocation(), workerInfo.getSharedSecret(), workerInfo.getRunningTaskIds(), workerInfo.getMaxThreads(),
+                workerInfo.getMaxThreadsByTaskType(), workerInfo.getGroups(), workerInfo.getExcludedGroups(), workerInfo.getResourceLimits(),
+                workerInfo.getClientType(), workerInfo.getMaxThreadPerUserPerTaskTypePercent(), workerInfo.getPrefetch());
+        }
         try {
             Message connectionResponse = workerSide.sendMessageWithReply(acceptMessage, 10000);
             if (connectionResponse.type == Message.TYPE_ACK) {
+                workerSide.applyNegotiatedCodecVersion(connectionResponse);
                 return workerSide;
             } else {
                 throw new BrokerRejectedConnectionException("Broker rejected connection, response message:" + connectionResponse);
@@ -19,38 +19,44 @@
  */
 package majordodo.network.jvm;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.buffer.UnpooledHeapByteBuf;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
 import majordodo.network.Channel;
 import majordodo.network.Message;
+import majordodo.network.PendingReply;
 import majordodo.network.ReplyCallback;
 import majordodo.network.SendResultCallback;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import majordodo.network.netty.DodoMessageUtils;
 
 /**
- * In-JVM comunications
+ * In-JVM comunications.
+ * <p>
+ * Messages are handed to the other side as they are, without encoding and
+ * decoding them, so a message must not be modified after being sent. Each
+ * message received is dispatched to the listener by a pool of threads, like
+ * the network channel does, while replies are delivered directly to the
+ * callback by the thread which sends the reply.
  *
  * @author enrico.olivelli
  */
 public class JVMChannel extends Channel {
 
     private static final Logger LOGGER = Logger.getLogger(JVMChannel.class.getName());
+    private static final AtomicLong CHANNEL_ID_GENERATOR = new AtomicLong();
     private volatile boolean active = false;
-    private final Map<String, ReplyCallback> pendingReplyMessages = new ConcurrentHashMap<>();
-    private final Map<String, Message> pendingReplyMessagesSource = new ConcurrentHashMap<>();
+    private final LongObjectMap<PendingReply> pendingReplyMessages = new LongObjectHashMap<>();
     private JVMChannel otherSide;
     private final ExecutorService callbackexecutor = Executors.newCachedThreadPool();
-    private final ExecutorService executionserializer = Executors.newFixedThreadPool(1);
-    private String id = UUID.randomUUID().toString();
+    private final long id = CHANNEL_ID_GENERATOR.incrementAndGet();
 
     @Override
     public String toString() {
@@ -60,28 +66,21 @@ public class JVMChannel extends Channel {
     public JVMChannel() {
     }
 
-    private Message cloneMessage(Message message) {
-        ByteBuf buf = Unpooled.buffer();
-        DodoMessageUtils.encodeMessage(buf, message);
-        return DodoMessageUtils.decodeMessage(buf);
-    }
-
-    private void receiveMessageFromPeer(Message message) {
-        final Message _message = cloneMessage(message);
-        if (_message.getReplyMessageId() != null) {
-            handleReply(_message);
-        } else {
-            submitCallback(() -> {
-                try {
-                    messagesReceiver.messageReceived(_message);
-                } catch (Throwable t) {
-                    if (!closed) {
-                        LOGGER.log(Level.SEVERE, this + ": error " + t, t);
-                    }
-                    close();
-                }
-            });
+    private boolean receiveMessageFromPeer(Message message) {
+        if (message.isReply()) {
+            handleReply(message);
+            return true;
         }
+        return submitCallback(() -> {
+            try {
+                messagesReceiver.messageReceived(message);
+            } catch (Throwable t) {
+                if (!closed) {
+                    LOGGER.log(Level.SEVERE, this + ": error " + t, t);
+                }
+                close();
+            }
+        });
     }
 
     public void setOtherSide(JVMChannel brokerSide) {
@@ -91,82 +90,85 @@ public class JVMChannel extends Channel {
 
     @Override
     public void sendOneWayMessage(Message message, SendResultCallback callback) {
-        message.setMessageId(UUID.randomUUID().toString());
-        Message _message = cloneMessage(message);
-//        System.out.println("[JVM] sendOneWayMessage " + message);
-        if (!active || executionserializer.isShutdown()) {
+        assignMessageId(message);
+        if (!active || !otherSide.receiveMessageFromPeer(message)) {
+            callback.messageSent(message, new IOException(this + " channel is closed"));
             return;
         }
-        executionserializer.submit(() -> {
-            otherSide.receiveMessageFromPeer(_message);
-            submitCallback(() -> {
-                callback.messageSent(_message, null);
-            });
-        });
-
+        callback.messageSent(message, null);
     }
 
     private void handleReply(Message anwermessage) {
 
-        final ReplyCallback callback = pendingReplyMessages.get(anwermessage.getReplyMessageId());
-//        System.out.println("[JVM] handleReply " + anwermessage + " callback=" + callback + ", pendingReplyMessages=" + pendingReplyMessages);
-        if (callback != null) {
-            pendingReplyMessages.remove(anwermessage.getReplyMessageId());
-            Message original = pendingReplyMessagesSource.remove(anwermessage.getReplyMessageId());
-            if (original != null) {
-                submitCallback(() -> {
-                    callback.replyReceived(original, anwermessage, null);
-                });
+        final PendingReply pending;
+        synchronized (pendingReplyMessages) {
+            pending = pendingReplyMessages.remove(anwermessage.getReplyMessageId());
+        }
+        if (pending != null) {
+            pending.cancelTimeout();
+            try {
+                pending.callback.replyReceived(pending.message, anwermessage, null);
+            } catch (Throwable t) {
+                LOGGER.log(Level.SEVERE, this + ": error while handling reply " + anwermessage, t);
             }
         }
     }
 
     @Override
     public void sendReplyMessage(Message inAnswerTo, Message message) {
-        message.setMessageId(UUID.randomUUID().toString());
-        Message _message = cloneMessage(message);
-        if (executionserializer.isShutdown()) {
-            LOGGER.log(Level.FINER, "channel shutdown, discarding reply message " + _message);
+        assignMessageId(message);
+        if (!active) {
+            LOGGER.log(Level.FINE, "channel not active, discarding reply message " + message);
             return;
         }
-        executionserializer.submit(() -> {
-//        System.out.println("[JVM] sendReplyMessage inAnswerTo=" + inAnswerTo.getMessageId() + " newmessage=" + message);
-            if (!active) {
-                LOGGER.log(Level.FINE, "channel not active, discarding reply message " + _message);
-                return;
-            }
-            _message.setReplyMessageId(inAnswerTo.messageId);
-            otherSide.receiveMessageFromPeer(_message);
-        });
+        message.setReplyTo(inAnswerTo);
+        otherSide.receiveMessageFromPeer(message);
     }
 
-    private void submitCallback(Runnable r) {
+    private void replyTimedOut(long messageId) {
+        final PendingReply pending;
+        synchronized (pendingReplyMessages) {
+            pending = pendingReplyMessages.remove(messageId);
+        }
+        if (pending != null) {
+            LOGGER.log(Level.SEVERE, this + " message " + messageId + " without reply");
+            submitCallback(() -> {
+                pending.callback.replyReceived(pending.message, null, new IOException(this + " reply timeout expired"));
+            });
+        }
+    }
+
+    private boolean submitCallback(Runnable r) {
         try {
             callbackexecutor.submit(r);
+            return true;
         } catch (RejectedExecutionException discard) {
+            return false;
         }
     }
 
     @Override
     public void sendMessageWithAsyncReply(Message message, long timeout, ReplyCallback callback) {
-        message.setMessageId(UUID.randomUUID().toString());
-        Message _message = cloneMessage(message);
-        if (executionserializer.isShutdown()) {
-            LOGGER.log(Level.FINE, "[JVM] channel shutdown, discarding sendMessageWithAsyncReply");
+        assignMessageId(message);
+        if (!active) {
+            callback.replyReceived(message, null, new Exception("connection is not active"));
             return;
         }
-        executionserializer.submit(() -> {
-//        System.out.println("[JVM] sendMessageWithAsyncReply " + message);
-            if (!active) {
-                callbackexecutor.submit(() -> {
-                    callback.replyReceived(_message, null, new Exception("connection is not active"));
-                });
-                return;
+        PendingReply pending = new PendingReply(message, callback);
+        long messageId = message.getMessageId();
+        synchronized (pendingReplyMessages) {
+            pendingReplyMessages.put(messageId, pending);
+        }
+        pending.setTimeout(REPLY_TIMEOUT_TIMER.newTimeout(t -> replyTimedOut(messageId), timeout, TimeUnit.MILLISECONDS));
+        if (!otherSide.receiveMessageFromPeer(message)) {
+            synchronized (pendingReplyMessages) {
+                pending = pendingReplyMessages.remove(messageId);
             }
-            pendingReplyMessages.put(_message.getMessageId(), callback);
-            pendingReplyMessagesSource.put(_message.getMessageId(), _message);
-            otherSide.receiveMessageFromPeer(_message);
-        });
+            if (pending != null) {
+                pending.cancelTimeout();
+                callback.replyReceived(message, null, new Exception("connection is not active"));
+            }
+        }
     }
 
     @Override
@@ -183,20 +185,21 @@ public class JVMChannel extends Channel {
         closed = true;
         LOGGER.log(Level.FINEST, this + ": closing");
         active = false;
-        pendingReplyMessages.forEach((key, callback) -> {
+        List<PendingReply> notReplied;
+        synchronized (pendingReplyMessages) {
+            notReplied = new ArrayList<>(pendingReplyMessages.values());
+            pendingReplyMessages.clear();
+        }
+        for (PendingReply pending : notReplied) {
+            pending.cancelTimeout();
             submitCallback(() -> {
-                Message original = pendingReplyMessagesSource.remove(key);
-                if (original != null) {
-                    callback.replyReceived(original, null, new Exception("comunication channel closed"));
-                }
+                pending.callback.replyReceived(pending.message, null, new Exception("comunication channel closed"));
             });
-        });
-        pendingReplyMessages.clear();
+        }
 
         if (otherSide.active) {
             otherSide.close();
         }
-        executionserializer.shutdown();
         callbackexecutor.shutdown();
         messagesReceiver.channelClosed();
     }
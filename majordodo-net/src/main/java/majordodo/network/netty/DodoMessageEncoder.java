@@ -24,7 +24,6 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
-import java.nio.charset.StandardCharsets;
 
 /**
  * Encodes messages to bytes
@@ -33,12 +32,19 @@ import java.nio.charset.StandardCharsets;
  */
 public class DodoMessageEncoder extends ChannelOutboundHandlerAdapter {
 
+    private final NettyChannel channel;
+
+    public DodoMessageEncoder(NettyChannel channel) {
+        this.channel = channel;
+    }
+
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
         Message m = (Message) msg;
         ByteBuf encoded = ctx.alloc().buffer();
-        DodoMessageUtils.encodeMessage(encoded, m);
-        ctx.writeAndFlush(encoded, promise);
+        DodoMessageUtils.encodeMessage(encoded, m, channel.getCodecVersion());
+        // flushing is up to the NettyChannel, see NettyChannel#isCoalesceWrites
+        ctx.write(encoded, promise);
     }
 
     @Override
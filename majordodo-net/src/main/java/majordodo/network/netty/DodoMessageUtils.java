@@ -21,6 +21,8 @@ package majordodo.network.netty;
 
 import majordodo.network.Message;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -37,6 +39,7 @@ import java.util.Set;
 public class DodoMessageUtils {
 
     private static final byte VERSION = 'a';
+    private static final byte VERSION_TYPED = 'b';
 
     private static final byte OPCODE_REPLYMESSAGEID = 1;
     private static final byte OPCODE_WORKERPROCESSID = 2;
@@ -51,6 +54,11 @@ public class DodoMessageUtils {
     private static final byte OPCODE_LIST_VALUE = 12;
     private static final byte OPCODE_BYTEARRAY_VALUE = 13;
 
+    private static final byte FLAG_REPLYMESSAGEID = 1;
+    private static final byte FLAG_WORKERPROCESSID = 2;
+    private static final byte FLAG_TYPED_PARAMETERS = 4;
+    private static final byte FLAG_PARAMETERS = 8;
+
     private static void writeUTF8String(ByteBuf buf, String s) {
         byte[] asarray = s.getBytes(StandardCharsets.UTF_8);
         buf.writeInt(asarray.length);
@@ -64,13 +72,134 @@ public class DodoMessageUtils {
         return new String(s, StandardCharsets.UTF_8);
     }
 
+    static void writeVarInt(ByteBuf buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    static int readVarInt(ByteBuf buf) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buf.readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new RuntimeException("malformed varint");
+    }
+
+    static void writeVarLong(ByteBuf buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte((int) value);
+    }
+
+    static long readVarLong(ByteBuf buf) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new RuntimeException("malformed varlong");
+    }
+
+    static void writeCompactString(ByteBuf buf, String s) {
+        writeVarInt(buf, ByteBufUtil.utf8Bytes(s));
+        ByteBufUtil.writeUtf8(buf, s);
+    }
+
+    static String readCompactString(ByteBuf buf) {
+        int len = readVarInt(buf);
+        String res = buf.toString(buf.readerIndex(), len, StandardCharsets.UTF_8);
+        buf.skipBytes(len);
+        return res;
+    }
+
+    /**
+     * Encodes a message using the given codec version.
+     *
+     * @param encoded
+     * @param m
+     * @param codecVersion
+     * @see Message#CODEC_VERSION_LEGACY
+     * @see Message#CODEC_VERSION_TYPED
+     */
+    public static void encodeMessage(ByteBuf encoded, Message m, int codecVersion) {
+        if (codecVersion < Message.CODEC_VERSION_TYPED) {
+            encodeMessage(encoded, m);
+            return;
+        }
+        int start = encoded.writerIndex();
+        if (!encodeTypedMessage(encoded, m)) {
+            // parameters do not fit the fixed layout, discard and fallback to the generic format
+            encoded.writerIndex(start);
+            encodeMessage(encoded, m);
+        }
+    }
+
+    private static boolean encodeTypedMessage(ByteBuf encoded, Message m) {
+        if (m.legacyReplyMessageId != null) {
+            // the peer sent a textual id, it can be echoed back only with the generic format
+            return false;
+        }
+        MessageLayout layout = m.parameters != null ? MessageLayout.forMessageType(m.type) : null;
+        byte flags = 0;
+        if (m.replyMessageId != 0) {
+            flags |= FLAG_REPLYMESSAGEID;
+        }
+        if (m.workerProcessId != null) {
+            flags |= FLAG_WORKERPROCESSID;
+        }
+        if (layout != null) {
+            flags |= FLAG_TYPED_PARAMETERS;
+        } else if (m.parameters != null) {
+            flags |= FLAG_PARAMETERS;
+        }
+        encoded.writeByte(VERSION_TYPED);
+        writeVarInt(encoded, m.type);
+        writeVarLong(encoded, m.messageId);
+        encoded.writeByte(flags);
+        if (m.replyMessageId != 0) {
+            writeVarLong(encoded, m.replyMessageId);
+        }
+        if (m.workerProcessId != null) {
+            writeCompactString(encoded, m.workerProcessId);
+        }
+        if (layout != null) {
+            return layout.write(encoded, m.parameters);
+        } else if (m.parameters != null) {
+            writeEncodedParameters(encoded, m.parameters);
+        }
+        return true;
+    }
+
+    private static void writeEncodedParameters(ByteBuf encoded, Map<String, Object> parameters) {
+        encoded.writeInt(parameters.size());
+        for (Map.Entry<String, Object> p : parameters.entrySet()) {
+            writeEncodedSimpleValue(encoded, p.getKey());
+            writeEncodedSimpleValue(encoded, p.getValue());
+        }
+    }
+
     public static void encodeMessage(ByteBuf encoded, Message m) {
         encoded.writeByte(VERSION);
         encoded.writeInt(m.type);
-        writeUTF8String(encoded, m.messageId);
-        if (m.replyMessageId != null) {
+        writeUTF8String(encoded, Long.toString(m.messageId));
+        if (m.legacyReplyMessageId != null) {
             encoded.writeByte(OPCODE_REPLYMESSAGEID);
-            writeUTF8String(encoded, m.replyMessageId);
+            writeUTF8String(encoded, m.legacyReplyMessageId);
+        } else if (m.replyMessageId != 0) {
+            encoded.writeByte(OPCODE_REPLYMESSAGEID);
+            writeUTF8String(encoded, Long.toString(m.replyMessageId));
         }
         if (m.workerProcessId != null) {
             encoded.writeByte(OPCODE_WORKERPROCESSID);
@@ -78,11 +207,7 @@ public class DodoMessageUtils {
         }
         if (m.parameters != null) {
             encoded.writeByte(OPCODE_PARAMETERS);
-            encoded.writeInt(m.parameters.size());
-            for (Map.Entry<String, Object> p : m.parameters.entrySet()) {
-                writeEncodedSimpleValue(encoded, p.getKey());
-                writeEncodedSimpleValue(encoded, p.getValue());
-            }
+            writeEncodedParameters(encoded, m.parameters);
         }
 
     }
@@ -119,6 +244,12 @@ public class DodoMessageUtils {
             encoded.writeByte(OPCODE_BYTEARRAY_VALUE);
             encoded.writeInt(set.length);
             encoded.writeBytes(set);
+        } else if (o instanceof ByteBuffer) {
+            // same as a byte[], without copying a slice of a bigger array
+            ByteBuffer buffer = (ByteBuffer) o;
+            encoded.writeByte(OPCODE_BYTEARRAY_VALUE);
+            encoded.writeInt(buffer.remaining());
+            encoded.writeBytes(buffer.duplicate());
         } else if (o instanceof Map) {
             Map set = (Map) o;
             encoded.writeByte(OPCODE_MAP_VALUE);
@@ -182,8 +313,78 @@ public class DodoMessageUtils {
         }
     }
 
+    /**
+     * Id assigned to messages coming from peers which use textual message ids,
+     * it never matches a pending message
+     */
+    private static final long UNPARSEABLE_MESSAGE_ID = -1;
+
+    private static long parseMessageId(String messageId) {
+        try {
+            return Long.parseLong(messageId);
+        } catch (NumberFormatException notNumeric) {
+            return UNPARSEABLE_MESSAGE_ID;
+        }
+    }
+
+    private static Message decodeTypedMessage(ByteBuf encoded) {
+        int type = readVarInt(encoded);
+        long messageId = readVarLong(encoded);
+        byte flags = encoded.readByte();
+        long replyMessageId = 0;
+        String workerProcessId = null;
+        if ((flags & FLAG_REPLYMESSAGEID) != 0) {
+            replyMessageId = readVarLong(encoded);
+        }
+        if ((flags & FLAG_WORKERPROCESSID) != 0) {
+            workerProcessId = readCompactString(encoded);
+        }
+        Map<String, Object> params;
+        if ((flags & FLAG_TYPED_PARAMETERS) != 0) {
+            MessageLayout layout = MessageLayout.forMessageType(type);
+            if (layout == null) {
+                throw new RuntimeException("no typed layout for message type " + Message.typeToString(type));
+            }
+            params = layout.read(encoded);
+        } else if ((flags & FLAG_PARAMETERS) != 0) {
+            int size = encoded.readInt();
+            params = newParametersMap(size);
+            for (int i = 0; i < size; i++) {
+                Object key = readEncodedSimpleValue(encoded);
+                Object value = readEncodedSimpleValue(encoded);
+                params.put((String) key, value);
+            }
+        } else {
+            params = new HashMap<>();
+        }
+        Message m = new Message(workerProcessId, type, params);
+        m.replyMessageId = replyMessageId;
+        m.messageId = messageId;
+        return m;
+    }
+
+    /**
+     * Map for the given number of decoded parameters, sized in order not to be
+     * resized while it is filled
+     *
+     * @param expectedSize
+     * @return
+     */
+    static <V> Map<String, V> newParametersMap(int expectedSize) {
+        return new HashMap<>(expectedSize < 3 ? expectedSize + 1 : (int) (expectedSize / 0.75f) + 1);
+    }
+
+    /**
+     * Decodes a message, every supported codec version is accepted
+     *
+     * @param encoded
+     * @return
+     */
     public static Message decodeMessage(ByteBuf encoded) {
         byte version = encoded.readByte();
+        if (version == VERSION_TYPED) {
+            return decodeTypedMessage(encoded);
+        }
         if (version != VERSION) {
             throw new RuntimeException("bad protocol version " + version);
         }
@@ -215,9 +416,12 @@ public class DodoMessageUtils {
         }
         Message m = new Message(workerProcessId, type, params);
         if (replyMessageId != null) {
-            m.replyMessageId = replyMessageId;
+            m.replyMessageId = parseMessageId(replyMessageId);
+        }
+        m.messageId = parseMessageId(messageId);
+        if (m.messageId == UNPARSEABLE_MESSAGE_ID) {
+            m.legacyMessageId = messageId;
         }
-        m.messageId = messageId;
         return m;
 
     }
@@ -77,20 +77,28 @@ public abstract class GenericNettyBrokerLocator implements BrokerLocator {
             } catch (final Exception e) {
                 throw new BrokerNotAvailableException(e);
             }
-            try {
-                performAuthentication(channel, channel.getRemoteHost(), workerInfo.getSharedSecret());
-            } catch (Exception err) {
-                throw new BrokerRejectedConnectionException("auth failed:" + err, err);
-            }
+            Message acceptMessage;
+            if (ConnectionRequestInfo.CLIENT_TYPE_CLIENT.equals(workerInfo.getClientType())) {
+                // clients log in with the connection request
+                acceptMessage = Message.CLIENT_CONNECTION_REQUEST(workerInfo.getWorkerId(),
+                    workerInfo.getProcessId(), workerInfo.getLocation(), workerInfo.getUsername(), workerInfo.getPassword());
+            } else {
+                try {
+                    performAuthentication(channel, channel.getRemoteHost(), workerInfo.getSharedSecret());
+                } catch (Exception err) {
+                    throw new BrokerRejectedConnectionException("auth failed:" + err, err);
+                }
 
-            Message acceptMessage = Message.CONNECTION_REQUEST(workerInfo.getWorkerId(),
-                workerInfo.getProcessId(), workerInfo.getLocation(), workerInfo.getSharedSecret(),
-                workerInfo.getRunningTaskIds(), workerInfo.getMaxThreads(), workerInfo.getMaxThreadsByTaskType(),
-                workerInfo.getGroups(), workerInfo.getExcludedGroups(), workerInfo.getResourceLimits(),
-                workerInfo.getClientType(), workerInfo.getMaxThreadPerUserPerTaskTypePercent());
+                acceptMessage = Message.CONNECTION_REQUEST(workerInfo.getWorkerId(),
+                    workerInfo.getProcessId(), workerInfo.getLocation(), workerInfo.getSharedSecret(),
+                    workerInfo.getRunningTaskIds(), workerInfo.getMaxThreads(), workerInfo.getMaxThreadsByTaskType(),
+                    workerInfo.getGroups(), workerInfo.getExcludedGroups(), workerInfo.getResourceLimits(),
+                    workerInfo.getClientType(), workerInfo.getMaxThreadPerUserPerTaskTypePercent(), workerInfo.getPrefetch());
+            }
             try {
                 Message connectionResponse = channel.sendMessageWithReply(acceptMessage, 10000);
                 if (connectionResponse.type == Message.TYPE_ACK) {
+                    channel.applyNegotiatedCodecVersion(connectionResponse);
                     ok = true;
                     return channel;
                 } else {
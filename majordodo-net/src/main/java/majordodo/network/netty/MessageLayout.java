@@ -0,0 +1,360 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.network.netty;
+
+import io.netty.buffer.ByteBuf;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import majordodo.network.Message;
+
+/**
+ * Fixed layout of the parameters of an hot message type. Each parameter is
+ * identified on the wire by its position (field id) inside the layout, keys
+ * and type opcodes are not written at all
+ *
+ * @author enrico.olivelli
+ */
+final class MessageLayout {
+
+    private static final byte KIND_STRING = 1;
+    private static final byte KIND_INT = 2;
+    private static final byte KIND_LONG = 3;
+    private static final byte KIND_INT_LIST = 4;
+    private static final byte KIND_INT_SET = 5;
+    private static final byte KIND_STRING_INT_MAP = 6;
+    private static final byte KIND_RECORD_LIST = 7;
+    private static final byte KIND_LONG_LIST = 8;
+
+    private static final MessageLayout TASK_ASSIGNED = new MessageLayout(
+        new String[]{"taskid", "tasktype", "parameter", "attempt", "userid", "resources", "mode", "codepool", "codepoolhash"},
+        new byte[]{KIND_LONG, KIND_STRING, KIND_STRING, KIND_INT, KIND_STRING, KIND_STRING, KIND_STRING, KIND_STRING, KIND_STRING},
+        null);
+
+    private static final MessageLayout TASKS_ASSIGNED = new MessageLayout(
+        new String[]{"tasks"},
+        new byte[]{KIND_RECORD_LIST},
+        TASK_ASSIGNED);
+
+    private static final MessageLayout FINISHED_TASK_DATA = new MessageLayout(
+        new String[]{"taskid", "status", "result", "error"},
+        new byte[]{KIND_LONG, KIND_STRING, KIND_STRING, KIND_STRING},
+        null);
+
+    private static final MessageLayout TASK_FINISHED = new MessageLayout(
+        new String[]{"processId", "tasksData"},
+        new byte[]{KIND_STRING, KIND_RECORD_LIST},
+        FINISHED_TASK_DATA);
+
+    private static final MessageLayout WORKER_PING = new MessageLayout(
+        new String[]{"processId", "groups", "maxThreadsByTaskType", "maxThreads", "excludedGroups", "resources", "maxThreadPerUserPerTaskTypePercent", "prefetch"},
+        new byte[]{KIND_STRING, KIND_INT_LIST, KIND_STRING_INT_MAP, KIND_INT, KIND_INT_SET, KIND_STRING_INT_MAP, KIND_INT, KIND_INT},
+        null);
+
+    private static final MessageLayout CLIENT_TASK = new MessageLayout(
+        new String[]{"tasktype", "userid", "parameter", "maxattempts", "attempt", "requestedStartTime", "deadline", "slot", "codepool", "mode", "transaction"},
+        new byte[]{KIND_STRING, KIND_STRING, KIND_STRING, KIND_INT, KIND_INT, KIND_LONG, KIND_LONG, KIND_STRING, KIND_STRING, KIND_STRING, KIND_LONG},
+        null);
+
+    private static final MessageLayout CLIENT_SUBMIT_TASKS = new MessageLayout(
+        new String[]{"tasks"},
+        new byte[]{KIND_RECORD_LIST},
+        CLIENT_TASK);
+
+    private static final MessageLayout CLIENT_SUBMIT_TASK_RESULT = new MessageLayout(
+        new String[]{"taskid", "outcome", "retryAfter"},
+        new byte[]{KIND_LONG, KIND_STRING, KIND_LONG},
+        null);
+
+    private static final MessageLayout CLIENT_SUBMIT_TASKS_RESULT = new MessageLayout(
+        new String[]{"results"},
+        new byte[]{KIND_RECORD_LIST},
+        CLIENT_SUBMIT_TASK_RESULT);
+
+    private static final MessageLayout CLIENT_TASK_STATUS = new MessageLayout(
+        new String[]{"taskId", "status", "userId", "tasktype", "data", "result", "workerId", "slot", "codePoolId", "mode", "createdTimestamp", "requestedStartTime", "deadline", "attempts", "maxattempts"},
+        new byte[]{KIND_LONG, KIND_STRING, KIND_STRING, KIND_STRING, KIND_STRING, KIND_STRING, KIND_STRING, KIND_STRING, KIND_STRING, KIND_STRING, KIND_LONG, KIND_LONG, KIND_LONG, KIND_INT, KIND_INT},
+        null);
+
+    private static final MessageLayout CLIENT_TASKS_COMPLETED = new MessageLayout(
+        new String[]{"tasks", "notFound"},
+        new byte[]{KIND_RECORD_LIST, KIND_LONG_LIST},
+        CLIENT_TASK_STATUS);
+
+    private static final MessageLayout CLIENT_SUBSCRIBE_TASKS_COMPLETION = new MessageLayout(
+        new String[]{"taskids"},
+        new byte[]{KIND_LONG_LIST},
+        null);
+
+    private static final MessageLayout ACK = new MessageLayout(
+        new String[0],
+        new byte[0],
+        null);
+
+    /**
+     * Returns the fixed layout for the given message type, null if the type is
+     * encoded with the generic map-based format
+     *
+     * @param type
+     * @return
+     */
+    static MessageLayout forMessageType(int type) {
+        switch (type) {
+            case Message.TYPE_TASK_ASSIGNED:
+                return TASK_ASSIGNED;
+            case Message.TYPE_TASKS_ASSIGNED:
+                return TASKS_ASSIGNED;
+            case Message.TYPE_TASK_FINISHED:
+                return TASK_FINISHED;
+            case Message.TYPE_WORKER_PING:
+                return WORKER_PING;
+            case Message.TYPE_ACK:
+                return ACK;
+            case Message.TYPE_CLIENT_SUBMIT_TASKS:
+                return CLIENT_SUBMIT_TASKS;
+            case Message.TYPE_CLIENT_SUBMIT_TASKS_RESULT:
+                return CLIENT_SUBMIT_TASKS_RESULT;
+            case Message.TYPE_CLIENT_TASKS_COMPLETED:
+                return CLIENT_TASKS_COMPLETED;
+            case Message.TYPE_CLIENT_SUBSCRIBE_TASKS_COMPLETION:
+                return CLIENT_SUBSCRIBE_TASKS_COMPLETION;
+            default:
+                return null;
+        }
+    }
+
+    private final String[] keys;
+    private final byte[] kinds;
+    private final MessageLayout recordLayout;
+    private final Map<String, Integer> fieldIds;
+
+    private MessageLayout(String[] keys, byte[] kinds, MessageLayout recordLayout) {
+        if (keys.length != kinds.length || keys.length > 32) {
+            throw new IllegalArgumentException();
+        }
+        this.keys = keys;
+        this.kinds = kinds;
+        this.recordLayout = recordLayout;
+        this.fieldIds = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            fieldIds.put(keys[i], i);
+        }
+    }
+
+    /**
+     * Writes the parameters using this layout.
+     *
+     * @param encoded
+     * @param parameters
+     * @return false if the parameters do not fit the layout, in this case the
+     * caller MUST discard the partially written data
+     */
+    boolean write(ByteBuf encoded, Map<String, Object> parameters) {
+        int presentMask = 0;
+        int nullMask = 0;
+        Object[] values = new Object[keys.length];
+        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+            Integer id = fieldIds.get(entry.getKey());
+            if (id == null) {
+                return false;
+            }
+            presentMask |= 1 << id;
+            Object value = entry.getValue();
+            if (value == null) {
+                nullMask |= 1 << id;
+            }
+            values[id] = value;
+        }
+        DodoMessageUtils.writeVarInt(encoded, presentMask);
+        DodoMessageUtils.writeVarInt(encoded, nullMask);
+        for (int i = 0; i < keys.length; i++) {
+            Object value = values[i];
+            if (value != null && !writeValue(encoded, kinds[i], value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean writeValue(ByteBuf encoded, byte kind, Object value) {
+        switch (kind) {
+            case KIND_STRING:
+                if (!(value instanceof String)) {
+                    return false;
+                }
+                DodoMessageUtils.writeCompactString(encoded, (String) value);
+                return true;
+            case KIND_INT:
+                if (!(value instanceof Integer)) {
+                    return false;
+                }
+                DodoMessageUtils.writeVarInt(encoded, (Integer) value);
+                return true;
+            case KIND_LONG:
+                if (!(value instanceof Long)) {
+                    return false;
+                }
+                DodoMessageUtils.writeVarLong(encoded, (Long) value);
+                return true;
+            case KIND_INT_LIST:
+                if (!(value instanceof List)) {
+                    return false;
+                }
+                return writeIntCollection(encoded, (Collection<?>) value);
+            case KIND_INT_SET:
+                if (!(value instanceof Set)) {
+                    return false;
+                }
+                return writeIntCollection(encoded, (Collection<?>) value);
+            case KIND_LONG_LIST: {
+                if (!(value instanceof List)) {
+                    return false;
+                }
+                List<?> list = (List<?>) value;
+                DodoMessageUtils.writeVarInt(encoded, list.size());
+                for (Object o : list) {
+                    if (!(o instanceof Long)) {
+                        return false;
+                    }
+                    DodoMessageUtils.writeVarLong(encoded, (Long) o);
+                }
+                return true;
+            }
+            case KIND_STRING_INT_MAP: {
+                if (!(value instanceof Map)) {
+                    return false;
+                }
+                Map<?, ?> map = (Map<?, ?>) value;
+                DodoMessageUtils.writeVarInt(encoded, map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    if (!(entry.getKey() instanceof String) || !(entry.getValue() instanceof Integer)) {
+                        return false;
+                    }
+                    DodoMessageUtils.writeCompactString(encoded, (String) entry.getKey());
+                    DodoMessageUtils.writeVarInt(encoded, (Integer) entry.getValue());
+                }
+                return true;
+            }
+            case KIND_RECORD_LIST: {
+                if (!(value instanceof List)) {
+                    return false;
+                }
+                List<?> list = (List<?>) value;
+                DodoMessageUtils.writeVarInt(encoded, list.size());
+                for (Object record : list) {
+                    if (!(record instanceof Map) || !recordLayout.write(encoded, (Map<String, Object>) record)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            default:
+                throw new IllegalStateException("bad kind " + kind);
+        }
+    }
+
+    private static boolean writeIntCollection(ByteBuf encoded, Collection<?> values) {
+        DodoMessageUtils.writeVarInt(encoded, values.size());
+        for (Object o : values) {
+            if (!(o instanceof Integer)) {
+                return false;
+            }
+            DodoMessageUtils.writeVarInt(encoded, (Integer) o);
+        }
+        return true;
+    }
+
+    Map<String, Object> read(ByteBuf encoded) {
+        int presentMask = DodoMessageUtils.readVarInt(encoded);
+        int nullMask = DodoMessageUtils.readVarInt(encoded);
+        Map<String, Object> res = DodoMessageUtils.newParametersMap(Integer.bitCount(presentMask));
+        for (int i = 0; i < keys.length; i++) {
+            int bit = 1 << i;
+            if ((presentMask & bit) == 0) {
+                continue;
+            }
+            if ((nullMask & bit) != 0) {
+                res.put(keys[i], null);
+            } else {
+                res.put(keys[i], readValue(encoded, kinds[i]));
+            }
+        }
+        return res;
+    }
+
+    private Object readValue(ByteBuf encoded, byte kind) {
+        switch (kind) {
+            case KIND_STRING:
+                return DodoMessageUtils.readCompactString(encoded);
+            case KIND_INT:
+                return DodoMessageUtils.readVarInt(encoded);
+            case KIND_LONG:
+                return DodoMessageUtils.readVarLong(encoded);
+            case KIND_INT_LIST: {
+                int len = DodoMessageUtils.readVarInt(encoded);
+                List<Integer> res = new ArrayList<>(len);
+                for (int i = 0; i < len; i++) {
+                    res.add(DodoMessageUtils.readVarInt(encoded));
+                }
+                return res;
+            }
+            case KIND_INT_SET: {
+                int len = DodoMessageUtils.readVarInt(encoded);
+                Set<Integer> res = new HashSet<>();
+                for (int i = 0; i < len; i++) {
+                    res.add(DodoMessageUtils.readVarInt(encoded));
+                }
+                return res;
+            }
+            case KIND_LONG_LIST: {
+                int len = DodoMessageUtils.readVarInt(encoded);
+                List<Long> res = new ArrayList<>(len);
+                for (int i = 0; i < len; i++) {
+                    res.add(DodoMessageUtils.readVarLong(encoded));
+                }
+                return res;
+            }
+            case KIND_STRING_INT_MAP: {
+                int len = DodoMessageUtils.readVarInt(encoded);
+                Map<String, Integer> res = new HashMap<>();
+                for (int i = 0; i < len; i++) {
+                    String key = DodoMessageUtils.readCompactString(encoded);
+                    res.put(key, DodoMessageUtils.readVarInt(encoded));
+                }
+                return res;
+            }
+            case KIND_RECORD_LIST: {
+                int len = DodoMessageUtils.readVarInt(encoded);
+                List<Map<String, Object>> res = new ArrayList<>(len);
+                for (int i = 0; i < len; i++) {
+                    res.add(recordLayout.read(encoded));
+                }
+                return res;
+            }
+            default:
+                throw new RuntimeException("invalid field kind: " + kind);
+        }
+    }
+
+}
@@ -21,19 +21,22 @@ package majordodo.network.netty;
 
 import majordodo.network.Channel;
 import majordodo.network.Message;
+import majordodo.network.PendingReply;
 import majordodo.network.ReplyCallback;
 import majordodo.network.SendResultCallback;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,19 +52,26 @@ public class NettyChannel extends Channel {
     volatile SocketChannel socket;
     private static final Logger LOGGER = Logger.getLogger(NettyChannel.class.getName());
     private static final AtomicLong idGenerator = new AtomicLong();
+    public static final boolean DEFAULT_COALESCE_WRITES = Boolean.parseBoolean(System.getProperty("majordodo.nettychannel.coalescewrites", "true"));
 
-    private final Map<String, ReplyCallback> pendingReplyMessages = new ConcurrentHashMap<>();
-    private final Map<String, Message> pendingReplyMessagesSource = new ConcurrentHashMap<>();
-    private final Map<String, Long> pendingReplyMessagesDeadline = new ConcurrentHashMap<>();
+    /**
+     * Messages waiting for a reply, by message id. Guarded by itself
+     */
+    private final LongObjectMap<PendingReply> pendingReplyMessages = new LongObjectHashMap<>();
     private final ExecutorService callbackexecutor;
     private final NettyConnector connector;
     private boolean ioErrors = false;
     private final long id = idGenerator.incrementAndGet();
     private final boolean disconnectOnReplyTimeout;
+    private volatile boolean coalesceWrites = DEFAULT_COALESCE_WRITES;
+    /**
+     * A flush task is pending on the event loop. Accessed only by the event loop
+     */
+    private boolean flushScheduled;
 
     @Override
     public String toString() {
-        return "NettyChannel{name=" + name + ", id=" + id + ", socket=" + socket + " pending " + pendingReplyMessages.size() + " msgs}";
+        return "NettyChannel{name=" + name + ", id=" + id + ", socket=" + socket + " pending " + pendingReplyMessagesCount() + " msgs}";
     }
 
     public NettyChannel(String name, SocketChannel socket, ExecutorService callbackexecutor, NettyConnector connector) {
@@ -72,8 +82,29 @@ public class NettyChannel extends Channel {
         this.disconnectOnReplyTimeout = (connector == null); // only server-side
     }
 
+    /**
+     * When true messages are written to the socket without flushing, a single
+     * flush is issued for all the messages written during the same tick of the
+     * event loop
+     *
+     * @return
+     */
+    public boolean isCoalesceWrites() {
+        return coalesceWrites;
+    }
+
+    public void setCoalesceWrites(boolean coalesceWrites) {
+        this.coalesceWrites = coalesceWrites;
+    }
+
+    private int pendingReplyMessagesCount() {
+        synchronized (pendingReplyMessages) {
+            return pendingReplyMessages.size();
+        }
+    }
+
     public void messageReceived(Message message) {
-        if (message.getReplyMessageId() != null) {
+        if (message.isReply()) {
             handleReply(message);
         } else {
             submitCallback(() -> {
@@ -88,28 +119,46 @@ public class NettyChannel extends Channel {
     }
 
     private void handleReply(Message anwermessage) {
-        final ReplyCallback callback = pendingReplyMessages.get(anwermessage.getReplyMessageId());
-        pendingReplyMessages.remove(anwermessage.getReplyMessageId());
-        pendingReplyMessagesDeadline.remove(anwermessage.getReplyMessageId());
-        Message original = pendingReplyMessagesSource.remove(anwermessage.getReplyMessageId());
-        if (callback != null && original != null) {
+        final PendingReply pending;
+        synchronized (pendingReplyMessages) {
+            pending = pendingReplyMessages.remove(anwermessage.getReplyMessageId());
+        }
+        if (pending != null) {
+            pending.cancelTimeout();
             submitCallback(() -> {
-                callback.replyReceived(original, anwermessage, null);
+                pending.callback.replyReceived(pending.message, anwermessage, null);
             });
         }
     }
 
     @Override
     public void sendOneWayMessage(Message message, SendResultCallback callback) {
-        if (message.getMessageId() == null) {
-            message.setMessageId(UUID.randomUUID().toString());
+        if (message.getMessageId() == 0) {
+            assignMessageId(message);
         }
         SocketChannel _socket = this.socket;
         if (_socket == null || !_socket.isOpen()) {
             callback.messageSent(message, new Exception(this + " connection is closed"));
             return;
         }
-        _socket.writeAndFlush(message).addListener(new GenericFutureListener() {
+        ChannelPromise write = _socket.newPromise();
+        if (coalesceWrites) {
+            EventLoop eventLoop = _socket.eventLoop();
+            if (eventLoop.inEventLoop()) {
+                writeAndScheduleFlush(_socket, message, write);
+            } else {
+                try {
+                    eventLoop.execute(() -> {
+                        writeAndScheduleFlush(_socket, message, write);
+                    });
+                } catch (RejectedExecutionException err) {
+                    write.tryFailure(err);
+                }
+            }
+        } else {
+            _socket.writeAndFlush(message, write);
+        }
+        write.addListener(new GenericFutureListener() {
 
             @Override
             public void operationComplete(Future future) throws Exception {
@@ -125,16 +174,28 @@ public class NettyChannel extends Channel {
         });
     }
 
+    private void writeAndScheduleFlush(SocketChannel _socket, Message message, ChannelPromise promise) {
+        _socket.write(message, promise);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            // the flush task runs after the writes already queued on the event loop, so they will be flushed all together
+            _socket.eventLoop().execute(() -> {
+                flushScheduled = false;
+                _socket.flush();
+            });
+        }
+    }
+
     @Override
     public void sendReplyMessage(Message inAnswerTo, Message message) {
-        if (message.getMessageId() == null) {
-            message.setMessageId(UUID.randomUUID().toString());
+        if (message.getMessageId() == 0) {
+            assignMessageId(message);
         }
         if (this.socket == null) {
             LOGGER.log(Level.SEVERE, this + " channel not active, discarding reply message " + message);
             return;
         }
-        message.setReplyMessageId(inAnswerTo.messageId);
+        message.setReplyTo(inAnswerTo);
         sendOneWayMessage(message, new SendResultCallback() {
 
             @Override
@@ -146,42 +207,35 @@ public class NettyChannel extends Channel {
         });
     }
 
-    private void processPendingReplyMessagesDeadline() {
-        List<String> messagesWithNoReply = new ArrayList<>();
-        long now = System.currentTimeMillis();
-        pendingReplyMessagesDeadline.forEach((messageId, deadline) -> {
-            if (deadline < now) {
-                messagesWithNoReply.add(messageId);
-            }
-        });
-        if (messagesWithNoReply.isEmpty()) {
+    private void replyTimedOut(long messageId) {
+        final PendingReply pending;
+        synchronized (pendingReplyMessages) {
+            pending = pendingReplyMessages.remove(messageId);
+        }
+        if (pending == null) {
+            // reply received just in time
             return;
         }
-        if (DISCONNECT_ON_PENDING_REPLY_TIMEOUT && disconnectOnReplyTimeout) {
-            LOGGER.log(Level.SEVERE, this + " found " + messagesWithNoReply.size() + " without reply, channel will be closed");
+        boolean disconnect = DISCONNECT_ON_PENDING_REPLY_TIMEOUT && disconnectOnReplyTimeout;
+        if (disconnect) {
+            LOGGER.log(Level.SEVERE, this + " message " + messageId + " without reply, channel will be closed");
             ioErrors = true;
         } else {
-            LOGGER.log(Level.SEVERE, this + " found " + messagesWithNoReply.size() + " without reply");
-        }
-        for (String messageId : messagesWithNoReply) {
-            Message original = pendingReplyMessagesSource.remove(messageId);
-            ReplyCallback callback = pendingReplyMessages.remove(messageId);
-            pendingReplyMessagesDeadline.remove(messageId);
-            if (original != null && callback != null) {
-                submitCallback(() -> {
-                    callback.replyReceived(original, null, new IOException(this + " reply timeout expired"));
-                });
-            }
+            LOGGER.log(Level.SEVERE, this + " message " + messageId + " without reply");
         }
-        if (DISCONNECT_ON_PENDING_REPLY_TIMEOUT && disconnectOnReplyTimeout) {
-            close();
+        submitCallback(() -> {
+            pending.callback.replyReceived(pending.message, null, new IOException(this + " reply timeout expired"));
+        });
+        if (disconnect) {
+            // do not block the timer thread
+            submitCallback(this::close);
         }
     }
 
     @Override
     public void sendMessageWithAsyncReply(Message message, long timeout, ReplyCallback callback) {
-        if (message.getMessageId() == null) {
-            message.setMessageId(UUID.randomUUID().toString());
+        if (message.getMessageId() == 0) {
+            assignMessageId(message);
         }
         if (!isValid()) {
             submitCallback(() -> {
@@ -189,9 +243,12 @@ public class NettyChannel extends Channel {
             });
             return;
         }
-        pendingReplyMessages.put(message.getMessageId(), callback);
-        pendingReplyMessagesSource.put(message.getMessageId(), message);
-        pendingReplyMessagesDeadline.put(message.getMessageId(), System.currentTimeMillis() + timeout);
+        PendingReply pending = new PendingReply(message, callback);
+        long messageId = message.getMessageId();
+        synchronized (pendingReplyMessages) {
+            pendingReplyMessages.put(messageId, pending);
+        }
+        pending.setTimeout(REPLY_TIMEOUT_TIMER.newTimeout(t -> replyTimedOut(messageId), timeout, TimeUnit.MILLISECONDS));
         sendOneWayMessage(message, new SendResultCallback() {
 
             @Override
@@ -224,6 +281,8 @@ public class NettyChannel extends Channel {
         String socketDescription = socket + "";
         if (socket != null) {
             try {
+                // coalesced writes may still wait for their flush, i.e. the reply to a rejected connection
+                socket.flush();
                 socket.close().await();
             } catch (InterruptedException err) {
                 Thread.currentThread().interrupt();
@@ -232,18 +291,18 @@ public class NettyChannel extends Channel {
             }
         }
 
-        pendingReplyMessages.forEach((key, callback) -> {
-            Message original = pendingReplyMessagesSource.remove(key);
-            LOGGER.log(Level.SEVERE, this + " message " + key + " was not replied (" + original + ") callback:" + callback);
-            if (original != null) {
-                submitCallback(() -> {
-                    callback.replyReceived(original, null, new IOException("comunication channel is closed. Cannot wait for pending messages, socket=" + socketDescription));
-                });
-            }
-        });
-        pendingReplyMessages.clear();
-        pendingReplyMessagesSource.clear();
-        pendingReplyMessagesDeadline.clear();
+        List<PendingReply> notReplied;
+        synchronized (pendingReplyMessages) {
+            notReplied = new ArrayList<>(pendingReplyMessages.values());
+            pendingReplyMessages.clear();
+        }
+        for (PendingReply pending : notReplied) {
+            pending.cancelTimeout();
+            LOGGER.log(Level.SEVERE, this + " message " + pending.message.getMessageId() + " was not replied (" + pending.message + ") callback:" + pending.callback);
+            submitCallback(() -> {
+                pending.callback.replyReceived(pending.message, null, new IOException("comunication channel is closed. Cannot wait for pending messages, socket=" + socketDescription));
+            });
+        }
 
         if (connector != null) {
             connector.close();
@@ -281,7 +340,6 @@ public class NettyChannel extends Channel {
     @Override
     public void channelIdle() {
         LOGGER.log(Level.FINEST, "{0} channelIdle", this);
-        processPendingReplyMessagesDeadline();
     }
 
     public String getName() {
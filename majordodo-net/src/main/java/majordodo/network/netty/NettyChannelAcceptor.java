@@ -65,6 +65,7 @@ public class NettyChannelAcceptor implements AutoCloseable {
     private File sslCertFile;
     private String sslCertPassword;
     private int workerThreads = 16;
+    private boolean coalesceWrites = NettyChannel.DEFAULT_COALESCE_WRITES;
     private final ExecutorService callbackExecutor = Executors.newCachedThreadPool();
 
     public int getWorkerThreads() {
@@ -75,6 +76,20 @@ public class NettyChannelAcceptor implements AutoCloseable {
         this.workerThreads = workerThreads;
     }
 
+    public boolean isCoalesceWrites() {
+        return coalesceWrites;
+    }
+
+    /**
+     * Enables write coalescing on the accepted channels
+     *
+     * @param coalesceWrites
+     * @see NettyChannel#setCoalesceWrites(boolean)
+     */
+    public void setCoalesceWrites(boolean coalesceWrites) {
+        this.coalesceWrites = coalesceWrites;
+    }
+
     public boolean isSsl() {
         return ssl;
     }
@@ -189,6 +204,7 @@ public class NettyChannelAcceptor implements AutoCloseable {
                 @Override
                 public void initChannel(SocketChannel ch) throws Exception {
                     NettyChannel session = new NettyChannel("client", ch, callbackExecutor, null);
+                    session.setCoalesceWrites(coalesceWrites);
                     if (acceptor != null) {
                         acceptor.createConnection(session);
                     }
@@ -202,7 +218,7 @@ public class NettyChannelAcceptor implements AutoCloseable {
                     ch.pipeline().addLast("lengthprepender", new LengthFieldPrepender(4));
                     ch.pipeline().addLast("lengthbaseddecoder", new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
 //
-                    ch.pipeline().addLast("messageencoder", new DodoMessageEncoder());
+                    ch.pipeline().addLast("messageencoder", new DodoMessageEncoder(session));
                     ch.pipeline().addLast("messagedecoder", new DodoMessageDecoder());
                     ch.pipeline().addLast(new InboundMessageHandler(session));
                 }
@@ -59,6 +59,21 @@ public class NettyConnector implements AutoCloseable {
     private boolean sslUnsecure = true;
     private final ChannelEventListener receiver;
     private final ExecutorService callbackExecutor = Executors.newCachedThreadPool();
+    private boolean coalesceWrites = NettyChannel.DEFAULT_COALESCE_WRITES;
+
+    public boolean isCoalesceWrites() {
+        return coalesceWrites;
+    }
+
+    /**
+     * Enables write coalescing on the channel
+     *
+     * @param coalesceWrites
+     * @see NettyChannel#setCoalesceWrites(boolean)
+     */
+    public void setCoalesceWrites(boolean coalesceWrites) {
+        this.coalesceWrites = coalesceWrites;
+    }
 
     public boolean isSslUnsecure() {
         return sslUnsecure;
@@ -124,6 +139,7 @@ public class NettyConnector implements AutoCloseable {
                 @Override
                 public void initChannel(SocketChannel ch) throws Exception {
                     channel = new NettyChannel(host + ":" + port, ch, callbackExecutor, NettyConnector.this);
+                    channel.setCoalesceWrites(coalesceWrites);
                     channel.setMessagesReceiver(receiver);
                     channel.setRemoteHost(host);
                     if (ssl) {
@@ -132,7 +148,7 @@ public class NettyConnector implements AutoCloseable {
                     ch.pipeline().addLast("lengthprepender", new LengthFieldPrepender(4));
                     ch.pipeline().addLast("lengthbaseddecoder", new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
 //
-                    ch.pipeline().addLast("messageencoder", new DodoMessageEncoder());
+                    ch.pipeline().addLast("messageencoder", new DodoMessageEncoder(channel));
                     ch.pipeline().addLast("messagedecoder", new DodoMessageDecoder());
                     ch.pipeline().addLast(new InboundMessageHandler(channel));
                 }
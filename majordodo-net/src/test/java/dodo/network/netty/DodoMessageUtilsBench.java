@@ -0,0 +1,129 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package dodo.network.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import majordodo.network.Message;
+import majordodo.network.netty.DodoMessageUtils;
+import org.junit.Test;
+
+/**
+ * Compares the legacy map-based codec with the typed codec on hot messages.
+ * Not part of the default build, run it with -Dtest=DodoMessageUtilsBench
+ *
+ * @author enrico.olivelli
+ */
+public class DodoMessageUtilsBench {
+
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 1000000;
+
+    private static Message taskAssigned() {
+        Map<String, Object> params = new HashMap<>();
+        params.put("taskid", 123456789L);
+        params.put("tasktype", "mytasktype");
+        params.put("parameter", "newinstance:my.package.MyExecutor");
+        params.put("attempt", 1);
+        params.put("userid", "myuser");
+        params.put("resources", "db1,db2");
+        Message m = Message.TYPE_TASK_ASSIGNED("myworkerprocess", params);
+        m.messageId = 123456;
+        return m;
+    }
+
+    private static Message taskFinished() {
+        List<Map<String, Object>> tasksData = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> params = new HashMap<>();
+            params.put("taskid", 123456789L + i);
+            params.put("status", "finished");
+            params.put("result", "ok");
+            tasksData.add(params);
+        }
+        Message m = Message.TASK_FINISHED("myworkerprocess", tasksData);
+        m.messageId = 123456;
+        return m;
+    }
+
+    private static Message workerPing() {
+        Map<String, Integer> maxThreadsByTaskType = new HashMap<>();
+        maxThreadsByTaskType.put("mytasktype", 10);
+        maxThreadsByTaskType.put("othertasktype", 5);
+        Map<String, Integer> resources = new HashMap<>();
+        resources.put("db1", 4);
+        Message m = Message.WORKER_PING("myworkerprocess", Arrays.asList(0, 1, 2), new HashSet<>(Arrays.asList(3)),
+            maxThreadsByTaskType, 20, resources, 0, 0);
+        m.messageId = 123456;
+        return m;
+    }
+
+    private static Message ack() {
+        Message m = Message.ACK("myworkerprocess");
+        m.messageId = 123456;
+        m.replyMessageId = 123455;
+        return m;
+    }
+
+    private static void bench(String name, Message m, int codecVersion) {
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.buffer();
+        try {
+            DodoMessageUtils.encodeMessage(buffer, m, codecVersion);
+            int size = buffer.readableBytes();
+            for (int i = 0; i < WARMUP; i++) {
+                buffer.clear();
+                DodoMessageUtils.encodeMessage(buffer, m, codecVersion);
+                DodoMessageUtils.decodeMessage(buffer);
+            }
+            long _start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                buffer.clear();
+                DodoMessageUtils.encodeMessage(buffer, m, codecVersion);
+            }
+            long _encoded = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                buffer.readerIndex(0);
+                DodoMessageUtils.decodeMessage(buffer);
+            }
+            long _decoded = System.nanoTime();
+            System.out.println(name + " codec " + codecVersion + ": " + size + " bytes, encode "
+                + (_encoded - _start) / ITERATIONS + " ns/msg, decode " + (_decoded - _encoded) / ITERATIONS + " ns/msg");
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void benchHotMessages() throws Exception {
+        for (int codecVersion : new int[]{Message.CODEC_VERSION_LEGACY, Message.CODEC_VERSION_TYPED}) {
+            bench("TASK_ASSIGNED", taskAssigned(), codecVersion);
+            bench("TASK_FINISHED", taskFinished(), codecVersion);
+            bench("WORKER_PING", workerPing(), codecVersion);
+            bench("ACK", ack(), codecVersion);
+        }
+    }
+
+}
@@ -23,8 +23,13 @@ import majordodo.network.netty.DodoMessageUtils;
 import majordodo.network.Message;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.junit.Test;
@@ -67,8 +72,8 @@ public class DodoMessageUtilsTest {
         tags.put("d", "teststring");
         pp.put("5", tags);
         Message m = new Message("a", Message.TYPE_KILL_WORKER, pp);
-        m.replyMessageId = "b";
-        m.messageId = "c";
+        m.replyMessageId = 2;
+        m.messageId = 3;
         DodoMessageUtils.encodeMessage(encoded, m);
         Message read = DodoMessageUtils.decodeMessage(encoded);
         System.out.println("read.parameters:"+read.parameters);
@@ -85,4 +90,192 @@ public class DodoMessageUtilsTest {
         assertEquals(read.parameters.get("pp_set"), m.parameters.get("pp_set"));
     }
 
+    private static Message roundTrip(Message m, int codecVersion) {
+        ByteBuf encoded = Unpooled.buffer();
+        DodoMessageUtils.encodeMessage(encoded, m, codecVersion);
+        Message read = DodoMessageUtils.decodeMessage(encoded);
+        assertFalse(encoded.isReadable());
+        assertEquals(m.type, read.type);
+        assertEquals(m.messageId, read.messageId);
+        assertEquals(m.replyMessageId, read.replyMessageId);
+        assertEquals(m.workerProcessId, read.workerProcessId);
+        if (m.parameters == null) {
+            assertTrue(read.parameters.isEmpty());
+        } else {
+            assertEquals(m.parameters, read.parameters);
+        }
+        return read;
+    }
+
+    @Test
+    public void testByteBufferIsEncodedAsByteArray() {
+        byte[] data = "0123456789".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer slice = ByteBuffer.wrap(data, 2, 5);
+        Message m = Message.DOWNLOAD_CODEPOOL_CHUNK_RESPONSE(slice, 0, 5);
+        ByteBuf encoded = Unpooled.buffer();
+        DodoMessageUtils.encodeMessage(encoded, m);
+        Message read = DodoMessageUtils.decodeMessage(encoded);
+        assertArrayEquals("23456".getBytes(StandardCharsets.UTF_8), (byte[]) read.parameters.get("data"));
+        // the buffer can be sent again
+        assertEquals(2, slice.position());
+        assertEquals(5, slice.remaining());
+    }
+
+    @Test
+    public void testTypedCodec() {
+        Map<String, Object> assigned = new HashMap<>();
+        assigned.put("taskid", 1234L);
+        assigned.put("tasktype", "mytype");
+        assigned.put("parameter", null);
+        assigned.put("attempt", 1);
+        assigned.put("userid", "myuser");
+        assigned.put("resources", "db1,db2");
+        assigned.put("codepool", "pool");
+        Message m = Message.TYPE_TASK_ASSIGNED("proc", assigned);
+        m.messageId = 1;
+        Message read = roundTrip(m, Message.CODEC_VERSION_TYPED);
+        assertTrue(read.parameters.containsKey("parameter"));
+        assertFalse(read.parameters.containsKey("mode"));
+
+        m = Message.TASKS_ASSIGNED("proc", Arrays.asList(assigned, assigned));
+        m.messageId = 6;
+        roundTrip(m, Message.CODEC_VERSION_LEGACY);
+        roundTrip(m, Message.CODEC_VERSION_TYPED);
+
+        List<Map<String, Object>> tasksData = new ArrayList<>();
+        Map<String, Object> finished = new HashMap<>();
+        finished.put("taskid", Long.MAX_VALUE);
+        finished.put("status", "finished");
+        finished.put("result", "àèìòù");
+        tasksData.add(finished);
+        m = Message.TASK_FINISHED("proc", tasksData);
+        m.messageId = 2;
+        roundTrip(m, Message.CODEC_VERSION_TYPED);
+
+        Map<String, Integer> maxThreadsByTaskType = new HashMap<>();
+        maxThreadsByTaskType.put("any", -1);
+        m = Message.WORKER_PING("proc", Arrays.asList(1, 2, 3), new HashSet<>(Arrays.asList(4)), maxThreadsByTaskType, 100, new HashMap<>(), 0, 5);
+        m.messageId = 3;
+        roundTrip(m, Message.CODEC_VERSION_TYPED);
+
+        m = Message.ACK("proc");
+        m.messageId = 4;
+        m.replyMessageId = 3;
+        roundTrip(m, Message.CODEC_VERSION_TYPED);
+
+        // parameters which do not fit the layout fall back to the generic encoding
+        m = Message.ACK("proc").setParameter("codecVersion", Message.CODEC_VERSION_TYPED);
+        m.messageId = 5;
+        roundTrip(m, Message.CODEC_VERSION_TYPED);
+
+        // messages without a fixed layout
+        m = Message.KILL_WORKER("proc");
+        m.messageId = Long.MAX_VALUE;
+        roundTrip(m, Message.CODEC_VERSION_TYPED);
+    }
+
+    @Test
+    public void testClientMessages() {
+        Map<String, Object> task = new HashMap<>();
+        task.put("tasktype", "mytype");
+        task.put("userid", "myuser");
+        task.put("parameter", "param");
+        task.put("maxattempts", 1);
+        task.put("attempt", 0);
+        task.put("requestedStartTime", 0L);
+        task.put("deadline", 1000L);
+        task.put("slot", null);
+        task.put("transaction", 0L);
+        Message m = Message.CLIENT_SUBMIT_TASKS(Arrays.asList(task, task));
+        m.messageId = 1;
+        roundTrip(m, Message.CODEC_VERSION_LEGACY);
+        roundTrip(m, Message.CODEC_VERSION_TYPED);
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("taskid", 1234L);
+        result.put("outcome", null);
+        m = Message.CLIENT_SUBMIT_TASKS_RESULT(Arrays.asList(result));
+        m.messageId = 2;
+        m.replyMessageId = 1;
+        roundTrip(m, Message.CODEC_VERSION_TYPED);
+
+        m = Message.CLIENT_SUBSCRIBE_TASKS_COMPLETION(Arrays.asList(1L, Long.MAX_VALUE));
+        m.messageId = 3;
+        roundTrip(m, Message.CODEC_VERSION_TYPED);
+
+        Map<String, Object> status = new HashMap<>();
+        status.put("taskId", 1L);
+        status.put("status", "finished");
+        status.put("userId", "myuser");
+        status.put("tasktype", "mytype");
+        status.put("result", "àèìòù");
+        status.put("workerId", null);
+        status.put("createdTimestamp", System.currentTimeMillis());
+        status.put("attempts", 1);
+        status.put("maxattempts", 1);
+        m = Message.CLIENT_TASKS_COMPLETED(Arrays.asList(status), Arrays.asList(2L));
+        m.messageId = 4;
+        m.replyMessageId = 3;
+        Message read = roundTrip(m, Message.CODEC_VERSION_TYPED);
+        assertEquals(Arrays.asList(2L), read.parameters.get("notFound"));
+        m = Message.CLIENT_TASKS_COMPLETED(Arrays.asList(status), null);
+        m.messageId = 5;
+        read = roundTrip(m, Message.CODEC_VERSION_TYPED);
+        assertFalse(read.parameters.containsKey("notFound"));
+
+        // messages without a fixed layout
+        m = Message.CLIENT_CREATE_CODEPOOL("pool", 0, new byte[]{1, 2, 3});
+        m.messageId = 6;
+        read = DodoMessageUtils.decodeMessage(encode(m));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) read.parameters.get("data"));
+        m = Message.CLIENT_TASK_STATUS(null);
+        m.messageId = 7;
+        roundTrip(m, Message.CODEC_VERSION_TYPED);
+    }
+
+    private static ByteBuf encode(Message m) {
+        ByteBuf encoded = Unpooled.buffer();
+        DodoMessageUtils.encodeMessage(encoded, m, Message.CODEC_VERSION_TYPED);
+        return encoded;
+    }
+
+    @Test
+    public void testCredentialsAreNotPrinted() {
+        Message client = Message.CLIENT_CONNECTION_REQUEST("client", "pid", "host", "user", "mypassword");
+        assertFalse(client.toString().contains("mypassword"));
+        assertTrue(client.toString().contains("user"));
+        assertEquals("mypassword", client.parameters.get("password"));
+        Message worker = Message.CONNECTION_REQUEST("worker", "pid", "host", "mysecret", new HashSet<>(), 1,
+            new HashMap<>(), new ArrayList<>(), new HashSet<>(), new HashMap<>(), "worker", 0, 0);
+        assertFalse(worker.toString().contains("mysecret"));
+        assertEquals("mysecret", worker.parameters.get("secret"));
+    }
+
+    @Test
+    public void testLegacyTextualMessageId() {
+        // frame written by a peer which uses textual message ids
+        ByteBuf encoded = Unpooled.buffer();
+        encoded.writeByte('a');
+        encoded.writeInt(Message.TYPE_WORKER_SHUTDOWN);
+        byte[] textualId = "2b5cbdc2-9b38-4f3c-8c6c-6d4b0e27a3f2".getBytes(StandardCharsets.UTF_8);
+        encoded.writeInt(textualId.length);
+        encoded.writeBytes(textualId);
+        Message read = DodoMessageUtils.decodeMessage(encoded);
+        assertEquals("2b5cbdc2-9b38-4f3c-8c6c-6d4b0e27a3f2", read.legacyMessageId);
+        assertNotEquals(0, read.messageId);
+
+        // the textual id is echoed back in the reply, whatever the codec
+        for (int codecVersion : new int[]{Message.CODEC_VERSION_LEGACY, Message.CODEC_VERSION_TYPED}) {
+            Message reply = Message.ACK("proc").setReplyTo(read);
+            reply.messageId = 10;
+            ByteBuf replyEncoded = Unpooled.buffer();
+            DodoMessageUtils.encodeMessage(replyEncoded, reply, codecVersion);
+            assertEquals('a', replyEncoded.getByte(0));
+            replyEncoded.skipBytes(1 + 4);
+            assertEquals("10", replyEncoded.readCharSequence(replyEncoded.readInt(), StandardCharsets.UTF_8).toString());
+            replyEncoded.skipBytes(1);
+            assertEquals(read.legacyMessageId, replyEncoded.readCharSequence(replyEncoded.readInt(), StandardCharsets.UTF_8).toString());
+        }
+    }
+
 }
@@ -28,16 +28,26 @@ import majordodo.network.Message;
 import majordodo.network.ReplyCallback;
 import majordodo.network.ServerSideConnection;
 import majordodo.network.ServerSideConnectionAcceptor;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.socket.SocketChannel;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.SimpleFormatter;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -65,6 +75,34 @@ public class NettyChannelTest {
 
     }
 
+    /**
+     * Counts the flushes which reach the socket
+     */
+    private static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+
+        final AtomicInteger flushes = new AtomicInteger();
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            flushes.incrementAndGet();
+            super.flush(ctx);
+        }
+
+    }
+
+    private static SocketChannel socketOf(NettyChannel channel) throws Exception {
+        Field socket = NettyChannel.class.getDeclaredField("socket");
+        socket.setAccessible(true);
+        return (SocketChannel) socket.get(channel);
+    }
+
+    private static FlushCounter installFlushCounter(NettyChannel channel) throws Exception {
+        FlushCounter counter = new FlushCounter();
+        // outbound events flow from the tail to the head, the first handler sees what goes to the wire
+        socketOf(channel).pipeline().addFirst("flushcounter", counter);
+        return counter;
+    }
+
 //    @Before
 //    public void setupLogger() throws Exception {
 //        Level level = Level.ALL;
@@ -157,4 +195,209 @@ public class NettyChannelTest {
 
     }
 
+    @Test
+    public void coalesceWritesTest() throws Exception {
+        for (boolean coalesceWrites : new boolean[]{false, true}) {
+            sendManyMessages(coalesceWrites, 10000);
+        }
+    }
+
+    private void sendManyMessages(boolean coalesceWrites, int count) throws Exception {
+        ServerSideConnectionAcceptor acceptor = new ServerSideConnectionAcceptor() {
+
+            @Override
+            public ServerSideConnection createConnection(final Channel channel) {
+                channel.setMessagesReceiver(new ChannelEventListener() {
+
+                    @Override
+                    public void messageReceived(Message message) {
+                        channel.sendReplyMessage(message, Message.ACK("ok"));
+                    }
+
+                    @Override
+                    public void channelClosed() {
+                    }
+
+                });
+                return new SimpleServerSideConnection();
+            }
+
+        };
+        CountDownLatch replies = new CountDownLatch(count);
+        try (NettyChannelAcceptor server = new NettyChannelAcceptor(acceptor);) {
+            server.setHost("0.0.0.0");
+            server.setCoalesceWrites(coalesceWrites);
+            server.start();
+            try (NettyConnector connector = new NettyConnector(new ChannelEventListener() {
+
+                @Override
+                public void messageReceived(Message message) {
+                }
+
+                @Override
+                public void channelClosed() {
+                }
+            })) {
+                connector.setCoalesceWrites(coalesceWrites);
+                NettyChannel channel = connector.connect();
+                assertEquals(coalesceWrites, channel.isCoalesceWrites());
+                FlushCounter counter = installFlushCounter(channel);
+                long _start = System.currentTimeMillis();
+                for (int i = 0; i < count; i++) {
+                    channel.sendMessageWithAsyncReply(Message.KILL_WORKER("testrequest"), 10000, new ReplyCallback() {
+
+                        @Override
+                        public void replyReceived(Message originalMessage, Message message, Throwable error) {
+                            if (error == null) {
+                                replies.countDown();
+                            }
+                        }
+                    });
+                }
+                assertTrue(replies.await(60, TimeUnit.SECONDS));
+                long _stop = System.currentTimeMillis();
+                System.out.println("coalesceWrites=" + coalesceWrites + ": " + count + " messages in " + (_stop - _start) + " ms, " + counter.flushes + " flushes");
+                if (coalesceWrites) {
+                    assertTrue(counter.flushes.get() < count);
+                } else {
+                    assertEquals(count, counter.flushes.get());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void replyBeforeCloseTest() throws Exception {
+        ServerSideConnectionAcceptor acceptor = new ServerSideConnectionAcceptor() {
+
+            @Override
+            public ServerSideConnection createConnection(final Channel channel) {
+                channel.setMessagesReceiver(new ChannelEventListener() {
+
+                    @Override
+                    public void messageReceived(Message message) {
+                        // like a rejected connection request, the reply must not be lost
+                        try {
+                            // keep the event loop busy, so that the write and the close are queued together
+                            CountDownLatch hold = new CountDownLatch(1);
+                            socketOf((NettyChannel) channel).eventLoop().execute(() -> {
+                                try {
+                                    hold.await();
+                                } catch (InterruptedException err) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            });
+                            channel.sendReplyMessage(message, Message.ACK("ok"));
+                            new Thread(() -> {
+                                try {
+                                    Thread.sleep(500);
+                                } catch (InterruptedException err) {
+                                }
+                                hold.countDown();
+                            }).start();
+                            channel.close();
+                        } catch (Exception err) {
+                            throw new RuntimeException(err);
+                        }
+                    }
+
+                    @Override
+                    public void channelClosed() {
+                    }
+
+                });
+                return new SimpleServerSideConnection();
+            }
+
+        };
+        BlockingQueue<Message> replies = new ArrayBlockingQueue<>(100);
+
+        try (NettyChannelAcceptor server = new NettyChannelAcceptor(acceptor);) {
+            server.setHost("0.0.0.0");
+            server.setCoalesceWrites(true);
+            server.start();
+            try (NettyConnector connector = new NettyConnector(new ChannelEventListener() {
+
+                @Override
+                public void messageReceived(Message message) {
+                }
+
+                @Override
+                public void channelClosed() {
+                }
+            })) {
+                NettyChannel channel = connector.connect();
+                channel.sendMessageWithAsyncReply(Message.KILL_WORKER("testrequest"), 10000, new ReplyCallback() {
+
+                    @Override
+                    public void replyReceived(Message originalMessage, Message message, Throwable error) {
+                        if (message != null) {
+                            replies.add(message);
+                        }
+                    }
+                });
+                Message reply = replies.poll(5, TimeUnit.SECONDS);
+                assertNotNull(reply);
+                assertEquals(Message.TYPE_ACK, reply.type);
+            }
+        }
+    }
+
+    @Test
+    public void replyTimeoutTest() throws Exception {
+        ServerSideConnectionAcceptor acceptor = new ServerSideConnectionAcceptor() {
+
+            @Override
+            public ServerSideConnection createConnection(final Channel channel) {
+                channel.setMessagesReceiver(new ChannelEventListener() {
+
+                    @Override
+                    public void messageReceived(Message message) {
+                        // never reply
+                    }
+
+                    @Override
+                    public void channelClosed() {
+                    }
+
+                });
+                return new SimpleServerSideConnection();
+            }
+
+        };
+        BlockingQueue<Throwable> errors = new ArrayBlockingQueue<>(100);
+
+        try (NettyChannelAcceptor server = new NettyChannelAcceptor(acceptor);) {
+            server.setHost("0.0.0.0");
+            server.start();
+            try (NettyConnector connector = new NettyConnector(new ChannelEventListener() {
+
+                @Override
+                public void messageReceived(Message message) {
+                }
+
+                @Override
+                public void channelClosed() {
+                }
+            })) {
+                NettyChannel channel = connector.connect();
+                long _start = System.currentTimeMillis();
+                channel.sendMessageWithAsyncReply(Message.KILL_WORKER("testrequest"), 500, new ReplyCallback() {
+
+                    @Override
+                    public void replyReceived(Message originalMessage, Message message, Throwable error) {
+                        errors.add(error);
+                    }
+                });
+                Throwable error = errors.poll(10, TimeUnit.SECONDS);
+                long _stop = System.currentTimeMillis();
+                assertTrue(error instanceof IOException);
+                assertTrue(_stop - _start >= 500);
+                // client side channels are not closed on reply timeout
+                assertTrue(channel.isValid());
+            }
+        }
+
+    }
+
 }
@@ -0,0 +1,83 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.executors;
+
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Implementation of the execution of a task which does not block the worker
+ * thread while waiting for the result (for instance for remote calls). The
+ * task is "running" until the returned CompletionStage completes
+ *
+ * @author enrico.olivelli
+ */
+public abstract class AsyncTaskExecutor extends TaskExecutor {
+
+    /**
+     * Starts the execution of the task. A CompletionStage which completes
+     * exceptionally (or any Exception thrown by this method) will be treated as
+     * an "error" and the Task will be re-submitted for recovery
+     *
+     * @param parameters
+     * @return the result of the task
+     * @throws Exception
+     * @see TaskExecutor#executeTask(java.util.Map)
+     */
+    public abstract CompletionStage<String> executeTaskAsync(Map<String, Object> parameters) throws Exception;
+
+    /**
+     * Blocking version of {@link #executeTaskAsync(java.util.Map) }, the
+     * worker never uses this method
+     *
+     * @param parameters
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public String executeTask(Map<String, Object> parameters) throws Exception {
+        try {
+            return executeTaskAsync(parameters).toCompletableFuture().get();
+        } catch (ExecutionException err) {
+            Throwable cause = unwrap(err);
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw err;
+        }
+    }
+
+    /**
+     * Returns the real error from an exceptionally completed CompletionStage
+     *
+     * @param error
+     * @return
+     */
+    public static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+            && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.executors;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of the execution of a group of tasks of the same tasktype in
+ * a single call. This is useful for tasks which are cheaper when processed
+ * together (for instance bulk updates)
+ *
+ * @author enrico.olivelli
+ * @see BatchTaskExecutorFactory
+ */
+public abstract class BatchTaskExecutor {
+
+    /**
+     * Receives the outcome of each task of the batch
+     */
+    public static interface Results {
+
+        public void taskFinished(long taskId, String result);
+
+        public void taskError(long taskId, Throwable error);
+    }
+
+    /**
+     * Executes the tasks. The outcome of each task must be reported to
+     * results, tasks without an outcome will be treated as "errors". Any
+     * Exception thrown by this method will be treated as an "error" for every
+     * task without an outcome
+     *
+     * @param tasks the parameters of each task, see the PARAMETER_xxx
+     * constants of {@link TaskExecutor}
+     * @param results
+     * @throws Exception
+     */
+    public abstract void executeTasks(List<Map<String, Object>> tasks, Results results) throws Exception;
+
+}